@@ -0,0 +1,164 @@
+package test;
+
+import java.util.Arrays;
+
+/**
+ * Bounded max-heap of <id, distance> pairs over parallel primitive arrays,
+ * which keeps the k smallest distances added to it. The top of the heap is
+ * the current k-th distance; among equal distances the larger id is on top.
+ * A heap is meant to be reset and reused for every query so that kNN
+ * maintenance does not create objects per candidate.
+ *
+ * Distances are stored as double, float distances round-trip exactly.
+ */
+public class KNNHeap {
+	private int k;
+	private int size;
+	private int[] ids;
+	private double[] dists;
+
+	public KNNHeap(int k) {
+		this.ids = new int[0];
+		this.dists = new double[0];
+		reset(k);
+	}
+
+	/**
+	 * Empties the heap. The arrays are kept and only grow when needed.
+	 */
+	public void reset() {
+		size = 0;
+	}
+
+	public void reset(int k) {
+		if (k < 1)
+			throw new IllegalArgumentException("At least one enumeration has to be requested!");
+		this.k = k;
+		this.size = 0;
+		if (ids.length < k && k <= 1024) {
+			ids = new int[k];
+			dists = new double[k];
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int getK() {
+		return k;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public boolean isFull() {
+		return size == k;
+	}
+
+	/**
+	 * Returns the k-th distance, or infinity while less than k pairs are
+	 * in the heap. Candidates farther away than this can be pruned.
+	 */
+	public double kthDistance() {
+		return (size < k) ? Double.POSITIVE_INFINITY : dists[0];
+	}
+
+	/**
+	 * Adds <id, dist> if the heap is not full or if it is closer than the
+	 * current top, which is evicted then.
+	 *
+	 * @return true if the pair has been added
+	 */
+	public boolean add(int id, double dist) {
+		if (size < k) {
+			if (size == ids.length) {
+				int len = (int) Math.min(k, Math.max(16L, 2L * size));
+				ids = Arrays.copyOf(ids, len);
+				dists = Arrays.copyOf(dists, len);
+			}
+			int i = size++;
+			while (i > 0) {
+				int p = (i - 1) >>> 1;
+				if (!greater(dist, id, dists[p], ids[p]))
+					break;
+				ids[i] = ids[p];
+				dists[i] = dists[p];
+				i = p;
+			}
+			ids[i] = id;
+			dists[i] = dist;
+			return true;
+		}
+		if (!greater(dists[0], ids[0], dist, id))
+			return false;
+		siftDown(id, dist);
+		return true;
+	}
+
+	/**
+	 * Linear scan for id, used to drop duplicate candidates before adding.
+	 */
+	public boolean contains(int id) {
+		for (int i = 0; i < size; i++)
+			if (ids[i] == id)
+				return true;
+		return false;
+	}
+
+	public int peekId() {
+		return ids[0];
+	}
+
+	public double peekDistance() {
+		return dists[0];
+	}
+
+	/**
+	 * Removes the top, i.e. the pair with the largest distance.
+	 */
+	public void poll() {
+		size--;
+		if (size > 0)
+			siftDown(ids[size], dists[size]);
+	}
+
+	/**
+	 * Empties the heap into the given arrays in ascending order of the
+	 * distance.
+	 *
+	 * @return the number of pairs written
+	 */
+	public int drainAscending(int[] resultIds, double[] resultDists) {
+		int n = size;
+		for (int i = n - 1; i >= 0; i--) {
+			resultIds[i] = ids[0];
+			resultDists[i] = dists[0];
+			poll();
+		}
+		return n;
+	}
+
+	private void siftDown(int id, double dist) {
+		int i = 0;
+		while (true) {
+			int c = 2 * i + 1;
+			if (c >= size)
+				break;
+			if (c + 1 < size && greater(dists[c + 1], ids[c + 1], dists[c], ids[c]))
+				c++;
+			if (!greater(dists[c], ids[c], dist, id))
+				break;
+			ids[i] = ids[c];
+			dists[i] = dists[c];
+			i = c;
+		}
+		ids[i] = id;
+		dists[i] = dist;
+	}
+
+	private static boolean greater(double d1, int id1, double d2, int id2) {
+		return (d1 > d2) || (d1 == d2 && id1 > id2);
+	}
+}
@@ -141,6 +141,22 @@ public class NPhase1 extends Configured implements Tool
 		private int knn;
 		//private boolean self_join;
 
+		// S is kept in memory in columns, sCols[k][j] is coordinate k of 
+		// record j, up to sBlockSize records; a larger S is spilled and
+		// read back in chunks of sBlockSize records for every block of R
+		private int sBlockSize;
+		private int[] sIds;
+		private float[][] sCols;
+		private int[] idR;
+		private float[] coordR;      // blockSize * dimension
+		private KNNHeap[] knnQueueR;
+
+		// Workers joining parts of a block of R in parallel
+		private ReducePool pool;
+
+		// Records of S per tile, the distances of a tile stay in the L1 cache
+		static final int TILE = 1024;
+
 		private Configuration jobinfo;
 		
 		public void configure(JobConf job) 
@@ -149,7 +165,19 @@ public class NPhase1 extends Configured implements Tool
 			dimension = job.getInt("dimension", 2);
 			blockSize = job.getInt("blockSize", 1024);
 			knn = job.getInt("knn", 1024);
+			sBlockSize = job.getInt("sBlockSize", 1 << 20);
+			pool = new ReducePool(job.getInt("reduceThreads", 1), 
+				job.getBoolean("reduceOrdered", true));
 			//self_join = Boolean.valueOf(job.get("self_join"));
+
+			idR = new int[blockSize];
+			coordR = new float[blockSize * dimension];
+			knnQueueR = new KNNHeap[blockSize];
+			// One knn heap per record of a block, reused for every block
+			for (int j = 0; j < blockSize; j++) 
+				knnQueueR[j] = new KNNHeap(knn);
+			sIds = new int[Math.min(sBlockSize, TILE)];
+			sCols = new float[dimension][sIds.length];
 			
 			// Get the local file system
 			try 
@@ -164,9 +192,73 @@ public class NPhase1 extends Configured implements Tool
 			jobinfo = job;
 			//mos = new MultipleOutputs(job);
 		}
+
+		// Appends a record of S to the columns
+		private void addS(int sCount, int id, float[] coord) 
+		{
+			if (sCount == sIds.length) 
+			{
+				int len = (int) Math.min(sBlockSize, 2L * sIds.length);
+				sIds = Arrays.copyOf(sIds, len);
+				for (int k = 0; k < dimension; k++)
+					sCols[k] = Arrays.copyOf(sCols[k], len);
+			}
+			sIds[sCount] = id;
+			for (int k = 0; k < dimension; k++)
+				sCols[k][sCount] = coord[k];
+		}
+
+		private void writeRecord(DataOutputStream out, int id, float[] coord) 
+			throws IOException 
+		{
+			out.writeInt(id);
+			for (int k = 0; k < dimension; k++)
+				out.writeFloat(coord[k]);
+		}
+
+		/**
+		 * Joins the records [from, to) of the block of R with the first count 
+		 * records of S in the columns. The squared distances of a record of
+		 * R to a tile of S are computed dimension by dimension in a loop
+		 * without branches over the tile, which the JIT compiles to SIMD
+		 * instructions, then only the distances not above the k-th distance
+		 * of the record are added to its heap.
+		 */
+		private void joinBlock(int from, int to, int count) 
+		{
+			float[] dist = new float[TILE];
+			for (int t = 0; t < count; t += TILE) 
+			{
+				int n = Math.min(TILE, count - t);
+				for (int i = from; i < to; i++) 
+				{
+					int x = i * dimension;
+					for (int j = 0; j < n; j++)
+						dist[j] = 0;
+					for (int k = 0; k < dimension; k++) 
+					{
+						float xk = coordR[x + k];
+						float[] col = sCols[k];
+						for (int j = 0; j < n; j++) 
+						{
+							float d = xk - col[t + j];
+							dist[j] += d * d;
+						}
+					}
+
+					KNNHeap heap = knnQueueR[i];
+					double kth = heap.kthDistance();
+					for (int j = 0; j < n; j++) 
+					{
+						if (dist[j] <= kth && heap.add(sIds[t + j], dist[j]))
+							kth = heap.kthDistance();
+					}
+				}
+			}
+		}
 		
 		public void reduce(IntWritable key, Iterator<NPhase1Value> values,
-		OutputCollector<NullWritable, Text> output, 
+		final OutputCollector<NullWritable, Text> output, 
 		Reporter reporter) throws IOException 
 		{
 			String algorithm = "nested_loop";
@@ -175,36 +267,49 @@ public class NPhase1 extends Configured implements Tool
 			try {
 				file1 = lDirAlloc.getLocalPathForWrite(prefix_dir + "/" + "outer", jobinfo); 
 				file2 = lDirAlloc.getLocalPathForWrite(prefix_dir + "/" + "inner", jobinfo);
-				lfs.create(file1);
-				lfs.create(file2);
 			} 
 			catch (IOException e) 
 			{
 				e.printStackTrace();
 			}
 
+			// R and a spilled S are written in binary, <rid, coord>
 			String outerTable = file1.toString();
 			String innerTable = file2.toString();
-			FileWriter fwForR	= new FileWriter(outerTable);
-			FileWriter fwForS	= new FileWriter(innerTable);
-			BufferedWriter bwForR = new BufferedWriter(fwForR, bufferSize);
-			BufferedWriter bwForS = new BufferedWriter(fwForS, bufferSize);
+			DataOutputStream outR = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(outerTable), bufferSize));
+			DataOutputStream outS = null;
+			int numberR = 0;
+			int numberS = 0;
 	
 			while (values.hasNext()) 
 			{
 				// Value format <rid, coord, src>
 				NPhase1Value np1v = values.next();
-				String record = np1v.getFirst().toString();
-				String[] parts = np1v.getSecond().toStrings();
-				int srcId = (int)np1v.getThird().get();
-
-				for (int i = 0; i < dimension; i++)
-					record = record + " " + parts[i];
+				int id = np1v.getFirst();
+				float[] coord = np1v.getSecond();
+				int srcId = np1v.getThird();
 
 				if (srcId == 0) {
-					bwForR.write(record + "\n");
+					writeRecord(outR, id, coord);
+					numberR++;
 				} else if (srcId == 1) {
-					bwForS.write(record + "\n");
+					if (outS == null && numberS == sBlockSize) {
+						// S does not fit, spill it
+						outS = new DataOutputStream(new BufferedOutputStream(
+							new FileOutputStream(innerTable), bufferSize));
+						float[] y = new float[dimension];
+						for (int j = 0; j < numberS; j++) {
+							for (int k = 0; k < dimension; k++)
+								y[k] = sCols[k][j];
+							writeRecord(outS, sIds[j], y);
+						}
+					}
+					if (outS != null)
+						writeRecord(outS, id, coord);
+					else
+						addS(numberS, id, coord);
+					numberS++;
 				} else {
 					System.out.println("unknown file number");
 					System.exit(-1);
@@ -212,110 +317,103 @@ public class NPhase1 extends Configured implements Tool
 			} 
 
 			reporter.progress();
-			bwForR.close();
-			bwForS.close();
-			fwForR.close();	
-			fwForS.close();
-
-			FileReader frForR = new FileReader(outerTable);
-			BufferedReader brForR = new BufferedReader(frForR, bufferSize);
-
-			// initialize for R
-			int number = blockSize;
-			int[] idR = new int[number];
-			float[][] coordR = new float[number][dimension];
-			ArrayList<PriorityQueue> knnQueueR = new ArrayList<PriorityQueue>(number);
-
-			// Create priority queue with specified comparator
-			Comparator<ListElem> rc = new RecordComparator();
-			for (int j = 0; j < number; j++) 
-			{
-				PriorityQueue<ListElem> knnQueue = new PriorityQueue<ListElem>(knn + 1, rc);
-				knnQueueR.add(knnQueue);
-			}
+			outR.close();
+			if (outS != null)
+				outS.close();
+
+			DataInputStream inR = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(outerTable), bufferSize));
+
+			// The number of records of S joined by the task
+			final int[] countS = new int[1];
+			ReducePool.Task join = new ReducePool.Task() {
+				public void join(int from, int to) {
+					joinBlock(from, to, countS[0]);
+				}
+			};
+			ReducePool.Writer none = new ReducePool.Writer() {
+				public void write(int from, int to) {
+				}
+			};
+			ReducePool.Writer write = new ReducePool.Writer() {
+				public void write(int from, int to) throws IOException {
+					for (int j = from; j < to; j ++) 
+					{
+						KNNHeap knnQueue = knnQueueR[j];
+						int id1 = idR[j];
+						// Largest distance first, this also resets the heap
+						while (!knnQueue.isEmpty()) 
+						{
+							output.collect(
+								NullWritable.get(), 
+								new Text( id1 + " " + Integer.toString(knnQueue.peekId()) + " " 
+									+ Float.toString((float) knnQueue.peekDistance()) )
+							);
+							knnQueue.poll();
+						} // for
+					}
+				}
+			};
 
-			boolean flag = true;
-			while (flag) 
+			float[] y = new float[dimension];
+			for (int done = 0; done < numberR; ) 
 			{
 				// Read a block of R
+				int number = Math.min(blockSize, numberR - done);
 				for (int ii = 0; ii < number; ii++) 
 				{
-					String line = brForR.readLine();
-					if (line == null) 
-					{
-						flag = false;     //Going to end
-						number = ii;
-						break;
-					}
-
-					String parts[] = line.split(" +");
-					int id1 = Integer.valueOf(parts[0]);
-					idR[ii] = id1;
-
-					int st = 1;
-					float[] x = coordR[ii];	
+					idR[ii] = inR.readInt();
 					for (int i = 0; i < dimension; i++) 
-						x[i] = Float.valueOf(parts[st + i]);
+						coordR[ii * dimension + i] = inR.readFloat();
 				}
+				done += number;
+				// A few parts per worker, so that the writer can start early
+				int chunk = Math.max(1, (number + 4 * pool.getThreads() - 1) 
+					/ (4 * pool.getThreads()));
 
 				//if (self_join) innerTable = outerTable;
 				// For all records in a block of R, the following carries out knn-join with S
-				FileReader frForS = new FileReader(innerTable);
-				BufferedReader brForS = new BufferedReader(frForS, bufferSize);
-
-				while(true) 
+				if (outS == null) 
 				{
-					String line = brForS.readLine();
-					if (line == null) break;
-					String parts[] = line.split(" +");
-					int id2 = Integer.valueOf(parts[0]);
-
-					int st = 1;
-					float[] y = new float[dimension];
-					for (int i = 0; i < dimension; i++)
-						y[i] = Float.valueOf(parts[st + i]);
-
-					float[] distArray = new float[number];
-					for (int i = 0; i < number; i++) 
-					{
-						distArray[i] = 0;
-						float[] x = coordR[i];
-						for (int k = 0; k < dimension; k++) 
-							distArray[i] += (x[k] - y[k]) * (x[k] - y[k]);
-						
-						ListElem ne = new ListElem(dimension, distArray[i], id2);
-						PriorityQueue<ListElem> knnQueue = knnQueueR.get(i);
-						knnQueue.add(ne);
-						if (knnQueue.size() > knn) 
-							knnQueue.poll();
-					} // [0 . . number - 1]
-				} // while - inner
-
-				brForS.close(); 
-				frForS.close();	
-
-				for (int j = 0; j < number; j ++) 
+					countS[0] = numberS;
+					pool.run(number, chunk, join, write);
+				} 
+				else 
 				{
-					PriorityQueue<ListElem> knnQueue = knnQueueR.get(j);
-					int id1 = idR[j];
-					for (int i = 0; i < knn; i++) 
+					DataInputStream inS = new DataInputStream(new BufferedInputStream(
+						new FileInputStream(innerTable), bufferSize));
+					for (int read = 0; read < numberS; ) 
 					{
-						ListElem e = knnQueue.poll();
-						output.collect(
-							NullWritable.get(), 
-							new Text( id1 + " " + Integer.toString(e.getId()) + " " + Float.toString(e.getDist()) )
-						);
-					} // for
+						int count = Math.min(sBlockSize, numberS - read);
+						for (int j = 0; j < count; j++) 
+						{
+							int id2 = inS.readInt();
+							for (int k = 0; k < dimension; k++)
+								y[k] = inS.readFloat();
+							addS(j, id2, y);
+						}
+						read += count;
+						countS[0] = count;
+						// the results are complete with the last chunk of S
+						pool.run(number, chunk, join, 
+							read == numberS ? write : none);
+						reporter.progress();
+					}
+					inS.close();
 				}
+
 				reporter.progress();
-			} // while - outer
-			brForR.close();
-			frForR.close();
+			} // for - outer
+			inR.close();
+			lfs.delete(file1, true);
+			if (outS != null)
+				lfs.delete(file2, true);
 		} // reduce
 
         public void close() throws IOException 
 		{
 			//mos.close();
+			pool.shutdown();
 		}
 						        
 	} // Reducer
@@ -325,6 +423,7 @@ public class NPhase1 extends Configured implements Tool
 		System.out.println(
 			"NPhase1 [-m <maps>] [-r <reduces>] [-p <numberOfPartitions>] " 
 			+ "[-d <dimension>] [-k <knn>] [-b <blockSize(#records) for R>] " 
+			+ "[-sb <blockSize(#records) for S>] [-rt <#reduce threads>] [-unordered] " 
 			+ "<input (R)> <input (S)> <output>");
 		ToolRunner.printGenericCommandUsage(System.out);
 		return -1;
@@ -339,6 +438,7 @@ public class NPhase1 extends Configured implements Tool
 	public int run(String[] args) throws Exception 
 	{
 		int numberOfPartition = 2;
+		int numberOfReducer = 0;
 		//boolean self_join = false;
 		JobConf conf = new JobConf(getConf(), NPhase1.class);
 		conf.setJobName("NPhase1");
@@ -356,7 +456,7 @@ public class NPhase1 extends Configured implements Tool
 					//conf.setNumMapTasks(Integer.parseInt(args[++i]));
 					++i;
 				} else if ("-r".equals(args[i])) {
-					conf.setNumReduceTasks(Integer.parseInt(args[++i]));
+					numberOfReducer = Integer.parseInt(args[++i]);
 				} else if ("-p".equals(args[i])) {
 					numberOfPartition = Integer.parseInt(args[++i]);
 					conf.setInt("numberOfPartition", numberOfPartition);
@@ -366,14 +466,18 @@ public class NPhase1 extends Configured implements Tool
 					conf.setInt("knn", Integer.parseInt(args[++i]));
 				} else if ("-b".equals(args[i])) {
 					conf.setInt("blockSize", Integer.parseInt(args[++i]));
+				} else if ("-sb".equals(args[i])) {
+					conf.setInt("sBlockSize", Integer.parseInt(args[++i]));
+				} else if ("-rt".equals(args[i])) {
+					conf.setInt("reduceThreads", Integer.parseInt(args[++i]));
+				} else if ("-unordered".equals(args[i])) {
+					conf.setBoolean("reduceOrdered", false);
 /*				} else if ("-sj".equals(args[i])) {
 					self_join = Boolean.parseBoolean(args[++i]);
 					conf.set("self_join", Boolean.toString(self_join));
 */				} else {
 					other_args.add(args[i]);
 				}
-				// set the number of reducers
-				conf.setNumReduceTasks(numberOfPartition * numberOfPartition);
 			} 
 			catch (NumberFormatException except) {
 				System.out.println("ERROR: Integer expected instead of " + args[i]);
@@ -389,6 +493,14 @@ public class NPhase1 extends Configured implements Tool
 		  return printUsage();
 		}
 
+		// One reducer per bucket unless -r asks for fewer, then a reducer
+		// joins several buckets: the buckets all have the same expected 
+		// size, the default partitioner deals them out round robin
+		int numberOfBucket = numberOfPartition * numberOfPartition;
+		if (numberOfReducer <= 0 || numberOfReducer > numberOfBucket)
+			numberOfReducer = numberOfBucket;
+		conf.setNumReduceTasks(numberOfReducer);
+
 		FileInputFormat.setInputPaths(conf, other_args.get(0));
 		//System.out.println("set R to  the input path");
 		FileInputFormat.addInputPaths(conf, other_args.get(1));
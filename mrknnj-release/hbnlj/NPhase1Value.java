@@ -1,95 +1,98 @@
-
 package test;
 import java.io.*;
+import java.util.Arrays;
 
 import org.apache.hadoop.io.*;
 
+/**
+ * Value format <rid, coord, src>, serialized as 
+ * <src (byte), rid (vint), dimension (vint), coord (float)>.
+ */
 public class NPhase1Value implements WritableComparable<NPhase1Value> {
 
-	private IntWritable first;
-	private ArrayWritable second;
-	private ByteWritable third;
+	private int first;
+	private float[] second;
+	private byte third;
 
 	public NPhase1Value() {
-		this.first = new IntWritable();
-		this.second = new ArrayWritable(FloatWritable.class);
-		this.third = new ByteWritable();
+		this.first = 0;
+		this.second = new float[0];
+		this.third = 0;
 	}
 
 	public NPhase1Value(int first, float[] second, byte third, int dimension) {
-		set(new IntWritable(first), second, new ByteWritable(third), 
-				dimension);
+		set(first, second, third, dimension);
 	}
 
-	public void set(IntWritable first, float[] second, 
-			ByteWritable third, int dimension) {
+	public void set(int first, float[] second, byte third, int dimension) {
 		this.first = first;
 		this.third = third;
 
-		FloatWritable[] floatArray = new FloatWritable[dimension];
-		for (int i = 0; i < dimension; i++)
-			floatArray[i] = new FloatWritable(second[i]);
-		this.second = new ArrayWritable(FloatWritable.class, floatArray);
+		if (second.length != dimension)
+			second = Arrays.copyOf(second, dimension);
+		this.second = second;
 	}
 
-	public IntWritable getFirst() {
+	public int getFirst() {
 		return first;
 	}
 
-	public ArrayWritable getSecond() {
+	public float[] getSecond() {
 		return second;
 	}
 
-	public ByteWritable getThird() {
+	public byte getThird() {
 		return third;
 	}
 	
 	@Override
 	public void write(DataOutput out) throws IOException {
-		first.write(out);
-		second.write(out);
-		third.write(out);
+		out.writeByte(third);
+		WritableUtils.writeVInt(out, first);
+		WritableUtils.writeVInt(out, second.length);
+		for (int i = 0; i < second.length; i++)
+			out.writeFloat(second[i]);
 	}
 
 	@Override
 	public void readFields(DataInput in) throws IOException {
-		first.readFields(in);
-		second.readFields(in);
-		third.readFields(in);
+		third = in.readByte();
+		first = WritableUtils.readVInt(in);
+		int dimension = WritableUtils.readVInt(in);
+		if (second.length != dimension)
+			second = new float[dimension];
+		for (int i = 0; i < dimension; i++)
+			second[i] = in.readFloat();
+	}
+
+	@Override
+	public int hashCode() {
+		return first * 163 + third;
 	}
 
 	@Override
 	public boolean equals(Object o) {
 		if (o instanceof NPhase1Value) {
 			NPhase1Value np1v = (NPhase1Value) o;
-			return first.equals(np1v.first) && second.equals(np1v.second)
-				&& third.equals(np1v.third);
+			return first == np1v.first && Arrays.equals(second, np1v.second)
+				&& third == np1v.third;
 		}
 		return false;
 	}
 
 	@Override
 	public String toString() {
-		int dimension = 2;
-		String result;
-		result = first.toString() + " " ;
-
-		String[] parts = second.toStrings();
-		for (int i = 0; i < dimension; i++)
-			result = result + parts[i] + " ";
-
-		return result + third.toString();	
+		return toString(second.length);
 	}
 
 	public String toString(int dimension) {
-		String result;
-		result = first.toString() + " " ;
+		StringBuilder result = new StringBuilder();
+		result.append(first).append(" ");
 
-		String[] parts = second.toStrings();
 		for (int i = 0; i < dimension; i++)
-			result = result + parts[i] + " ";
+			result.append(second[i]).append(" ");
 
-		return result + third.toString();	
+		return result.append(third).toString();	
 	}
 
 	@Override
@@ -50,45 +50,14 @@ public class NPhase2 extends Configured implements Tool
 		int numberOfPartition;	
 		int knn;
 		
-		class Record 
-		{
-			public int id2;
-			public float dist;
-
-			Record(int id2, float dist) 
-			{
-				this.id2 = id2;
-				this.dist = dist;
-			}
-
-			public String toString() 
-			{
-				return Integer.toString(id2) + " " + Float.toString(dist);	
-			} 
-		}
-
-		class RecordComparator implements Comparator<Record> 
-		{
-			public int compare(Record o1, Record o2) 
-			{
-				int ret = 0;
-				float dist = o1.dist - o2.dist;
-
-				if (Math.abs(dist) < 1E-6)
-					ret = o1.id2 - o2.id2;
-				else if (dist > 0)
-					ret = 1;
-				else 
-					ret = -1;
-
-				return -ret;
-			}	
-		}
+		// Keeps the knn closest <rid2, dist> of the current rid1
+		KNNHeap heap;
 
 		public void configure(JobConf job) 
 		{
 			numberOfPartition = job.getInt("numberOfPartition", 2);	
 			knn = job.getInt("knn", 3);
+			heap = new KNNHeap(knn);
 		}	
 
 		public void reduce(IntWritable key, Iterator<NPhase2Value> values, 
@@ -96,8 +65,7 @@ public class NPhase2 extends Configured implements Tool
 		Reporter reporter) throws IOException 
 		{
 			//initialize the pq
-			RecordComparator rc = new RecordComparator();
-			PriorityQueue<Record> pq = new PriorityQueue<Record>(knn + 1, rc);
+			heap.reset();
 
 			// For each record we have a reduce task
 			// value format <rid1, rid2, dist>
@@ -107,15 +75,15 @@ public class NPhase2 extends Configured implements Tool
 
 				int id2 = np2v.getFirst().get();
 				float dist = np2v.getSecond().get();
-				Record record = new Record(id2, dist);
-				pq.add(record);
-				if (pq.size() > knn)
-					pq.poll();
+				heap.add(id2, dist);
 			}
 
-			while(pq.size() > 0) 
+			// Largest distance first
+			while(!heap.isEmpty()) 
 			{
-				output.collect(NullWritable.get(), new Text(key.toString() + " " + pq.poll().toString()));
+				output.collect(NullWritable.get(), new Text(key.toString() + " " 
+					+ heap.peekId() + " " + Float.toString((float) heap.peekDistance())));
+				heap.poll();
 				//break; // only ouput the first record
 			}
 
@@ -150,6 +118,7 @@ public class NPhase2 extends Configured implements Tool
 		conf.setReducerClass(Reduce.class);
 	
 		int numberOfPartition = 0;	
+		int numberOfReducer = 0;
 		List<String> other_args = new ArrayList<String>();
 
 		for(int i = 0; i < args.length; ++i) 
@@ -159,7 +128,7 @@ public class NPhase2 extends Configured implements Tool
 					//conf.setNumMapTasks(Integer.parseInt(args[++i]));
 					++i;
 				} else if ("-r".equals(args[i])) {
-					conf.setNumReduceTasks(Integer.parseInt(args[++i]));
+					numberOfReducer = Integer.parseInt(args[++i]);
 				} else if ("-p".equals(args[i])) {
 					numberOfPartition = Integer.parseInt(args[++i]);
 					conf.setInt("numberOfPartition", numberOfPartition);
@@ -170,8 +139,6 @@ public class NPhase2 extends Configured implements Tool
 				} else {
 					other_args.add(args[i]);
  	 			}
-				conf.setNumReduceTasks(numberOfPartition * numberOfPartition);
-				//conf.setNumReduceTasks(1);
 			} catch (NumberFormatException except) {
 				System.out.println("ERROR: Integer expected instead of " + args[i]);
 				return printUsage();
@@ -188,6 +155,12 @@ public class NPhase2 extends Configured implements Tool
 			return printUsage();
 		}
 
+		// -r or, as before, one reducer per bucket of round 1
+		if (numberOfReducer > 0)
+			conf.setNumReduceTasks(numberOfReducer);
+		else if (numberOfPartition > 0)
+			conf.setNumReduceTasks(numberOfPartition * numberOfPartition);
+
 		FileInputFormat.setInputPaths(conf, other_args.get(0));
 		FileOutputFormat.setOutputPath(conf, new Path(other_args.get(1)));
 
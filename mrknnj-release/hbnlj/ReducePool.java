@@ -0,0 +1,113 @@
+package test;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Worker threads of a reducer. The records of R of a bucket are joined in
+ * chunks by the workers against a shared, read-only index of S, and the
+ * results of every chunk are handed to a writer in the reduce thread, the
+ * only thread that calls the OutputCollector. The writer gets the chunks in
+ * their order (ordered) or as soon as they are done (unordered).
+ *
+ * With one thread, the chunks are joined in the reduce thread itself.
+ */
+public class ReducePool {
+
+	/** Joins the records [from, to) of R, called in a worker. */
+	public interface Task {
+		void join(int from, int to) throws IOException;
+	}
+
+	/** Writes the results of the records [from, to), called in the reducer. */
+	public interface Writer {
+		void write(int from, int to) throws IOException;
+	}
+
+	private final int threads;
+	private final boolean ordered;
+	private ExecutorService executor;
+
+	public ReducePool(int threads, boolean ordered) {
+		this.threads = Math.max(1, threads);
+		this.ordered = ordered;
+		if (this.threads > 1) {
+			executor = Executors.newFixedThreadPool(this.threads,
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "reduce-worker");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		}
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Joins the records [0, n) in chunks of chunk records and writes them,
+	 * returns when all are written.
+	 */
+	public void run(int n, int chunk, final Task task, Writer writer)
+		throws IOException {
+		if (executor == null) {
+			for (int from = 0; from < n; from += chunk) {
+				int to = Math.min(n, from + chunk);
+				task.join(from, to);
+				writer.write(from, to);
+			}
+			return;
+		}
+
+		CompletionService<int[]> done =
+			new ExecutorCompletionService<int[]>(executor);
+		List<Future<int[]>> futures = new ArrayList<Future<int[]>>();
+		for (int from = 0; from < n; from += chunk) {
+			final int[] range = {from, Math.min(n, from + chunk)};
+			futures.add(done.submit(new Callable<int[]>() {
+				public int[] call() throws IOException {
+					task.join(range[0], range[1]);
+					return range;
+				}
+			}));
+		}
+
+		try {
+			for (int i = 0; i < futures.size(); i++) {
+				int[] range = ordered ? futures.get(i).get() : done.take().get();
+				writer.write(range[0], range[1]);
+			}
+		} catch (InterruptedException e) {
+			cancel(futures);
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while joining", e);
+		} catch (ExecutionException e) {
+			cancel(futures);
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new IOException(cause);
+		} catch (IOException e) {
+			cancel(futures);
+			throw e;
+		}
+	}
+
+	private void cancel(List<Future<int[]>> futures) {
+		for (Future<int[]> f : futures)
+			f.cancel(true);
+	}
+
+	public void shutdown() {
+		if (executor != null)
+			executor.shutdownNow();
+	}
+}
@@ -0,0 +1,77 @@
+package test;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Assigns the buckets of a round to the reducers when there are fewer
+ * reducers than buckets, so that a reducer joins several buckets one after
+ * the other. The buckets are packed on their estimated cost, longest first
+ * (LPT): each bucket in the order of decreasing cost goes to the reducer
+ * with the least cost so far. The most loaded reducer then has at most 4/3
+ * of the optimal load, and a hot bucket shares no reducer with other large
+ * buckets.
+ *
+ * Every map task packs the same costs to the same reducers, ties are broken
+ * on the bucket and reducer numbers.
+ */
+public class BucketPacker {
+
+	/**
+	 * The cost of joining r records of R with s records of S in an R-tree:
+	 * a lookup of log s for every record of R, plus building the tree.
+	 */
+	public static double cost(double r, double s) {
+		return r * (Math.log(s + 2) / Math.log(2)) + s;
+	}
+
+	/**
+	 * Returns the reducer of every bucket, from the cost of the buckets.
+	 */
+	public static int[] pack(final double[] costs, int reducers) {
+		Integer[] order = new Integer[costs.length];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				int cmp = Double.compare(costs[b], costs[a]);
+				return (cmp != 0) ? cmp : a.compareTo(b);
+			}
+		});
+
+		// The load of every reducer in a binary heap, the least on top
+		double[] load = new double[reducers];
+		int[] heap = new int[reducers];
+		for (int i = 0; i < reducers; i++)
+			heap[i] = i;
+
+		int[] reducerOf = new int[costs.length];
+		for (int b : order) {
+			int reducer = heap[0];
+			reducerOf[b] = reducer;
+			load[reducer] += Math.max(0, costs[b]);
+			siftDown(heap, load);
+		}
+		return reducerOf;
+	}
+
+	private static void siftDown(int[] heap, double[] load) {
+		int i = 0;
+		while (true) {
+			int least = i;
+			for (int c = 2 * i + 1; c <= 2 * i + 2 && c < heap.length; c++) {
+				if (less(heap[c], heap[least], load))
+					least = c;
+			}
+			if (least == i)
+				return;
+			int t = heap[i];
+			heap[i] = heap[least];
+			heap[least] = t;
+			i = least;
+		}
+	}
+
+	private static boolean less(int r1, int r2, double[] load) {
+		return (load[r1] < load[r2]) || (load[r1] == load[r2] && r1 < r2);
+	}
+}
@@ -0,0 +1,418 @@
+/*
+ * THERE IS NO WARRANTY FOR THE PROGRAM, TO THE EXTENT PERMITTED BY APPLICABLE LAW.
+ * EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR OTHER
+ * PARTIES PROVIDE THE PROGRAM "AS IS" WITHOUT WARRANTY OF ANY KIND, EITHER
+ * EXPRESSED OR IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE. THE ENTIRE RISK AS
+ * TO THE QUALITY AND PERFORMANCE OF THE PROGRAM IS WITH YOU. SHOULD THE PROGRAM
+ * PROVE DEFECTIVE, YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR
+ * OR CORRECTION.
+ */
+
+package test;
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.*;
+import org.apache.hadoop.io.*;
+import org.apache.hadoop.mapred.*;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+import de.lmu.ifi.dbs.elki.index.Zorder;
+import de.lmu.ifi.dbs.elki.utilities.heap.KNNHeap;
+
+/**
+ * Optional phase0 of Hadoop Block R*-tree KNN Join (H-BRJ): spatial
+ * partitioning. R is split into p grid cells on quantiles of a sample of R,
+ * and every cell gets a bound on the knn distance of its records computed
+ * from a sample of S. RPhase1 -grid then sends every record of R to its
+ * cell and a record of S only to the cells within their bound, instead of
+ * replicating both p times into p*p random buckets.
+ *
+ * The output is one line per cell:
+ * <lo_1 ... lo_d hi_1 ... hi_d theta |R| |S|>, where a record belongs to the
+ * cell if lo_i <= x_i < hi_i (on the scaled coordinates of RPhase1), theta is
+ * the knn distance bound (-1 for an empty cell), and |R| and |S| are the
+ * estimated numbers of records of R in the cell and of S within the bound.
+ */
+public class RPhase0 extends Configured implements Tool
+{
+	public static final int scale = 1000;
+
+	public static class MapClass extends MapReduceBase
+	implements Mapper<LongWritable, Text, NullWritable, RPhase1Value>
+	{
+		private int dimension;
+		private int fileId = 0;
+		private double sampleRate;
+		private Random r;
+		private int[] min;
+		private int[] max;
+		private OutputCollector<NullWritable, RPhase1Value> collector;
+
+		public void configure(JobConf job)
+		{
+			String inputFile = job.get("map.input.file");
+			dimension = job.getInt("dimension", 2);
+			double epsilon = Double.parseDouble(job.get("epsilon", "0.003"));
+
+			if (inputFile.indexOf("outer") != -1) //R points
+				fileId = 0;
+			else if (inputFile.indexOf("inner") != -1) //S points
+				fileId = 1;
+			else {
+				System.out.println("Invalid input file source@RPhase0");
+				System.exit(-1);
+			}
+
+			// Same sampling rate as H-zKNNJ (BPhase1)
+			int size = job.getInt((fileId == 0) ? "Rsize" : "Ssize", 1000);
+			sampleRate = Math.min(1, 1 / (epsilon * epsilon * size));
+			r = new Random();
+		}
+
+		public void map(LongWritable key, Text value,
+		OutputCollector<NullWritable, RPhase1Value> output,
+		Reporter reporter) throws IOException
+		{
+			String[] parts = value.toString().split(" +");
+			int recId = Integer.parseInt(parts[0]);
+			int[] converted_coord = new int[dimension];
+			for (int i = 0; i < dimension; i++)
+			{
+				float coord = Float.parseFloat(parts[1 + i]);
+				converted_coord[i] = (int) coord;             // get the integer part
+				coord = coord - converted_coord[i];           // get the fraction part
+				converted_coord[i] *= scale;                  // scale integer part
+				converted_coord[i] += coord * scale;          // scale fraction part
+			}
+
+			// The bounding box of R is exact, only the cells need samples
+			if (fileId == 0) {
+				if (min == null) {
+					min = converted_coord.clone();
+					max = converted_coord.clone();
+				}
+				for (int i = 0; i < dimension; i++) {
+					min[i] = Math.min(min[i], converted_coord[i]);
+					max[i] = Math.max(max[i], converted_coord[i]);
+				}
+			}
+			collector = output;
+
+			if (r.nextDouble() < sampleRate) {
+				output.collect(NullWritable.get(), new RPhase1Value(
+					Zorder.encode(dimension, converted_coord), recId, (byte) fileId));
+			}
+		}
+
+		public void close() throws IOException
+		{
+			// The corners of the bounding box of R are sent with src 2 and 3
+			if (min != null) {
+				collector.collect(NullWritable.get(),
+					new RPhase1Value(Zorder.encode(dimension, min), 0, (byte) 2));
+				collector.collect(NullWritable.get(),
+					new RPhase1Value(Zorder.encode(dimension, max), 0, (byte) 3));
+			}
+		}
+	}
+
+	/**
+	 * Computes the grid cells and their knn distance bounds in one reducer.
+	 */
+	public static class Reduce extends MapReduceBase
+	implements Reducer<NullWritable, RPhase1Value, NullWritable, Text>
+	{
+		private int dimension;
+		private int knn;
+		private int numberOfPartition;
+		private float sampleRateOfR;
+		private float sampleRateOfS;
+
+		private List<long[]> cellLow = new ArrayList<long[]>();
+		private List<long[]> cellHigh = new ArrayList<long[]>();
+
+		public void configure(JobConf job)
+		{
+			dimension = job.getInt("dimension", 2);
+			knn = job.getInt("knn", 3);
+			numberOfPartition = job.getInt("numberOfPartition", 2);
+			float epsilon = Float.parseFloat(job.get("epsilon", "0.003"));
+			sampleRateOfR = Math.min(1f,
+				1 / (epsilon * epsilon * job.getInt("Rsize", 1000)));
+			sampleRateOfS = Math.min(1f,
+				1 / (epsilon * epsilon * job.getInt("Ssize", 1000)));
+		}
+
+		public void reduce(NullWritable key, Iterator<RPhase1Value> values,
+		OutputCollector<NullWritable, Text> output,
+		Reporter reporter) throws IOException
+		{
+			List<int[]> sampleOfR = new ArrayList<int[]>();
+			List<int[]> sampleOfS = new ArrayList<int[]>();
+			long[] low = null;
+			long[] high = null;
+
+			while (values.hasNext())
+			{
+				RPhase1Value rp1v = values.next();
+				int[] coord = Zorder.decode(rp1v.getFirst(), dimension);
+				byte srcId = rp1v.getThird();
+				if (srcId == 0) {
+					sampleOfR.add(coord);
+				} else if (srcId == 1) {
+					sampleOfS.add(coord);
+				} else {
+					if (low == null) {
+						low = new long[dimension];
+						high = new long[dimension];
+						Arrays.fill(low, Long.MAX_VALUE);
+						Arrays.fill(high, Long.MIN_VALUE);
+					}
+					for (int i = 0; i < dimension; i++) {
+						if (srcId == 2)
+							low[i] = Math.min(low[i], coord[i]);
+						else
+							high[i] = Math.max(high[i], coord[i] + 1L);
+					}
+				}
+			}
+
+			if (low == null) {
+				System.out.println("R is empty!");
+				System.exit(-1);
+			}
+
+			int[][] sample = sampleOfR.toArray(new int[sampleOfR.size()][]);
+			split(low, high, sample, 0, sample.length, numberOfPartition);
+
+			// A bound on the knn distance of every point p of a cell: the k-th
+			// smallest max distance between the cell and a point of S. The
+			// estimated number of records of R in the cell and of S within
+			// the bound give the cost of the cell for RPhase1 -r.
+			KNNHeap heap = new KNNHeap(knn);
+			for (int c = 0; c < cellLow.size(); c++)
+			{
+				long[] lo = cellLow.get(c);
+				long[] hi = cellHigh.get(c);
+				double theta = -1;
+				long sizeOfR = 0;
+				long sizeOfS = 0;
+				if (!isEmpty(lo, hi)) {
+					heap.reset();
+					for (int j = 0; j < sampleOfS.size(); j++)
+						heap.add(j, maxDistSq(lo, hi, sampleOfS.get(j)));
+					theta = Math.sqrt(heap.kthDistance());
+
+					int countOfR = 0;
+					for (int[] p : sample)
+						if (contains(lo, hi, p))
+							countOfR++;
+					int countOfS = 0;
+					double thetaSq = theta * theta * (1 + 1e-9);
+					for (int[] p : sampleOfS)
+						if (minDistSq(lo, hi, p) <= thetaSq)
+							countOfS++;
+					sizeOfR = Math.round(countOfR / sampleRateOfR);
+					sizeOfS = Math.round(countOfS / sampleRateOfS);
+				}
+
+				StringBuilder sb = new StringBuilder();
+				for (int i = 0; i < dimension; i++)
+					sb.append(lo[i]).append(" ");
+				for (int i = 0; i < dimension; i++)
+					sb.append(hi[i]).append(" ");
+				sb.append(theta).append(" ");
+				sb.append(sizeOfR).append(" ").append(sizeOfS);
+				output.collect(NullWritable.get(), new Text(sb.toString()));
+				reporter.progress();
+			}
+		}
+
+		/**
+		 * Splits the cell [lo, hi) with the sampled points [from, to) of R
+		 * into parts cells, halving the number of parts on the estimated
+		 * quantile of its widest dimension (a kd-tree on the sample).
+		 */
+		private void split(long[] lo, long[] hi, int[][] sample, int from,
+		int to, int parts)
+		{
+			final int dim = widestDimension(lo, hi);
+			if (parts == 1 || hi[dim] - lo[dim] < 2) {
+				cellLow.add(lo);
+				cellHigh.add(hi);
+				// The cell cannot be split, pad with empty cells to keep p
+				for (int i = 1; i < parts; i++) {
+					cellLow.add(lo);
+					cellHigh.add(lo);
+				}
+				return;
+			}
+
+			int leftParts = parts / 2;
+			int count = to - from;
+			long at = lo[dim] + (hi[dim] - lo[dim]) / 2;
+			if (count > 0) {
+				Arrays.sort(sample, from, to, new Comparator<int[]>() {
+					public int compare(int[] a, int[] b) {
+						return (a[dim] < b[dim]) ? -1 : ((a[dim] == b[dim]) ? 0 : 1);
+					}
+				});
+				// The sample is sorted, cut after its leftParts / parts quantile
+				int rank = (int) Math.ceil((double) count * leftParts / parts);
+				rank = Math.max(1, Math.min(count, rank));
+				at = sample[from + rank - 1][dim] + 1L;
+			}
+			at = Math.max(lo[dim] + 1, Math.min(hi[dim] - 1, at));
+
+			int mid = from;
+			while (mid < to && sample[mid][dim] < at)
+				mid++;
+
+			long[] leftHigh = hi.clone();
+			leftHigh[dim] = at;
+			long[] rightLow = lo.clone();
+			rightLow[dim] = at;
+			split(lo, leftHigh, sample, from, mid, leftParts);
+			split(rightLow, hi, sample, mid, to, parts - leftParts);
+		}
+
+		private int widestDimension(long[] lo, long[] hi)
+		{
+			int dim = 0;
+			for (int i = 1; i < dimension; i++)
+				if (hi[i] - lo[i] > hi[dim] - lo[dim])
+					dim = i;
+			return dim;
+		}
+	} // Reducer
+
+	static boolean contains(long[] lo, long[] hi, int[] p)
+	{
+		for (int i = 0; i < p.length; i++)
+			if (p[i] < lo[i] || p[i] >= hi[i])
+				return false;
+		return true;
+	}
+
+	static boolean isEmpty(long[] lo, long[] hi)
+	{
+		for (int i = 0; i < lo.length; i++)
+			if (hi[i] <= lo[i])
+				return true;
+		return false;
+	}
+
+	/**
+	 * Squared max distance between the (integer) cell [lo, hi) and p.
+	 */
+	static double maxDistSq(long[] lo, long[] hi, int[] p)
+	{
+		double sum = 0;
+		for (int i = 0; i < p.length; i++) {
+			double d = Math.max(Math.abs(p[i] - lo[i]), Math.abs(hi[i] - 1 - p[i]));
+			sum += d * d;
+		}
+		return sum;
+	}
+
+	/**
+	 * Squared min distance between the (integer) cell [lo, hi) and p.
+	 */
+	static double minDistSq(long[] lo, long[] hi, int[] p)
+	{
+		double sum = 0;
+		for (int i = 0; i < p.length; i++) {
+			double d = 0;
+			if (p[i] < lo[i])
+				d = lo[i] - p[i];
+			else if (p[i] > hi[i] - 1)
+				d = p[i] - (hi[i] - 1);
+			sum += d * d;
+		}
+		return sum;
+	}
+
+	static int printUsage()
+	{
+		System.out.println(
+			"RPhase0 [-p <numberOfPartitions>] [-d <dimension>] [-k <knn>] "
+			+ "[-nr <numberOfRecordsFromR>] [-ns <numberOfRecordsFromS>] "
+			+ "[-e <epsilon>] <R> <S> <output>");
+		ToolRunner.printGenericCommandUsage(System.out);
+		return -1;
+	}
+
+	/**
+	 * The main driver for phase0 of H-BRJ algorithm.
+	 * Invoke this method to submit the map/reduce job.
+	 * @throws IOException When there is communication problems with the
+	 *                     job tracker.
+	 */
+	public int run(String[] args) throws Exception
+	{
+		JobConf conf = new JobConf(getConf(), RPhase0.class);
+		conf.setJobName("RPhase0");
+
+		conf.setMapOutputKeyClass(NullWritable.class);
+		conf.setMapOutputValueClass(RPhase1Value.class);
+		conf.setOutputKeyClass(NullWritable.class);
+		conf.setOutputValueClass(Text.class);
+
+		conf.setMapperClass(MapClass.class);
+		conf.setReducerClass(Reduce.class);
+		conf.setNumReduceTasks(1);
+
+		List<String> other_args = new ArrayList<String>();
+		for(int i=0; i < args.length; ++i)
+		{
+			try {
+				if ("-p".equals(args[i])) {
+					conf.setInt("numberOfPartition", Integer.parseInt(args[++i]));
+				} else if ("-d".equals(args[i])) {
+					conf.setInt("dimension", Integer.parseInt(args[++i]));
+				} else if ("-k".equals(args[i])) {
+					conf.setInt("knn", Integer.parseInt(args[++i]));
+				} else if ("-nr".equals(args[i])) {
+					conf.setInt("Rsize", Integer.parseInt(args[++i]));
+				} else if ("-ns".equals(args[i])) {
+					conf.setInt("Ssize", Integer.parseInt(args[++i]));
+				} else if ("-e".equals(args[i])) {
+					conf.set("epsilon", Double.toString(Double.parseDouble(args[++i])));
+				} else {
+					other_args.add(args[i]);
+				}
+			} catch (NumberFormatException except) {
+				System.out.println("ERROR: Integer expected instead of " + args[i]);
+				return printUsage();
+			} catch (ArrayIndexOutOfBoundsException except) {
+				System.out.println("ERROR: Required parameter missing from " + args[i-1]);
+				return printUsage();
+			}
+		}
+
+		// Make sure there are exactly 3 parameters left.
+		if (other_args.size() != 3)
+		{
+			System.out.println("ERROR: Wrong number of parameters: " + other_args.size() + " instead of 3.");
+			return printUsage();
+		}
+
+		FileInputFormat.setInputPaths(conf, other_args.get(0));
+		FileInputFormat.addInputPaths(conf, other_args.get(1));
+		FileOutputFormat.setOutputPath(conf, new Path(other_args.get(2)));
+
+		JobClient.runJob(conf);
+		return 0;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int res = ToolRunner.run(new Configuration(), new RPhase0(), args);
+		System.exit(res);
+	}
+} // RPhase0
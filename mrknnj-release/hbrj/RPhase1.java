@@ -13,6 +13,7 @@ package test;
 
 import java.io.*;
 import java.util.*;
+import java.net.URI;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
@@ -21,6 +22,7 @@ import org.apache.hadoop.io.*;
 import org.apache.hadoop.mapred.*;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
+import org.apache.hadoop.filecache.DistributedCache;
 import org.apache.hadoop.mapred.lib.MultipleOutputs;
 
 import de.lmu.ifi.dbs.elki.data.FloatVector;
@@ -58,12 +60,20 @@ public class RPhase1 extends Configured implements Tool
 		private Random r;
 		private int recIdOffset;
 		private int coordOffset;
+		// Order the records on the Hilbert curve instead of the z-order
+		private boolean hilbert;
+
+		// Grid cells <lo, hi, theta> of RPhase0 with -grid, null otherwise
+		private long[][] cellLow;
+		private long[][] cellHigh;
+		private double[] cellThetaSq;
 
 		public void configure(JobConf job) 
 		{
 			inputFile = job.get("map.input.file");
 			numberOfPartition = job.getInt("numberOfPartition", 2); // 2 is the dafault - used if no p was provided.
 			dimension = job.getInt("dimension", 2);
+			hilbert = job.getBoolean("hilbert", false);
 
 			recIdOffset = 0;
 			coordOffset = recIdOffset + 1;
@@ -78,7 +88,32 @@ public class RPhase1 extends Configured implements Tool
 				System.out.println("Invalid input file source@NPhase1");
 				System.exit(-1);
 			}
+
+			if (job.get("gridFile") != null)
+				readGrid(job);
 		} //configure
+
+		/**
+		 * Load the grid cells computed by RPhase0 from distributed cache.
+		 */
+		private void readGrid(JobConf job)
+		{
+			List<String> lines = readGridLines(job);
+			int cells = lines.size();
+			cellLow = new long[cells][dimension];
+			cellHigh = new long[cells][dimension];
+			cellThetaSq = new double[cells];
+			for (int c = 0; c < cells; c++) {
+				String[] parts = lines.get(c).split(" +");
+				for (int i = 0; i < dimension; i++) {
+					cellLow[c][i] = Long.parseLong(parts[i]);
+					cellHigh[c][i] = Long.parseLong(parts[dimension + i]);
+				}
+				double theta = Double.parseDouble(parts[2 * dimension]);
+				// Slack for the rounding of squared distances in double
+				cellThetaSq[c] = (theta < 0) ? -1 : theta * theta * (1 + 1e-9);
+			}
+		}
    
 		/**
 		 * Partition input data sets into multiple buckets
@@ -104,14 +139,33 @@ public class RPhase1 extends Configured implements Tool
 				converted_coord[i] += coord[i] * scale;     // scale fraction part
 			}
 
-			String zval = Zorder.valueOf(dimension, converted_coord); // x, y -> 32 x 2 bits converted to an integer and then a stirng - Sasha
+			long[] z = hilbert ? Hilbert.encode(dimension, converted_coord)
+				: Zorder.encode(dimension, converted_coord);
+			String zval = Zorder.toDecimal(z, dimension); // x, y -> 32 x 2 bits converted to an integer and then a stirng - Sasha
 
 			// Map output value format <zval, recID, src>
 			// The coordinates of a record will be converted from zval 
 			// in rstar tree bulkload method. Therefore no need to transfer
 			// coordinates in this stage, and as a result, we have better
 			// performace. 
-			RPhase1Value rp1v = new RPhase1Value(zval, recIdInt, (byte) fileId);
+			RPhase1Value rp1v = new RPhase1Value(z, recIdInt, (byte) fileId);
+
+			if (cellLow != null) {
+				// R goes to its cell, S to every cell within the bound
+				for (int c = 0; c < cellLow.length; c++) {
+					if (fileId == 0) {
+						if (!contains(cellLow[c], cellHigh[c], converted_coord))
+							continue;
+					} else if (RPhase0.minDistSq(cellLow[c], cellHigh[c], 
+						converted_coord) > cellThetaSq[c]) {
+						continue;
+					}
+					output.collect(new RPhase1Key(zval, recIdInt, c), rp1v);
+					if (fileId == 0)
+						break;
+				}
+				return;
+			}
 
 			//Random generate a partition ID for an input record
 			int partID = r.nextInt(numberOfPartition); // a random number between 0 (inclusive) and p (exclusive)
@@ -134,7 +188,40 @@ public class RPhase1 extends Configured implements Tool
 				output.collect(rp1k, rp1v);
 			} 
 		} // map
+
+		private boolean contains(long[] lo, long[] hi, int[] coord)
+		{
+			for (int i = 0; i < dimension; i++) {
+				if (coord[i] < lo[i] || coord[i] >= hi[i])
+					return false;
+			}
+			return true;
+		}
 	} //mapper
+
+	/**
+	 * The lines of the grid file of RPhase0, one per cell.
+	 */
+	static List<String> readGridLines(JobConf job)
+	{
+		List<String> lines = new ArrayList<String>();
+		try {
+			Path[] localFiles = DistributedCache.getLocalCacheFiles(job);
+			BufferedReader br = new BufferedReader(
+				new FileReader(localFiles[0].toString()));
+			String line;
+			while ((line = br.readLine()) != null) {
+				if (line.trim().length() > 0)
+					lines.add(line.trim());
+			}
+			br.close();
+		} catch (IOException e) {
+			System.err.println("Caught exception while reading" + 
+					" distributed cache files: ");
+			System.exit(-1);
+		}
+		return lines;
+	}
   
 	/**
 	 * Perform R*-tree based KNN Join for each partition/bucket.
@@ -151,10 +238,28 @@ public class RPhase1 extends Configured implements Tool
 
 		private int numberOfPartition;
 		private int dimension;
+		// The values are Hilbert values (-hilbert), not z-values
+		private boolean hilbert;
 		private int knn;
 		private int blockSize;
-
-		private Configuration jobinfo;
+		// Max number of S records of a bucket that are joined through an 
+		// in-memory packed R-tree, larger buckets use the disk based RStarTree
+		private int maxInMemory;
+		// Number of consecutive R records that are queried together
+		private int queryBlock;
+		// Write binary <rid1, candidates> sorted on rid1 for a map-only
+		// merge (RPhase2 -fused) instead of text
+		private boolean fused;
+
+		// Records per in-memory run and threads of the external sort of
+		// the bulk load
+		private int sortRunSize;
+		private int sortThreads;
+
+		// Workers joining the query blocks of R in parallel
+		private ReducePool pool;
+
+		private JobConf jobinfo;
 		
 		public void configure(JobConf job) 
 		{
@@ -162,6 +267,19 @@ public class RPhase1 extends Configured implements Tool
 			dimension = job.getInt("dimension", 2);
 			knn = job.getInt("knn", 3);
 			bufferSize = job.getInt("block", 8) * MB;
+
+			long treeMemory = job.getInt("treeMemory", 64) * (long) MB;
+			long perRecord = PackedRTree.memoryRequired(1024, dimension, 
+				PackedRTree.DEFAULT_CAPACITY) / 1024 + 1;
+			maxInMemory = (int) Math.min(Integer.MAX_VALUE / dimension, 
+				treeMemory / perRecord);
+			queryBlock = Math.max(1, job.getInt("queryBlock", 64));
+			fused = job.getBoolean("fused", false);
+			hilbert = job.getBoolean("hilbert", false);
+			sortRunSize = job.getInt("sortRunSize", BinaryExternalSort.DEFAULT_RUN_SIZE);
+			sortThreads = job.getInt("sortThreads", BinaryExternalSort.DEFAULT_THREADS);
+			pool = new ReducePool(job.getInt("reduceThreads", 1), 
+				job.getBoolean("reduceOrdered", true));
 			
 			try {
 				localFs = FileSystem.getLocal(job);
@@ -175,7 +293,7 @@ public class RPhase1 extends Configured implements Tool
 		}
 		
 		public void reduce(RPhase1Key key, Iterator<RPhase1Value> values,
-		OutputCollector<NullWritable, Text> output, 
+		final OutputCollector<NullWritable, Text> output, 
 		Reporter reporter) throws IOException 
 		{
 			Text reduceKey = null;
@@ -205,28 +323,56 @@ public class RPhase1 extends Configured implements Tool
 				e.printStackTrace();
 			}
 
-			// Save data to local file
+			// Save data to local file, R as binary <rid, coord> records
 			String outerTable = file1.toString();
 			String innerTable = file2.toString();
-			FileWriter fwForR	= new FileWriter(outerTable);
+			DataOutputStream outR = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(outerTable), bufferSize));
 			FileWriter fwForS	= new FileWriter(innerTable);
-			BufferedWriter bwForR = new BufferedWriter(fwForR, bufferSize);
 			BufferedWriter bwForS = new BufferedWriter(fwForS, bufferSize);
 
+			int outerSize = 0;
 			int innerSize = 0;
 
+			// S records are buffered as long as the bucket fits in maxInMemory
+			boolean inMemory = maxInMemory > 0;
+			int[] coordOfS = new int[Math.min(1024, maxInMemory) * dimension];
+			int[] ridOfS = new int[Math.min(1024, maxInMemory)];
+
 			while (values.hasNext()) 
 			{
 				// Value format <zval, rid, src>
 				RPhase1Value rp1v = values.next();
-				String record = rp1v.getFirst().toString();   //zval
-				record += " " + rp1v.getSecond().toString();  //rid
-				byte srcId = rp1v.getThird().get(); //src
+				byte srcId = rp1v.getThird(); //src
 
 				if (srcId == 0) {
-					bwForR.write(record + "\n");
+					int[] c = decode(rp1v.getFirst());
+					outR.writeInt(rp1v.getSecond());
+					for (int i = 0; i < dimension; i++)
+						outR.writeInt(c[i]);
+					outerSize++;
 				} else if (srcId == 1) {
-					bwForS.write(record + "\n");
+					if (inMemory && innerSize == ridOfS.length) {
+						if (innerSize == maxInMemory) {
+							// Too large, fall back to the disk based RStarTree
+							spill(bwForS, coordOfS, ridOfS, innerSize);
+							inMemory = false;
+						} else {
+							int len = (int) Math.min(2L * innerSize, maxInMemory);
+							coordOfS = Arrays.copyOf(coordOfS, len * dimension);
+							ridOfS = Arrays.copyOf(ridOfS, len);
+						}
+					}
+					if (inMemory) {
+						int[] c = decode(rp1v.getFirst());
+						System.arraycopy(c, 0, coordOfS, innerSize * dimension, 
+							dimension);
+						ridOfS[innerSize] = rp1v.getSecond();
+					} else {
+						// <zval, rid> lines of the leaf file of the RStarTree
+						bwForS.write(Zorder.toDecimal(rp1v.getFirst(), dimension)
+							+ " " + rp1v.getSecond() + "\n");
+					}
 					innerSize++;
 				} else {
 					System.out.println("unknow file number");
@@ -235,84 +381,191 @@ public class RPhase1 extends Configured implements Tool
 			} 
 
 			reporter.progress();
-			bwForR.close();
+			outR.close();
 			bwForS.close();
-			fwForR.close();	
 			fwForS.close();
 
-			int blockSize = 128 * KB;
-			int cacheSize = 64 * MB;
-			String indexFile = new String(innerTable + ".index");
-			ListParameterization spatparams = new ListParameterization();
-			spatparams.addParameter(TreeIndex.CACHE_SIZE_ID, cacheSize);
-			spatparams.addParameter(TreeIndex.PAGE_SIZE_ID, blockSize);
-			spatparams.addParameter(TreeIndex.FILE_ID, indexFile);
-			
-			// FloatVector is used for RStarTree
-			RStarTree<FloatVector> rt = new RStarTree<FloatVector>(spatparams);
-			// Used for break generic programming in bulk loading
-			float[] fa = new float[dimension];
-			FloatVector fv = new FloatVector(fa);
-
-			// Use bulk loading to quickly build a RStarTree for S
-			// In this case, we do not need to sort innerTable since
-			// it is already sorted on Zorder and record ID at the start
-			// of reduce stage.
-			
-			boolean sortLeafFile = false;
-			try {
-				rt.bulkLoad(fv, innerTable, innerSize, sortLeafFile, dimension);
-			} catch (Exception e) {
-				System.err.println("Bulkload throws exception : " + e.getMessage());
-				System.exit(-1);	
+			PackedRTree packed = null;
+			RStarTree<FloatVector> rt = null;
+			final PackedRTree packedOfS;
+			final RStarTree<FloatVector> rtOfS;
+			if (inMemory) {
+				// The whole bucket of S is in memory, build a packed R-tree
+				float[] fl = new float[innerSize * dimension];
+				for (int i = 0; i < fl.length; i++)
+					fl[i] = coordOfS[i] * 1f;
+				coordOfS = null;
+				packed = new PackedRTree(dimension);
+				packed.bulkLoad(fl, ridOfS, innerSize);
+				fl = null;
+				ridOfS = null;
+			} else {
+				int blockSize = 128 * KB;
+				int cacheSize = 64 * MB;
+				String indexFile = new String(innerTable + ".index");
+				ListParameterization spatparams = new ListParameterization();
+				spatparams.addParameter(TreeIndex.CACHE_SIZE_ID, cacheSize);
+				spatparams.addParameter(TreeIndex.PAGE_SIZE_ID, blockSize);
+				spatparams.addParameter(TreeIndex.FILE_ID, indexFile);
+				// Memory mapped flat pages, queries read the entries in place
+				spatparams.addFlag(TreeIndex.MAPPED_ID);
+				// the workers read pages through a lock striped cache
+				if (pool.getThreads() > 1)
+					spatparams.addFlag(TreeIndex.CONCURRENT_ID);
+				if (hilbert) {
+					// the leaf file is in Hilbert order
+					spatparams.addParameter(SpatialIndex.BULK_LOAD_STRATEGY_ID, 
+						BulkSplit.Strategy.HILBERT.toString());
+				}
+				
+				// FloatVector is used for RStarTree
+				rt = new RStarTree<FloatVector>(spatparams);
+				// Used for break generic programming in bulk loading
+				float[] fa = new float[dimension];
+				FloatVector fv = new FloatVector(fa);
+
+				// Use bulk loading to quickly build a RStarTree for S
+				// In this case, we do not need to sort innerTable since
+				// it is already sorted on Zorder and record ID at the start
+				// of reduce stage.
+				
+				boolean sortLeafFile = false;
+				try {
+					rt.bulkLoad(fv, innerTable, innerSize, sortLeafFile, dimension, 
+						new File(innerTable).getParentFile(), sortRunSize, sortThreads);
+				} catch (Exception e) {
+					System.err.println("Bulkload throws exception : " + e.getMessage());
+					System.exit(-1);	
+				}
 			}
 
+			packedOfS = packed;
+			rtOfS = rt;
 			reporter.progress();
 
 			// 2) go through every record in outerTable
-			FileReader frForR     = new FileReader(outerTable);
-			BufferedReader brForR = new BufferedReader(frForR, bufferSize);
+			DataInputStream inR = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(outerTable), bufferSize));
 
-			EuclideanDistanceFunction<FloatVector> 
+			final EuclideanDistanceFunction<FloatVector> 
 				dist = new EuclideanDistanceFunction<FloatVector>();
 
-			int zvalOffset = 0;
-			int ridOffset = zvalOffset + 1;
+			// R is sorted on zval, so consecutive records form spatially 
+			// compact blocks which are joined with S in one tree traversal.
+			// A batch holds a few blocks per worker, which join their blocks
+			// in parallel; the results are written by this thread.
+			int batch = queryBlock * (pool.getThreads() > 1 ? 4 * pool.getThreads() : 1);
+			final int[] ridOfR = new int[batch];
+			final float[] blockOfR = new float[batch * dimension];
+			final int[] found = new int[batch];
+			final int[] knnIds = new int[batch * knn];
+			final double[] knnDists = new double[batch * knn];
+			int count = 0;
+
+			Path candFile = new Path(outerTable + ".knn");
+			SequenceFile.Writer candWriter = null;
+			final IntWritable candKey = new IntWritable();
+			final KNNCandidates cand = new KNNCandidates();
+			if (fused) {
+				candWriter = SequenceFile.createWriter(lfs, jobinfo, candFile, 
+					IntWritable.class, KNNCandidates.class);
+			}
+			final SequenceFile.Writer candOut = candWriter;
+
+			ReducePool.Task task = new ReducePool.Task() {
+				public void join(int from, int to) {
+					int n = to - from;
+					float[] q = Arrays.copyOfRange(blockOfR, from * dimension, 
+						to * dimension);
+					if (packedOfS != null) {
+						// the query buffers of the tree are not shared
+						PackedRTree tree = pool.getThreads() > 1 
+							? packedOfS.share() : packedOfS;
+						int[] f = new int[n];
+						int[] ids = new int[n * knn];
+						double[] dists = new double[n * knn];
+						tree.kNNQuery(q, n, knn, f, ids, dists);
+						System.arraycopy(f, 0, found, from, n);
+						System.arraycopy(ids, 0, knnIds, from * knn, n * knn);
+						System.arraycopy(dists, 0, knnDists, from * knn, n * knn);
+						return;
+					}
+
+					List<FloatVector> objects = new ArrayList<FloatVector>(n);
+					for (int j = 0; j < n; j++) {
+						objects.add(new FloatVector(Arrays.copyOfRange(q, 
+							j * dimension, (j + 1) * dimension)));
+					}
+					List<List<DistanceResultPair<DoubleDistance>>> idsOfBlock =
+						rtOfS.bulkKNNQuery(objects, knn, (SpatialDistanceFunction<FloatVector, DoubleDistance>)dist);
+
+					for (int j = 0; j < n; j++) {
+						int cnt = 0;
+						int off = (from + j) * knn;
+						for (DistanceResultPair<DoubleDistance> res : idsOfBlock.get(j)) 
+						{
+							knnIds[off + cnt] = res.getID();
+							knnDists[off + cnt] = res.getDistance().doubleValue();
+							//limit the number of candidates to knn
+							cnt++;
+							if (cnt == knn) break;
+						}
+						found[from + j] = cnt;
+					}
+				}
+			};
+
+			ReducePool.Writer writer = new ReducePool.Writer() {
+				public void write(int from, int to) throws IOException {
+					for (int j = from; j < to; j++) {
+						if (candOut != null) {
+							cand.clear();
+							for (int i = j * knn; i < j * knn + found[j]; i++)
+								cand.add(knnIds[i], (float) knnDists[i]);
+							candKey.set(ridOfR[j]);
+							candOut.append(candKey, cand);
+							continue;
+						}
+						for (int i = j * knn; i < j * knn + found[j]; i++) {
+							output.collect(NullWritable.get(), 
+								new Text(ridOfR[j] + " " + knnIds[i] + " " + knnDists[i]));
+						}
+					}
+				}
+			};
 
+			int left = outerSize;
 			while (true) 
 			{
-				String line = brForR.readLine();
-				if (line == null) break;
-				String parts[] = line.split(" +");
-				
-				String ridOfR = parts[ridOffset];
-				String zvalueOfR = parts[zvalOffset];
-				int[] coordOfR = Zorder.toCoord(zvalueOfR, dimension);
-				float[] flCoordOfR = new float[dimension]; 
-				for (int i = 0; i < dimension; i++)
-					flCoordOfR[i] = coordOfR[i] * 1f;
-
-				FloatVector fv1 = new FloatVector(flCoordOfR);
-				List<DistanceResultPair<DoubleDistance>> ids =
-					rt.kNNQuery(fv1, knn, (SpatialDistanceFunction<FloatVector, DoubleDistance>)dist);
-
-				int cnt = 0;
-				for (DistanceResultPair<DoubleDistance> res : ids) 
-				{
-					output.collect(NullWritable.get(), 
-						new Text(ridOfR + " " + res.getID().toString() + 
-						" " + res.getDistance().toString()
-						)
-					);
-					//limit the number of candidates to knn
-					cnt++;
-					if (cnt == knn) break;
+				if (left > 0) {
+					ridOfR[count] = inR.readInt();
+					for (int i = 0; i < dimension; i++)
+						blockOfR[count * dimension + i] = inR.readInt() * 1f;
+					left--;
+					count++;
+					if (count < batch)
+						continue;
 				}
+				if (count == 0)
+					break;
+
+				pool.run(count, queryBlock, task, writer);
 				reporter.progress();
+
+				count = 0;
+				if (left == 0)
+					break;
     		} // while
 
-			brForR.close();
-			frForR.close();
+			inR.close();
+
+			if (fused) {
+				packed = null;
+				rt = null;
+				candWriter.close();
+				writeSorted(candFile, new Path(outerTable + ".sort"), 
+					key.getThird().get(), reporter);
+			}
 
 			// clear everything temporary
             try
@@ -324,34 +577,149 @@ public class RPhase1 extends Configured implements Tool
 
 		} // reduce
 
+		/**
+		 * Coordinates of a value of the map stage
+		 */
+		private int[] decode(long[] z)
+		{
+			return hilbert ? Hilbert.decode(z, dimension) 
+				: Zorder.decode(z, dimension);
+		}
+
+		/**
+		 * Write the buffered S records to the inner table in the same
+		 * <zval, rid> format (and order) in which they were received.
+		 */
+		private void spill(BufferedWriter bw, int[] coord, int[] rid, int size)
+		throws IOException
+		{
+			int[] c = new int[dimension];
+			for (int i = 0; i < size; i++) {
+				System.arraycopy(coord, i * dimension, c, 0, dimension);
+				long[] z = hilbert ? Hilbert.encode(dimension, c) 
+					: Zorder.encode(dimension, c);
+				String zval = Zorder.toDecimal(z, dimension);
+				bw.write(zval + " " + rid[i] + "\n");
+			}
+		}
+
+		/**
+		 * Sort the <rid1, candidates> records of a bucket on rid1 and write
+		 * them to knn-<groupID> in the output directory of the task.
+		 */
+		private void writeSorted(Path candFile, Path tempDir, int groupID,
+		Reporter reporter) throws IOException
+		{
+			SequenceFile.Sorter sorter = new SequenceFile.Sorter(lfs, 
+				IntWritable.class, KNNCandidates.class, jobinfo);
+			sorter.setProgressable(reporter);
+			SequenceFile.Sorter.RawKeyValueIterator it = sorter.sortAndIterate(
+				new Path[] {candFile}, tempDir, true);
+
+			Path outFile = new Path(FileOutputFormat.getWorkOutputPath(jobinfo),
+				String.format("knn-%05d", groupID));
+			SequenceFile.Writer writer = SequenceFile.createWriter(
+				outFile.getFileSystem(jobinfo), jobinfo, outFile, 
+				IntWritable.class, KNNCandidates.class);
+			// it is null when the bucket has no record of R
+			if (it != null)
+				sorter.writeFile(it, writer);
+			writer.close();
+		}
+
         public void close() throws IOException {
 			//mos.close();
+			pool.shutdown();
 		}
 						        
 	} // Reducer
 
 	// Customize the partitioner so that we use the random shift id for
-	// partition 
+	// partition. With fewer reducers than buckets (-r), a reducer joins
+	// several buckets. The p*p random buckets all have the same expected
+	// size, they go to the reducers round robin. The cells of -grid are
+	// packed on their cost from the sizes estimated by RPhase0.
 	public static class RPhase1Partitioner 
 	implements Partitioner<RPhase1Key, RPhase1Value> 
 	{
+		// Estimated cost of every cell with -grid, null otherwise
+		private double[] cellCost;
+		private int[] reducerOf;
+
 		@Override
-		public void configure(JobConf job) {}
+		public void configure(JobConf job)
+		{
+			if (job.get("gridFile") == null)
+				return;
+
+			int dimension = job.getInt("dimension", 2);
+			List<String> lines = readGridLines(job);
+			cellCost = new double[lines.size()];
+			for (int c = 0; c < cellCost.length; c++) {
+				String[] parts = lines.get(c).split(" +");
+				double theta = Double.parseDouble(parts[2 * dimension]);
+				if (parts.length > 2 * dimension + 2) {
+					cellCost[c] = BucketPacker.cost(
+						Double.parseDouble(parts[2 * dimension + 1]),
+						Double.parseDouble(parts[2 * dimension + 2]));
+				} else {
+					// A grid without sizes, all nonempty cells are equal
+					cellCost[c] = (theta < 0) ? 0 : 1;
+				}
+			}
+		}
 
 		@Override
 		public int getPartition(RPhase1Key key, RPhase1Value value, 
 				int numPartitions) {
 			// <zval, rid, groupID> 
-			return key.getThird().get() % numPartitions;
+			int groupID = key.getThird().get();
+			if (cellCost == null || numPartitions >= cellCost.length)
+				return groupID % numPartitions;
+			if (reducerOf == null)
+				reducerOf = BucketPacker.pack(cellCost, numPartitions);
+			return reducerOf[groupID];
 		}
 	}
 
 	// Customize the map key comparator
-	public static class RPhase1KeyComparator extends WritableComparator 
+	// Keys are compared in their serialized form <zval, rid, groupID>
+	// (Text, int, int), so the sort never has to deserialize a key. The
+	// groupID comes first, a reducer may get several buckets.
+	public static class RPhase1KeyComparator extends WritableComparator
 	{
-		protected RPhase1KeyComparator() 
+		protected RPhase1KeyComparator()
 		{
-			super(RPhase1Key.class, true);	
+			super(RPhase1Key.class);
+		}
+
+		@Override
+		public int compare(byte[] b1, int s1, int l1,
+		byte[] b2, int s2, int l2)
+		{
+			try {
+				// Same bucket? groupID is the last int of a serialized key
+				int g1 = readInt(b1, s1 + l1 - 4);
+				int g2 = readInt(b2, s2 + l2 - 4);
+				if (g1 != g2) return (g1 < g2) ? -1 : 1;
+
+				int n1 = WritableUtils.decodeVIntSize(b1[s1]);
+				int n2 = WritableUtils.decodeVIntSize(b2[s2]);
+				int zlen1 = readVInt(b1, s1);
+				int zlen2 = readVInt(b2, s2);
+
+				// Same coord? zvals are fixed length decimal Strings, so
+				// their byte order is the numeric order
+				int cmp = compareBytes(b1, s1 + n1, zlen1, b2, s2 + n2, zlen2);
+				if (cmp != 0) return cmp;
+
+				// Same record id?
+				int rid1 = readInt(b1, s1 + n1 + zlen1);
+				int rid2 = readInt(b2, s2 + n2 + zlen2);
+				return (rid1 < rid2) ? -1 : ((rid1 == rid2) ? 0 : 1);
+			} catch (IOException e) {
+				throw new IllegalArgumentException(e);
+			}
 		}
 
 		@Override
@@ -359,7 +727,9 @@ public class RPhase1 extends Configured implements Tool
 			RPhase1Key rp1k1 = (RPhase1Key) w1;	
 			RPhase1Key rp1k2 = (RPhase1Key) w2;
 
-			int cmp = rp1k1.getFirst().compareTo(rp1k2.getFirst()); // Same coord? - Sasha
+			int cmp = rp1k1.getThird().compareTo(rp1k2.getThird()); // Same bucket?
+			if (cmp != 0) return cmp;
+			cmp = rp1k1.getFirst().compareTo(rp1k2.getFirst()); // Same coord? - Sasha
 			if (cmp != 0) return cmp;	
 			cmp = rp1k1.getSecond().compareTo(rp1k2.getSecond()); // Same record id? - Sasha
 			return cmp;
@@ -370,9 +740,19 @@ public class RPhase1 extends Configured implements Tool
 	// values in a partition into one group
 	public static class RPhase1GroupComparator extends WritableComparator 
 	{
-		protected RPhase1GroupComparator() 
+		protected RPhase1GroupComparator()
 		{
-			super(RPhase1Key.class, true);	
+			super(RPhase1Key.class);
+		}
+
+		@Override
+		public int compare(byte[] b1, int s1, int l1,
+		byte[] b2, int s2, int l2)
+		{
+			// groupID is the last int of a serialized key
+			int g1 = readInt(b1, s1 + l1 - 4);
+			int g2 = readInt(b2, s2 + l2 - 4);
+			return (g1 < g2) ? -1 : ((g1 == g2) ? 0 : 1);
 		}
 
 		@Override
@@ -391,6 +771,10 @@ public class RPhase1 extends Configured implements Tool
 		System.out.println(
 			"NPhase1 [-m <maps>] [-r <reduces>] [-p <numberOfPartitions>] " 
 			+ "[-d <dimension>] [-k <knn>] [-b <blockSize(#records) for R>] " 
+			+ "[-mem <memory(MB) for an in-memory R-tree of S>] " 
+			+ "[-qb <#records of R per kNN query block>] [-fuse] [-grid <cells of RPhase0>] " 
+			+ "[-sr <#records per sort run>] [-st <#sort threads>] [-hilbert] " 
+			+ "[-rt <#reduce threads>] [-unordered] " 
 			+ "<input> <output>");
 		ToolRunner.printGenericCommandUsage(System.out);
 		return -1;
@@ -422,6 +806,8 @@ public class RPhase1 extends Configured implements Tool
 		conf.setReducerClass(Reduce.class);
 		
 		int numberOfPartition = 2;
+		int numberOfReducer = 0;
+		String gridFile = null;
 		List<String> other_args = new ArrayList<String>();
 		for(int i=0; i < args.length; ++i) 
 		{
@@ -430,7 +816,7 @@ public class RPhase1 extends Configured implements Tool
 					//conf.setNumMapTasks(Integer.parseInt(args[++i]));
 					++i;
 				} else if ("-r".equals(args[i])) {
-					conf.setNumReduceTasks(Integer.parseInt(args[++i]));
+					numberOfReducer = Integer.parseInt(args[++i]);
 				} else if ("-p".equals(args[i])) {
 					numberOfPartition = Integer.parseInt(args[++i]);
 					conf.setInt("numberOfPartition", numberOfPartition); // READ ABOUT THIS - Sasha
@@ -447,11 +833,27 @@ public class RPhase1 extends Configured implements Tool
 					//conf.setInt("block", Integer.parseInt(args[++i]));
 					conf.setInt("block", block1);
 					System.out.printf("block is %d \n", block1);
+				} else if ("-mem".equals(args[i])) {
+					conf.setInt("treeMemory", Integer.parseInt(args[++i]));
+				} else if ("-qb".equals(args[i])) {
+					conf.setInt("queryBlock", Integer.parseInt(args[++i]));
+				} else if ("-fuse".equals(args[i])) {
+					conf.setBoolean("fused", true);
+				} else if ("-hilbert".equals(args[i])) {
+					conf.setBoolean("hilbert", true);
+				} else if ("-sr".equals(args[i])) {
+					conf.setInt("sortRunSize", Integer.parseInt(args[++i]));
+				} else if ("-st".equals(args[i])) {
+					conf.setInt("sortThreads", Integer.parseInt(args[++i]));
+				} else if ("-rt".equals(args[i])) {
+					conf.setInt("reduceThreads", Integer.parseInt(args[++i]));
+				} else if ("-unordered".equals(args[i])) {
+					conf.setBoolean("reduceOrdered", false);
+				} else if ("-grid".equals(args[i])) {
+					gridFile = args[++i];
 				} else {
 					other_args.add(args[i]);
 		    	}
-				conf.setNumReduceTasks(numberOfPartition * numberOfPartition); //notive that they don't use user inputed r
-				System.out.printf("The number of reducers are : %d\n", (numberOfPartition * numberOfPartition));
 			} catch (NumberFormatException except) {
 				System.out.println("ERROR: Integer expected instead of " + args[i]);
 				return printUsage();
@@ -468,6 +870,21 @@ public class RPhase1 extends Configured implements Tool
 		  return printUsage();
 		}
 
+		int numberOfBucket = numberOfPartition * numberOfPartition;
+		if (gridFile != null) {
+			// p cells of RPhase0 instead of p*p random buckets
+			conf.set("gridFile", gridFile);
+			DistributedCache.addCacheFile(new URI(gridFile), conf);
+			numberOfBucket = numberOfPartition;
+		}
+
+		// One reducer per bucket unless -r asks for fewer, then a reducer
+		// joins several buckets
+		if (numberOfReducer <= 0 || numberOfReducer > numberOfBucket)
+			numberOfReducer = numberOfBucket;
+		conf.setNumReduceTasks(numberOfReducer);
+		System.out.printf("The number of reducers are : %d\n", numberOfReducer);
+
 		FileInputFormat.setInputPaths(conf, other_args.get(0));
 		System.out.println("Add R to the input path");
 		FileInputFormat.addInputPaths(conf, other_args.get(1));
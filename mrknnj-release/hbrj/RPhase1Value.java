@@ -1,81 +1,94 @@
 package test;
 
 import java.io.*;
+import java.util.Arrays;
 import org.apache.hadoop.io.*;
 
+import de.lmu.ifi.dbs.elki.index.Zorder;
+
+/**
+ * Value format <zval, rid, src>. The zval is kept in binary form (see
+ * Zorder.encode) and the record is serialized as 
+ * <src (byte), rid (vint), #words (byte), zval words (long)>.
+ */
 public class RPhase1Value implements WritableComparable<RPhase1Value> 
 {
-	private Text first;
-	private IntWritable second;
-	private ByteWritable third;
+	private long[] first;
+	private int second;
+	private byte third;
 
 	public RPhase1Value() {
-		set(new Text(), new IntWritable(), new ByteWritable());
+		set(new long[0], 0, (byte) 0);
 	}	
 
-	public RPhase1Value(String first, int second, byte third) {
-		set(new Text(first), new IntWritable(second), new ByteWritable(third));
+	public RPhase1Value(long[] first, int second, byte third) {
+		set(first, second, third);
 	}
 
-	public void set(Text first, IntWritable second, ByteWritable third) {
+	public void set(long[] first, int second, byte third) {
 		this.first = first;
 		this.second = second;
 		this.third = third;
 	}
 
-	public Text getFirst() {
+	public long[] getFirst() {
 		return first;
 	}
 
-	public IntWritable getSecond() {
+	public int getSecond() {
 		return second;
 	}
 
-	public ByteWritable getThird() {
+	public byte getThird() {
 		return third;
 	}
 	
 	@Override
 	public void write(DataOutput out) throws IOException {
-		first.write(out);
-		second.write(out);
-		third.write(out);
+		out.writeByte(third);
+		WritableUtils.writeVInt(out, second);
+		out.writeByte(first.length);
+		Zorder.write(out, first);
 	}
 
 	@Override
 	public void readFields(DataInput in) throws IOException {
-		first.readFields(in);
-		second.readFields(in);
-		third.readFields(in);
+		third = in.readByte();
+		second = WritableUtils.readVInt(in);
+		int words = in.readByte();
+		if (first.length != words)
+			first = new long[words];
+		Zorder.read(in, first);
 	}
 
 	@Override  //place holder
 	public int hashCode() {
-		return first.hashCode() * 163 + third.hashCode();
+		return Arrays.hashCode(first) * 163 + third;
 	}
 
 	@Override
 	public boolean equals(Object o) {
 		if (o instanceof RPhase1Value) {
 			RPhase1Value rp1v = (RPhase1Value) o;
-			return first.equals(rp1v.first) && third.equals(rp1v.third)
-				&& second.equals(rp1v.second);
+			return Arrays.equals(first, rp1v.first) && third == rp1v.third
+				&& second == rp1v.second;
 		}
 		return false;
 	}
 
 	@Override
 	public String toString() {
-		return first + " " + second.toString() + " " + third.toString();	
+		// zval is printed without the leading zeros of Zorder.valueOf
+		return Zorder.toDecimal(first, 0) + " " + second + " " + third;	
 	}
 
 	@Override //place holder
 	public int compareTo(RPhase1Value rp1v) 
 	{
-		int cmp = first.compareTo(rp1v.first);
+		int cmp = Zorder.compare(first, rp1v.first);
 		if (cmp != 0) {
 			return cmp;	
 		}
-		return third.compareTo(rp1v.third);	
+		return third - rp1v.third;	
 	}
 }
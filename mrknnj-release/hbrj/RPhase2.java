@@ -20,6 +20,8 @@ import org.apache.hadoop.mapred.*;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 
+import de.lmu.ifi.dbs.elki.utilities.heap.KNNHeap;
+
 /**
  * Phase2 of Hadoop Block R*-tree KNN Join (H-BRJ).
  */
@@ -28,6 +30,20 @@ public class RPhase2 extends Configured implements Tool
 	public static class MapClass extends MapReduceBase 
 	implements Mapper<LongWritable, Text, IntWritable, RPhase2Value> 
 	{
+		int knn;
+		// Maximum number of rid1 whose candidates are buffered, 0 disables
+		int aggregate;
+
+		// Best knn <rid2, dist> seen in this split for each buffered rid1
+		HashMap<Integer, KNNHeap> buffer = new HashMap<Integer, KNNHeap>();
+		ArrayList<KNNHeap> freeHeaps = new ArrayList<KNNHeap>();
+		OutputCollector<IntWritable, RPhase2Value> collector;
+
+		public void configure(JobConf job) 
+		{
+			knn = job.getInt("knn", 3);
+			aggregate = job.getInt("aggregate", 10000);
+		}
 
 		public void map(LongWritable key, Text value, 
 		OutputCollector<IntWritable, RPhase2Value> output, 
@@ -39,55 +55,268 @@ public class RPhase2 extends Configured implements Tool
 			IntWritable mapKey = new IntWritable(Integer.valueOf(parts[0]));
 			// value format <rid2, dist>
 			RPhase2Value np2v = new RPhase2Value(Integer.valueOf(parts[1]), Float.valueOf(parts[2]));
-			output.collect(mapKey, np2v);
+			if (aggregate <= 0) {
+				output.collect(mapKey, np2v);
+				return;
+			}
+
+			collector = output;
+			KNNHeap heap = buffer.get(mapKey.get());
+			if (heap == null) {
+				if (buffer.size() >= aggregate)
+					flush();
+				heap = freeHeaps.isEmpty() ? new KNNHeap(knn) 
+					: freeHeaps.remove(freeHeaps.size() - 1);
+				buffer.put(mapKey.get(), heap);
+			}
+			int id2 = np2v.getFirst().get();
+			if (!heap.contains(id2))
+				heap.add(id2, np2v.getSecond().get());
+		}
+
+		void flush() throws IOException 
+		{
+			IntWritable mapKey = new IntWritable();
+			RPhase2Value np2v = new RPhase2Value();
+			for (Map.Entry<Integer, KNNHeap> e : buffer.entrySet()) {
+				mapKey.set(e.getKey());
+				emit(mapKey, e.getValue(), np2v, collector);
+				freeHeaps.add(e.getValue());
+			}
+			buffer.clear();
+		}
+
+		public void close() throws IOException 
+		{
+			if (collector != null)
+				flush();
 		}
 	}
   
-	public static class Reduce extends MapReduceBase
-	implements Reducer<IntWritable, RPhase2Value, NullWritable, Text> 
+	/**
+	 * Writes the pairs of heap as <rid1, <rid2, dist>>, largest distance
+	 * first, and leaves the heap empty.
+	 */
+	static void emit(IntWritable key, KNNHeap heap, RPhase2Value np2v, 
+	OutputCollector<IntWritable, RPhase2Value> output) throws IOException 
 	{
-		int numberOfPartition;	
-		int knn;
-		
-		class Record 
+		while (!heap.isEmpty()) {
+			np2v.getFirst().set(heap.peekId());
+			np2v.getSecond().set((float) heap.peekDistance());
+			output.collect(key, np2v);
+			heap.poll();
+		}
+	}
+
+	/**
+	 * Keeps only the knn closest distinct rid2 of a rid1 on the map side.
+	 */
+	public static class Combine extends MapReduceBase
+	implements Reducer<IntWritable, RPhase2Value, IntWritable, RPhase2Value> 
+	{
+		KNNHeap heap;
+		RPhase2Value np2v = new RPhase2Value();
+
+		public void configure(JobConf job) 
 		{
-			public int id2;
-			public float dist;
+			heap = new KNNHeap(job.getInt("knn", 3));
+		}
 
-			Record(int id2, float dist) 
-			{
-				this.id2 = id2;
-				this.dist = dist;
+		public void reduce(IntWritable key, Iterator<RPhase2Value> values, 
+		OutputCollector<IntWritable, RPhase2Value> output, 
+		Reporter reporter) throws IOException 
+		{
+			heap.reset();
+			while (values.hasNext()) {
+				RPhase2Value v = values.next();
+				int id2 = v.getFirst().get();
+				if (!heap.contains(id2))
+					heap.add(id2, v.getSecond().get());
 			}
+			emit(key, heap, np2v, output);
+		}
+	}
 
-			public String toString() 
-			{
-				return Integer.toString(id2) + " " + Float.toString(dist);	
-			} 
+	/**
+	 * Merges the candidates of a record of R from the p buckets of S
+	 * without a shuffle, used with -fused. The input records of a map 
+	 * task already hold all candidates of a rid1 (see BucketInputFormat).
+	 */
+	public static class MergeMapClass extends MapReduceBase
+	implements Mapper<IntWritable, KNNCandidates, NullWritable, Text> 
+	{
+		KNNHeap heap;
+
+		public void configure(JobConf job) 
+		{
+			heap = new KNNHeap(job.getInt("knn", 3));
 		}
 
-		class RecordComparator implements Comparator<Record> 
+		public void map(IntWritable key, KNNCandidates value, 
+		OutputCollector<NullWritable, Text> output, 
+		Reporter reporter) throws IOException 
 		{
-			public int compare(Record o1, Record o2) 
-			{
-				int ret = 0;
-				float dist = o1.dist - o2.dist;
+			heap.reset();
+			for (int i = 0; i < value.size(); i++)
+				heap.add(value.getId(i), value.getDistance(i));
+
+			// Largest distance first
+			while (!heap.isEmpty()) {
+				output.collect(NullWritable.get(), new Text(key.toString() + " " 
+					+ heap.peekId() + " " + Float.toString((float) heap.peekDistance())));
+				heap.poll();
+			}
+		}
+	}
 
-				if (Math.abs(dist) < 1E-6)
-					ret = o1.id2 - o2.id2;
-				else if (dist > 0)
-					ret = 1;
-				else 
-					ret = -1;
+	/**
+	 * Reads the knn-<groupID> files that RPhase1 writes with -fuse. The 
+	 * files of a bucket of R form one split: the p files of groupID / p 
+	 * with random buckets, the single file of a cell with -grid, where 
+	 * groupID is the cell. They are sorted on rid1 and merged so that a 
+	 * record holds all candidates of a rid1.
+	 */
+	public static class BucketInputFormat 
+	extends FileInputFormat<IntWritable, KNNCandidates> 
+	{
+		protected boolean isSplitable(FileSystem fs, Path file) 
+		{
+			return false;
+		}
+
+		public InputSplit[] getSplits(JobConf job, int numSplits) 
+		throws IOException 
+		{
+			// Files of a bucket of R, 1 with -grid
+			int filesPerBucket = job.getInt("filesPerBucket", 
+				job.getInt("numberOfPartition", 2));
+			TreeMap<Integer, List<FileStatus>> buckets = 
+				new TreeMap<Integer, List<FileStatus>>();
+			for (FileStatus file : listStatus(job)) {
+				String name = file.getPath().getName();
+				if (!name.startsWith("knn-"))
+					continue;
+				int bucket = Integer.parseInt(name.substring(4)) / filesPerBucket;
+				if (!buckets.containsKey(bucket))
+					buckets.put(bucket, new ArrayList<FileStatus>());
+				buckets.get(bucket).add(file);
+			}
+
+			List<InputSplit> splits = new ArrayList<InputSplit>();
+			for (List<FileStatus> files : buckets.values()) {
+				Path[] paths = new Path[files.size()];
+				long[] lengths = new long[files.size()];
+				for (int i = 0; i < paths.length; i++) {
+					paths[i] = files.get(i).getPath();
+					lengths[i] = files.get(i).getLen();
+				}
+				splits.add(new MultiFileSplit(job, paths, lengths));
+			}
+			return splits.toArray(new InputSplit[splits.size()]);
+		}
+
+		public RecordReader<IntWritable, KNNCandidates> getRecordReader(
+		InputSplit split, JobConf job, Reporter reporter) throws IOException 
+		{
+			return new BucketReader(job, (MultiFileSplit) split);
+		}
+	}
+
+	/**
+	 * k-way merge on rid1 of the sorted candidate files of a bucket.
+	 */
+	public static class BucketReader 
+	implements RecordReader<IntWritable, KNNCandidates> 
+	{
+		private SequenceFile.Reader[] readers;
+		private IntWritable[] keys;
+		private KNNCandidates[] values;
+		private boolean[] hasNext;
+		private long length;
+
+		public BucketReader(JobConf job, MultiFileSplit split) throws IOException 
+		{
+			int n = split.getNumPaths();
+			readers = new SequenceFile.Reader[n];
+			keys = new IntWritable[n];
+			values = new KNNCandidates[n];
+			hasNext = new boolean[n];
+			length = split.getLength();
+			for (int i = 0; i < n; i++) {
+				Path file = split.getPath(i);
+				readers[i] = new SequenceFile.Reader(file.getFileSystem(job), file, job);
+				keys[i] = new IntWritable();
+				values[i] = new KNNCandidates();
+				hasNext[i] = readers[i].next(keys[i], values[i]);
+			}
+		}
 
-				return -ret;
-			}	
+		public boolean next(IntWritable key, KNNCandidates value) throws IOException 
+		{
+			int min = -1;
+			for (int i = 0; i < readers.length; i++) {
+				if (hasNext[i] && (min < 0 || keys[i].get() < keys[min].get()))
+					min = i;
+			}
+			if (min < 0)
+				return false;
+
+			int rid = keys[min].get();
+			key.set(rid);
+			value.clear();
+			for (int i = 0; i < readers.length; i++) {
+				while (hasNext[i] && keys[i].get() == rid) {
+					value.addAll(values[i]);
+					hasNext[i] = readers[i].next(keys[i], values[i]);
+				}
+			}
+			return true;
 		}
 
+		public IntWritable createKey() 
+		{
+			return new IntWritable();
+		}
+
+		public KNNCandidates createValue() 
+		{
+			return new KNNCandidates();
+		}
+
+		public long getPos() throws IOException 
+		{
+			long pos = 0;
+			for (SequenceFile.Reader reader : readers)
+				pos += reader.getPosition();
+			return pos;
+		}
+
+		public float getProgress() throws IOException 
+		{
+			return (length == 0) ? 1.0f : Math.min(1.0f, getPos() / (float) length);
+		}
+
+		public void close() throws IOException 
+		{
+			for (SequenceFile.Reader reader : readers)
+				reader.close();
+		}
+	}
+
+	public static class Reduce extends MapReduceBase
+	implements Reducer<IntWritable, RPhase2Value, NullWritable, Text> 
+	{
+		int numberOfPartition;	
+		int knn;
+		
+		// Keeps the knn closest <rid2, dist> of the current rid1
+		KNNHeap heap;
+
 		public void configure(JobConf job) 
 		{
 			numberOfPartition = job.getInt("numberOfPartition", 2);	
 			knn = job.getInt("knn", 3);
+			heap = new KNNHeap(knn);
 			System.out.println("########## configuring!");
 		}	
 
@@ -96,8 +325,7 @@ public class RPhase2 extends Configured implements Tool
 		Reporter reporter) throws IOException 
 		{
 			//initialize the pq
-			RecordComparator rc = new RecordComparator();
-			PriorityQueue<Record> pq = new PriorityQueue<Record>(knn + 1, rc);
+			heap.reset();
 
 			System.out.println("Phase 2 is at reduce");
 			System.out.println("########## key: " + key.toString());
@@ -110,16 +338,17 @@ public class RPhase2 extends Configured implements Tool
 
 				int id2 = np2v.getFirst().get();
 				float dist = np2v.getSecond().get();
-				Record record = new Record(id2, dist);
-				pq.add(record);
-				System.out.println("########## record: " + record.toString());
-				if (pq.size() > knn)
-					pq.poll();
+				if (!heap.contains(id2))
+					heap.add(id2, dist);
+				System.out.println("########## record: " + id2 + " " + Float.toString(dist));
 			}
 
-			while(pq.size() > 0) 
+			// Largest distance first
+			while(!heap.isEmpty()) 
 			{
-				output.collect(NullWritable.get(), new Text(key.toString() + " " + pq.poll().toString()));
+				output.collect(NullWritable.get(), new Text(key.toString() + " " 
+					+ heap.peekId() + " " + Float.toString((float) heap.peekDistance())));
+				heap.poll();
 				//break; // only ouput the first record
 			}
 
@@ -130,7 +359,8 @@ public class RPhase2 extends Configured implements Tool
 	{
 		System.out.println(
 			"NPhase1 [-m <maps>] [-r <reduces>] [-p <numberOfPartitions>] " 
-			+ "[-k <knn>] " + "<input> <output>");
+			+ "[-k <knn>] [-agg <bufferedRecords>] [-cs <maxSplitMB>] [-fused [-grid]] " 
+			+ "<input> <output>");
 		ToolRunner.printGenericCommandUsage(System.out);
 		return -1;
 	}
@@ -151,9 +381,13 @@ public class RPhase2 extends Configured implements Tool
 		conf.setOutputValueClass(Text.class);		
 
 		conf.setMapperClass(MapClass.class);        
+		conf.setCombinerClass(Combine.class);
 		conf.setReducerClass(Reduce.class);
 	
 		int numberOfPartition = 0;	
+		int numberOfReducer = 0;
+		boolean fused = false;
+		boolean grid = false;
 		List<String> other_args = new ArrayList<String>();
 		System.out.println("Greetings from Sasha!");
 
@@ -164,7 +398,7 @@ public class RPhase2 extends Configured implements Tool
 					//conf.setNumMapTasks(Integer.parseInt(args[++i]));
 					++i;
 				} else if ("-r".equals(args[i])) {
-					conf.setNumReduceTasks(Integer.parseInt(args[++i]));
+					numberOfReducer = Integer.parseInt(args[++i]);
 				} else if ("-p".equals(args[i])) {
 					numberOfPartition = Integer.parseInt(args[++i]);
 					conf.setInt("numberOfPartition", numberOfPartition);
@@ -172,11 +406,20 @@ public class RPhase2 extends Configured implements Tool
 					int knn = Integer.parseInt(args[++i]);
 					conf.setInt("knn", knn);
 					System.out.println(knn + "~ hi");
+				} else if ("-fused".equals(args[i])) {
+					fused = true;
+				} else if ("-grid".equals(args[i])) {
+					grid = true;
+				} else if ("-agg".equals(args[i])) {
+					conf.setInt("aggregate", Integer.parseInt(args[++i]));
+				} else if ("-cs".equals(args[i])) {
+					// pack several phase-1 outputs into one split of <= cs MB
+					conf.setInputFormat(CombinedTextInputFormat.class);
+					conf.setLong("mapred.max.split.size", 
+						Long.parseLong(args[++i]) * 1024 * 1024);
 				} else {
 					other_args.add(args[i]);
  	 			}
-				conf.setNumReduceTasks(numberOfPartition * numberOfPartition); // why is this param changed to p^2? -Sasha
-				//conf.setNumReduceTasks(1);
 			} catch (NumberFormatException except) {
 				System.out.println("ERROR: Integer expected instead of " + args[i]);
 				return printUsage();
@@ -193,6 +436,25 @@ public class RPhase2 extends Configured implements Tool
 			return printUsage();
 		}
 
+		// -r or, as before, one reducer per bucket of round 1
+		if (numberOfReducer > 0)
+			conf.setNumReduceTasks(numberOfReducer);
+		else if (numberOfPartition > 0)
+			conf.setNumReduceTasks(numberOfPartition * numberOfPartition);
+
+		if (fused) {
+			if (!grid && numberOfPartition < 1) {
+				System.out.println("ERROR: -fused requires -p <numberOfPartitions> or -grid");
+				return printUsage();
+			}
+			// Merge the sorted binary output of RPhase1 -fuse without a shuffle
+			conf.setInt("numberOfPartition", numberOfPartition);
+			conf.setInt("filesPerBucket", grid ? 1 : numberOfPartition);
+			conf.setInputFormat(BucketInputFormat.class);
+			conf.setMapperClass(MergeMapClass.class);
+			conf.setNumReduceTasks(0);
+		}
+
 		FileInputFormat.setInputPaths(conf, other_args.get(0));
 		FileOutputFormat.setOutputPath(conf, new Path(other_args.get(1)));
 
@@ -2,7 +2,8 @@ package de.lmu.ifi.dbs.elki.distance.distancefunction;
 
 import de.lmu.ifi.dbs.elki.data.NumberVector;
 import de.lmu.ifi.dbs.elki.distance.DoubleDistance;
-import de.lmu.ifi.dbs.elki.index.tree.spatial.SpatialDistanceFunction;
+import de.lmu.ifi.dbs.elki.index.tree.spatial.SpatialComparable;
+import de.lmu.ifi.dbs.elki.index.tree.spatial.SquaredSpatialDistanceFunction;
 import de.lmu.ifi.dbs.elki.utilities.HyperBoundingBox;
 import de.lmu.ifi.dbs.elki.utilities.optionhandling.Parameterizable;
 
@@ -12,7 +13,7 @@ import de.lmu.ifi.dbs.elki.utilities.optionhandling.Parameterizable;
  * @author Arthur Zimek
  * @param <V> the type of FeatureVector to compute the distances in between
  */
-public class EuclideanDistanceFunction<V extends NumberVector<V, ?>> extends AbstractDistanceFunction<V, DoubleDistance> implements SpatialDistanceFunction<V, DoubleDistance>, Parameterizable {
+public class EuclideanDistanceFunction<V extends NumberVector<V, ?>> extends AbstractDistanceFunction<V, DoubleDistance> implements SquaredSpatialDistanceFunction<V, DoubleDistance>, Parameterizable {
   /**
    * Provides a Euclidean distance function that can compute the Euclidean
    * distance (that is a DoubleDistance) for FeatureVectors.
@@ -111,4 +112,77 @@ public class EuclideanDistanceFunction<V extends NumberVector<V, ?>> extends Abs
     }
     return new DoubleDistance(Math.sqrt(sqrDist));
   }
+
+  public double distSq(double[] v1, double[] v2) {
+    double sqrDist = 0;
+    for(int d = 0; d < v1.length; d++) {
+      double manhattanI = v1[d] - v2[d];
+      sqrDist += manhattanI * manhattanI;
+    }
+    return sqrDist;
+  }
+
+  public double minDistSq(double[] min, double[] max, double[] q) {
+    double sqrDist = 0;
+    for(int d = 0; d < q.length; d++) {
+      double manhattanI;
+      if(q[d] < min[d]) {
+        manhattanI = min[d] - q[d];
+      }
+      else if(q[d] > max[d]) {
+        manhattanI = q[d] - max[d];
+      }
+      else {
+        continue;
+      }
+      sqrDist += manhattanI * manhattanI;
+    }
+    return sqrDist;
+  }
+
+  public double minDistSq(SpatialComparable mbr, double[] q) {
+    double sqrDist = 0;
+    for(int d = 0; d < q.length; d++) {
+      double manhattanI;
+      double min = mbr.getMin(d + 1);
+      if(q[d] < min) {
+        manhattanI = min - q[d];
+      }
+      else {
+        double max = mbr.getMax(d + 1);
+        if(q[d] > max) {
+          manhattanI = q[d] - max;
+        }
+        else {
+          continue;
+        }
+      }
+      sqrDist += manhattanI * manhattanI;
+    }
+    return sqrDist;
+  }
+
+  public double minDistSq(SpatialComparable mbr, double[] min, double[] max) {
+    double sqrDist = 0;
+    for(int d = 0; d < min.length; d++) {
+      double manhattanI;
+      double mbrMin = mbr.getMin(d + 1);
+      double mbrMax = mbr.getMax(d + 1);
+      if(mbrMax < min[d]) {
+        manhattanI = min[d] - mbrMax;
+      }
+      else if(mbrMin > max[d]) {
+        manhattanI = mbrMin - max[d];
+      }
+      else { // The mbrs intersect!
+        continue;
+      }
+      sqrDist += manhattanI * manhattanI;
+    }
+    return sqrDist;
+  }
+
+  public DoubleDistance fromSquared(double distSq) {
+    return new DoubleDistance(Math.sqrt(distSq));
+  }
 }
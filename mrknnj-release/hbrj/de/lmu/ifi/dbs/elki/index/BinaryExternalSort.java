@@ -0,0 +1,390 @@
+package de.lmu.ifi.dbs.elki.index;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * External sort of fixed width binary records, each a key of a fixed number
+ * of longs (compared as one unsigned number, most significant word first,
+ * like the binary z-values of Zorder) and an int payload.
+ *
+ * Records are collected in runs of runSize records held in primitive
+ * arrays. A full run is radix sorted and written to a temporary file by a
+ * pool of threads while the caller fills the next run. sort() then merges
+ * all runs in one pass with a loser tree; if everything fit into a single
+ * run nothing is written at all. The sort is stable, records with equal keys
+ * come out in the order they were added.
+ *
+ * Usage: add() all records, sort(), then next() / getKey() / getPayload()
+ * until next() returns false, and close() to remove the temporary files.
+ */
+public class BinaryExternalSort {
+	// Default number of records per run
+	public static final int DEFAULT_RUN_SIZE = 1 << 20;
+
+	// Default number of threads sorting and writing runs
+	public static final int DEFAULT_THREADS = 2;
+
+	private static final int IO_BUFFER_SIZE = 1 << 20;
+
+	private final int words;
+	private final int runSize;
+	private final File tmpDir;
+
+	// The run being filled, and the free ones
+	private Run current;
+	private final BlockingQueue<Run> free;
+
+	private final ExecutorService pool;
+	private final List<Future<?>> spills = new ArrayList<Future<?>>();
+	private final List<File> files = new ArrayList<File>();
+
+	// Merge state
+	private RunReader[] readers;
+	private int[] tree;
+	private Run inMemory;
+	private int inMemoryPos;
+	private long[] key;
+	private int payload;
+	private boolean sorted = false;
+
+	/**
+	 * @param words the number of longs of a key
+	 * @param tmpDir the directory for the temporary run files
+	 * @param runSize the number of records per run, threads + 1 runs are held
+	 *        in memory at most
+	 * @param threads the number of threads sorting and writing runs
+	 */
+	public BinaryExternalSort(int words, File tmpDir, int runSize, int threads) {
+		if (words < 1 || runSize < 1 || threads < 1)
+			throw new IllegalArgumentException("words, runSize and threads must be positive");
+		this.words = words;
+		this.runSize = runSize;
+		this.tmpDir = tmpDir;
+		this.key = new long[words];
+		this.pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				// do not keep the task alive if close() is never called
+				Thread t = new Thread(r, "BinaryExternalSort");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.free = new ArrayBlockingQueue<Run>(threads + 1);
+		// the arrays of a run grow when needed
+		for (int i = 0; i < threads + 1; i++)
+			free.add(new Run(words));
+		this.current = takeRun();
+	}
+
+	public BinaryExternalSort(int words, File tmpDir) {
+		this(words, tmpDir, DEFAULT_RUN_SIZE, DEFAULT_THREADS);
+	}
+
+	/**
+	 * Adds a record, key is copied.
+	 */
+	public void add(long[] k, int p) throws IOException {
+		if (sorted)
+			throw new IllegalStateException("add() after sort()");
+		if (current.size == runSize) {
+			spill(current);
+			current = takeRun();
+		}
+		if (current.size == current.payloads.length) {
+			current.grow(Math.min(runSize, Math.max(4096, 2 * current.size)));
+		}
+		System.arraycopy(k, 0, current.keys, current.size * words, words);
+		current.payloads[current.size++] = p;
+	}
+
+	/**
+	 * Finishes the input and prepares the merged output.
+	 */
+	public void sort() throws IOException {
+		sorted = true;
+		if (files.isEmpty()) {
+			// everything fits in memory
+			current.sort();
+			inMemory = current;
+			inMemoryPos = 0;
+			pool.shutdown();
+			return;
+		}
+		if (current.size > 0)
+			spill(current);
+		current = null;
+		pool.shutdown();
+
+		for (Future<?> f : spills) {
+			try {
+				f.get();
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted while writing runs", e);
+			} catch (ExecutionException e) {
+				throw new IOException("Writing a run failed", e.getCause());
+			}
+		}
+		free.clear();
+
+		int k = files.size();
+		readers = new RunReader[k];
+		for (int i = 0; i < k; i++)
+			readers[i] = new RunReader(files.get(i), Math.max(4096, IO_BUFFER_SIZE / k));
+		buildTree();
+	}
+
+	/**
+	 * Moves to the next record in sorted order.
+	 *
+	 * @return false if all records have been returned
+	 */
+	public boolean next() throws IOException {
+		if (!sorted)
+			throw new IllegalStateException("next() before sort()");
+		if (inMemory != null) {
+			if (inMemoryPos == inMemory.size)
+				return false;
+			int r = inMemory.order[inMemoryPos++];
+			System.arraycopy(inMemory.keys, r * words, key, 0, words);
+			payload = inMemory.payloads[r];
+			return true;
+		}
+		int w = tree[0];
+		RunReader reader = readers[w];
+		if (reader.exhausted)
+			return false;
+		System.arraycopy(reader.key, 0, key, 0, words);
+		payload = reader.payload;
+		reader.advance();
+		replay(w);
+		return true;
+	}
+
+	/**
+	 * The key of the current record. The array is reused by next().
+	 */
+	public long[] getKey() {
+		return key;
+	}
+
+	public int getPayload() {
+		return payload;
+	}
+
+	/**
+	 * Closes and deletes the temporary files.
+	 */
+	public void close() {
+		pool.shutdownNow();
+		if (readers != null) {
+			for (RunReader r : readers) {
+				try {
+					r.in.close();
+				} catch (IOException e) {
+					// ignore, the file is removed anyway
+				}
+			}
+		}
+		for (File f : files)
+			f.delete();
+		inMemory = null;
+		current = null;
+	}
+
+	private Run takeRun() {
+		try {
+			Run run = free.take();
+			run.size = 0;
+			return run;
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Interrupted while waiting for a free run", e);
+		}
+	}
+
+	// Sorts and writes the run in the pool, the run is freed afterwards
+	private void spill(final Run run) throws IOException {
+		final File f = File.createTempFile("run", ".bin", tmpDir);
+		files.add(f);
+		spills.add(pool.submit(new Callable<Object>() {
+			public Object call() throws IOException {
+				try {
+					run.sort();
+					run.write(f);
+				} finally {
+					free.add(run);
+				}
+				return null;
+			}
+		}));
+	}
+
+	//==========================================================================
+	// Loser tree over the run readers. tree[0] holds the index of the
+	// overall winner, tree[1..k-1] the losers of the inner nodes; the leaves
+	// are implicit at k..2k-1. An exhausted run is larger than any record,
+	// ties are broken by the run index to keep the sort stable.
+
+	private boolean less(int a, int b) {
+		RunReader ra = readers[a], rb = readers[b];
+		if (ra.exhausted)
+			return false;
+		if (rb.exhausted)
+			return true;
+		int c = Zorder.compare(ra.key, rb.key);
+		return c < 0 || (c == 0 && a < b);
+	}
+
+	private void buildTree() {
+		int k = readers.length;
+		tree = new int[Math.max(1, k)];
+		if (k == 1) {
+			tree[0] = 0;
+			return;
+		}
+		// winners of the subtrees, computed bottom up
+		int[] winner = new int[2 * k];
+		for (int i = 0; i < k; i++)
+			winner[k + i] = i;
+		for (int n = k - 1; n > 0; n--) {
+			int a = winner[2 * n], b = winner[2 * n + 1];
+			if (less(a, b)) {
+				winner[n] = a;
+				tree[n] = b;
+			} else {
+				winner[n] = b;
+				tree[n] = a;
+			}
+		}
+		tree[0] = winner[1];
+	}
+
+	// Replays the matches from the leaf of run w to the root
+	private void replay(int w) {
+		int k = readers.length;
+		for (int n = (k + w) >>> 1; n > 0; n >>>= 1) {
+			if (less(tree[n], w)) {
+				int t = tree[n];
+				tree[n] = w;
+				w = t;
+			}
+		}
+		tree[0] = w;
+	}
+
+	//==========================================================================
+
+	// A run of records in primitive arrays
+	private static class Run {
+		final int words;
+		long[] keys = new long[0];
+		int[] payloads = new int[0];
+		int[] order = new int[0], tmp = new int[0];
+		int size;
+
+		Run(int words) {
+			this.words = words;
+		}
+
+		void grow(int capacity) {
+			keys = Arrays.copyOf(keys, capacity * words);
+			payloads = Arrays.copyOf(payloads, capacity);
+		}
+
+		// LSD radix sort of the record indices on 8 bit digits, from the
+		// least significant byte of the last word to the most significant
+		// byte of the first one. Digits that are equal for all records are
+		// skipped, which saves most passes for clustered z-values.
+		void sort() {
+			int n = size;
+			if (order.length < n) {
+				order = new int[payloads.length];
+				tmp = new int[payloads.length];
+			}
+			int[] src = order, dst = tmp;
+			for (int i = 0; i < n; i++)
+				src[i] = i;
+			int[] count = new int[257];
+			for (int w = words - 1; w >= 0; w--) {
+				for (int shift = 0; shift < 64; shift += 8) {
+					Arrays.fill(count, 0);
+					for (int i = 0; i < n; i++) {
+						int digit = (int) ((keys[i * words + w] >>> shift) & 0xFF);
+						count[digit + 1]++;
+					}
+					boolean trivial = false;
+					for (int d = 1; d <= 256; d++) {
+						if (count[d] == n) {
+							trivial = true;
+							break;
+						}
+						if (count[d] != 0)
+							break;
+					}
+					if (trivial || n == 0)
+						continue;
+					for (int d = 0; d < 256; d++)
+						count[d + 1] += count[d];
+					for (int i = 0; i < n; i++) {
+						int r = src[i];
+						int digit = (int) ((keys[r * words + w] >>> shift) & 0xFF);
+						dst[count[digit]++] = r;
+					}
+					int[] t = src;
+					src = dst;
+					dst = t;
+				}
+			}
+			order = src;
+			tmp = dst;
+		}
+
+		void write(File f) throws IOException {
+			DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(f), IO_BUFFER_SIZE));
+			try {
+				for (int i = 0; i < size; i++) {
+					int r = order[i];
+					for (int w = 0; w < words; w++)
+						out.writeLong(keys[r * words + w]);
+					out.writeInt(payloads[r]);
+				}
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+	// Sequential reader of a run file
+	private class RunReader {
+		final DataInputStream in;
+		final long[] key = new long[words];
+		int payload;
+		boolean exhausted = false;
+
+		RunReader(File f, int bufferSize) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), bufferSize));
+			advance();
+		}
+
+		void advance() throws IOException {
+			try {
+				Zorder.read(in, key);
+				payload = in.readInt();
+			} catch (EOFException e) {
+				exhausted = true;
+				in.close();
+			}
+		}
+	}
+}
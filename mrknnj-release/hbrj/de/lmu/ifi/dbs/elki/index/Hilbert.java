@@ -0,0 +1,90 @@
+package de.lmu.ifi.dbs.elki.index;
+
+/**
+ * Binary Hilbert values of points with 32 bit coordinates, in the same
+ * layout as the binary z-values of {@link Zorder}: words(dimension) longs,
+ * most significant word first, compared with Zorder.compare() and converted
+ * with Zorder.toDecimal() / Zorder.fromDecimal().
+ *
+ * Uses the transposed form of J. Skilling, "Programming the Hilbert curve"
+ * (AIP Conf. Proc. 707, 2004): the coordinates are transformed in place
+ * into d ints whose bits, interleaved like a z-value, are the Hilbert index.
+ * Unlike the z-order, consecutive Hilbert values are always neighbouring
+ * cells, so runs of the curve have smaller bounding boxes.
+ */
+public class Hilbert {
+	public static long[] encode(int dimension, int[] coord) {
+		return encode(dimension, coord, new long[Zorder.words(dimension)]);
+	}
+
+	// Hilbert value of coord (which is not changed) into h
+	public static long[] encode(int dimension, int[] coord, long[] h) {
+		if (dimension == 1)
+			return Zorder.encode(dimension, coord, h);
+		int[] x = new int[dimension];
+		System.arraycopy(coord, 0, x, 0, dimension);
+		axesToTranspose(x, dimension);
+		return Zorder.encode(dimension, x, h);
+	}
+
+	public static int[] decode(long[] h, int dimension) {
+		return decode(h, dimension, new int[dimension]);
+	}
+
+	// Inverse of encode
+	public static int[] decode(long[] h, int dimension, int[] coord) {
+		Zorder.decode(h, dimension, coord);
+		if (dimension > 1)
+			transposeToAxes(coord, dimension);
+		return coord;
+	}
+
+	// Coordinates to the transposed Hilbert index, all 32 bits of each int
+	private static void axesToTranspose(int[] x, int n) {
+		// inverse undo
+		for (int q = 1 << 31; q != 1; q >>>= 1) {
+			int p = q - 1;
+			for (int i = 0; i < n; i++) {
+				if ((x[i] & q) != 0) {
+					x[0] ^= p;
+				} else {
+					int t = (x[0] ^ x[i]) & p;
+					x[0] ^= t;
+					x[i] ^= t;
+				}
+			}
+		}
+		// gray encode
+		for (int i = 1; i < n; i++)
+			x[i] ^= x[i - 1];
+		int t = 0;
+		for (int q = 1 << 31; q != 1; q >>>= 1) {
+			if ((x[n - 1] & q) != 0)
+				t ^= q - 1;
+		}
+		for (int i = 0; i < n; i++)
+			x[i] ^= t;
+	}
+
+	// Inverse of axesToTranspose
+	private static void transposeToAxes(int[] x, int n) {
+		// gray decode
+		int t = x[n - 1] >>> 1;
+		for (int i = n - 1; i > 0; i--)
+			x[i] ^= x[i - 1];
+		x[0] ^= t;
+		// undo excess work, q runs through 2 .. 2^31
+		for (int q = 2; q != 0; q <<= 1) {
+			int p = q - 1;
+			for (int i = n - 1; i >= 0; i--) {
+				if ((x[i] & q) != 0) {
+					x[0] ^= p;
+				} else {
+					t = (x[0] ^ x[i]) & p;
+					x[0] ^= t;
+					x[i] ^= t;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,506 @@
+// filename: PackedRTree.java
+package de.lmu.ifi.dbs.elki.index;
+import java.util.Arrays;
+
+import de.lmu.ifi.dbs.elki.utilities.heap.KNNHeap;
+
+/**
+ * Main memory R-tree which is packed bottom-up with Sort-Tile-Recursive
+ * (STR) over primitive arrays. It is meant for buckets that fit in the heap,
+ * where building a paged RStarTree through the external sort costs more
+ * than the join itself.
+ *
+ * Points are kept in leaf order in one float array. Every level is an array
+ * of MBRs, and the children of a node are a run of at most capacity entries
+ * of the level below, starting at first[node].
+ */
+public class PackedRTree {
+	public static final int DEFAULT_CAPACITY = 32;
+
+	private int dimension;
+	private int capacity;
+	private int size;
+
+	// Points in leaf order
+	private float[] coords;
+	private int[] ids;
+
+	// Level 0 holds the leaves, the last level holds the root only
+	private int height;
+	private int[] nodes;
+	private float[][] mins;
+	private float[][] maxs;
+	private int[][] first;
+
+	// Priority queue of <minDist, level, node> used by kNNQuery
+	private double[] pqKey = new double[64];
+	private int[] pqLevel = new int[64];
+	private int[] pqNode = new int[64];
+	private int pqSize;
+
+	// The k best <id, squared distance> of every query object of a block
+	private KNNHeap[] heaps = new KNNHeap[0];
+
+	// Children of a directory node sorted by distance, one row per level
+	private double[][] childDist;
+	private int[][] childIdx;
+
+	public PackedRTree(int dimension) {
+		this(dimension, DEFAULT_CAPACITY);
+	}
+
+	public PackedRTree(int dimension, int capacity) {
+		if (capacity < 2)
+			throw new IllegalArgumentException("Node capacity must be at least 2");
+		this.dimension = dimension;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Rough number of bytes used to build a tree over size points, including
+	 * the temporary arrays of the STR sort.
+	 */
+	public static long memoryRequired(int size, int dimension, int capacity) {
+		long points = (long) size * (4L * dimension + 4);
+		long nodes = (long) size / (capacity - 1) + 1;
+		return 2 * points + 4L * size + nodes * (8L * dimension + 4) * 2;
+	}
+
+	/**
+	 * Returns a tree on the same points and nodes with its own query
+	 * buffers, which can be queried in another thread concurrently with
+	 * this one. Neither may be loaded again while they are shared.
+	 */
+	public PackedRTree share() {
+		PackedRTree t = new PackedRTree(dimension, capacity);
+		t.size = size;
+		t.coords = coords;
+		t.ids = ids;
+		t.height = height;
+		t.nodes = nodes;
+		t.mins = mins;
+		t.maxs = maxs;
+		t.first = first;
+		return t;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Builds the tree over the first size points of coord (dimension values
+	 * per point) and their ids. The arrays are copied and not modified.
+	 */
+	public void bulkLoad(float[] coord, int[] id, int size) {
+		this.size = size;
+		this.coords = new float[size * dimension];
+		this.ids = new int[size];
+
+		int[] order = new int[size];
+		for (int i = 0; i < size; i++)
+			order[i] = i;
+		strSort(coord, order, 0, size, 0);
+
+		for (int i = 0; i < size; i++) {
+			System.arraycopy(coord, order[i] * dimension, coords,
+				i * dimension, dimension);
+			ids[i] = id[order[i]];
+		}
+		order = null;
+
+		// Count levels
+		height = 0;
+		int n = size;
+		do {
+			n = (n + capacity - 1) / capacity;
+			height++;
+		} while (n > 1);
+
+		nodes = new int[height];
+		childDist = null;
+		mins = new float[height][];
+		maxs = new float[height][];
+		first = new int[height][];
+
+		// Children of the current level, points are degenerated boxes
+		float[] cmin = coords;
+		float[] cmax = coords;
+		n = size;
+		for (int l = 0; l < height; l++) {
+			int m = (n + capacity - 1) / capacity;
+			float[] min = new float[m * dimension];
+			float[] max = new float[m * dimension];
+			int[] start = new int[m];
+			for (int j = 0; j < m; j++) {
+				int s = j * capacity;
+				int e = Math.min(n, s + capacity);
+				start[j] = s;
+				int o = j * dimension;
+				System.arraycopy(cmin, s * dimension, min, o, dimension);
+				System.arraycopy(cmax, s * dimension, max, o, dimension);
+				for (int c = s + 1; c < e; c++) {
+					int co = c * dimension;
+					for (int d = 0; d < dimension; d++) {
+						if (cmin[co + d] < min[o + d])
+							min[o + d] = cmin[co + d];
+						if (cmax[co + d] > max[o + d])
+							max[o + d] = cmax[co + d];
+					}
+				}
+			}
+
+			// Tile the new nodes again so the next level groups close nodes
+			if (m > capacity) {
+				float[] center = new float[m * dimension];
+				for (int i = 0; i < m * dimension; i++)
+					center[i] = (min[i] + max[i]) / 2;
+				int[] norder = new int[m];
+				for (int i = 0; i < m; i++)
+					norder[i] = i;
+				strSort(center, norder, 0, m, 0);
+
+				float[] tmin = new float[m * dimension];
+				float[] tmax = new float[m * dimension];
+				int[] tstart = new int[m];
+				for (int i = 0; i < m; i++) {
+					System.arraycopy(min, norder[i] * dimension, tmin,
+						i * dimension, dimension);
+					System.arraycopy(max, norder[i] * dimension, tmax,
+						i * dimension, dimension);
+					tstart[i] = start[norder[i]];
+				}
+				min = tmin;
+				max = tmax;
+				start = tstart;
+			}
+
+			nodes[l] = m;
+			mins[l] = min;
+			maxs[l] = max;
+			first[l] = start;
+			cmin = min;
+			cmax = max;
+			n = m;
+		}
+	}
+
+	/**
+	 * Finds the k nearest neighbors (euclidean distance) of q. The ids and
+	 * distances are written to resultIds and resultDists in ascending order
+	 * of the distance.
+	 *
+	 * @return the number of neighbors found, min(k, size)
+	 */
+	public int kNNQuery(float[] q, int k, int[] resultIds,
+		double[] resultDists) {
+		if (k < 1)
+			throw new IllegalArgumentException("At least one enumeration has to be requested!");
+		if (size == 0)
+			return 0;
+
+		allocate(1, k);
+		KNNHeap heap = heaps[0];
+		pqSize = 0;
+		double kth = Double.POSITIVE_INFINITY;
+
+		pqPush(0, height - 1, 0);
+		while (pqSize > 0) {
+			double key = pqKey[0];
+			if (key > kth)
+				break;
+			int l = pqLevel[0];
+			int node = pqNode[0];
+			pqPop();
+
+			int s = first[l][node];
+			if (l == 0) {
+				int e = Math.min(size, s + capacity);
+				for (int c = s; c < e; c++) {
+					double dist = distSq(q, 0, coords, c);
+					if (dist <= kth) {
+						heap.add(ids[c], dist);
+						kth = heap.kthDistance();
+					}
+				}
+			} else {
+				int e = Math.min(nodes[l - 1], s + capacity);
+				for (int c = s; c < e; c++) {
+					double dist = minDistSq(q, 0, mins[l - 1], maxs[l - 1], c);
+					if (dist <= kth)
+						pqPush(dist, l - 1, c);
+				}
+			}
+		}
+
+		return drain(heap, resultIds, resultDists, 0);
+	}
+
+	/**
+	 * Finds the k nearest neighbors of a block of count query objects, which
+	 * are stored one after another in q. The tree is traversed once for the
+	 * whole block: subtrees farther from the MBR of the block than the
+	 * largest current k-th distance are pruned, and a leaf is only scanned
+	 * for the queries it can still improve. The block should be spatially
+	 * compact, e.g. consecutive objects in Z-order.
+	 *
+	 * The neighbors of query j are written to resultIds and resultDists
+	 * starting at j * k in ascending order of the distance, found[j] holds
+	 * their number.
+	 */
+	public void kNNQuery(float[] q, int count, int k, int[] found,
+		int[] resultIds, double[] resultDists) {
+		if (k < 1)
+			throw new IllegalArgumentException("At least one enumeration has to be requested!");
+		allocate(count, k);
+
+		if (size > 0 && count > 0) {
+			float[] qmin = new float[dimension];
+			float[] qmax = new float[dimension];
+			System.arraycopy(q, 0, qmin, 0, dimension);
+			System.arraycopy(q, 0, qmax, 0, dimension);
+			for (int j = 1; j < count; j++) {
+				for (int d = 0; d < dimension; d++) {
+					float v = q[j * dimension + d];
+					if (v < qmin[d])
+						qmin[d] = v;
+					if (v > qmax[d])
+						qmax[d] = v;
+				}
+			}
+			batchNN(height - 1, 0, q, count, k, qmin, qmax);
+		}
+
+		for (int j = 0; j < count; j++)
+			found[j] = drain(heaps[j], resultIds, resultDists, j * k);
+	}
+
+	private void batchNN(int l, int node, float[] q, int count, int k,
+		float[] qmin, float[] qmax) {
+		int s = first[l][node];
+		if (l == 0) {
+			int e = Math.min(size, s + capacity);
+			for (int j = 0; j < count; j++) {
+				KNNHeap heap = heaps[j];
+				double kth = heap.kthDistance();
+				int qo = j * dimension;
+				// Skip the leaf if it cannot improve the knns of q
+				if (minDistSq(q, qo, mins[0], maxs[0], node) > kth)
+					continue;
+				for (int c = s; c < e; c++) {
+					double dist = distSq(q, qo, coords, c);
+					if (dist <= kth) {
+						heap.add(ids[c], dist);
+						kth = heap.kthDistance();
+					}
+				}
+			}
+			return;
+		}
+
+		// Visit the children in ascending distance to the block
+		int e = Math.min(nodes[l - 1], s + capacity);
+		double[] dist = childDist[l - 1];
+		int[] idx = childIdx[l - 1];
+		int n = 0;
+		for (int c = s; c < e; c++) {
+			double d = minDistSq(qmin, qmax, mins[l - 1], maxs[l - 1], c);
+			int i = n++;
+			while (i > 0 && dist[i - 1] > d) {
+				dist[i] = dist[i - 1];
+				idx[i] = idx[i - 1];
+				i--;
+			}
+			dist[i] = d;
+			idx[i] = c;
+		}
+
+		for (int i = 0; i < n; i++) {
+			// The largest k-th distance of the block bounds all its queries
+			double bound = 0;
+			for (int j = 0; j < count && bound < Double.POSITIVE_INFINITY; j++)
+				bound = Math.max(bound, heaps[j].kthDistance());
+			if (dist[i] > bound)
+				break;
+			batchNN(l - 1, idx[i], q, count, k, qmin, qmax);
+		}
+	}
+
+	private void allocate(int count, int k) {
+		if (heaps.length < count) {
+			int n = heaps.length;
+			heaps = Arrays.copyOf(heaps, count);
+			for (int j = n; j < count; j++)
+				heaps[j] = new KNNHeap(k);
+		}
+		for (int j = 0; j < count; j++)
+			heaps[j].reset(k);
+		if (childDist == null) {
+			childDist = new double[height][capacity];
+			childIdx = new int[height][capacity];
+		}
+	}
+
+	private double distSq(float[] q, int qo, float[] c, int i) {
+		int o = i * dimension;
+		double sum = 0;
+		for (int d = 0; d < dimension; d++) {
+			double diff = (double) q[qo + d] - c[o + d];
+			sum += diff * diff;
+		}
+		return sum;
+	}
+
+	private double minDistSq(float[] q, int qo, float[] min, float[] max, 
+		int i) {
+		int o = i * dimension;
+		double sum = 0;
+		for (int d = 0; d < dimension; d++) {
+			double diff;
+			if (q[qo + d] < min[o + d])
+				diff = (double) min[o + d] - q[qo + d];
+			else if (q[qo + d] > max[o + d])
+				diff = (double) q[qo + d] - max[o + d];
+			else
+				continue;
+			sum += diff * diff;
+		}
+		return sum;
+	}
+
+	// Squared distance between the box [qmin, qmax] and the mbr of node i
+	private double minDistSq(float[] qmin, float[] qmax, float[] min, 
+		float[] max, int i) {
+		int o = i * dimension;
+		double sum = 0;
+		for (int d = 0; d < dimension; d++) {
+			double diff;
+			if (qmax[d] < min[o + d])
+				diff = (double) min[o + d] - qmax[d];
+			else if (qmin[d] > max[o + d])
+				diff = (double) qmin[d] - max[o + d];
+			else
+				continue;
+			sum += diff * diff;
+		}
+		return sum;
+	}
+
+	/**
+	 * Sorts order[from, to) by dimension d, cuts it into slabs of whole
+	 * pages and recursively tiles every slab on the next dimension. Slabs
+	 * are multiples of capacity, so pages are consecutive runs of order.
+	 */
+	private void strSort(float[] key, int[] order, int from, int to, int d) {
+		sort(key, order, from, to - 1, d);
+		if (d == dimension - 1)
+			return;
+
+		int pages = (to - from + capacity - 1) / capacity;
+		int slabs = (int) Math.ceil(Math.pow(pages, 1.0 / (dimension - d)));
+		int slabSize = ((pages + slabs - 1) / slabs) * capacity;
+		for (int s = from; s < to; s += slabSize)
+			strSort(key, order, s, Math.min(to, s + slabSize), d + 1);
+	}
+
+	// Quicksort of order[lo..hi] on key[order[i] * dimension + d]
+	private void sort(float[] key, int[] order, int lo, int hi, int d) {
+		while (hi - lo > 16) {
+			int mid = (lo + hi) >>> 1;
+			float a = key[order[lo] * dimension + d];
+			float b = key[order[mid] * dimension + d];
+			float c = key[order[hi] * dimension + d];
+			float pivot = (a < b) ? ((b < c) ? b : ((a < c) ? c : a))
+				: ((a < c) ? a : ((b < c) ? c : b));
+
+			int i = lo, j = hi;
+			while (i <= j) {
+				while (key[order[i] * dimension + d] < pivot) i++;
+				while (key[order[j] * dimension + d] > pivot) j--;
+				if (i <= j) {
+					int t = order[i]; order[i] = order[j]; order[j] = t;
+					i++;
+					j--;
+				}
+			}
+			// Recurse into the smaller part
+			if (j - lo < hi - i) {
+				sort(key, order, lo, j, d);
+				lo = i;
+			} else {
+				sort(key, order, i, hi, d);
+				hi = j;
+			}
+		}
+		for (int i = lo + 1; i <= hi; i++) {
+			int t = order[i];
+			float v = key[t * dimension + d];
+			int j = i - 1;
+			while (j >= lo && key[order[j] * dimension + d] > v) {
+				order[j + 1] = order[j];
+				j--;
+			}
+			order[j + 1] = t;
+		}
+	}
+
+	private void pqPush(double key, int level, int node) {
+		if (pqSize == pqKey.length) {
+			int len = pqKey.length * 2;
+			pqKey = Arrays.copyOf(pqKey, len);
+			pqLevel = Arrays.copyOf(pqLevel, len);
+			pqNode = Arrays.copyOf(pqNode, len);
+		}
+		int i = pqSize++;
+		while (i > 0) {
+			int p = (i - 1) >>> 1;
+			if (pqKey[p] <= key)
+				break;
+			pqKey[i] = pqKey[p];
+			pqLevel[i] = pqLevel[p];
+			pqNode[i] = pqNode[p];
+			i = p;
+		}
+		pqKey[i] = key;
+		pqLevel[i] = level;
+		pqNode[i] = node;
+	}
+
+	private void pqPop() {
+		pqSize--;
+		if (pqSize == 0)
+			return;
+		double key = pqKey[pqSize];
+		int level = pqLevel[pqSize];
+		int node = pqNode[pqSize];
+		int i = 0;
+		while (true) {
+			int c = 2 * i + 1;
+			if (c >= pqSize)
+				break;
+			if (c + 1 < pqSize && pqKey[c + 1] < pqKey[c])
+				c++;
+			if (key <= pqKey[c])
+				break;
+			pqKey[i] = pqKey[c];
+			pqLevel[i] = pqLevel[c];
+			pqNode[i] = pqNode[c];
+			i = c;
+		}
+		pqKey[i] = key;
+		pqLevel[i] = level;
+		pqNode[i] = node;
+	}
+
+	// Empties heap into ids/dists at out in ascending order of the distance
+	private int drain(KNNHeap heap, int[] ids, double[] dists, int out) {
+		int n = heap.drainAscending(ids, dists, out);
+		for (int i = out; i < out + n; i++)
+			dists[i] = Math.sqrt(dists[i]);
+		return n;
+	}
+}
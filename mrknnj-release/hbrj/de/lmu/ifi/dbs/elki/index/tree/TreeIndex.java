@@ -5,15 +5,19 @@ import java.io.File;
 import de.lmu.ifi.dbs.elki.data.DatabaseObject;
 import de.lmu.ifi.dbs.elki.index.Index;
 import de.lmu.ifi.dbs.elki.logging.AbstractLoggable;
+import de.lmu.ifi.dbs.elki.persistent.Cache;
 import de.lmu.ifi.dbs.elki.persistent.LRUCache;
+import de.lmu.ifi.dbs.elki.persistent.MappedPageFile;
 import de.lmu.ifi.dbs.elki.persistent.MemoryPageFile;
 import de.lmu.ifi.dbs.elki.persistent.PageFile;
 import de.lmu.ifi.dbs.elki.persistent.PersistentPageFile;
+import de.lmu.ifi.dbs.elki.persistent.StripedLRUCache;
 import de.lmu.ifi.dbs.elki.utilities.optionhandling.OptionID;
 import de.lmu.ifi.dbs.elki.utilities.optionhandling.constraints.GreaterConstraint;
 import de.lmu.ifi.dbs.elki.utilities.optionhandling.constraints.GreaterEqualConstraint;
 import de.lmu.ifi.dbs.elki.utilities.optionhandling.parameterization.Parameterization;
 import de.lmu.ifi.dbs.elki.utilities.optionhandling.parameters.FileParameter;
+import de.lmu.ifi.dbs.elki.utilities.optionhandling.parameters.Flag;
 import de.lmu.ifi.dbs.elki.utilities.optionhandling.parameters.IntParameter;
 import de.lmu.ifi.dbs.elki.utilities.optionhandling.parameters.LongParameter;
 
@@ -90,6 +94,42 @@ public abstract class TreeIndex<O extends DatabaseObject, N extends Node<N, E>,
    */
   protected long cacheSize;
 
+  /**
+   * OptionID for {@link #MAPPED_FLAG}
+   */
+  public static final OptionID MAPPED_ID = OptionID.getOrCreateOptionID("treeindex.mapped", "Flag to store the index in a memory mapped file with a flat page layout " + "instead of serialized pages, if a file is given.");
+
+  /**
+   * Parameter for a memory mapped page file.
+   * <p>
+   * Key: {@code -treeindex.mapped}
+   * </p>
+   */
+  private final Flag MAPPED_FLAG = new Flag(MAPPED_ID);
+
+  /**
+   * Holds the value of {@link #MAPPED_FLAG}.
+   */
+  protected boolean mapped;
+
+  /**
+   * OptionID for {@link #CONCURRENT_FLAG}
+   */
+  public static final OptionID CONCURRENT_ID = OptionID.getOrCreateOptionID("treeindex.concurrent", "Flag to cache the pages in a lock striped cache, " + "for queries of several threads at the same time.");
+
+  /**
+   * Parameter for a page cache for concurrent queries.
+   * <p>
+   * Key: {@code -treeindex.concurrent}
+   * </p>
+   */
+  private final Flag CONCURRENT_FLAG = new Flag(CONCURRENT_ID);
+
+  /**
+   * Holds the value of {@link #CONCURRENT_FLAG}.
+   */
+  protected boolean concurrent;
+
   /**
    * The file storing the entries of this index.
    */
@@ -153,6 +193,14 @@ public abstract class TreeIndex<O extends DatabaseObject, N extends Node<N, E>,
     if(config.grab(CACHE_SIZE_PARAM)) {
       cacheSize = CACHE_SIZE_PARAM.getValue();
     }
+    // mapped file
+    if(config.grab(MAPPED_FLAG)) {
+      mapped = MAPPED_FLAG.getValue();
+    }
+    // concurrent cache
+    if(config.grab(CONCURRENT_FLAG)) {
+      concurrent = CONCURRENT_FLAG.getValue();
+    }
   }
 
   public final long getPhysicalReadAccess() {
@@ -230,7 +278,7 @@ public abstract class TreeIndex<O extends DatabaseObject, N extends Node<N, E>,
 
     // init the file
     TreeIndexHeader header = createHeader();
-    this.file = new PersistentPageFile<N>(header, cacheSize, new LRUCache<N>(), fileName, getNodeClass());
+    this.file = createPageFile(header);
 
     this.dirCapacity = header.getDirCapacity();
     this.leafCapacity = header.getLeafCapacity();
@@ -247,6 +295,32 @@ public abstract class TreeIndex<O extends DatabaseObject, N extends Node<N, E>,
     this.initialized = true;
   }
 
+  /**
+   * Creates the page file for fileName, memory mapped if {@link #MAPPED_FLAG}
+   * is set.
+   * 
+   * @param header the header of the file
+   * @return the page file
+   */
+  private PageFile<N> createPageFile(TreeIndexHeader header) {
+    if(mapped) {
+      return new MappedPageFile<N>(header, cacheSize, createCache(), fileName, getNodeClass());
+    }
+    return new PersistentPageFile<N>(header, cacheSize, createCache(), fileName, getNodeClass());
+  }
+
+  /**
+   * Creates the page cache, lock striped if {@link #CONCURRENT_FLAG} is set.
+   * 
+   * @return the cache of the page file
+   */
+  private Cache<N> createCache() {
+    if(concurrent) {
+      return new StripedLRUCache<N>();
+    }
+    return new LRUCache<N>();
+  }
+
   /**
    * Initializes the index.
    * 
@@ -260,14 +334,14 @@ public abstract class TreeIndex<O extends DatabaseObject, N extends Node<N, E>,
 
     // init the file
     if(fileName == null) {
-      this.file = new MemoryPageFile<N>(pageSize, cacheSize, new LRUCache<N>());
+      this.file = new MemoryPageFile<N>(pageSize, cacheSize, createCache());
     }
     else {
       if(new File(fileName).exists()) {
         initializeFromFile();
       }
       else {
-        this.file = new PersistentPageFile<N>(createHeader(), cacheSize, new LRUCache<N>(), fileName, getNodeClass());
+        this.file = createPageFile(createHeader());
       }
     }
 
@@ -10,6 +10,7 @@ import java.util.Map;
 //import java.math.BigInteger;
 
 import de.lmu.ifi.dbs.elki.logging.Logging;
+import de.lmu.ifi.dbs.elki.math.spacefillingcurves.HilbertCurve;
 import de.lmu.ifi.dbs.elki.math.spacefillingcurves.ZCurve;
 
 /**
@@ -31,6 +32,10 @@ public class BulkSplit<N extends SpatialObject> {
      * ZCurve strategy
      */
     ZCURVE,
+    /**
+     * Hilbert curve strategy
+     */
+    HILBERT,
     /**
      * Max extension strategy
      */
@@ -59,8 +64,8 @@ public class BulkSplit<N extends SpatialObject> {
     if(strategy == Strategy.MAX_EXTENSION) {
       return maximalExtensionPartition(spatialObjects, minEntries, maxEntries);
     }
-    else if(strategy == Strategy.ZCURVE) {
-      return zValuePartition(spatialObjects, minEntries, maxEntries);
+    else if(strategy == Strategy.ZCURVE || strategy == Strategy.HILBERT) {
+      return curvePartition(spatialObjects, minEntries, maxEntries, strategy);
     }
     else {
       throw new IllegalArgumentException("Unknown bulk load strategy!");
@@ -118,14 +123,17 @@ public class BulkSplit<N extends SpatialObject> {
   }
 
   /**
-   * Partitions the spatial objects according to their z-values.
+   * Partitions the spatial objects according to their z-values or Hilbert
+   * values.
    * 
    * @param spatialObjects the spatial objects to be partitioned
    * @param minEntries the minimum number of entries in a partition
    * @param maxEntries the maximum number of entries in a partition
-   * @return A partition of the spatial objects according to their z-values
+   * @param strategy {@link Strategy#ZCURVE} or {@link Strategy#HILBERT}
+   * @return A partition of the spatial objects according to their values on
+   *         the curve
    */
-  private List<List<N>> zValuePartition(List<N> spatialObjects, int minEntries, int maxEntries) {
+  private List<List<N>> curvePartition(List<N> spatialObjects, int minEntries, int maxEntries, Strategy strategy) {
     List<List<N>> partitions = new ArrayList<List<N>>();
     List<N> objects = new ArrayList<N>(spatialObjects);
 
@@ -168,7 +176,7 @@ public class BulkSplit<N extends SpatialObject> {
 
 	/* end 1D case ***************************************************/
 
-    // get z-values
+    // get the values on the curve
     List<double[]> valuesList = new ArrayList<double[]>();
     for(SpatialObject o : spatialObjects) {
       double[] values = new double[o.getDimensionality()];
@@ -180,7 +188,7 @@ public class BulkSplit<N extends SpatialObject> {
     if(logger.isDebugging()) {
       logger.debugFine(valuesList.toString());
     }
-    List<byte[]> zValuesList = ZCurve.zValues(valuesList);
+    List<byte[]> zValuesList = strategy == Strategy.HILBERT ? HilbertCurve.hilbertValues(valuesList) : ZCurve.zValues(valuesList);
 
     // map z-values
     final Map<Integer, byte[]> zValues = new HashMap<Integer, byte[]>();
@@ -190,16 +198,16 @@ public class BulkSplit<N extends SpatialObject> {
       zValues.put(o.getID(), zValue);
     }
 
-    // create a comparator
+    // create a comparator, the values have the least significant byte first
     Comparator<SpatialObject> comparator = new Comparator<SpatialObject>() {
 
       public int compare(SpatialObject o1, SpatialObject o2) {
         byte[] z1 = zValues.get(o1.getID());
-        byte[] z2 = zValues.get(o1.getID());
+        byte[] z2 = zValues.get(o2.getID());
 
-        for(int i = 0; i < z1.length; i++) {
-          byte z1_i = z1[i];
-          byte z2_i = z2[i];
+        for(int i = z1.length - 1; i >= 0; i--) {
+          int z1_i = z1[i] & 0xFF;
+          int z2_i = z2[i] & 0xFF;
           if(z1_i < z2_i) {
             return -1;
           }
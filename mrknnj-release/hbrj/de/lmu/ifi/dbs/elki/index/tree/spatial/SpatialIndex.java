@@ -36,12 +36,12 @@ public abstract class SpatialIndex<O extends NumberVector<O, ?>, N extends Spati
   /**
    * OptionID for {@link #BULK_LOAD_STRATEGY_PARAM}
    */
-  public static final OptionID BULK_LOAD_STRATEGY_ID = OptionID.getOrCreateOptionID("spatial.bulkstrategy", "the strategy for bulk load, available strategies are: [" + BulkSplit.Strategy.MAX_EXTENSION + "| " + BulkSplit.Strategy.ZCURVE + "]" + "(default is " + BulkSplit.Strategy.ZCURVE + ")");
+  public static final OptionID BULK_LOAD_STRATEGY_ID = OptionID.getOrCreateOptionID("spatial.bulkstrategy", "the strategy for bulk load, available strategies are: [" + BulkSplit.Strategy.MAX_EXTENSION + "| " + BulkSplit.Strategy.ZCURVE + "| " + BulkSplit.Strategy.HILBERT + "]" + "(default is " + BulkSplit.Strategy.ZCURVE + ")");
 
   /**
    * Parameter for bulk strategy
    */
-  private final StringParameter BULK_LOAD_STRATEGY_PARAM = new StringParameter(BULK_LOAD_STRATEGY_ID, new EqualStringConstraint(new String[] { BulkSplit.Strategy.MAX_EXTENSION.toString(), BulkSplit.Strategy.ZCURVE.toString() }), BulkSplit.Strategy.ZCURVE.toString());
+  private final StringParameter BULK_LOAD_STRATEGY_PARAM = new StringParameter(BULK_LOAD_STRATEGY_ID, new EqualStringConstraint(new String[] { BulkSplit.Strategy.MAX_EXTENSION.toString(), BulkSplit.Strategy.ZCURVE.toString(), BulkSplit.Strategy.HILBERT.toString() }), BulkSplit.Strategy.ZCURVE.toString());
 
   /**
    * If true, a bulk load will be performed.
@@ -64,8 +64,9 @@ public abstract class SpatialIndex<O extends NumberVector<O, ?>, N extends Spati
     if (config.grab(BULK_LOAD_FLAG)) {
       bulk = BULK_LOAD_FLAG.getValue();
     }
-    config.grab(BULK_LOAD_STRATEGY_PARAM);
-    if(bulk) {
+    // the strategy is also used by the bulk load from a sorted file, which
+    // does not need the bulk flag
+    if(config.grab(BULK_LOAD_STRATEGY_PARAM)) {
       String strategy = BULK_LOAD_STRATEGY_PARAM.getValue();
 
       if(strategy.equals(BulkSplit.Strategy.MAX_EXTENSION.toString())) {
@@ -74,6 +75,9 @@ public abstract class SpatialIndex<O extends NumberVector<O, ?>, N extends Spati
       else if(strategy.equals(BulkSplit.Strategy.ZCURVE.toString())) {
         bulkLoadStrategy = BulkSplit.Strategy.ZCURVE;
       }
+      else if(strategy.equals(BulkSplit.Strategy.HILBERT.toString())) {
+        bulkLoadStrategy = BulkSplit.Strategy.HILBERT;
+      }
       else {
         config.reportError(new WrongParameterValueException(BULK_LOAD_STRATEGY_PARAM, strategy));
       }
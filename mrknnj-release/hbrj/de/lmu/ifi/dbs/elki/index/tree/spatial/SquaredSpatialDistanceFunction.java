@@ -0,0 +1,68 @@
+package de.lmu.ifi.dbs.elki.index.tree.spatial;
+
+import de.lmu.ifi.dbs.elki.data.FeatureVector;
+import de.lmu.ifi.dbs.elki.distance.Distance;
+
+/**
+ * A spatial distance function that is a monotone transformation of a sum of
+ * squared differences, e.g. the Euclidean distance. It offers primitive
+ * versions of the distances that are needed for pruning in spatial indexes,
+ * on the squared values and without creating objects, so that a distance
+ * object (and the square root) is only computed for the final results by
+ * {@link #fromSquared(double)}.
+ *
+ * All methods take 0-based double arrays, while {@link SpatialComparable}
+ * uses 1-based dimensions.
+ *
+ * @param <V> the type of FeatureVector to compute the distances in between
+ * @param <D> distance type
+ */
+public interface SquaredSpatialDistanceFunction<V extends FeatureVector<V, ?>, D extends Distance<D>> extends SpatialDistanceFunction<V, D> {
+  /**
+   * Computes the squared distance between the given values.
+   *
+   * @param v1 the values of the first object
+   * @param v2 the values of the second object
+   * @return the squared distance
+   */
+  double distSq(double[] v1, double[] v2);
+
+  /**
+   * Computes the squared minimum distance between the box [min, max] and q.
+   *
+   * @param min the minimum values of the box
+   * @param max the maximum values of the box
+   * @param q the values of the query object
+   * @return the squared minimum distance
+   */
+  double minDistSq(double[] min, double[] max, double[] q);
+
+  /**
+   * Computes the squared minimum distance between the given MBR and q.
+   *
+   * @param mbr the MBR, e.g. an entry of a spatial index
+   * @param q the values of the query object
+   * @return the squared minimum distance
+   */
+  double minDistSq(SpatialComparable mbr, double[] q);
+
+  /**
+   * Computes the squared minimum distance between the given MBR and the box
+   * [min, max], which is 0 if they intersect.
+   *
+   * @param mbr the MBR, e.g. an entry of a spatial index
+   * @param min the minimum values of the box
+   * @param max the maximum values of the box
+   * @return the squared minimum distance
+   */
+  double minDistSq(SpatialComparable mbr, double[] min, double[] max);
+
+  /**
+   * Returns the distance object for a squared distance as computed by the
+   * methods above.
+   *
+   * @param distSq the squared distance
+   * @return the distance
+   */
+  D fromSquared(double distSq);
+}
@@ -3,6 +3,7 @@ package de.lmu.ifi.dbs.elki.index.tree.spatial.rstarvariants;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -30,7 +31,9 @@ import de.lmu.ifi.dbs.elki.index.tree.spatial.SpatialDistanceFunction;
 import de.lmu.ifi.dbs.elki.index.tree.spatial.SpatialEntry;
 import de.lmu.ifi.dbs.elki.index.tree.spatial.SpatialIndex;
 import de.lmu.ifi.dbs.elki.index.tree.spatial.SpatialLeafEntry;
+import de.lmu.ifi.dbs.elki.index.tree.spatial.SquaredSpatialDistanceFunction;
 import de.lmu.ifi.dbs.elki.index.tree.spatial.rstarvariants.util.Enlargement;
+import de.lmu.ifi.dbs.elki.persistent.MappedPageFile;
 import de.lmu.ifi.dbs.elki.utilities.ExceptionMessages;
 import de.lmu.ifi.dbs.elki.utilities.HyperBoundingBox;
 import de.lmu.ifi.dbs.elki.utilities.Identifiable;
@@ -39,6 +42,7 @@ import de.lmu.ifi.dbs.elki.utilities.heap.DefaultHeapNode;
 import de.lmu.ifi.dbs.elki.utilities.heap.DefaultIdentifiable;
 import de.lmu.ifi.dbs.elki.utilities.heap.Heap;
 import de.lmu.ifi.dbs.elki.utilities.heap.HeapNode;
+import de.lmu.ifi.dbs.elki.utilities.heap.KNNHeap;
 import de.lmu.ifi.dbs.elki.utilities.optionhandling.parameterization.Parameterization;
 
 /**
@@ -80,10 +84,17 @@ public abstract class AbstractRStarTree<O extends NumberVector<O, ?>, N extends
   protected int height;
 
   /**
-   * For counting the number of distance computations.
+   * For counting the number of distance computations. The block queries on
+   * a MappedPageFile run in several threads and are not counted.
    */
   public int distanceCalcs = 0;
 
+  /**
+   * False if nodes have been changed since the last sync of a
+   * MappedPageFile, so that the mapped pages may be outdated.
+   */
+  private transient boolean mappedSynced = true;
+
   /**
    * Inserts the specified reel vector object into this index.
    * 
@@ -99,6 +110,7 @@ public abstract class AbstractRStarTree<O extends NumberVector<O, ?>, N extends
     }
 
     reinsertions.clear();
+    mappedSynced = false;
 
     E entry = createNewLeafEntry(object);
     preInsert(entry);
@@ -142,6 +154,7 @@ public abstract class AbstractRStarTree<O extends NumberVector<O, ?>, N extends
         insert(object);
       }
     }
+    syncMappedFile();
 
     if(extraIntegrityChecks) {
       getRoot().integrityCheck();
@@ -204,6 +217,7 @@ public abstract class AbstractRStarTree<O extends NumberVector<O, ?>, N extends
     if(logger.isDebugging()) {
       logger.debugFine("delete " + object.getID() + "\n");
     }
+    mappedSynced = false;
 
     // find the leaf node containing o
     double[] values = getValues(object);
@@ -366,6 +380,106 @@ public abstract class AbstractRStarTree<O extends NumberVector<O, ?>, N extends
     return result;
   }
 
+  /**
+   * Performs a k-nearest neighbor query for a block of query objects. Instead
+   * of one search per object, the tree is traversed once for the whole block
+   * and subtrees are pruned with the distance to the MBR of the block. The
+   * block should be spatially compact (e.g. consecutive objects in Z-order)
+   * for the pruning to be effective. The query results are in the order of
+   * the query objects and each result is in ascending order to the distance
+   * to its query object.
+   * 
+   * On a MappedPageFile with a squared distance function, the tree is only
+   * read, so blocks can be queried from several threads as long as the tree
+   * is not changed meanwhile. {@link #distanceCalcs} is not counted then.
+   * 
+   * @param objects the query objects
+   * @param k the number of nearest neighbors to be returned
+   * @param distanceFunction the distance function that computes the distances
+   *        between the objects
+   * @return a List of the query results
+   */
+  public <D extends Distance<D>> List<List<DistanceResultPair<D>>> bulkKNNQuery(List<O> objects, int k, SpatialDistanceFunction<O, D> distanceFunction) {
+    if(k < 1) {
+      throw new IllegalArgumentException("At least one enumeration has to be requested!");
+    }
+
+    if(distanceFunction instanceof SquaredSpatialDistanceFunction) {
+      return bulkSquaredKNNQuery(objects, k, (SquaredSpatialDistanceFunction<O, D>) distanceFunction);
+    }
+
+    final List<KNNList<D>> knnLists = new ArrayList<KNNList<D>>(objects.size());
+    for(int i = 0; i < objects.size(); i++) {
+      knnLists.add(new KNNList<D>(k, distanceFunction.infiniteDistance()));
+    }
+
+    if(!objects.isEmpty()) {
+      double[] min = getValues(objects.get(0));
+      double[] max = min.clone();
+      for(O object : objects) {
+        for(int d = 0; d < min.length; d++) {
+          double v = object.doubleValue(d + 1);
+          min[d] = Math.min(min[d], v);
+          max[d] = Math.max(max[d], v);
+        }
+      }
+      batchNN(getRoot(), null, objects, new HyperBoundingBox(min, max), distanceFunction, knnLists);
+    }
+
+    List<List<DistanceResultPair<D>>> result = new ArrayList<List<DistanceResultPair<D>>>(objects.size());
+    for(KNNList<D> knnList : knnLists) {
+      result.add(knnList.toList());
+    }
+    return result;
+  }
+
+  /**
+   * bulkKNNQuery on squared distances, see batchSquaredNN.
+   */
+  private <D extends Distance<D>> List<List<DistanceResultPair<D>>> bulkSquaredKNNQuery(List<O> objects, int k, SquaredSpatialDistanceFunction<O, D> distanceFunction) {
+    int size = objects.size();
+    double[][] queries = new double[size][];
+    KNNHeap[] heaps = new KNNHeap[size];
+    double[] min = null;
+    double[] max = null;
+    for(int j = 0; j < size; j++) {
+      queries[j] = getValues(objects.get(j));
+      heaps[j] = new KNNHeap(k);
+      if(j == 0) {
+        min = queries[0].clone();
+        max = queries[0].clone();
+      }
+      for(int d = 0; d < min.length; d++) {
+        min[d] = Math.min(min[d], queries[j][d]);
+        max[d] = Math.max(max[d], queries[j][d]);
+      }
+    }
+    if(size > 0) {
+      MappedPageFile<N> mappedFile = getMappedFile();
+      if(mappedFile != null) {
+        // the leaf buffer is local, so that blocks can be queried concurrently
+        double[] leafValues = new double[leafCapacity * min.length];
+        batchFlatSquaredNN(mappedFile, getRootEntry().getID(), null, 0, queries, min, max, heaps, leafValues);
+      }
+      else {
+        batchSquaredNN(getRoot(), null, queries, min, max, distanceFunction, heaps);
+      }
+    }
+
+    List<List<DistanceResultPair<D>>> result = new ArrayList<List<DistanceResultPair<D>>>(size);
+    int[] ids = new int[k];
+    double[] dists = new double[k];
+    for(KNNHeap heap : heaps) {
+      int n = heap.drainAscending(ids, dists);
+      List<DistanceResultPair<D>> list = new ArrayList<DistanceResultPair<D>>(n);
+      for(int i = 0; i < n; i++) {
+        list.add(new DistanceResultPair<D>(distanceFunction.fromSquared(dists[i]), ids[i]));
+      }
+      result.add(list);
+    }
+    return result;
+  }
+
   /**
    * Performs a reverse k-nearest neighbor query for the given object ID. The
    * query result is in ascending order to the distance to the query object.
@@ -521,6 +635,13 @@ public abstract class AbstractRStarTree<O extends NumberVector<O, ?>, N extends
       throw new AbortException("Error determining page sizes.", e);
     }
 
+    if(mapped && getFileName() != null) {
+      // the flat layout of MappedPageFile is smaller, after the page marker
+      int space = pageSize - MappedPageFile.MARKER_SIZE - AbstractRStarTreeNode.FLAT_HEADER_SIZE;
+      leafCapacity = space / AbstractRStarTreeNode.flatEntrySize(true, object.getDimensionality());
+      dirCapacity = space / AbstractRStarTreeNode.flatEntrySize(false, object.getDimensionality());
+    }
+
     if(dirCapacity <= 1) {
       throw new IllegalArgumentException("Node size of " + pageSize + " Bytes is chosen too small!");
     }
@@ -566,6 +687,10 @@ public abstract class AbstractRStarTree<O extends NumberVector<O, ?>, N extends
    */
   @SuppressWarnings("unchecked")
   protected <D extends Distance<D>> void doKNNQuery(Object object, SpatialDistanceFunction<O, D> distanceFunction, KNNList<D> knnList) {
+    if(distanceFunction instanceof SquaredSpatialDistanceFunction && !(object instanceof Integer)) {
+      doSquaredKNNQuery(getValues((O) object), (SquaredSpatialDistanceFunction<O, D>) distanceFunction, knnList);
+      return;
+    }
 
     // variables
     final Heap<D, Identifiable> pq = new DefaultHeap<D, Identifiable>();
@@ -609,6 +734,84 @@ public abstract class AbstractRStarTree<O extends NumberVector<O, ?>, N extends
     }
   }
 
+  /**
+   * k-nearest neighbor query on squared distances. The candidates are kept in
+   * a bounded KNNHeap and the nodes to visit in a second KNNHeap on negated
+   * distances, so no distance or heap node objects are created during the
+   * search. The heaps are local to the query.
+   * 
+   * @param values the values of the query object
+   * @param distanceFunction the distance function
+   * @param knnList the knn list containing the result
+   */
+  private <D extends Distance<D>> void doSquaredKNNQuery(double[] values, SquaredSpatialDistanceFunction<O, D> distanceFunction, KNNList<D> knnList) {
+    KNNHeap knnHeap = new KNNHeap(knnList.getK());
+    KNNHeap nodeHeap = new KNNHeap(Integer.MAX_VALUE);
+
+    // push root
+    nodeHeap.add(getRootEntry().getID(), -0.0);
+
+    // search in tree
+    MappedPageFile<N> mappedFile = getMappedFile();
+    while(!nodeHeap.isEmpty()) {
+      double minDist = -nodeHeap.peekDistance();
+      int nodeID = nodeHeap.peekId();
+      nodeHeap.poll();
+
+      if(minDist > knnHeap.kthDistance()) {
+        break;
+      }
+
+      if(mappedFile != null) {
+        // read the entries from the mapped page
+        ByteBuffer buffer = mappedFile.getPageBuffer(nodeID);
+        int offset = mappedFile.getPageOffset(nodeID);
+        boolean isLeaf = AbstractRStarTreeNode.flatIsLeaf(buffer, offset);
+        int numEntries = AbstractRStarTreeNode.flatNumEntries(buffer, offset);
+        int dim = AbstractRStarTreeNode.flatDimensionality(buffer, offset);
+        int valueSize = AbstractRStarTreeNode.flatValueSize(isLeaf, dim);
+        int valueOffset = offset + AbstractRStarTreeNode.FLAT_HEADER_SIZE;
+        int idOffset = valueOffset + numEntries * valueSize;
+        for(int i = 0; i < numEntries; i++, valueOffset += valueSize) {
+          double distance = AbstractRStarTreeNode.flatMinDistSq(buffer, valueOffset, isLeaf, dim, values);
+          distanceCalcs++;
+          if(distance <= knnHeap.kthDistance()) {
+            if(isLeaf) {
+              knnHeap.add(buffer.getInt(idOffset + 4 * i), distance);
+            }
+            else {
+              nodeHeap.add(buffer.getInt(idOffset + 4 * i), -distance);
+            }
+          }
+        }
+        continue;
+      }
+
+      N node = getNode(nodeID);
+      boolean isLeaf = node.isLeaf();
+      for(int i = 0; i < node.getNumEntries(); i++) {
+        E entry = node.getEntry(i);
+        double distance = distanceFunction.minDistSq(entry, values);
+        distanceCalcs++;
+        if(distance <= knnHeap.kthDistance()) {
+          if(isLeaf) {
+            knnHeap.add(entry.getID(), distance);
+          }
+          else {
+            nodeHeap.add(entry.getID(), -distance);
+          }
+        }
+      }
+    }
+
+    int[] ids = new int[knnHeap.size()];
+    double[] dists = new double[knnHeap.size()];
+    int n = knnHeap.drainAscending(ids, dists);
+    for(int i = 0; i < n; i++) {
+      knnList.add(new DistanceResultPair<D>(distanceFunction.fromSquared(dists[i]), ids[i]));
+    }
+  }
+
   /**
    * Performs a batch knn query.
    * 
@@ -650,6 +853,228 @@ public abstract class AbstractRStarTree<O extends NumberVector<O, ?>, N extends
     }
   }
 
+  /**
+   * Performs a batch knn query for a block of query objects.
+   * 
+   * @param node the node for which the query should be performed
+   * @param nodeMBR the mbr of the node, null for the root
+   * @param objects the query objects
+   * @param queryMBR the mbr of the query objects
+   * @param distanceFunction the distance function for computing the distances
+   * @param knnLists the knn lists of the query objects, in the same order
+   */
+  protected <D extends Distance<D>> void batchNN(N node, HyperBoundingBox nodeMBR, List<O> objects, HyperBoundingBox queryMBR, SpatialDistanceFunction<O, D> distanceFunction, List<KNNList<D>> knnLists) {
+    if(node.isLeaf()) {
+      for(int j = 0; j < objects.size(); j++) {
+        O q = objects.get(j);
+        KNNList<D> knns_q = knnLists.get(j);
+        D knn_q_maxDist = knns_q.getKNNDistance();
+
+        // skip the whole page if it cannot improve the knns of q
+        if(nodeMBR != null && distanceFunction.minDist(nodeMBR, q).compareTo(knn_q_maxDist) > 0) {
+          continue;
+        }
+        for(int i = 0; i < node.getNumEntries(); i++) {
+          E p = node.getEntry(i);
+          D dist_pq = distanceFunction.minDist(p.getMBR(), q);
+          distanceCalcs++;
+          if(dist_pq.compareTo(knn_q_maxDist) <= 0) {
+            knns_q.add(new DistanceResultPair<D>(dist_pq, p.getID()));
+            knn_q_maxDist = knns_q.getKNNDistance();
+          }
+        }
+      }
+    }
+    else {
+      List<DistanceEntry<D, E>> entries = new ArrayList<DistanceEntry<D, E>>(node.getNumEntries());
+      for(int i = 0; i < node.getNumEntries(); i++) {
+        E entry = node.getEntry(i);
+        entries.add(new DistanceEntry<D, E>(entry, distanceFunction.distance(entry.getMBR(), queryMBR), i));
+      }
+      Collections.sort(entries);
+
+      for(DistanceEntry<D, E> distEntry : entries) {
+        // the largest knn distance of the block bounds all its queries
+        D maxDist = distanceFunction.nullDistance();
+        for(KNNList<D> knns_q : knnLists) {
+          maxDist = DistanceUtil.max(maxDist, knns_q.getKNNDistance());
+        }
+        if(distEntry.getDistance().compareTo(maxDist) > 0) {
+          break;
+        }
+        E entry = distEntry.getEntry();
+        batchNN(getNode(entry), entry.getMBR(), objects, queryMBR, distanceFunction, knnLists);
+      }
+    }
+  }
+
+  /**
+   * Performs a batch knn query for a block of query objects on squared
+   * distances, like batchNN but without creating distance objects.
+   * 
+   * @param node the node for which the query should be performed
+   * @param nodeEntry the entry pointing to node, null for the root
+   * @param queries the values of the query objects
+   * @param min the minimum values of the query objects
+   * @param max the maximum values of the query objects
+   * @param distanceFunction the distance function for computing the distances
+   * @param heaps the knn heaps of the query objects, in the same order
+   */
+  protected <D extends Distance<D>> void batchSquaredNN(N node, E nodeEntry, double[][] queries, double[] min, double[] max, SquaredSpatialDistanceFunction<O, D> distanceFunction, KNNHeap[] heaps) {
+    if(node.isLeaf()) {
+      for(int j = 0; j < queries.length; j++) {
+        double[] q = queries[j];
+        KNNHeap heap = heaps[j];
+
+        // skip the whole page if it cannot improve the knns of q
+        if(nodeEntry != null && distanceFunction.minDistSq(nodeEntry, q) > heap.kthDistance()) {
+          continue;
+        }
+        for(int i = 0; i < node.getNumEntries(); i++) {
+          E p = node.getEntry(i);
+          double dist_pq = distanceFunction.minDistSq(p, q);
+          distanceCalcs++;
+          if(dist_pq <= heap.kthDistance()) {
+            heap.add(p.getID(), dist_pq);
+          }
+        }
+      }
+    }
+    else {
+      int n = node.getNumEntries();
+      double[] dists = new double[n];
+      int[] order = new int[n];
+      for(int i = 0; i < n; i++) {
+        dists[i] = distanceFunction.minDistSq(node.getEntry(i), min, max);
+        // insertion sort on the distance, a node has few entries
+        int j = i;
+        while(j > 0 && dists[order[j - 1]] > dists[i]) {
+          order[j] = order[j - 1];
+          j--;
+        }
+        order[j] = i;
+      }
+
+      for(int i = 0; i < n; i++) {
+        // the largest knn distance of the block bounds all its queries
+        double maxDist = 0;
+        for(KNNHeap heap : heaps) {
+          maxDist = Math.max(maxDist, heap.kthDistance());
+        }
+        if(dists[order[i]] > maxDist) {
+          break;
+        }
+        E entry = node.getEntry(order[i]);
+        batchSquaredNN(getNode(entry), entry, queries, min, max, distanceFunction, heaps);
+      }
+    }
+  }
+
+  /**
+   * Like batchSquaredNN, but reads the nodes from the mapped pages of
+   * mappedFile without creating node objects. The squared distances are
+   * computed directly on the mapped values. Blocks are queried concurrently
+   * on this path, so it does not count {@link #distanceCalcs}.
+   * 
+   * @param mappedFile the file storing the nodes
+   * @param nodeID the id of the node for which the query should be performed
+   * @param parentBuffer the buffer of the parent node, null for the root
+   * @param valueOffset the offset of the values of the entry pointing to the
+   *        node in parentBuffer
+   * @param queries the values of the query objects
+   * @param min the minimum values of the query objects
+   * @param max the maximum values of the query objects
+   * @param heaps the knn heaps of the query objects, in the same order
+   * @param leafValues buffer for the values of a leaf
+   */
+  protected void batchFlatSquaredNN(MappedPageFile<N> mappedFile, int nodeID, ByteBuffer parentBuffer, int valueOffset, double[][] queries, double[] min, double[] max, KNNHeap[] heaps, double[] leafValues) {
+    ByteBuffer buffer = mappedFile.getPageBuffer(nodeID);
+    int offset = mappedFile.getPageOffset(nodeID);
+    int n = AbstractRStarTreeNode.flatNumEntries(buffer, offset);
+    int dim = AbstractRStarTreeNode.flatDimensionality(buffer, offset);
+    int first = offset + AbstractRStarTreeNode.FLAT_HEADER_SIZE;
+    if(AbstractRStarTreeNode.flatIsLeaf(buffer, offset)) {
+      int idOffset = first + n * AbstractRStarTreeNode.flatValueSize(true, dim);
+      if(leafValues.length < n * dim) {
+        leafValues = new double[n * dim];
+      }
+      // the leaf is scanned for every query of the block
+      AbstractRStarTreeNode.flatGetValues(buffer, offset, leafValues);
+      for(int j = 0; j < queries.length; j++) {
+        double[] q = queries[j];
+        KNNHeap heap = heaps[j];
+
+        // skip the whole page if it cannot improve the knns of q
+        if(parentBuffer != null && AbstractRStarTreeNode.flatMinDistSq(parentBuffer, valueOffset, false, dim, q) > heap.kthDistance()) {
+          continue;
+        }
+        for(int i = 0, p = 0; i < n; i++) {
+          double dist_pq = 0;
+          for(int d = 0; d < dim; d++, p++) {
+            double diff = q[d] - leafValues[p];
+            dist_pq += diff * diff;
+          }
+          if(dist_pq <= heap.kthDistance()) {
+            heap.add(buffer.getInt(idOffset + 4 * i), dist_pq);
+          }
+        }
+      }
+    }
+    else {
+      int valueSize = AbstractRStarTreeNode.flatValueSize(false, dim);
+      int idOffset = first + n * valueSize;
+      double[] dists = new double[n];
+      int[] order = new int[n];
+      for(int i = 0; i < n; i++) {
+        dists[i] = AbstractRStarTreeNode.flatMinDistSq(buffer, first + i * valueSize, false, dim, min, max);
+        // insertion sort on the distance, a node has few entries
+        int j = i;
+        while(j > 0 && dists[order[j - 1]] > dists[i]) {
+          order[j] = order[j - 1];
+          j--;
+        }
+        order[j] = i;
+      }
+
+      for(int i = 0; i < n; i++) {
+        // the largest knn distance of the block bounds all its queries
+        double maxDist = 0;
+        for(KNNHeap heap : heaps) {
+          maxDist = Math.max(maxDist, heap.kthDistance());
+        }
+        if(dists[order[i]] > maxDist) {
+          break;
+        }
+        batchFlatSquaredNN(mappedFile, buffer.getInt(idOffset + 4 * order[i]), buffer, first + order[i] * valueSize, queries, min, max, heaps, leafValues);
+      }
+    }
+  }
+
+  /**
+   * Writes the cached nodes to the file if it is a MappedPageFile, so that
+   * queries can read the mapped pages. Called once at the end of a build or
+   * bulk load.
+   */
+  protected void syncMappedFile() {
+    if(file instanceof MappedPageFile) {
+      ((MappedPageFile<N>) file).sync();
+    }
+    mappedSynced = true;
+  }
+
+  /**
+   * Returns the file of this index if it is a MappedPageFile which is in
+   * sync with the nodes, and null otherwise.
+   * 
+   * @return the mapped file or null
+   */
+  private MappedPageFile<N> getMappedFile() {
+    if(!mappedSynced || !(file instanceof MappedPageFile)) {
+      return null;
+    }
+    return (MappedPageFile<N>) file;
+  }
+
   /**
    * Returns the path to the leaf entry in the specified subtree that represents
    * the data object with the specified mbr and id.
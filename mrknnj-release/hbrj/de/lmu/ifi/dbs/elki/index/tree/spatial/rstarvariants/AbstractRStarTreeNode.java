@@ -3,6 +3,7 @@ package de.lmu.ifi.dbs.elki.index.tree.spatial.rstarvariants;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.logging.Logger;
 
@@ -14,6 +15,7 @@ import de.lmu.ifi.dbs.elki.index.tree.spatial.SpatialEntry;
 import de.lmu.ifi.dbs.elki.index.tree.spatial.SpatialLeafEntry;
 import de.lmu.ifi.dbs.elki.index.tree.spatial.SpatialNode;
 import de.lmu.ifi.dbs.elki.logging.LoggingConfiguration;
+import de.lmu.ifi.dbs.elki.persistent.FlatPage;
 import de.lmu.ifi.dbs.elki.persistent.PageFile;
 import de.lmu.ifi.dbs.elki.utilities.HyperBoundingBox;
 
@@ -24,7 +26,16 @@ import de.lmu.ifi.dbs.elki.utilities.HyperBoundingBox;
  * @param <N> Node type
  * @param <E> Entry type
  */
-public abstract class AbstractRStarTreeNode<N extends AbstractRStarTreeNode<N, E>, E extends SpatialEntry> extends AbstractNode<N, E> implements SpatialNode<N, E> {
+public abstract class AbstractRStarTreeNode<N extends AbstractRStarTreeNode<N, E>, E extends SpatialEntry> extends AbstractNode<N, E> implements SpatialNode<N, E>, FlatPage<N> {
+  /**
+   * Size of the header of the flat layout: id, isLeaf, numEntries, capacity
+   * and dimensionality as ints, padded to 8 bytes. The values of the entries
+   * follow as packed doubles, dim values per entry in a leaf and dim minimum
+   * then dim maximum values per entry in a directory node, and then the ids of
+   * the entries as ints.
+   */
+  public static final int FLAT_HEADER_SIZE = 24;
+
   /**
    * Empty constructor for Externalizable interface.
    */
@@ -312,6 +323,244 @@ public abstract class AbstractRStarTreeNode<N extends AbstractRStarTreeNode<N, E
 
   }
 
+  /**
+   * Returns the size of the values of an entry in the flat layout.
+   * 
+   * @param isLeaf whether the entry is in a leaf node
+   * @param dim the dimensionality
+   * @return the size in bytes
+   */
+  public static int flatValueSize(boolean isLeaf, int dim) {
+    return (isLeaf ? 8 : 16) * dim;
+  }
+
+  /**
+   * Returns the size of an entry in the flat layout, its values and id.
+   * 
+   * @param isLeaf whether the entry is in a leaf node
+   * @param dim the dimensionality
+   * @return the size in bytes
+   */
+  public static int flatEntrySize(boolean isLeaf, int dim) {
+    return flatValueSize(isLeaf, dim) + 4;
+  }
+
+  public int getFlatSize() {
+    int dim = numEntries > 0 ? entries[0].getDimensionality() : 0;
+    return FLAT_HEADER_SIZE + numEntries * flatEntrySize(isLeaf, dim);
+  }
+
+  /**
+   * Writes the id, the header fields and the entries in the flat layout.
+   */
+  public void writeFlat(ByteBuffer buffer, int offset) {
+    int dim = numEntries > 0 ? entries[0].getDimensionality() : 0;
+    buffer.putInt(offset, getID());
+    buffer.putInt(offset + 4, isLeaf ? 1 : 0);
+    buffer.putInt(offset + 8, numEntries);
+    buffer.putInt(offset + 12, entries.length);
+    buffer.putInt(offset + 16, dim);
+    int pos = offset + FLAT_HEADER_SIZE;
+    for(int i = 0; i < numEntries; i++) {
+      E entry = entries[i];
+      for(int d = 1; d <= dim; d++) {
+        buffer.putDouble(pos, entry.getMin(d));
+        pos += 8;
+      }
+      if(!isLeaf) {
+        for(int d = 1; d <= dim; d++) {
+          buffer.putDouble(pos, entry.getMax(d));
+          pos += 8;
+        }
+      }
+    }
+    for(int i = 0; i < numEntries; i++) {
+      buffer.putInt(pos, entries[i].getID());
+      pos += 4;
+    }
+  }
+
+  /**
+   * Restores the node from the flat layout written by
+   * {@link #writeFlat(ByteBuffer, int)}.
+   */
+  @SuppressWarnings("unchecked")
+  public void readFlat(ByteBuffer buffer, int offset) {
+    setID(buffer.getInt(offset));
+    isLeaf = buffer.getInt(offset + 4) != 0;
+    numEntries = buffer.getInt(offset + 8);
+    final int capacity = buffer.getInt(offset + 12);
+    final int dim = buffer.getInt(offset + 16);
+    int pos = offset + FLAT_HEADER_SIZE;
+    int idPos = pos + numEntries * flatValueSize(isLeaf, dim);
+    if(isLeaf) {
+      entries = (E[]) new SpatialLeafEntry[capacity];
+      for(int i = 0; i < numEntries; i++) {
+        double[] values = new double[dim];
+        for(int d = 0; d < dim; d++) {
+          values[d] = buffer.getDouble(pos);
+          pos += 8;
+        }
+        entries[i] = (E) new SpatialLeafEntry(buffer.getInt(idPos + 4 * i), values);
+      }
+    }
+    else {
+      entries = (E[]) new SpatialDirectoryEntry[capacity];
+      for(int i = 0; i < numEntries; i++) {
+        double[] min = new double[dim];
+        double[] max = new double[dim];
+        for(int d = 0; d < dim; d++) {
+          min[d] = buffer.getDouble(pos);
+          pos += 8;
+        }
+        for(int d = 0; d < dim; d++) {
+          max[d] = buffer.getDouble(pos);
+          pos += 8;
+        }
+        entries[i] = (E) new SpatialDirectoryEntry(buffer.getInt(idPos + 4 * i), new HyperBoundingBox(min, max));
+      }
+    }
+  }
+
+  /**
+   * Returns whether the flat node at offset is a leaf.
+   * 
+   * @param buffer the buffer containing the node
+   * @param offset the offset of the node
+   * @return true for a leaf node
+   */
+  public static boolean flatIsLeaf(ByteBuffer buffer, int offset) {
+    return buffer.getInt(offset + 4) != 0;
+  }
+
+  /**
+   * Returns the number of entries of the flat node at offset.
+   * 
+   * @param buffer the buffer containing the node
+   * @param offset the offset of the node
+   * @return the number of entries
+   */
+  public static int flatNumEntries(ByteBuffer buffer, int offset) {
+    return buffer.getInt(offset + 8);
+  }
+
+  /**
+   * Returns the dimensionality of the entries of the flat node at offset.
+   * 
+   * @param buffer the buffer containing the node
+   * @param offset the offset of the node
+   * @return the dimensionality
+   */
+  public static int flatDimensionality(ByteBuffer buffer, int offset) {
+    return buffer.getInt(offset + 16);
+  }
+
+  /**
+   * Returns the offset of the id of the i-th entry of the flat node at offset.
+   * The values of the first entry are at offset + {@link #FLAT_HEADER_SIZE},
+   * the next ones follow every {@link #flatValueSize} bytes.
+   * 
+   * @param buffer the buffer containing the node
+   * @param offset the offset of the node
+   * @param i the index of the entry
+   * @return the offset of the id
+   */
+  public static int flatIdOffset(ByteBuffer buffer, int offset, int i) {
+    int n = flatNumEntries(buffer, offset);
+    return offset + FLAT_HEADER_SIZE + n * flatValueSize(flatIsLeaf(buffer, offset), flatDimensionality(buffer, offset)) + 4 * i;
+  }
+
+  /**
+   * Copies the packed values of all entries of the flat node at offset to
+   * values, flatValueSize / 8 doubles per entry. When a node is scanned for
+   * many queries, one bulk copy is cheaper than reading the doubles from the
+   * buffer again for each query.
+   * 
+   * @param buffer the buffer containing the node
+   * @param offset the offset of the node
+   * @param values the array to copy to
+   * @return the number of doubles copied
+   */
+  public static int flatGetValues(ByteBuffer buffer, int offset, double[] values) {
+    int n = flatNumEntries(buffer, offset) * flatValueSize(flatIsLeaf(buffer, offset), flatDimensionality(buffer, offset)) / 8;
+    ByteBuffer view = buffer.duplicate();
+    view.order(buffer.order());
+    view.position(offset + FLAT_HEADER_SIZE);
+    view.asDoubleBuffer().get(values, 0, n);
+    return n;
+  }
+
+  /**
+   * Computes the squared minimum distance between the values of a flat entry
+   * at valueOffset and q.
+   * 
+   * @param buffer the buffer containing the entry
+   * @param valueOffset the offset of the values of the entry
+   * @param isLeaf whether the entry is in a leaf node
+   * @param dim the dimensionality
+   * @param q the values of the query object
+   * @return the sum of the squared differences
+   */
+  public static double flatMinDistSq(ByteBuffer buffer, int valueOffset, boolean isLeaf, int dim, double[] q) {
+    double sqrDist = 0;
+    if(isLeaf) {
+      for(int d = 0, pos = valueOffset; d < dim; d++, pos += 8) {
+        double diff = q[d] - buffer.getDouble(pos);
+        sqrDist += diff * diff;
+      }
+    }
+    else {
+      for(int d = 0, pos = valueOffset; d < dim; d++, pos += 8) {
+        double v = q[d];
+        double min = buffer.getDouble(pos);
+        double diff = 0;
+        if(v < min) {
+          diff = min - v;
+        }
+        else {
+          double max = buffer.getDouble(pos + 8 * dim);
+          if(v > max) {
+            diff = v - max;
+          }
+        }
+        sqrDist += diff * diff;
+      }
+    }
+    return sqrDist;
+  }
+
+  /**
+   * Computes the squared minimum distance between the values of a flat entry
+   * at valueOffset and the box [min, max].
+   * 
+   * @param buffer the buffer containing the entry
+   * @param valueOffset the offset of the values of the entry
+   * @param isLeaf whether the entry is in a leaf node
+   * @param dim the dimensionality
+   * @param min the minimum values of the box
+   * @param max the maximum values of the box
+   * @return the sum of the squared gaps, 0 if they intersect
+   */
+  public static double flatMinDistSq(ByteBuffer buffer, int valueOffset, boolean isLeaf, int dim, double[] min, double[] max) {
+    int maxOffset = isLeaf ? valueOffset : valueOffset + 8 * dim;
+    double sqrDist = 0;
+    for(int d = 0; d < dim; d++) {
+      double diff = 0;
+      double emin = buffer.getDouble(valueOffset + 8 * d);
+      if(emin > max[d]) {
+        diff = emin - max[d];
+      }
+      else {
+        double emax = buffer.getDouble(maxOffset + 8 * d);
+        if(emax < min[d]) {
+          diff = min[d] - emax;
+        }
+      }
+      sqrDist += diff * diff;
+    }
+    return sqrDist;
+  }
+
   /**
    * Creates a new leaf node with the specified capacity.
    * 
@@ -16,7 +16,9 @@ import de.lmu.ifi.dbs.elki.index.tree.spatial.BulkSplit;
 import de.lmu.ifi.dbs.elki.persistent.PageFile;
 import de.lmu.ifi.dbs.elki.persistent.PersistentPageFile;
 import de.lmu.ifi.dbs.elki.index.Zorder;
-import de.lmu.ifi.dbs.elki.index.ExternalSort;
+import de.lmu.ifi.dbs.elki.index.Hilbert;
+import de.lmu.ifi.dbs.elki.index.BinaryExternalSort;
+import de.lmu.ifi.dbs.elki.utilities.HyperBoundingBox;
 /**
  * Abstract superclass for all non-flat R*-Tree variants.
  * 
@@ -246,330 +248,199 @@ public abstract class NonFlatRStarTree<O extends NumberVector<O, ?>, N extends A
 
   /**
    * Disk based bulk load. The input objects are stored in a file. This
-   * method reads record from the file and create a RStarTree.
+   * method reads record from the file and create a RStarTree. The temporary
+   * files are written next to the input file.
    */
   public void bulkLoad(O sampleObject, String filename, int size,
   boolean sortLeafFile, int dim) throws Exception 
+  {
+    File tmpDir = new File(filename).getAbsoluteFile().getParentFile();
+    bulkLoad(sampleObject, filename, size, sortLeafFile, dim, tmpDir,
+      BinaryExternalSort.DEFAULT_RUN_SIZE, BinaryExternalSort.DEFAULT_THREADS);
+  }
+
+  /**
+   * Disk based bulk load. The input file holds lines "<zorder> <record id>",
+   * sorted on zorder unless sortLeafFile is set. Each level of the tree is
+   * built by packing the sorted entries into nodes; the nodes are passed to
+   * the next level as binary <zorder of the lower left corner of the node
+   * mbr, page id> records, sorted by a BinaryExternalSort.
+   *
+   * With the bulk load strategy {@link BulkSplit.Strategy#HILBERT} the values
+   * of the input file are Hilbert values (see {@link Hilbert}) instead, and the
+   * nodes are ordered on the Hilbert value of the center of their mbr.
+   *
+   * @param tmpDir directory for the temporary files of the sorts
+   * @param runSize records per run of the sorts
+   * @param threads threads sorting and writing runs
+   */
+  public void bulkLoad(O sampleObject, String filename, int size,
+  boolean sortLeafFile, int dim, File tmpDir, int runSize, int threads) throws Exception 
   {
     initialize(sampleObject);
-    int createdNodes = 0;
     int dimension = dim;
+    int words = Zorder.words(dimension);
+    boolean hilbert = bulkLoadStrategy == BulkSplit.Strategy.HILBERT;
 
     // first create an empty root node for the RStarTree
     N root = createNewDirectoryNode(dirCapacity);
     root.setID(getRootEntry().getID());   // set 0 as the root page ID
-    int rootID = file.writePage(root);
- 
-    int numNodes = 0;  // counter for the number of nodes for debuging use
-    //int level = computeLevel(size);
-    int pass = 0;
-    
-    // Create LeafNode
-    String prefix = filename;
-    String suffix = ".sort";
-    String leafFile = null;
-    int block = 256;         // external sort buffer size
-	//System.out.println("block is : " + block);
-
-    if (sortLeafFile) {
-      ExternalSort.externalSort(filename, prefix + suffix, block); 
-      System.gc();
-      leafFile = prefix + suffix;
-    } else
-      leafFile = filename; 
- 
-    ParseLeafFile plf = new ParseLeafFile (leafFile, prefix + pass, dimension, pass, file, sampleObject);
-
-    while(plf.hasNextNode()) {
-      plf.getNextNode();
-      if (plf.endOfFile)
-        break;
-      numNodes++;
-      //Debug information
-/*
-      if (numNodes % 3000 == 0)
-          System.out.println("pass : " + pass + " , total leaf nodes : " 
-                  + numNodes);
-*/
-    }
-
-	//Delete input file for ParseLeafFile
-    File tfile = null;
-   	if (sortLeafFile) {	
-      tfile = new File(prefix + suffix);
-      tfile.delete();
-	}
-    //System.out.println( "leafNodes: " + numNodes );
-    setHeight(1);
-
-    // Repeatly create dirNodes 
-    boolean cont = true;
-    int nodeCount = numNodes;
-    while(cont) {
+    file.writePage(root);
 
-      setHeight(getHeight() + 1);
-      String infile = prefix + pass;   
-      ExternalSort.externalSort(infile, prefix + pass + suffix, block); 
-      System.gc();
-      tfile = new File( infile );
-      tfile.delete();
-
-      pass++;
-
-      ParseDirFile pdf = new ParseDirFile(prefix + (pass-1) + suffix, prefix+pass, dimension, pass, root, file);
-	  // System.out.println("pass " + pass + "node " + nodeCount);
-
-      // root node case
-      if ( nodeCount < dirCapacity ) {
-        pdf.handleRoot = true;
-        cont = false;
-		// System.out.println("root node case");
-      }
- 
-      nodeCount = 0;
-      while(pdf.hasNextNode()) {
-        pdf.getNextNode();
-		if (pdf.endOfFile)
-			break;
-        nodeCount++;
-        numNodes++;
+    BinaryExternalSort leafInput = null;
+    BufferedReader br = null;
+    BinaryExternalSort nodes = new BinaryExternalSort(words, tmpDir, runSize, threads);
+    BinaryExternalSort next = null;
+    try {
+      if (sortLeafFile) {
+        leafInput = new BinaryExternalSort(words, tmpDir, runSize, threads);
+        br = new BufferedReader(new FileReader(filename), 1024 * 1024);
+        long[] z = new long[words];
+        String line;
+        while ((line = br.readLine()) != null) {
+          String[] parts = line.split(" ");
+          leafInput.add(Zorder.fromDecimal(parts[0], dimension, z), Integer.valueOf(parts[1]));
+        }
+        br.close();
+        br = null;
+        leafInput.sort();
+      } else {
+        br = new BufferedReader(new FileReader(filename), 1024 * 1024);
       }
-      // System.out.println( "pass : " + pass + " , created dirNodes: " + nodeCount );
-
-      tfile = new File( prefix + (pass-1) + suffix );
-      tfile.delete();
-
-    } // while
-    // Delete the final file
-    tfile = new File(prefix + pass);
-    tfile.delete();
 
-    // System.out.println("numNodes: " + numNodes );
-    // System.out.println("Height of the tree is : " + getHeight());
-    getRoot().integrityCheck();
-
-  } // diskBasedBL
-
-  class ParseDirFile {
-    BufferedReader br;
-    BufferedWriter bw;
-    int dimension;
-    boolean flag;
-	boolean endOfFile;
-    PageFile<N> file;
-    public boolean handleRoot;
-    N root;
- 
-    // level
-    ParseDirFile(String sortedFile, String outFile, int dim, int pass, N root, 
-      PageFile<N> infile) throws Exception {
-        
-      int bufferSize = 1024 * 1024;    
-      this.br = new BufferedReader(new FileReader(sortedFile), bufferSize);  
-      if(!handleRoot) 
-        this.bw = 
-            new BufferedWriter(new FileWriter(outFile), bufferSize);  
-      // need to close it?!
-      this.dimension = dim;
-      this.flag = true;
-	  this.endOfFile = false;
-      this.file = infile;  // reference to index file
-      this.root = root;
-
-    }
- 
-    boolean hasNextNode() {
-      return flag;  
-    }
- 
-    public void getNextNode() throws Exception {
-      if (!hasNextNode()) return;
- 
-      // the number of records required for creating a directory node
-      //int num = dirCapacity - 1;
-      int num = dirCapacity - 1;
-      int counter = 0;
- 
-      // the list holds the leaf entries used for creating a dirNode
-      ArrayList<N> list = new ArrayList<N>(num);
- 
-      // For directory node, input format <Zorder, NodePageID>
-      while(counter < num) {
-
-        String line = br.readLine();
-        if (line == null) { 
-          flag = false;
-          br.close();
-          break;
+      // Create LeafNodes, leafCapacity - 1 entries each
+      int numNodes = 0;
+      ArrayList<E> list = new ArrayList<E>(leafCapacity - 1);
+      long[] z = new long[words];
+      int[] coord = new int[dimension];
+      while (true) {
+        boolean more;
+        int id = 0;
+        if (leafInput != null) {
+          more = leafInput.next();
+          if (more) {
+            System.arraycopy(leafInput.getKey(), 0, z, 0, words);
+            id = leafInput.getPayload();
+          }
+        } else {
+          String line = br.readLine();
+          more = line != null;
+          if (more) {
+            String[] parts = line.split(" ");
+            Zorder.fromDecimal(parts[0], dimension, z);
+            id = Integer.valueOf(parts[1]);
+          }
         }
 
-        counter++;
- 
-        String[] parts = line.split(" ");
-        int nodeID = Integer.valueOf(parts[1]); // only need NodePageID here
-        N o = file.readPage(nodeID);
-        list.add(o);
+        if (more) {
+          // Since zvalue are all integers, the type of the values does not
+          // really matter as long as it can fit the entire integer.
+          if (hilbert)
+            Hilbert.decode(z, dimension, coord);
+          else
+            Zorder.decode(z, dimension, coord);
+          double[] values = new double[dimension];
+          for (int i = 0; i < dimension; i++)
+            values[i] = coord[i];
+          O o = sampleObject.newInstance(values);
+          o.setID(id);
+          list.add(createNewLeafEntry(o));
+        }
 
+        if (list.size() == leafCapacity - 1 || (!more && !list.isEmpty())) {
+          N leafNode = createNewLeafNode(leafCapacity);
+          file.writePage(leafNode);
+          for (E e : list)
+            leafNode.addLeafEntry(e);
+          file.writePage(leafNode);
+          addNode(nodes, leafNode, hilbert, coord, z);
+          list.clear();
+          numNodes++;
+        }
+        if (!more)
+          break;
       }
-
-	  if (counter == 0) {
-        	bw.close();
-			endOfFile = true;
-		  return;
-	  }
-
-      N dirNode = null;
-      int dirNodeID = -1;
- 
-      if (handleRoot) {
-        // use root dir node
-        dirNode = root;
-      } else {  
-        // create new dir node  
-        dirNode = createNewDirectoryNode(dirCapacity);
-        dirNodeID = file.writePage(dirNode);
+      if (br != null) {
+        br.close();
+        br = null;
       }
-
-      /*  
-      System.out.println("list size: " + list.size()); 
-      System.out.println("dirNode size: " + dirNode.getCapacity() );
-      System.out.println("dirNode entries: " + dirNode.getNumEntries() );
-      System.out.println("dirNode id: " + dirNodeID );
-      */
-
-      // insert nodes  
-      for (N o : list) {
-        if(handleRoot) System.out.println(o.toString() + " " + o.mbr().toString() );
-        dirNode.addDirectoryEntry(createNewDirectoryEntry(o));  
+      if (leafInput != null) {
+        leafInput.close();
+        leafInput = null;
       }
- 
-      // write to file
-      file.writePage(dirNode);
- 
-      if( handleRoot ) return;
- 
-      // write dirNode information into a disk file
-      // output format 
-      // <zorder of lower left corner of the leafnode mbr, pageId>
-      double[] lf = dirNode.mbr().getMin();
-      int [] lfInt = new int[lf.length];
-      for (int i = 0; i < lf.length; i++)
-        lfInt[i] = (int) lf[i];
- 
-      String zorder = Zorder.valueOf(lf.length, lfInt);
-      String line =  zorder + " " + dirNodeID;
- 
-      bw.write(line + "\n");  
- 
-      if (!flag)
-        bw.close();
-    } // getNextNode
-
-  } // ParseDirFile
-
-  class ParseLeafFile 
-  {
-    O sampleObject;
-    BufferedReader br;
-    BufferedWriter bw;
-    int dimension;
-    boolean flag;
-	boolean endOfFile;
-    PageFile<N> file;
- 
-    // level current level of the RStarTree
-    ParseLeafFile(String sortedFile, String outFile, int dim, int pass, PageFile<N> infile, O sampleObject) throws Exception 
-    {
-      int bufferSize = 1024 * 4;
-      this.br = new BufferedReader(new FileReader(sortedFile), bufferSize);  
-      this.bw = new BufferedWriter(new FileWriter(outFile), bufferSize); 
-      this.dimension = dim;
-      this.flag = true;
-      this.endOfFile = false;
-      this.file = infile;  // reference to index file
-      this.sampleObject = sampleObject;
-    }
- 
-    boolean hasNextNode() {
-      return flag;  
-    }
- 
-    public void getNextNode() throws Exception {
-      if (!hasNextNode()) return;
- 
-      // the number of records required for creating a leaf node
-      int num = leafCapacity - 1;
-      int counter = 0;
- 
-      // the list holds the leaf entries used for creating a leafNode
-      ArrayList<E> list = new ArrayList<E>(num);
- 
-      // For leaf node, input format <Zorder, RecordID>
-      while(counter < num) {
-
-        String line = br.readLine();
-        if (line == null) { 
-          flag = false;
-          br.close();
-          break;
+      setHeight(1);
+
+      // Repeatly create dirNodes, dirCapacity - 1 entries each, until they
+      // fit into the root
+      int nodeCount = numNodes;
+      boolean handleRoot = false;
+      while (!handleRoot) {
+        setHeight(getHeight() + 1);
+        nodes.sort();
+        handleRoot = nodeCount < dirCapacity;
+        if (!handleRoot)
+          next = new BinaryExternalSort(words, tmpDir, runSize, threads);
+
+        nodeCount = 0;
+        N dirNode = handleRoot ? root : null;
+        while (nodes.next()) {
+          if (dirNode == null) {
+            dirNode = createNewDirectoryNode(dirCapacity);
+            file.writePage(dirNode);
+          }
+          dirNode.addDirectoryEntry(createNewDirectoryEntry(file.readPage(nodes.getPayload())));
+          if (!handleRoot && dirNode.getNumEntries() == dirCapacity - 1) {
+            file.writePage(dirNode);
+            addNode(next, dirNode, hilbert, coord, z);
+            dirNode = null;
+            nodeCount++;
+          }
         }
-        counter++;
- 
-        // parse line
-        String[] parts = line.split(" ");
-        int[] zvalue = Zorder.toCoord(parts[0], dimension);
-        double[] fzvalue = new double[dimension];
-        for (int i = 0; i < dimension; i++) {
-          fzvalue[i] = zvalue[i] * 1d;  
+        if (dirNode != null) {
+          file.writePage(dirNode);
+          if (!handleRoot) {
+            addNode(next, dirNode, hilbert, coord, z);
+            nodeCount++;
+          }
         }
+        nodes.close();
+        nodes = next;
+        next = null;
+      }
+    } finally {
+      if (br != null)
+        br.close();
+      if (leafInput != null)
+        leafInput.close();
+      if (nodes != null)
+        nodes.close();
+      if (next != null)
+        next.close();
+    }
 
-        // create an object and save it into a list
-        O o = null;  // need a way to make it generic
+    getRoot().integrityCheck();
+    // the queries read the mapped pages
+    syncMappedFile();
 
-        // initialize generic object from double type
-        // Since zvalue are all integers, the type of fzvalue doesnot
-        // really matter in this case as long as it can fit the entire integer.
-        o = sampleObject.newInstance(fzvalue);  
-        o.setID(Integer.valueOf(parts[1]));
+  } // diskBasedBL
 
-        list.add(createNewLeafEntry(o));
-      }
-      
-      if (counter == 0) {
-         bw.close();           // Leaf node case;
-         this.endOfFile = true;
-         return;
-      }
-    
-      // create leaf node  
-      N leafNode = createNewLeafNode(leafCapacity);
-      int leafNodeID = file.writePage(leafNode);
-      //System.out.println("leafNode size: " + leafNode.getCapacity() );
-    
-      // insert data  
-      for (E e : list) {
-        leafNode.addLeafEntry(e);  
-      }
- 
-      // write to file
-      file.writePage(leafNode);
- 
-      // write leafNode information into a disk file
-      // output format 
-      // <pageID, zorder, lower left corner of the leafnode mbr >
-      double[] lf = leafNode.mbr().getMin();
-      int [] lfInt = new int[lf.length];
-      for (int i = 0; i < lf.length; i++)
-        lfInt[i] = (int) lf[i];
- 
-      String zorder = Zorder.valueOf(lf.length, lfInt);
-      String line = zorder + " " + leafNodeID;
- 
-      bw.write(line + "\n");  
-      if (!flag)
-        bw.close();
-    } // getNextNode
-  } // ParseLeafFile
+  /**
+   * Adds <zorder of the lower left corner of the node mbr, page id> of node
+   * to out, or <Hilbert value of the center of the mbr, page id>. coord and z
+   * are buffers of the dimensionality and Zorder words.
+   */
+  private void addNode(BinaryExternalSort out, N node, boolean hilbert, int[] coord, long[] z) throws IOException {
+    HyperBoundingBox mbr = node.mbr();
+    if (hilbert) {
+      for (int i = 0; i < coord.length; i++)
+        coord[i] = (int) ((mbr.getMin(i + 1) + mbr.getMax(i + 1)) / 2);
+      out.add(Hilbert.encode(coord.length, coord, z), node.getID());
+    } else {
+      for (int i = 0; i < coord.length; i++)
+        coord[i] = (int) mbr.getMin(i + 1);
+      out.add(Zorder.encode(coord.length, coord, z), node.getID());
+    }
+  }
 //=============================================================================
 
 }
@@ -0,0 +1,74 @@
+package de.lmu.ifi.dbs.elki.math.spacefillingcurves;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import de.lmu.ifi.dbs.elki.index.Hilbert;
+import de.lmu.ifi.dbs.elki.index.Zorder;
+
+/**
+ * Computes the Hilbert values for specified double values, the counterpart of
+ * {@link ZCurve}. Each dimension is discretized to 32 bits over the range of
+ * the values.
+ */
+public class HilbertCurve {
+  /**
+   * Constructor
+   */
+  public HilbertCurve() {
+    // nothing to do.
+  }
+
+  /**
+   * Computes the Hilbert values for the specified double values. Like the
+   * z-values of {@link ZCurve#zValues}, the least significant byte of a value
+   * comes first.
+   *
+   * @param valuesList the list of double values
+   * @return the Hilbert values for the specified double values
+   */
+  public static List<byte[]> hilbertValues(List<double[]> valuesList) {
+    if(valuesList.isEmpty()) {
+      return new ArrayList<byte[]>();
+    }
+
+    // determine min and max value in each dimension and the scaling factor
+    int dimensionality = valuesList.get(0).length;
+    double[] minValues = new double[dimensionality];
+    double[] maxValues = new double[dimensionality];
+    Arrays.fill(minValues, Double.MAX_VALUE);
+    Arrays.fill(maxValues, -Double.MAX_VALUE);
+    for(double[] values : valuesList) {
+      for(int d = 0; d < dimensionality; d++) {
+        maxValues[d] = Math.max(values[d], maxValues[d]);
+        minValues[d] = Math.min(values[d], minValues[d]);
+      }
+    }
+
+    double[] scalingFactors = new double[dimensionality];
+    for(int d = 0; d < dimensionality; d++) {
+      double extension = maxValues[d] - minValues[d];
+      scalingFactors[d] = extension > 0 ? 0xFFFFFFFFL / extension : 0;
+    }
+
+    // discretize the double value over the whole domain
+    final List<byte[]> hilbertValues = new ArrayList<byte[]>(valuesList.size());
+    int[] coord = new int[dimensionality];
+    long[] h = new long[Zorder.words(dimensionality)];
+    for(double[] values : valuesList) {
+      for(int d = 0; d < dimensionality; d++) {
+        // the unsigned 32 bit value
+        coord[d] = (int) (long) ((values[d] - minValues[d]) * scalingFactors[d]);
+      }
+      Hilbert.encode(dimensionality, coord, h);
+
+      byte[] bytes = new byte[h.length * 8];
+      for(int i = 0; i < bytes.length; i++) {
+        bytes[i] = (byte) (h[h.length - 1 - (i >>> 3)] >>> ((i & 7) << 3));
+      }
+      hilbertValues.add(bytes);
+    }
+    return hilbertValues;
+  }
+}
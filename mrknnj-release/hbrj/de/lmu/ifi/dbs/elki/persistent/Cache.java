@@ -12,11 +12,12 @@ public interface Cache<P extends Page<P>> {
   /**
    * Initializes this cache with the specified parameters.
    * 
-   * @param cacheSize the maximum number of pages in this cache
+   * @param cacheSize the size of this cache in bytes
+   * @param pageSize the size of a page of the file in bytes
    * @param file the underlying file of this cache, if a page is dropped it is
    *        written to the file
    */
-  void initialize(long cacheSize, CachedFile<P> file);
+  void initialize(long cacheSize, int pageSize, CachedFile<P> file);
 
   /**
    * Retrieves a page from this cache.
@@ -55,9 +56,9 @@ public interface Cache<P extends Page<P>> {
   /**
    * Sets the maximum size of this cache.
    * 
-   * @param cacheSize the cache size to be set
+   * @param cacheSize the cache size to be set in bytes
    */
-  void setCacheSize(int cacheSize);
+  void setCacheSize(long cacheSize);
 
   /**
    * Returns the number of page accesses.
@@ -0,0 +1,37 @@
+package de.lmu.ifi.dbs.elki.persistent;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A page with a fixed binary layout, which can be written to and read from a
+ * {@link ByteBuffer} at a given offset without object serialization. Pages of
+ * this type can be stored in a {@link MappedPageFile}.
+ *
+ * @param <P> Self type
+ */
+public interface FlatPage<P extends FlatPage<P>> extends Page<P> {
+  /**
+   * Returns the number of bytes needed by {@link #writeFlat}.
+   *
+   * @return the size of this page in bytes
+   */
+  int getFlatSize();
+
+  /**
+   * Writes this page to the buffer, starting at offset. Uses absolute puts
+   * only, the position of the buffer is not changed.
+   *
+   * @param buffer the buffer to write to
+   * @param offset the offset of this page in the buffer
+   */
+  void writeFlat(ByteBuffer buffer, int offset);
+
+  /**
+   * Restores this page from the buffer, starting at offset. Uses absolute gets
+   * only, the position of the buffer is not changed.
+   *
+   * @param buffer the buffer to read from
+   * @param offset the offset of this page in the buffer
+   */
+  void readFlat(ByteBuffer buffer, int offset);
+}
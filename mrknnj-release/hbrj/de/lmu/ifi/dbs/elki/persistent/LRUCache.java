@@ -21,6 +21,11 @@ public class LRUCache<P extends Page<P>> implements Cache<P> {
    */
   protected long cacheSize;
 
+  /**
+   * The size of a page in bytes.
+   */
+  private int pageSize;
+
   /**
    * The map holding the objects of this cache.
    */
@@ -47,19 +52,21 @@ public class LRUCache<P extends Page<P>> implements Cache<P> {
   /**
    * Initializes this cache with the specified parameters.
    * 
-   * @param cacheSize the maximum number of pages in this cache
+   * @param cacheSize the size of this cache in bytes
+   * @param pageSize the size of a page of the file in bytes
    * @param file the underlying file of this cache, if a page is dropped it is
    *        written to the file
    */
   @SuppressWarnings("serial")
-  public void initialize(long cacheSize, CachedFile<P> file) {
+  public void initialize(long cacheSize, int pageSize, CachedFile<P> file) {
     this.file = file;
-    assert(cacheSize <= Integer.MAX_VALUE);
-    this.cacheSize = (int) cacheSize;
+    this.pageSize = pageSize;
+    assert(cacheSize / pageSize <= Integer.MAX_VALUE);
+    this.cacheSize = (int) (cacheSize / pageSize);
     this.pageAccess = 0;
 
     float hashTableLoadFactor = 0.75f;
-    int hashTableCapacity = (int) Math.ceil(cacheSize / hashTableLoadFactor) + 1;
+    int hashTableCapacity = (int) Math.ceil(this.cacheSize / hashTableLoadFactor) + 1;
 
     this.map = new LinkedHashMap<Integer, P>(hashTableCapacity, hashTableLoadFactor, true) {
       @Override
@@ -117,7 +124,7 @@ public class LRUCache<P extends Page<P>> implements Cache<P> {
   /**
    * Flushes this caches by writing any entry to the underlying file.
    */
-  public void flush() {
+  public synchronized void flush() {
     for(P object : map.values()) {
       file.objectRemoved(object);
     }
@@ -153,10 +160,10 @@ public class LRUCache<P extends Page<P>> implements Cache<P> {
   /**
    * Sets the maximum size of this cache.
    * 
-   * @param cacheSize the cache size to be set
+   * @param cacheSize the cache size to be set in bytes
    */
-  public void setCacheSize(int cacheSize) {
-    this.cacheSize = cacheSize;
+  public void setCacheSize(long cacheSize) {
+    this.cacheSize = cacheSize / pageSize;
 
     long toDelete = map.size() - this.cacheSize;
     if(toDelete <= 0) {
@@ -0,0 +1,366 @@
+package de.lmu.ifi.dbs.elki.persistent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import de.lmu.ifi.dbs.elki.algorithm.AbortException;
+import de.lmu.ifi.dbs.elki.index.tree.TreeIndexHeader;
+import de.lmu.ifi.dbs.elki.logging.Logging;
+
+/**
+ * A page file like {@link PersistentPageFile}, but the pages are memory mapped
+ * and stored in the fixed binary layout of {@link FlatPage} instead of being
+ * serialized by an ObjectOutputStream. The file is mapped in segments of
+ * whole pages, which are created on demand when the file grows.
+ *
+ * Each page starts with an int marking it as empty or filled, padded to
+ * {@link #MARKER_SIZE} bytes, followed by the flat page itself. Besides reading pages as objects through the cache,
+ * {@link #getPageBuffer(int)} and {@link #getPageOffset(int)} give direct
+ * access to the mapped bytes of a page, so that readers can work on them
+ * without creating the page object.
+ *
+ * @param <P> Page type, has to implement {@link FlatPage}
+ */
+public class MappedPageFile<P extends Page<P>> extends PageFile<P> {
+  /**
+   * Indicates an empty page.
+   */
+  private static final int EMPTY_PAGE = 0;
+
+  /**
+   * Indicates a filled page.
+   */
+  private static final int FILLED_PAGE = 1;
+
+  /**
+   * The size of the page marker, padded to 8 bytes so that the doubles of
+   * aligned flat pages are aligned in the file.
+   */
+  public static final int MARKER_SIZE = 8;
+
+  /**
+   * The size of a mapped segment in bytes (rounded down to whole pages).
+   */
+  private static final int SEGMENT_SIZE = 1 << 26;
+
+  /**
+   * The file storing the pages.
+   */
+  private final RandomAccessFile file;
+
+  /**
+   * The channel of the file.
+   */
+  private final FileChannel channel;
+
+  /**
+   * The mapped segments, null if not mapped yet. A segment is added to a copy
+   * of the array, so threads reading pages see the array fully mapped up to
+   * the segment they look for.
+   */
+  private volatile MappedByteBuffer[] segments = new MappedByteBuffer[16];
+
+  /**
+   * The number of pages per segment.
+   */
+  private int pagesPerSegment;
+
+  /**
+   * The header of this page file.
+   */
+  protected final PageHeader header;
+
+  /**
+   * The type of pages we use.
+   */
+  protected final Class<? extends P> pageclass;
+
+  /**
+   * Creates a new MappedPageFile, from an existing file if fileName exists.
+   *
+   * @param header the header of this file
+   * @param cacheSize the size of the cache in Byte
+   * @param cache the class of the cache to be used
+   * @param fileName the name of the file
+   * @param pageclass the class of pages to be used
+   */
+  public MappedPageFile(PageHeader header, long cacheSize, Cache<P> cache, String fileName, Class<? extends P> pageclass) {
+    super();
+    if(!FlatPage.class.isAssignableFrom(pageclass)) {
+      throw new IllegalArgumentException("Page class " + pageclass.getName() + " does not implement " + FlatPage.class.getSimpleName());
+    }
+    this.pageclass = pageclass;
+    this.header = header;
+
+    try {
+      File f = new File(fileName);
+      boolean exists = f.exists();
+      file = new RandomAccessFile(f, "rw");
+      channel = file.getChannel();
+
+      if(exists) {
+        Logging.getLogger(this.getClass()).verbose("Create from existing file.");
+        header.readHeader(file);
+        initCache(header.getPageSize(), cacheSize, cache);
+        pagesPerSegment = Math.max(1, SEGMENT_SIZE / pageSize);
+
+        long pageBytes = file.length();
+        if(header instanceof TreeIndexHeader) {
+          TreeIndexHeader tiHeader = (TreeIndexHeader) header;
+          try {
+            emptyPages = tiHeader.readEmptyPages(file);
+          }
+          catch(ClassNotFoundException e) {
+            throw new RuntimeException("ClassNotFoundException occurred when reading empty pages.", e);
+          }
+          pageBytes -= tiHeader.getEmptyPagesSize();
+        }
+        nextPageID = (int) (pageBytes / pageSize) - header.getReservedPages();
+        if(!(header instanceof TreeIndexHeader)) {
+          // must scan the markers of all pages
+          for(int i = 0; i < nextPageID; i++) {
+            if(getSegment(i).getInt(getPageStart(i)) == EMPTY_PAGE) {
+              emptyPages.push(i);
+            }
+          }
+        }
+      }
+      else {
+        Logging.getLogger(this.getClass()).verbose("Create a new file.");
+        file.setLength(0);
+        header.writeHeader(file);
+        initCache(header.getPageSize(), cacheSize, cache);
+        pagesPerSegment = Math.max(1, SEGMENT_SIZE / pageSize);
+      }
+    }
+    catch(IOException e) {
+      throw new RuntimeException("IOException occurred.", e);
+    }
+  }
+
+  /**
+   * Reads the page with the given id from this file.
+   *
+   * @param pageID the id of the page to be returned
+   * @return the page with the given pageId
+   */
+  @SuppressWarnings("unchecked")
+  @Override
+  public P readPage(int pageID) {
+    // try to get from cache
+    P page = super.readPage(pageID);
+
+    // get from file and put to cache
+    if(page == null && pageID < nextPageID) {
+      readAccess.increment();
+      MappedByteBuffer segment = getSegment(pageID);
+      int offset = getPageStart(pageID);
+      if(segment.getInt(offset) == FILLED_PAGE) {
+        try {
+          page = pageclass.newInstance();
+        }
+        catch(InstantiationException e) {
+          throw new AbortException("Error instanciating an index page", e);
+        }
+        catch(IllegalAccessException e) {
+          throw new AbortException("Error instanciating an index page", e);
+        }
+        ((FlatPage<?>) page).readFlat(segment, offset + MARKER_SIZE);
+        page.setFile(this);
+        cache.put(page);
+      }
+    }
+    return page;
+  }
+
+  /**
+   * Deletes the node with the specified id from this file.
+   *
+   * @param pageID the id of the node to be deleted
+   */
+  @Override
+  public void deletePage(int pageID) {
+    super.deletePage(pageID);
+    writeAccess.increment();
+    getSegment(pageID).putInt(getPageStart(pageID), EMPTY_PAGE);
+  }
+
+  /**
+   * This method is called by the cache if the <code>page</code> is not longer
+   * stored in the cache and has to be written to disk.
+   *
+   * @param page the page which has to be written to disk
+   */
+  public void objectRemoved(P page) {
+    if(page.isDirty()) {
+      FlatPage<?> flat = (FlatPage<?>) page;
+      if(flat.getFlatSize() + MARKER_SIZE > pageSize) {
+        throw new IllegalArgumentException("Size of page " + page + " is greater than specified" + " pagesize: " + (flat.getFlatSize() + MARKER_SIZE) + " > " + pageSize);
+      }
+      page.setDirty(false);
+      writeAccess.increment();
+      MappedByteBuffer segment = getSegment(page.getID());
+      int offset = getPageStart(page.getID());
+      segment.putInt(offset, FILLED_PAGE);
+      flat.writeFlat(segment, offset + MARKER_SIZE);
+    }
+  }
+
+  /**
+   * Writes all pages in the cache to the mapped file, so that
+   * {@link #getPageBuffer(int)} returns their current state. The cache is
+   * emptied by this.
+   */
+  public void sync() {
+    cache.flush();
+  }
+
+  /**
+   * Returns the mapped buffer holding the page with the given id, to be read
+   * at {@link #getPageOffset(int)} with absolute gets. Pages changed in the
+   * cache are only visible after {@link #sync()}. No page is read here, so
+   * this is not counted as a read access.
+   *
+   * @param pageID the id of the page
+   * @return the buffer containing the page
+   */
+  public ByteBuffer getPageBuffer(int pageID) {
+    return getSegment(pageID);
+  }
+
+  /**
+   * Returns the offset of the flat page with the given id in the buffer
+   * returned by {@link #getPageBuffer(int)}.
+   *
+   * @param pageID the id of the page
+   * @return the offset of the page in its buffer
+   */
+  public int getPageOffset(int pageID) {
+    return getPageStart(pageID) + MARKER_SIZE;
+  }
+
+  /**
+   * Closes this file.
+   */
+  @Override
+  public void close() {
+    try {
+      super.close();
+      for(MappedByteBuffer segment : segments) {
+        if(segment != null) {
+          segment.force();
+        }
+      }
+      segments = null;
+      // cut off the unused part of the last segment
+      file.setLength(((long) (header.getReservedPages() + nextPageID)) * (long) pageSize);
+      if(!emptyPages.isEmpty() && header instanceof TreeIndexHeader) {
+        // write the list of empty pages to the end of the file
+        ((TreeIndexHeader) header).writeEmptyPages(emptyPages, file);
+      }
+      header.writeHeader(file);
+      file.close();
+    }
+    catch(IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Clears this PageFile.
+   */
+  @Override
+  public void clear() {
+    try {
+      super.clear();
+      segments = new MappedByteBuffer[16];
+      file.setLength(header.size());
+    }
+    catch(IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Returns the start of the page in its segment.
+   *
+   * @param pageID the id of the page
+   * @return the offset of the page marker in the segment
+   */
+  private int getPageStart(int pageID) {
+    return (pageID % pagesPerSegment) * pageSize;
+  }
+
+  /**
+   * Returns the segment containing the page, mapping it if necessary.
+   *
+   * @param pageID the id of the page
+   * @return the mapped segment
+   */
+  private MappedByteBuffer getSegment(int pageID) {
+    int s = pageID / pagesPerSegment;
+    MappedByteBuffer[] current = segments;
+    if(s < current.length && current[s] != null) {
+      return current[s];
+    }
+    return mapSegment(s, pageID);
+  }
+
+  /**
+   * Maps the segment s, unless another thread did it already.
+   *
+   * @param s the number of the segment
+   * @param pageID the id of the page, for the error message
+   * @return the segment
+   */
+  private synchronized MappedByteBuffer mapSegment(int s, int pageID) {
+    if(s < segments.length && segments[s] != null) {
+      return segments[s];
+    }
+    MappedByteBuffer[] newSegments = new MappedByteBuffer[Math.max(s + 1, Math.max(segments.length, 2 * s))];
+    System.arraycopy(segments, 0, newSegments, 0, segments.length);
+    long start = ((long) header.getReservedPages() + (long) s * pagesPerSegment) * (long) pageSize;
+    try {
+      // mapping beyond the end of the file grows the file
+      newSegments[s] = channel.map(FileChannel.MapMode.READ_WRITE, start, (long) pagesPerSegment * pageSize);
+      // the file is local to this machine, avoid swapping the bytes
+      newSegments[s].order(ByteOrder.nativeOrder());
+    }
+    catch(IOException e) {
+      throw new RuntimeException("IOException occurred during mapping of page " + pageID + "\n", e);
+    }
+    segments = newSegments;
+    return newSegments[s];
+  }
+
+  /**
+   * Get the header of this page file.
+   *
+   * @return the header used by this page file
+   */
+  public PageHeader getHeader() {
+    return header;
+  }
+
+  /**
+   * Set the next page id to the given value. If this means that any page ids
+   * stored in <code>emptyPages</code> are smaller than
+   * <code>next_page_id</code>, they are removed from this file's observation
+   * stack.
+   *
+   * @param next_page_id the id of the next page to be inserted (if there are no
+   *        more empty pages to be filled)
+   */
+  @Override
+  public void setNextPageID(int next_page_id) {
+    this.nextPageID = next_page_id;
+    while(!emptyPages.isEmpty() && emptyPages.peek() >= this.nextPageID) {
+      emptyPages.pop();
+    }
+  }
+}
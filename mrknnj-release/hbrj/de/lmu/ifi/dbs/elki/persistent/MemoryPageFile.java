@@ -1,11 +1,12 @@
 package de.lmu.ifi.dbs.elki.persistent;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A memory based implementation of a PageFile that simulates I/O-access.<br>
- * Implemented as a Map with keys representing the ids of the saved pages.
+ * Implemented as a concurrent Map with keys representing the ids of the saved
+ * pages, so pages may be read by several threads.
  * 
  * @author Elke Achtert
  * @param <P> Page type
@@ -28,12 +29,12 @@ public class MemoryPageFile<P extends Page<P>> extends PageFile<P> {
   public MemoryPageFile(int pageSize, long cacheSize, Cache<P> cache) {
     super();
     initCache(pageSize, cacheSize, cache);
-    this.file = new HashMap<Integer, P>();
+    this.file = new ConcurrentHashMap<Integer, P>();
   }
 
-  public synchronized void objectRemoved(P page) {
+  public void objectRemoved(P page) {
     if(page.isDirty()) {
-      writeAccess++;
+      writeAccess.increment();
       page.setDirty(false);
       file.put(page.getID(), page);
     }
@@ -46,13 +47,13 @@ public class MemoryPageFile<P extends Page<P>> extends PageFile<P> {
    * @return the page with the given pageId
    */
   @Override
-  public synchronized P readPage(int pageID) {
+  public P readPage(int pageID) {
     // try to get from cache
     P page = super.readPage(pageID);
 
     // get from file and put to cache
     if(page == null) {
-      readAccess++;
+      readAccess.increment();
       page = file.get(pageID);
       if(page != null) {
         cache.put(page);
@@ -68,13 +69,13 @@ public class MemoryPageFile<P extends Page<P>> extends PageFile<P> {
    * @param pageID the id of the node to be deleted
    */
   @Override
-  public synchronized void deletePage(int pageID) {
+  public void deletePage(int pageID) {
     // put id to empty nodes and
     // delete from cache
     super.deletePage(pageID);
 
     // delete from file
-    writeAccess++;
+    writeAccess.increment();
     file.remove(pageID);
   }
 
@@ -118,7 +118,7 @@ public class OnDiskArrayPageFile<P extends Page<P>> extends PageFile<P> {
 
       // get from file and put to cache
       if(page == null) {
-        readAccess++;
+        readAccess.increment();
         page = byteArrayToPage(this.file.readRecord(pageID));
         if(page != null) {
           // noinspection unchecked
@@ -147,7 +147,7 @@ public class OnDiskArrayPageFile<P extends Page<P>> extends PageFile<P> {
       super.deletePage(pageID);
 
       // delete from file
-      writeAccess++;
+      writeAccess.increment();
       byte[] array = pageToByteArray(null);
       file.writeRecord(pageID, array);
     }
@@ -166,7 +166,7 @@ public class OnDiskArrayPageFile<P extends Page<P>> extends PageFile<P> {
     if(page.isDirty()) {
       try {
         page.setDirty(false);
-        writeAccess++;
+        writeAccess.increment();
         byte[] array = pageToByteArray(page);
         file.writeRecord(page.getID(), array);
       }
@@ -32,12 +32,12 @@ public abstract class PageFile<P extends Page<P>> implements CachedFile<P> {
   /**
    * The read I/O-Access of this file.
    */
-  protected long readAccess;
+  protected final StripedCounter readAccess = new StripedCounter();
 
   /**
    * The write I/O-Access of this file.
    */
-  protected long writeAccess;
+  protected final StripedCounter writeAccess = new StripedCounter();
 
   /**
    * The size of a page in Bytes.
@@ -50,8 +50,6 @@ public abstract class PageFile<P extends Page<P>> implements CachedFile<P> {
   protected PageFile() {
     this.emptyPages = new Stack<Integer>();
     this.nextPageID = 0;
-    this.readAccess = 0;
-    this.writeAccess = 0;
   }
 
   /**
@@ -59,7 +57,7 @@ public abstract class PageFile<P extends Page<P>> implements CachedFile<P> {
    * @return Number of physical read I/O accesses
    */
   public final long getPhysicalReadAccess() {
-    return readAccess;
+    return readAccess.sum();
   }
 
   /**
@@ -67,7 +65,7 @@ public abstract class PageFile<P extends Page<P>> implements CachedFile<P> {
    * @return Number of physical write I/O accesses
    */
   public final long getPhysicalWriteAccess() {
-    return writeAccess;
+    return writeAccess.sum();
   }
 
   /**
@@ -83,8 +81,8 @@ public abstract class PageFile<P extends Page<P>> implements CachedFile<P> {
    */
   public final void resetPageAccess() {
     cache.flush();
-    this.readAccess = 0;
-    this.writeAccess = 0;
+    this.readAccess.reset();
+    this.writeAccess.reset();
     cache.resetPageAccess();
   }
 
@@ -167,7 +165,7 @@ public abstract class PageFile<P extends Page<P>> implements CachedFile<P> {
    * @param cacheSize cache size
    */
   public void setCacheSize(int cacheSize) {
-    cache.setCacheSize(cacheSize / pageSize);
+    cache.setCacheSize(cacheSize);
   }
 
   /**
@@ -194,7 +192,7 @@ public abstract class PageFile<P extends Page<P>> implements CachedFile<P> {
 
     this.pageSize = pageSize;
     this.cache = cache;
-    this.cache.initialize(pagesInCache, this);
+    this.cache.initialize(cacheSize, pageSize, this);
   }
 
   /**
@@ -145,11 +145,13 @@ public class PersistentPageFile<P extends Page<P>> extends PageFile<P> {
 
       // get from file and put to cache
       if(page == null) {
-        readAccess++;
+        readAccess.increment();
         long offset = ((long) (header.getReservedPages() + pageID)) * (long) pageSize;
         byte[] buffer = new byte[pageSize];
-        file.seek(offset);
-        file.read(buffer);
+        synchronized(file) {
+          file.seek(offset);
+          file.read(buffer);
+        }
         page = byteArrayToPage(buffer);
         if(page != null) {
           // noinspection unchecked
@@ -178,11 +180,13 @@ public class PersistentPageFile<P extends Page<P>> extends PageFile<P> {
       super.deletePage(pageID);
 
       // delete from file
-      writeAccess++;
+      writeAccess.increment();
       byte[] array = pageToByteArray(null);
       long offset = ((long) (header.getReservedPages() + pageID)) * (long) pageSize;
-      file.seek(offset);
-      file.write(array);
+      synchronized(file) {
+        file.seek(offset);
+        file.write(array);
+      }
     }
     catch(IOException e) {
       throw new RuntimeException(e);
@@ -199,12 +203,14 @@ public class PersistentPageFile<P extends Page<P>> extends PageFile<P> {
     if(page.isDirty()) {
       try {
         page.setDirty(false);
-        writeAccess++;
+        writeAccess.increment();
         byte[] array = pageToByteArray(page);
         long offset = ((long) (header.getReservedPages() + page.getID())) * (long) pageSize;
         assert offset >= 0 : header.getReservedPages() + " " + page.getID() + " " + pageSize + " " + offset;
-        file.seek(offset);
-        file.write(array);
+        synchronized(file) {
+          file.seek(offset);
+          file.write(array);
+        }
       }
       catch(IOException e) {
         throw new RuntimeException(e);
@@ -351,12 +357,12 @@ public class PersistentPageFile<P extends Page<P>> extends PageFile<P> {
 
   /** Increases the {@link PageFile#readAccess readAccess} counter by one. */
   public void increaseReadAccess() {
-    readAccess++;
+    readAccess.increment();
   }
 
   /** Increases the {@link PageFile#writeAccess writeAccess} counter by one. */
   public void increaseWriteAccess() {
-    writeAccess++;
+    writeAccess.increment();
   }
 
   /**
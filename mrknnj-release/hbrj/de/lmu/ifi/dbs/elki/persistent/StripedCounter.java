@@ -0,0 +1,81 @@
+package de.lmu.ifi.dbs.elki.persistent;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter for statistics that many threads increase at once, like the
+ * LongAdder of Java 8: a thread adds to one of several cells, each on its own
+ * cache line, chosen by the id of the thread, and the value of the counter is
+ * the sum of the cells. So the threads rarely contend on one cell and no
+ * increment is lost.
+ */
+public class StripedCounter {
+  /**
+   * The number of cells, a power of 2.
+   */
+  private static final int CELLS = 16;
+
+  /**
+   * The distance of two cells in longs, one cache line.
+   */
+  private static final int PAD = 8;
+
+  /**
+   * The cells.
+   */
+  private final AtomicLongArray cells = new AtomicLongArray(CELLS * PAD);
+
+  /**
+   * Increases the counter by one.
+   */
+  public void increment() {
+    add(1);
+  }
+
+  /**
+   * Adds x to the counter.
+   *
+   * @param x the value to add
+   */
+  public void add(long x) {
+    cells.getAndAdd(cell(), x);
+  }
+
+  /**
+   * Returns the sum of the cells. Increments made while summing up may or may
+   * not be included.
+   *
+   * @return the value of the counter
+   */
+  public long sum() {
+    long sum = 0;
+    for(int i = 0; i < CELLS; i++) {
+      sum += cells.get(i * PAD);
+    }
+    return sum;
+  }
+
+  /**
+   * Sets the counter to zero.
+   */
+  public void reset() {
+    for(int i = 0; i < CELLS; i++) {
+      cells.set(i * PAD, 0);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return Long.toString(sum());
+  }
+
+  /**
+   * Returns the index of the cell of the current thread.
+   *
+   * @return the index in cells
+   */
+  private static int cell() {
+    long h = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+    return (int) (h >>> 60) * PAD;
+  }
+}
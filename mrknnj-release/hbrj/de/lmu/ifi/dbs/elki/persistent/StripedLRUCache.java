@@ -0,0 +1,279 @@
+package de.lmu.ifi.dbs.elki.persistent;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A page cache for concurrent readers. Like {@link LRUCache}, but the pages
+ * are spread over segments by their id, each an LRU cache with its own lock
+ * and an equal share of the cache size. Threads reading different pages
+ * rarely wait for each other, while one lock for the whole cache serializes
+ * all page accesses. A page counts with the page size of the file, so the
+ * cache holds at most cacheSize bytes of pages.
+ *
+ * The page of a dropped page is written to the file in the lock of its
+ * segment, so {@link CachedFile#objectRemoved} may be called by several
+ * threads at the same time.
+ *
+ * @param <P> Page type
+ */
+public class StripedLRUCache<P extends Page<P>> implements Cache<P> {
+  /**
+   * The default number of segments.
+   */
+  public static final int DEFAULT_SEGMENTS = 16;
+
+  /**
+   * A segment of the cache, guarded by its own monitor.
+   */
+  private class Segment {
+    /**
+     * The pages of this segment in access order.
+     */
+    final LinkedHashMap<Integer, P> map = new LinkedHashMap<Integer, P>(16, 0.75f, true);
+
+    /**
+     * The maximum number of pages in this segment.
+     */
+    long capacity;
+
+    /**
+     * The number of page accesses of this segment.
+     */
+    long pageAccess;
+  }
+
+  /**
+   * The maximum number of segments.
+   */
+  private final int maxSegments;
+
+  /**
+   * The segments, a power of 2 many.
+   */
+  private Segment[] segments;
+
+  /**
+   * The number of bits of a hashed page id selecting the segment.
+   */
+  private int segmentBits;
+
+  /**
+   * The size of a page in bytes.
+   */
+  private int pageSize;
+
+  /**
+   * The underlying file of this cache. If an object is dropped it is written to
+   * the file.
+   */
+  protected CachedFile<P> file;
+
+  /**
+   * Creates a new empty cache with at most {@link #DEFAULT_SEGMENTS} segments.
+   */
+  public StripedLRUCache() {
+    this(DEFAULT_SEGMENTS);
+  }
+
+  /**
+   * Creates a new empty cache.
+   *
+   * @param maxSegments the maximum number of segments, less are used if the
+   *        cache holds less than four pages per segment
+   */
+  public StripedLRUCache(int maxSegments) {
+    this.maxSegments = Math.max(1, maxSegments);
+  }
+
+  @SuppressWarnings("unchecked")
+  public void initialize(long cacheSize, int pageSize, CachedFile<P> file) {
+    this.file = file;
+    this.pageSize = pageSize;
+    long pages = cacheSize / pageSize;
+
+    int n = Integer.highestOneBit(maxSegments);
+    while(n > 1 && pages < 4L * n) {
+      n >>= 1;
+    }
+    segments = new StripedLRUCache.Segment[n];
+    segmentBits = Integer.numberOfTrailingZeros(n);
+    for(int i = 0; i < n; i++) {
+      segments[i] = new Segment();
+    }
+    setCapacity(pages);
+  }
+
+  /**
+   * Returns the segment of a page.
+   *
+   * @param pageID the id of the page
+   * @return the segment holding the page
+   */
+  private Segment segment(int pageID) {
+    if(segmentBits == 0) {
+      return segments[0];
+    }
+    // consecutive ids go to different segments
+    return segments[(pageID * 0x9E3779B9) >>> (32 - segmentBits)];
+  }
+
+  /**
+   * Distributes the pages of the cache on the segments, dropping pages of full
+   * segments.
+   *
+   * @param pages the maximum number of pages in this cache
+   */
+  private void setCapacity(long pages) {
+    for(int i = 0; i < segments.length; i++) {
+      Segment s = segments[i];
+      synchronized(s) {
+        // the first pages % n segments get one page more
+        s.capacity = pages / segments.length + (i < pages % segments.length ? 1 : 0);
+        evict(s);
+      }
+    }
+  }
+
+  /**
+   * Drops the least recently used pages of a segment until it fits its
+   * capacity. The caller holds the lock of the segment.
+   *
+   * @param s the segment
+   */
+  private void evict(Segment s) {
+    Iterator<P> it = s.map.values().iterator();
+    while(s.map.size() > s.capacity) {
+      P page = it.next();
+      it.remove();
+      file.objectRemoved(page);
+    }
+  }
+
+  /**
+   * Retrieves a page from the cache. The retrieved page becomes the MRU (most
+   * recently used) page of its segment.
+   *
+   * @param pageID the id of the page to be returned
+   * @return the page associated to the id or null if no value with this key
+   *         exists in the cache
+   */
+  public P get(int pageID) {
+    Segment s = segment(pageID);
+    synchronized(s) {
+      P page = s.map.get(pageID);
+      if(page != null) {
+        s.pageAccess++;
+      }
+      return page;
+    }
+  }
+
+  /**
+   * Adds a page to this cache. If its segment is full, the LRU (least recently
+   * used) page of the segment is dropped and written to file.
+   *
+   * @param page the page to be added
+   */
+  public void put(P page) {
+    Segment s = segment(page.getID());
+    synchronized(s) {
+      s.pageAccess++;
+      s.map.put(page.getID(), page);
+      evict(s);
+    }
+  }
+
+  /**
+   * Removes a page from this cache.
+   *
+   * @param pageID the number of the node to be removed.
+   * @return the removed page
+   */
+  public P remove(int pageID) {
+    Segment s = segment(pageID);
+    synchronized(s) {
+      P page = s.map.remove(pageID);
+      if(page != null) {
+        s.pageAccess++;
+      }
+      return page;
+    }
+  }
+
+  /**
+   * Flushes this caches by writing any entry to the underlying file.
+   */
+  public void flush() {
+    for(Segment s : segments) {
+      synchronized(s) {
+        for(P page : s.map.values()) {
+          file.objectRemoved(page);
+        }
+        s.map.clear();
+      }
+    }
+  }
+
+  /**
+   * Returns the number of page accesses.
+   *
+   * @return the number of page accesses
+   */
+  public long getPageAccess() {
+    long pageAccess = 0;
+    for(Segment s : segments) {
+      synchronized(s) {
+        pageAccess += s.pageAccess;
+      }
+    }
+    return pageAccess;
+  }
+
+  /**
+   * Returns a string representation of this cache.
+   *
+   * @return a string representation of this cache
+   */
+  @Override
+  public String toString() {
+    StringBuffer result = new StringBuffer();
+    for(Segment s : segments) {
+      synchronized(s) {
+        result.append(s.map.toString());
+      }
+    }
+    return result.toString();
+  }
+
+  /**
+   * Clears this cache.
+   */
+  public void clear() {
+    for(Segment s : segments) {
+      synchronized(s) {
+        s.map.clear();
+      }
+    }
+  }
+
+  /**
+   * Sets the maximum size of this cache.
+   *
+   * @param cacheSize the cache size to be set in bytes
+   */
+  public void setCacheSize(long cacheSize) {
+    setCapacity(cacheSize / pageSize);
+  }
+
+  /**
+   * Resets the pages access of this cache.
+   */
+  public void resetPageAccess() {
+    for(Segment s : segments) {
+      synchronized(s) {
+        s.pageAccess = 0;
+      }
+    }
+  }
+}
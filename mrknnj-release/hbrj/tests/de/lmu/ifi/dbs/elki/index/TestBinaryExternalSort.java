@@ -0,0 +1,204 @@
+package de.lmu.ifi.dbs.elki.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JUnit test to test the {@link BinaryExternalSort} class: the sorted order
+ * of single and multi word keys, stability, and the merge of several runs
+ * against the in-memory sort of a single run.
+ */
+public class TestBinaryExternalSort {
+  File tmpDir;
+
+  /**
+   * Create an empty directory for the run files.
+   * @throws Exception on errors.
+   */
+  @Before
+  public void makeTmpDir() throws Exception {
+    tmpDir = File.createTempFile("TestBinaryExternalSort", "");
+    if(!tmpDir.delete() || !tmpDir.mkdir()) {
+      Assert.fail("Could not create the directory for the runs.");
+    }
+  }
+
+  /**
+   * Clean up afterwards
+   * @throws Exception on errors.
+   */
+  @After
+  public void cleanup() throws Exception {
+    if(tmpDir != null && tmpDir.exists()) {
+      for(File f : tmpDir.listFiles()) {
+        f.delete();
+      }
+      if(!tmpDir.delete()) {
+        Assert.fail("Error cleaning up: can't remove the directory of the runs.");
+      }
+    }
+  }
+
+  /**
+   * A record: its key and, as the payload, the order it was added in.
+   */
+  static class Record {
+    long[] key;
+
+    int payload;
+
+    Record(long[] key, int payload) {
+      this.key = key;
+      this.payload = payload;
+    }
+  }
+
+  static List<Record> randomRecords(Random r, int n, int words, int distinct) {
+    List<Record> records = new ArrayList<Record>(n);
+    for(int i = 0; i < n; i++) {
+      long[] key = new long[words];
+      for(int w = 0; w < words; w++) {
+        // few distinct values per word for equal keys, negative values
+        // to check the unsigned order
+        key[w] = distinct > 0 ? (r.nextInt(distinct) - distinct / 2) * 0x0123456789ABL : r.nextLong();
+      }
+      records.add(new Record(key, i));
+    }
+    return records;
+  }
+
+  // The expected order: the keys as unsigned numbers, stable
+  static List<Record> expected(List<Record> records) {
+    List<Record> sorted = new ArrayList<Record>(records);
+    Collections.sort(sorted, new Comparator<Record>() {
+      public int compare(Record r1, Record r2) {
+        return Zorder.compare(r1.key, r2.key);
+      }
+    });
+    return sorted;
+  }
+
+  List<Record> sort(List<Record> records, int words, int runSize, int threads) throws IOException {
+    BinaryExternalSort sort = new BinaryExternalSort(words, tmpDir, runSize, threads);
+    try {
+      for(Record rec : records) {
+        sort.add(rec.key, rec.payload);
+      }
+      sort.sort();
+      List<Record> out = new ArrayList<Record>(records.size());
+      while(sort.next()) {
+        out.add(new Record(sort.getKey().clone(), sort.getPayload()));
+      }
+      return out;
+    }
+    finally {
+      sort.close();
+    }
+  }
+
+  static void assertSameOrder(String msg, List<Record> exp, List<Record> got) {
+    Assert.assertEquals(msg + ": number of records", exp.size(), got.size());
+    for(int i = 0; i < exp.size(); i++) {
+      Assert.assertArrayEquals(msg + ": key " + i, exp.get(i).key, got.get(i).key);
+      Assert.assertEquals(msg + ": payload " + i, exp.get(i).payload, got.get(i).payload);
+    }
+  }
+
+  /**
+   * Records with equal keys come out in the order they were added, from a
+   * single run as well as from the merge of several runs.
+   * @throws IOException on errors.
+   */
+  @Test
+  public void testStable() throws IOException {
+    List<Record> records = randomRecords(new Random(1), 20000, 1, 10);
+    List<Record> exp = expected(records);
+    assertSameOrder("single run", exp, sort(records, 1, 1 << 20, 2));
+    assertSameOrder("runs of 100", exp, sort(records, 1, 100, 2));
+    List<Record> few = records.subList(0, 500);
+    assertSameOrder("runs of 1", expected(few), sort(few, 1, 1, 1));
+  }
+
+  /**
+   * Keys of several words are compared as one unsigned number, most
+   * significant word first.
+   * @throws IOException on errors.
+   */
+  @Test
+  public void testMultiWordKeys() throws IOException {
+    for(int words = 2; words <= 3; words++) {
+      List<Record> records = randomRecords(new Random(words), 10000, words, 0);
+      // equal high words, the order is decided by the lower ones
+      for(int i = 0; i < records.size(); i += 2) {
+        records.get(i).key[0] = records.get(i / 2).key[0];
+      }
+      List<Record> exp = expected(records);
+      assertSameOrder(words + " words, single run", exp, sort(records, words, 1 << 20, 2));
+      assertSameOrder(words + " words, runs of 333", exp, sort(records, words, 333, 3));
+    }
+  }
+
+  /**
+   * Input that fits into one run is sorted in memory without run files.
+   * @throws IOException on errors.
+   */
+  @Test
+  public void testSingleRun() throws IOException {
+    List<Record> records = randomRecords(new Random(3), 1000, 2, 50);
+    BinaryExternalSort sort = new BinaryExternalSort(2, tmpDir, 1000, 2);
+    for(Record rec : records) {
+      sort.add(rec.key, rec.payload);
+    }
+    sort.sort();
+    Assert.assertEquals("Run files of a single run", 0, tmpDir.list().length);
+    List<Record> out = new ArrayList<Record>();
+    while(sort.next()) {
+      out.add(new Record(sort.getKey().clone(), sort.getPayload()));
+    }
+    sort.close();
+    assertSameOrder("single run", expected(records), out);
+  }
+
+  /**
+   * Input of several runs is written to run files and merged, and the
+   * files are removed by close().
+   * @throws IOException on errors.
+   */
+  @Test
+  public void testMultiRun() throws IOException {
+    List<Record> records = randomRecords(new Random(4), 10000, 2, 50);
+    BinaryExternalSort sort = new BinaryExternalSort(2, tmpDir, 64, 3);
+    for(Record rec : records) {
+      sort.add(rec.key, rec.payload);
+    }
+    sort.sort();
+    Assert.assertEquals("Run files", (10000 + 63) / 64, tmpDir.list().length);
+    List<Record> out = new ArrayList<Record>();
+    while(sort.next()) {
+      out.add(new Record(sort.getKey().clone(), sort.getPayload()));
+    }
+    Assert.assertFalse("next() after the last record", sort.next());
+    sort.close();
+    Assert.assertEquals("Run files after close()", 0, tmpDir.list().length);
+    assertSameOrder("runs of 64", expected(records), out);
+  }
+
+  /**
+   * An empty input has no records.
+   * @throws IOException on errors.
+   */
+  @Test
+  public void testEmpty() throws IOException {
+    Assert.assertEquals("Records of an empty sort", 0, sort(new ArrayList<Record>(), 1, 16, 1).size());
+  }
+}
@@ -0,0 +1,108 @@
+package de.lmu.ifi.dbs.elki.index;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * JUnit test to test the {@link Hilbert} class: decode() inverts encode(),
+ * and consecutive Hilbert values are neighbouring cells.
+ */
+public class TestHilbert {
+  // Add one to a value of words(dimension) longs, most significant first
+  static void increment(long[] h) {
+    for(int i = h.length - 1; i >= 0; i--) {
+      if(++h[i] != 0) {
+        return;
+      }
+    }
+  }
+
+  // Manhattan distance of two points of unsigned 32 bit coordinates
+  static long distance(int[] c1, int[] c2) {
+    long d = 0;
+    for(int i = 0; i < c1.length; i++) {
+      d += Math.abs((c1[i] & 0xFFFFFFFFL) - (c2[i] & 0xFFFFFFFFL));
+    }
+    return d;
+  }
+
+  /**
+   * decode(encode(c)) is c for all 32 bits of the coordinates.
+   */
+  @Test
+  public void testRoundTrip() {
+    Random r = new Random(1);
+    for(int dimension = 1; dimension <= 5; dimension++) {
+      int[] coord = new int[dimension];
+      for(int n = 0; n < 10000; n++) {
+        for(int i = 0; i < dimension; i++) {
+          coord[i] = r.nextInt();
+        }
+        long[] h = Hilbert.encode(dimension, coord);
+        Assert.assertEquals("Words of a Hilbert value", Zorder.words(dimension), h.length);
+        Assert.assertArrayEquals("Round trip in " + dimension + " dimensions", coord, Hilbert.decode(h, dimension));
+      }
+    }
+  }
+
+  /**
+   * The values 0 .. 2^(d n) - 1 are the cells of the cube of side 2^n at
+   * the origin, each once, one step apart.
+   */
+  @Test
+  public void testFirstCube() {
+    for(int dimension = 2; dimension <= 3; dimension++) {
+      int side = dimension == 2 ? 64 : 16;
+      int cells = (int) Math.pow(side, dimension);
+      boolean[] seen = new boolean[cells];
+      long[] h = new long[Zorder.words(dimension)];
+      int[] last = null;
+      for(int n = 0; n < cells; n++) {
+        int[] c = Hilbert.decode(h, dimension);
+        int cell = 0;
+        for(int i = 0; i < dimension; i++) {
+          Assert.assertTrue("Value " + n + " outside the cube", c[i] >= 0 && c[i] < side);
+          cell = cell * side + c[i];
+        }
+        Assert.assertFalse("Cell of value " + n + " seen before", seen[cell]);
+        seen[cell] = true;
+        if(last != null) {
+          Assert.assertEquals("Distance of value " + n + " to its predecessor", 1, distance(last, c));
+        }
+        last = c;
+        increment(h);
+      }
+    }
+  }
+
+  /**
+   * Consecutive values anywhere on the curve are neighbouring cells, also
+   * where the carry runs into the next word of the value.
+   */
+  @Test
+  public void testAdjacency() {
+    Random r = new Random(2);
+    for(int dimension = 2; dimension <= 4; dimension++) {
+      int[] coord = new int[dimension];
+      for(int start = 0; start < 100; start++) {
+        for(int i = 0; i < dimension; i++) {
+          coord[i] = r.nextInt();
+        }
+        long[] h = Hilbert.encode(dimension, coord);
+        if(start == 0 && h.length > 1) {
+          // just below a carry into the upper word
+          h[h.length - 1] = -100;
+        }
+        int[] last = Hilbert.decode(h, dimension);
+        for(int n = 0; n < 1000; n++) {
+          increment(h);
+          int[] c = Hilbert.decode(h, dimension);
+          Assert.assertEquals("Distance of consecutive values in " + dimension + " dimensions", 1, distance(last, c));
+          last = c;
+        }
+      }
+    }
+  }
+}
@@ -37,11 +37,55 @@ public class BPhase1 extends Configured implements Tool
 		System.out.println("BPhase1");	
 	}
 
+	// Scale of the fractional part of the coordinates
+	public static final int SCALE = 1000;
+
+	/**
+	 * Read the random shift vectors saved by genRandomShiftVectors, one
+	 * line per shift copy.
+	 */
+	public static int[][] readShiftVectors(String file, int shift, 
+		int dimension) throws IOException {
+		int[][] shiftvectors = new int[shift][dimension];
+		BufferedReader br = new BufferedReader(new FileReader(file), 1024);
+		int j = 0;
+		while(true) {
+			String line = br.readLine();
+			if (line == null)
+				break;
+			String[] parts = line.split(" ");	
+			for (int i = 0 ; i < dimension; i++)
+				shiftvectors[j][i] = Integer.valueOf(parts[i]);
+			j++;	
+		}
+		br.close();
+		return shiftvectors;
+	}
+
+	/**
+	 * Scale up the coordinates of a record to integers and add the shift
+	 * vector, null for shift copy 0, which uses the original setting.
+	 */
+	public static void shiftCoord(float[] coord, int[] shiftvector, 
+		int[] converted_coord) {
+		for (int k = 0; k < coord.length; k++) 
+		{
+			float tmp_coord = coord[k];
+			// To prevent precision loss, we need to scale up
+			// the part behide the decimal point to integer.
+			converted_coord[k] = (int) tmp_coord; // Get integer part
+			tmp_coord -= converted_coord[k];  // Get fractional part
+			converted_coord[k] *= SCALE;         // Scale integer part
+			converted_coord[k] += (tmp_coord * SCALE); 
+			if (shiftvector != null)
+				converted_coord[k] += shiftvector[k]; // Add shift
+		}
+	}
+
 	public static class MapClass extends MapReduceBase
 		implements Mapper<LongWritable, Text, TextBytePair, BPhase1Value> 
 	{
 		private int numOfPartition = 0;
-		private int scale = 1000;
 		private int nr = 1000; 
 		private int ns = 1000;     
 		private double epsilon = 0.5; 
@@ -54,10 +98,20 @@ public class BPhase1 extends Configured implements Tool
 		private int shift;
 		private int fileId = 0;
 		private int[][] shiftvectors;
+		// Order the records on the Hilbert curve instead of the z-order
+		private boolean hilbert = false;
+		// Write the shift copies for BPhase2, which otherwise shifts the
+		// original records itself (BPhase2 -shiftinmap)
+		private boolean shiftCopies = true;
+		// Sketch the z-values of every shift copy instead of sampling them,
+		// the sketches are sent to the reducers in close()
+		private boolean sketch = false;
+		private ZSketch[] sketches;
 		private String inputFile = null;
 		private Random r;
 		private MultipleOutputs mos;
 		private Reporter myReporter;
+		private OutputCollector<TextBytePair, BPhase1Value> myOutput;
 		private Path[] localFiles;
 
 		public void configure(JobConf job) 
@@ -66,29 +120,41 @@ public class BPhase1 extends Configured implements Tool
 			shift = Integer.valueOf(job.get("shift"));
 			dimension = Integer.valueOf( job.get("dimension"));
 			numOfPartition = Integer.valueOf(job.get("numOfPartition"));
-			nr = Integer.valueOf(job.get("Rsize"));
-			ns = Integer.valueOf(job.get("Ssize"));
-			System.out.println(ns);
 			epsilon = Double.valueOf(job.get("epsilon"));
 			System.out.println(epsilon);
 			knn = Integer.valueOf(job.get("knn"));
-
-			sampleRateOfR = 1 / (epsilon * epsilon * nr);	
-			sampleRateOfS = 1 / (epsilon * epsilon * ns);
+			hilbert = job.getBoolean("hilbert", false);
+			shiftCopies = job.getBoolean("shiftCopies", true);
+			sketch = job.getBoolean("sketch", false);
 
 			r = new Random();
-			
-			if (sampleRateOfR > 1) sampleRateOfR = 1;		
-			if (sampleRateOfS > 1) sampleRateOfS = 1;		
 
-			if (sampleRateOfR * nr < 1) {
-				System.out.printf("Increase sampling rate of R :  %d\n", sampleRateOfR);
-				System.exit(-1);	
-			}
+			if (sketch) {
+				// The sizes of R and S are not needed
+				int k = job.getInt("sketchK", ZSketch.kOf(epsilon));
+				sketches = new ZSketch[shift];
+				for (int i = 0; i < shift; i++)
+					sketches[i] = new ZSketch(k, r);
+			} else {
+				nr = Integer.valueOf(job.get("Rsize"));
+				ns = Integer.valueOf(job.get("Ssize"));
+				System.out.println(ns);
+
+				sampleRateOfR = 1 / (epsilon * epsilon * nr);	
+				sampleRateOfS = 1 / (epsilon * epsilon * ns);
+				
+				if (sampleRateOfR > 1) sampleRateOfR = 1;		
+				if (sampleRateOfS > 1) sampleRateOfS = 1;		
+
+				if (sampleRateOfR * nr < 1) {
+					System.out.printf("Increase sampling rate of R :  %d\n", sampleRateOfR);
+					System.exit(-1);	
+				}
 
-			if (sampleRateOfS * ns < 1) {
-				System.out.printf("Increase sampling rate of R :  %d\n", sampleRateOfS);
-				System.exit(-1);	
+				if (sampleRateOfS * ns < 1) {
+					System.out.printf("Increase sampling rate of R :  %d\n", sampleRateOfS);
+					System.exit(-1);	
+				}
 			}
 
 			if (inputFile.indexOf("outer") != -1)  
@@ -110,19 +176,8 @@ public class BPhase1 extends Configured implements Tool
 
 			shiftvectors = new int[shift][dimension];
 			try {
-				BufferedReader br = new BufferedReader( 
-					new FileReader( localFiles[0].toString() ), 1024);
-				int j = 0;
-				while(true) {
-					String line = br.readLine();
-					if (line == null)
-						break;
-					String[] parts = line.split(" ");	
-					for (int i = 0 ; i < dimension; i++)
-						shiftvectors[j][i] = Integer.valueOf(parts[i]);
-					j++;	
-				}
-				br.close();
+				shiftvectors = readShiftVectors(localFiles[0].toString(), 
+					shift, dimension);
 			} catch (IOException e) {
 				System.err.println("Caught exception while reading" + 
 						" distributed cache files: ");
@@ -132,7 +187,8 @@ public class BPhase1 extends Configured implements Tool
 
 		/**
 		* In map stage, the algorithm generates random shifts for the original
-		* datasets(R and S) and save these shifts on HDFS; additonally it 
+		* datasets(R and S) and save these shifts on HDFS (unless -nocopies,
+		* then BPhase2 shifts the original datasets); additonally it 
 		* samples small datasets and pass them to the reduce stage. 
 		*/
 		public void map(LongWritable key, Text value, 
@@ -140,6 +196,7 @@ public class BPhase1 extends Configured implements Tool
 			Reporter reporter) throws IOException {
 
 			myReporter = reporter;
+			myOutput = output;
 
 			String line = value.toString();
 			String zval = null;
@@ -154,50 +211,26 @@ public class BPhase1 extends Configured implements Tool
 			}
 
 			// generate m random shift copies	
+			int[] converted_coord = new int[dimension];
 			for (int i = 0; i < shift; i++)	
 			{
-				float[] tmp_coord = new float[dimension];
 				// Scale up coordinates and add random shift vector
-				int[] converted_coord = new int[dimension];
-				for (int k = 0; k < dimension; k++) 
-				{
-					tmp_coord[k] = coord[k];
-					// To prevent precision loss, we need to scale up
-					// the part behide the decimal point to integer.
-					converted_coord[k] = (int) tmp_coord[k]; // Get integer part
-					tmp_coord[k] -= converted_coord[k];  // Get fractional part
-					converted_coord[k] *= scale;         // Scale integer part
-					converted_coord[k] += (tmp_coord[k] * scale); 
-					if (i != 0)   //for shift 0 we use the original setting
-						converted_coord[k] += shiftvectors[i][k]; // Add shift
-				}
+				shiftCoord(coord, i != 0 ? shiftvectors[i] : null, 
+					converted_coord);
 
-				zval = Zorder.valueOf(dimension, converted_coord);
-		
-				if (fileId == 0) 
-					sampleRate = sampleRateOfR;
-				else if (fileId == 1)
-					sampleRate = sampleRateOfS;
-				else {
-					System.out.println("Wrong source file!");
-					System.exit(-1);	
-				}
+				long[] z = hilbert ? Hilbert.encode(dimension, converted_coord)
+					: Zorder.encode(dimension, converted_coord);
+				zval = Zorder.toDecimal(z, dimension);
 
-				boolean sampled = false;	
-				if (r.nextDouble() < sampleRate)
-					sampled = true;
-				if (sampled) {
-					output.collect(new TextBytePair(zval, (byte)i),
-					new BPhase1Value(zval, Integer.valueOf(id), (byte)fileId));
-					/*
-						mos.getCollector("mytest", reporter).collect(
-							new Text(zval + " " + Integer.toString(i)), 
-							new Text(zval + " " + id)	
-						);
-					*/
+				if (sketch) {
+					sketches[i].update(z);
+				} else {
+					sample(zval, z, i, id, output);
 				}
 
-				Text mapResKey = new Text(Integer.toString(i));
+				if (!shiftCopies)
+					continue;
+
 				String mapResValueStr = zval + " " +  id + " " +  Integer.toString(fileId) + " " + Integer.toString(i); 
 				Text mapResValue = new Text(mapResValueStr);
 			
@@ -214,7 +247,48 @@ public class BPhase1 extends Configured implements Tool
 			}
 		}
 
+		// Send the z-value of shift copy i to the reducer with the sample
+		// rate of its dataset
+		private void sample(String zval, long[] z, int i, String id,
+			OutputCollector<TextBytePair, BPhase1Value> output) 
+			throws IOException {
+			if (fileId == 0) 
+				sampleRate = sampleRateOfR;
+			else if (fileId == 1)
+				sampleRate = sampleRateOfS;
+			else {
+				System.out.println("Wrong source file!");
+				System.exit(-1);	
+			}
+
+			boolean sampled = false;	
+			if (r.nextDouble() < sampleRate)
+				sampled = true;
+			if (sampled) {
+				output.collect(new TextBytePair(zval, (byte)i),
+				new BPhase1Value(z, Integer.valueOf(id), (byte)fileId));
+				/*
+					mos.getCollector("mytest", reporter).collect(
+						new Text(zval + " " + Integer.toString(i)), 
+						new Text(zval + " " + id)	
+					);
+				*/
+			}
+		}
+
 		public void close() throws IOException {
+			// The items of the sketches, the rid of an item is its weight
+			if (sketch && myOutput != null) {
+				for (int i = 0; i < shift; i++) {
+					for (int h = 0; h < sketches[i].getNumLevels(); h++) {
+						for (long[] z : sketches[i].getLevel(h)) {
+							myOutput.collect(new TextBytePair(
+								Zorder.toDecimal(z, dimension), (byte)i),
+								new BPhase1Value(z, 1 << h, (byte)fileId));
+						}
+					}
+				}
+			}
 			mos.close();	
 		}
 	}
@@ -236,6 +310,10 @@ public class BPhase1 extends Configured implements Tool
 		int knn = 3;
 		boolean partitionOnR = false;
 		boolean selfjoin = false;
+		boolean sketch = false;
+		// A range costing more than split times the mean of its shift is
+		// cut into sub-ranges, 0 keeps the ranges
+		float split = 0;
 		MultipleOutputs mos; 
 
 		public void configure(JobConf job) 
@@ -243,8 +321,11 @@ public class BPhase1 extends Configured implements Tool
 			knn = Integer.valueOf(job.get("knn"));
 			shift = Integer.valueOf(job.get("shift"));     
 			numOfPartition = Integer.valueOf(job.get("numOfPartition")); 
-			nr = Integer.valueOf(job.get("Rsize"));
-			ns = Integer.valueOf(job.get("Ssize"));
+			sketch = job.getBoolean("sketch", false);
+			split = job.getFloat("splitFactor", 0);
+			// The sketches count R and S themselves
+			nr = job.getInt("Rsize", nr);
+			ns = job.getInt("Ssize", ns);
 			dimension = Integer.valueOf( job.get("dimension"));
 			epsilon = Float.valueOf(job.get("epsilon"));
 			sampleRateOfR = 1 / (epsilon * epsilon * nr);	
@@ -292,38 +373,434 @@ public class BPhase1 extends Configured implements Tool
 			return estRank;
 		}	
 
+		/**
+		 * Sorted z-values with weights, the ranks of the merged sketches. A
+		 * null value stands for the end of the space (maxDecString), which
+		 * does not fit into the words of a z-value.
+		 */
+		static class WeightedList {
+			long[][] zvals = new long[1024][];
+			long[] weights = new long[1024];
+			long[] cum = new long[1024];   // sum of the weights up to i
+			int size = 0;
+
+			void add(long[] zval, long weight) {
+				int n = size;
+				if (n == weights.length) {
+					zvals = Arrays.copyOf(zvals, n * 2);
+					weights = Arrays.copyOf(weights, n * 2);
+					cum = Arrays.copyOf(cum, n * 2);
+				}
+				zvals[n] = zval;
+				weights[n] = weight;
+				cum[n] = (n > 0 ? cum[n - 1] : 0) + weight;
+				size++;
+			}
+
+			int size() {
+				return size;
+			}
+
+			long total() {
+				return size == 0 ? 0 : cum[size - 1];
+			}
+
+			long[] get(int i) {
+				return zvals[i];
+			}
+
+			// 1-based index of the value of rank i / numOfPartition
+			int quantile(int i, int numOfPartition) {
+				long rank = (long) Math.ceil(i * (double) total() / numOfPartition);
+				int lo = 0, hi = size() - 1;
+				while (lo < hi) {
+					int mid = (lo + hi) >>> 1;
+					if (cum[mid] < rank)
+						lo = mid + 1;
+					else
+						hi = mid;
+				}
+				return lo + 1;
+			}
+
+			// The index of a value equal to zval, or -(insertion point) - 1,
+			// as Collections.binarySearch
+			int search(long[] zval) {
+				int lo = 0, hi = size - 1;
+				while (lo <= hi) {
+					int mid = (lo + hi) >>> 1;
+					int cmp = compare(zvals[mid], zval);
+					if (cmp < 0)
+						lo = mid + 1;
+					else if (cmp > 0)
+						hi = mid - 1;
+					else
+						return mid;
+				}
+				return -(lo + 1);
+			}
+
+			// The index of the first value >= zval, or size()
+			int lowerBound(long[] zval) {
+				int i = search(zval);
+				if (i < 0)
+					return -i - 1;
+				while (i > 0 && compare(zvals[i - 1], zval) == 0)
+					i--;
+				return i;
+			}
+
+			// The index of the first value > zval, or size()
+			int upperBound(long[] zval) {
+				int i = search(zval);
+				if (i < 0)
+					return -i - 1;
+				while (i < size() && compare(zvals[i], zval) == 0)
+					i++;
+				return i;
+			}
+
+			// The weight of the values [from, to)
+			long weight(int from, int to) {
+				if (from >= to)
+					return 0;
+				return cum[to - 1] - (from > 0 ? cum[from - 1] : 0);
+			}
+
+			// The index before i such that the values in between weigh at
+			// least knn, or 0
+			int back(int i, int knn) {
+				long w = 0;
+				while (i > 0 && w < knn)
+					w += weights[--i];
+				return i;
+			}
+
+			// The index after i such that the values in between weigh at
+			// least knn, or the last index
+			int forward(int i, int knn) {
+				long w = 0;
+				while (i < size() - 1 && w < knn)
+					w += weights[++i];
+				return i;
+			}
+		}
+
+		// Compare z-values, null is the end of the space
+		static int compare(long[] z1, long[] z2) {
+			if (z1 == null || z2 == null)
+				return (z1 == z2) ? 0 : (z1 == null ? 1 : -1);
+			return Zorder.compare(z1, z2);
+		}
+
+		/**
+		 * A range [low, high] of z-values, written as decimal z-values like
+		 * the keys of BPhase2. The ranges of S partitioned on S also carry
+		 * the ranks of their bounds in the sample.
+		 */
+		static class Range {
+			long[] low, high;
+			String ranks = "";
+
+			Range(long[] low, long[] high) {
+				this.low = low;
+				this.high = high;
+			}
+		}
+
+		String decimal(long[] zval) {
+			return (zval == null) ? Zorder.maxDecString(dimension)
+				: Zorder.toDecimal(zval, dimension);
+		}
+
+		Text format(long[] low, long[] high, String ranks) {
+			return new Text(decimal(low) + " " + decimal(high) + ranks);
+		}
+
+		/**
+		 * The estimated time of a reducer of BPhase2 joining nr records of
+		 * R with ns of S: sorting both, and the 2 k + 1 candidates of a
+		 * record of R.
+		 */
+		double joinCost(double nr, double ns) {
+			double n = nr + ns;
+			return nr * (2 * knn + 1) + n * Math.log(n + 2) / Math.log(2);
+		}
+
+		/**
+		 * Writes the ranges of a shift. With -split, the cost of a range is
+		 * estimated from the weights of the values of R and S in it (times
+		 * rScale and sScale, the records a weight stands for), and a range
+		 * costing more than split times the mean of the shift is cut into
+		 * sub-ranges of about the mean cost, see splitRange(). 
+		 */
+		void writeRanges(String sidStr, List<Range> Rranges,
+		List<Range> Sranges, WeightedList Rlist, WeightedList Slist,
+		double rScale, double sScale, int pad, Reporter reporter) 
+		throws IOException
+		{
+			int n = Rranges.size();
+			double[] cost = new double[n];
+			double mean = 0;
+			if (split > 0 && Slist.size() > 0) {
+				for (int i = 0; i < n; i++) {
+					Range r = Rranges.get(i);
+					Range s = Sranges.get(i);
+					cost[i] = joinCost(
+						rScale * Rlist.weight(Rlist.lowerBound(r.low), Rlist.upperBound(r.high)),
+						sScale * Slist.weight(Slist.lowerBound(s.low), Slist.upperBound(s.high)));
+					mean += cost[i] / n;
+				}
+			}
+
+			@SuppressWarnings("unchecked")
+			OutputCollector<Text, Text> Rout = 
+				mos.getCollector("Rrange" + sidStr, reporter),
+				Sout = mos.getCollector("Srange" + sidStr, reporter);
+			for (int i = 0; i < n; i++) {
+				Range r = Rranges.get(i);
+				Range s = Sranges.get(i);
+				int parts = 1;
+				if (mean > 0 && cost[i] > split * mean)
+					parts = (int) Math.ceil(cost[i] / mean);
+				if (parts > 1) {
+					parts = splitRange(r.low, r.high, s.low, s.high, parts, Rlist,
+						Slist, rScale, sScale, pad, Rout, Sout);
+					System.out.println("Range " + i + " of shift " + sidStr
+						+ " is split into " + parts + " sub-ranges");
+				} else {
+					Rout.collect(new Text(" "), format(r.low, r.high, r.ranks));
+					Sout.collect(new Text(" "), format(s.low, s.high, s.ranks));
+				}
+			}
+		}
+
+		/**
+		 * Cuts the range [rLow, rHigh] of R, [sLow, sHigh] of S, into up to
+		 * parts sub-ranges with the same weight of R and S, a record of R
+		 * weighing its 2 k + 1 candidates more. The cuts are values of the
+		 * samples inside the range of R, so a sub-range shares its bounds
+		 * with its neighbours like the ranges do. The range of S of a 
+		 * sub-range is padded by pad values of S before and after it, as in
+		 * reduce(), but stays within [sLow, sHigh], which is already padded
+		 * for the whole range.
+		 *
+		 * @return the number of sub-ranges written
+		 */
+		int splitRange(long[] rLow, long[] rHigh, long[] sLow, long[] sHigh,
+		int parts, WeightedList Rlist, WeightedList Slist, double rScale,
+		double sScale, int pad, OutputCollector<Text, Text> Rout, 
+		OutputCollector<Text, Text> Sout)
+		throws IOException
+		{
+			int ri = Rlist.lowerBound(rLow), rEnd = Rlist.upperBound(rHigh);
+			int si = Slist.lowerBound(rLow), sEnd = Slist.upperBound(rHigh);
+			double nr = rScale * Rlist.weight(ri, rEnd);
+			double ns = sScale * Slist.weight(si, sEnd);
+			double log = Math.log(nr + ns + 2) / Math.log(2);
+			double rUnit = rScale * (2 * knn + 1 + log), sUnit = sScale * log;
+			double total = rUnit * Rlist.weight(ri, rEnd) 
+				+ sUnit * Slist.weight(si, sEnd);
+
+			// Merge the values of R and S in z-order, cut at j / parts of
+			// the total weight
+			List<long[]> bounds = new ArrayList<long[]>();
+			bounds.add(rLow);
+			double w = 0;
+			while ((ri < rEnd || si < sEnd) && bounds.size() < parts) {
+				long[] zval;
+				if (si >= sEnd || (ri < rEnd 
+					&& Zorder.compare(Rlist.get(ri), Slist.get(si)) <= 0)) {
+					zval = Rlist.get(ri);
+					w += rUnit * Rlist.weights[ri++];
+				} else {
+					zval = Slist.get(si);
+					w += sUnit * Slist.weights[si++];
+				}
+				if (w >= total * bounds.size() / parts 
+					&& compare(zval, bounds.get(bounds.size() - 1)) > 0
+					&& compare(zval, rHigh) < 0)
+					bounds.add(zval);
+			}
+			bounds.add(rHigh);
+
+			int m = bounds.size() - 1;
+			for (int j = 0; j < m; j++) {
+				long[] low = bounds.get(j), high = bounds.get(j + 1);
+				long[] s_start = sLow, s_end = sHigh;
+				if (j > 0) {
+					s_start = Slist.get(Slist.back(Slist.lowerBound(low), pad));
+					if (compare(s_start, sLow) < 0)
+						s_start = sLow;
+				}
+				if (j < m - 1) {
+					int high_i = Math.min(Slist.lowerBound(high), Slist.size() - 1);
+					s_end = Slist.get(Slist.forward(high_i, pad));
+					if (compare(s_end, sHigh) > 0)
+						s_end = sHigh;
+				}
+				Rout.collect(new Text(" "), format(low, high, ""));
+				Sout.collect(new Text(" "), format(s_start, s_end, ""));
+			}
+			return m;
+		}
+
+		/**
+		 * The partition ranges from the sketches of the mappers. As in
+		 * reduce(), but the rank of a value is the weight of the values
+		 * before it, and the knn records of S before and after a range are
+		 * the values of S weighing knn, instead of knn times the sample 
+		 * rate.
+		 */
+		public void reduceSketch(TextBytePair key, Iterator<BPhase1Value> values,
+		Reporter reporter) throws IOException 
+		{
+			WeightedList Rlist = new WeightedList();
+			WeightedList Slist = new WeightedList();
+
+			String sidStr = key.getSecond().toString();
+
+			// value format <zval, weight, src>
+			while (values.hasNext()) 
+			{
+				BPhase1Value bp1v = values.next();
+				long[] zval = bp1v.getFirst().clone();
+				if (bp1v.getThird() == 0)	 {
+					Rlist.add(zval, bp1v.getSecond());
+				} else {
+					Slist.add(zval, bp1v.getSecond());
+				}
+			}
+
+			int Ssize = Slist.size();
+			long[] min = new long[Zorder.words(dimension)];
+			List<Range> Rranges = new ArrayList<Range>();
+			List<Range> Sranges = new ArrayList<Range>();
+
+			if (partitionOnR) {
+				long[] q_start = min;
+
+				for (int i = 1; i <= numOfPartition; i++) {
+					long[] q_end;
+					if (i == numOfPartition) {
+						q_end = null;
+					} else
+						q_end = Rlist.get(Rlist.quantile(i, numOfPartition) - 1);
+
+					Rranges.add(new Range(q_start, q_end));
+
+					long[] s_start;
+					if (i == 1) {
+						s_start = min;
+					} else {
+						int low = Slist.search(q_start);
+						if (low < 0)
+							low = -low - 1;
+						s_start = Slist.get(Slist.back(low, knn));
+					}
+
+					long[] s_end;
+					if (i == numOfPartition) {
+						s_end = null;
+					} else {
+						int high = Slist.search(q_end);
+						if (high < 0)
+							high = -high - 1;
+						s_end = Slist.get(Slist.forward(Math.min(high, Ssize - 1), knn));
+					}
+
+					Sranges.add(new Range(s_start, s_end));
+
+					q_start = q_end; 
+				} // for
+			} else {
+				long[] q_start;
+				int lowEstRank = 1;
+				for (int i = 1; i <= numOfPartition; i++) {
+					//Determine the partition range for S
+					int estRank = Slist.quantile(i, numOfPartition);
+					int low = lowEstRank;
+					int high = estRank;
+					// Need to duplicate some points here
+					if (i > 1)
+						lowEstRank = Slist.back(lowEstRank - 1, knn) + 1;
+
+					if (i == 1) {
+						q_start = min;
+					} else
+						q_start = Slist.get(lowEstRank - 1);
+
+					if (i == numOfPartition) {
+						estRank = Ssize;
+						high = estRank;
+					} else
+						estRank = Slist.forward(estRank - 1, knn) + 1;
+
+					long[] q_end;
+					if (i == numOfPartition) {
+						q_end = null;
+					} else
+						q_end = Slist.get(estRank - 1);
+
+					Range s = new Range(q_start, q_end);
+					s.ranks = " " + lowEstRank + " " + estRank;
+					Sranges.add(s);
+
+					long[] r_start, r_end;
+					if (i == 1)
+						r_start = q_start;
+					else
+						r_start = Slist.get(low - 1);
+					if (i == numOfPartition)
+						r_end = q_end;
+					else
+						r_end = Slist.get(high - 1);
+
+					Rranges.add(new Range(r_start, r_end));
+
+					lowEstRank = high;
+				} //for
+			} // else partitionOnS
+
+			writeRanges(sidStr, Rranges, Sranges, Rlist, Slist, 1, 1, knn,
+				reporter);
+		} // reduceSketch
+
 		public void reduce(TextBytePair key, Iterator<BPhase1Value> values,
 		OutputCollector<Text, Text> output, Reporter reporter) throws IOException 
 		{
-			ArrayList<String> RtmpList = new ArrayList<String>();
-			ArrayList<String> StmpList = new ArrayList<String>();
-			ArrayList<Integer> RridList = new ArrayList<Integer>();
-			ArrayList<Integer> SridList = new ArrayList<Integer>();
+			if (sketch) {
+				reduceSketch(key, values, reporter);
+				return;
+			}
+
+			// The sampled records, every one weighing one (it stands for
+			// 1 / sampleRate records, see writeRanges())
+			WeightedList Rlist = new WeightedList();
+			WeightedList Slist = new WeightedList();
 
 			String sidStr = key.getSecond().toString();
 
 			// value format <zval, rid, src>
-			int zOffset = 0;
-			int ridOffset = 1;
-			int srcOffset = 2;
 			while (values.hasNext()) 
 			{
-				String line = values.next().toString();
-				String[] parts = line.split(" +");
-				if (Integer.valueOf(parts[srcOffset]) == 0)	 {
-					RtmpList.add(parts[zOffset]);
+				BPhase1Value bp1v = values.next();
+				long[] zval = bp1v.getFirst().clone();
+				if (bp1v.getThird() == 0)	 {
+					Rlist.add(zval, 1);
 				} else {
-					StmpList.add(parts[zOffset]);
+					Slist.add(zval, 1);
 				}
-			} 
+			}
 
-			int Rsize = RtmpList.size(); 
-			int Ssize = StmpList.size();
+			int Rsize = Rlist.size();
+			int Ssize = Slist.size();
+			long[] min = new long[Zorder.words(dimension)];
+			List<Range> Rranges = new ArrayList<Range>();
+			List<Range> Sranges = new ArrayList<Range>();
 
 			if (partitionOnR) {
-				String q_start = "";
-				int len = Zorder.maxDecDigits(dimension);
-				q_start = Zorder.createExtra(len);
+				long[] q_start = min;
 
 				for (int i = 1; i <= numOfPartition; i++) {
 
@@ -332,23 +809,22 @@ public class BPhase1 extends Configured implements Tool
 					if (estRank - 1 >= Rsize)
 						estRank = Rsize;
 
-					String q_end;
+					long[] q_end;
 					if (i == numOfPartition) {
-						q_end = Zorder.maxDecString(dimension);	
+						q_end = null;
 					} else
-						q_end = RtmpList.get(estRank - 1);
-    
-					mos.getCollector("Rrange" + sidStr, reporter).collect(
-							new Text(" "), new Text(q_start + " " + q_end));
-    
+						q_end = Rlist.get(estRank - 1);
+
+					Rranges.add(new Range(q_start, q_end));
+
 					int low;
-					if (i == 1) 
+					if (i == 1)
 						low = 0;
 					else {
 						int newKnn = 
 							(int)Math.ceil((double) knn / (epsilon*epsilon*ns));
 						//newKnn = knn;
-						low = Collections.binarySearch(StmpList, q_start);
+						low = Slist.search(q_start);
 						if (low < 0)
 							low = -low - 1;
 						if ((low - newKnn) < 0)
@@ -357,13 +833,12 @@ public class BPhase1 extends Configured implements Tool
 							low -= newKnn;
 					}
 
-					String s_start;
+					long[] s_start;
 					if (i == 1) {
-						len = Zorder.maxDecDigits(dimension);
-						s_start = Zorder.createExtra(len);
+						s_start = min;
 					} else
-						s_start = StmpList.get(low);
-					
+						s_start = Slist.get(low);
+
 					int high;
 					if (i == numOfPartition) {
 						high = Ssize - 1;	
@@ -371,36 +846,35 @@ public class BPhase1 extends Configured implements Tool
 						int newKnn = (int)Math.ceil(
 							(double) knn / (epsilon*epsilon*ns));
 					//	newKnn = knn;
-                    
-						high = Collections.binarySearch(StmpList, q_end);
+
+						high = Slist.search(q_end);
 						if (high < 0)
 							high = -high - 1;
 						if ((high + newKnn) > Ssize -1)
 							high = Ssize -1;
-						else 
+						else
 							high += newKnn; 
 					}
-                    
-					String s_end;
+
+					long[] s_end;
 					if (i == numOfPartition) {
-						s_end = Zorder.maxDecString(dimension);	
-					} else { 
-						s_end = StmpList.get(high);
+						s_end = null;
+					} else {
+						s_end = Slist.get(high);
 					}
-					
-					mos.getCollector("Srange" + sidStr, reporter).collect(
-							new Text(" "), new Text(s_start + " " + s_end));
+
+					Sranges.add(new Range(s_start, s_end));
 
 					q_start = q_end; 
 				} // for
 			} else {
-				String q_start = StmpList.get(0);
+				long[] q_start = Slist.get(0);
 				int lowEstRank = 1;
 				for (int i = 1; i <= numOfPartition; i++) {
 					//Determine the partition range for S
 					int estRank = getEstimatorIndex(i, ns, sampleRateOfS,
 							numOfPartition);	
-    
+
 					if (estRank - 1 >= Ssize)
 						estRank = Ssize;
 
@@ -419,12 +893,11 @@ public class BPhase1 extends Configured implements Tool
 						if (lowEstRank <= 0)
 							lowEstRank = 1;
 					}
-	
+
 					if (i == 1) {
-						int len = Zorder.maxDecDigits(dimension);
-						q_start = Zorder.createExtra(len);
+						q_start = min;
 					} else
-						q_start = StmpList.get(lowEstRank - 1);
+						q_start = Slist.get(lowEstRank - 1);
 
 					if (i == numOfPartition) {
 						estRank = Ssize;
@@ -439,32 +912,29 @@ public class BPhase1 extends Configured implements Tool
 							estRank = Ssize;
 					}
 
-					String q_end;
+					long[] q_end;
 					if (i == numOfPartition) {
-						q_end = Zorder.maxDecString(dimension);	
+						q_end = null;
 					} else
-						q_end = StmpList.get(estRank - 1);
+						q_end = Slist.get(estRank - 1);
+
+					Range s = new Range(q_start, q_end);
+					s.ranks = " " + lowEstRank + " " + estRank;
+					Sranges.add(s);
 
-					mos.getCollector("Srange" + sidStr, reporter).collect(
-							new Text(" "), new Text(q_start + " " + q_end
-								+ " " + Integer.toString(lowEstRank) + 
-								" " + Integer.toString(estRank)
-								));
+					long[] r_start, r_end;
 
-					String r_start, r_end;
-                    
 					if (i == 1)
 						r_start = q_start;
 					else
-						r_start = StmpList.get(low - 1);
-                    
+						r_start = Slist.get(low - 1);
+
 					 if (i == numOfPartition)
 						 r_end = q_end;
 					else
-					 	r_end = StmpList.get(high - 1);
-                    
-					mos.getCollector("Rrange" + sidStr, reporter).collect(
-						new Text(" "), new Text(r_start + " " + r_end));
+					 	r_end = Slist.get(high - 1);
+
+					Rranges.add(new Range(r_start, r_end));
 
 					//lowEstRank = estRank;
 					lowEstRank = high;
@@ -472,6 +942,9 @@ public class BPhase1 extends Configured implements Tool
 				} //for
 			} // else partitionOnS
 
+			int newKnn = (int) Math.ceil((double) knn / (epsilon*epsilon*ns));
+			writeRanges(sidStr, Rranges, Sranges, Rlist, Slist, 
+				1 / sampleRateOfR, 1 / sampleRateOfS, newKnn, reporter);
 		} // reduce
 
 		public void close() throws IOException {
@@ -497,7 +970,25 @@ public class BPhase1 extends Configured implements Tool
 	// Customize the map key comparator
 	public static class KeyComparator extends WritableComparator {
 		protected KeyComparator() {
-			super(TextBytePair.class, true);	
+			super(TextBytePair.class);
+		}
+
+		// Compare serialized keys <zval, shift id> (Text, byte) directly: first
+		// the trailing byte, then the fixed length decimal zval bytes.
+		@Override
+		public int compare(byte[] b1, int s1, int l1,
+			byte[] b2, int s2, int l2) {
+			int cmp = b1[s1 + l1 - 1] - b2[s2 + l2 - 1];
+			if (cmp != 0) return cmp;
+
+			try {
+				int n1 = WritableUtils.decodeVIntSize(b1[s1]);
+				int n2 = WritableUtils.decodeVIntSize(b2[s2]);
+				return compareBytes(b1, s1 + n1, readVInt(b1, s1),
+					b2, s2 + n2, readVInt(b2, s2));
+			} catch (IOException e) {
+				throw new IllegalArgumentException(e);
+			}
 		}
 
 		@Override
@@ -516,7 +1007,14 @@ public class BPhase1 extends Configured implements Tool
 
 	public static class GroupComparator extends WritableComparator {
 		protected GroupComparator() {
-			super(TextBytePair.class, true);	
+			super(TextBytePair.class);
+		}
+
+		// Shift id is the last byte of a serialized key
+		@Override
+		public int compare(byte[] b1, int s1, int l1,
+			byte[] b2, int s2, int l2) {
+			return b1[s1 + l1 - 1] - b2[s2 + l2 - 1];
 		}
 
 		@Override
@@ -563,7 +1061,8 @@ public class BPhase1 extends Configured implements Tool
 			"BPhase1 -m <maps> -r <reduces> -s <numberOfShifts> "
 			+ "-p <numberOfPartitions>  -nr <numberOfRecordsFromR> " 
 			+ "-ns <numberOfRecordsFromS> -e <epsilon> -d <dimension> " 
-			+ "-k <knn> -pr <partitionOnR> -c <cluster_config> "
+			+ "-k <knn> -pr <partitionOnR> -c <cluster_config> [-hilbert] "
+			+ "[-nocopies] [-sketch [-sk <sketch size>]] [-split <factor>] "
 			// + "-sj <self_join> " 
 			+ "-outer <R> -inner <S> <output>");
 		ToolRunner.printGenericCommandUsage(System.out);
@@ -638,6 +1137,16 @@ public class BPhase1 extends Configured implements Tool
 				} else if ("-c".equals(args[i])) {
 					clusterConfiguration = args[++i];
 					conf.set("clusterconfiguration", clusterConfiguration); 
+				} else if ("-hilbert".equals(args[i])) {
+					conf.setBoolean("hilbert", true);
+				} else if ("-nocopies".equals(args[i])) {
+					conf.setBoolean("shiftCopies", false);
+				} else if ("-sketch".equals(args[i])) {
+					conf.setBoolean("sketch", true);
+				} else if ("-sk".equals(args[i])) {
+					conf.setInt("sketchK", Integer.parseInt(args[++i]));
+				} else if ("-split".equals(args[i])) {
+					conf.setFloat("splitFactor", Float.parseFloat(args[++i]));
 /*				} else if ("-sj".equals(args[i])) {
 					selfjoin = Boolean.parseBoolean(args[++i]);
 					conf.set("selfjoin", Boolean.toString(selfjoin)); 
@@ -663,13 +1172,16 @@ public class BPhase1 extends Configured implements Tool
 		}
 
 		// Define output files for map stage
+		boolean shiftCopies = conf.getBoolean("shiftCopies", true);
 		for (int i = 0; i < shift; i++) {
-			MultipleOutputs.addNamedOutput(conf, "Rconverted" + 
-					Integer.toString(i), 
-					TextOutputFormat.class,	NullWritable.class, Text.class);
-			MultipleOutputs.addNamedOutput(conf, "Sconverted" +
-					Integer.toString(i), 
-					TextOutputFormat.class, NullWritable.class, Text.class);
+			if (shiftCopies) {
+				MultipleOutputs.addNamedOutput(conf, "Rconverted" + 
+						Integer.toString(i), 
+						TextOutputFormat.class,	NullWritable.class, Text.class);
+				MultipleOutputs.addNamedOutput(conf, "Sconverted" +
+						Integer.toString(i), 
+						TextOutputFormat.class, NullWritable.class, Text.class);
+			}
 			MultipleOutputs.addNamedOutput(conf, 
 					"Rrange" + Integer.toString(i),
 					TextOutputFormat.class, Text.class, Text.class);
@@ -91,7 +91,8 @@ public class BPhase2 extends Configured implements Tool {
 				list.add(line.trim());
 			}
 	    
-			if (list.size() != numOfPartition) {
+			// BPhase1 -split adds the sub-ranges of hot ranges
+			if (list.size() < numOfPartition) {
 				System.out.println(id);	
 				System.out.println("List size is wrong");	
 				System.out.println(list.size());	
@@ -107,6 +108,23 @@ public class BPhase2 extends Configured implements Tool {
         }
 	} // fillMark
 
+	/**
+	 * Parse a range boundary into a binary z-value. maxDecString() is
+	 * 2^(32 * dimension), which does not fit into words(dimension) longs
+	 * for an even dimension, so it is mapped to the largest z-value.
+	 */
+	public static long[] parseBound(String bound, int dimension) {
+		if (bound.compareTo(Zorder.maxDecString(dimension)) >= 0) {
+			long[] z = new long[Zorder.words(dimension)];
+			Arrays.fill(z, -1L);
+			int topBits = (dimension * Zorder.BITS) % 64;
+			if (topBits != 0)
+				z[0] = (1L << topBits) - 1;
+			return z;
+		}
+		return Zorder.fromDecimal(bound, dimension);
+	}
+
 	public static class MapClass extends MapReduceBase
 		implements Mapper<LongWritable, Text, BPhase2Key, BPhase2Value> {
    
@@ -130,45 +148,107 @@ public class BPhase2 extends Configured implements Tool {
 		private ArrayList<ArrayList<String>> Smark = 
 			new ArrayList<ArrayList<String>>();
 
+		// Range boundaries of [src][sid] as binary z-values, the z-value
+		// of partition pid starts at pid * words
+		private int words;
+		// The number of ranges of shift sid, and the group of its first
+		// range; the groups of all shifts are numbered consecutively
+		private int[] rangeCount;
+		private int[] groupBase;
+		private long[][][] rangeLow;
+		private long[][][] rangeHigh;
+		// Whether both boundaries are nondecreasing in pid, which is how
+		// BPhase1 computes them; otherwise ranges are scanned linearly
+		private boolean[][] sorted;
+		private int[] pidList;
+
+		// Map the original records of R and S instead of the shift copies
+		// of BPhase1 and compute their shifted z-values here
+		private boolean shiftInMapper = false;
+		private boolean hilbert = false;
+		private int[][] shiftvectors;
+		private float[] coord;
+		private int[] convertedCoord;
+
+		private void fillRanges(int src, int sid, ArrayList<String> mark) {
+			int n = mark.size();
+			long[] low = new long[n * words];
+			long[] high = new long[n * words];
+			boolean isSorted = true;
+			for (int i = 0; i < n; i++) {
+				String[] parts = mark.get(i).split(" +");
+				System.arraycopy(parseBound(parts[0], dimension), 0, 
+					low, i * words, words);
+				System.arraycopy(parseBound(parts[1], dimension), 0, 
+					high, i * words, words);
+				if (i > 0 && (compare(low, i * words, low, (i - 1) * words) < 0
+					|| compare(high, i * words, high, (i - 1) * words) < 0))
+					isSorted = false;
+			}
+			rangeLow[src][sid] = low;
+			rangeHigh[src][sid] = high;
+			sorted[src][sid] = isSorted;
+		}
 
+		// Unsigned comparison of the z-values at a[i..] and b[j..]
+		private int compare(long[] a, int i, long[] b, int j) {
+			for (int w = 0; w < words; w++) {
+				if (a[i + w] != b[j + w])
+					return (a[i + w] ^ Long.MIN_VALUE) 
+						< (b[j + w] ^ Long.MIN_VALUE) ? -1 : 1;
+			}
+			return 0;
+		}
 
-		public ArrayList<String> getPartitionId(String z, String src, 
-			String sid) {
-
-			String ret = null;
-			int sidInt = Integer.valueOf(sid);
-			ArrayList<String> mark = null;
-			ArrayList<String> idList = new ArrayList<String>(numOfPartition);
+		/**
+		 * Find the partitions whose range [low, high] contains z and store
+		 * their ids in pids. The ranges of a shift are sorted, so those
+		 * partitions are the ones from the first with high >= z to the 
+		 * last with low <= z, found by two binary searches.
+		 *
+		 * @return the number of partitions found
+		 */
+		public int getPartitionId(long[] z, int src, int sid, int[] pids) {
+			long[] low = rangeLow[src][sid];
+			long[] high = rangeHigh[src][sid];
+			int count = rangeCount[sid];
+
+			if (!sorted[src][sid]) {
+				int n = 0;
+				for (int i = 0; i < count; i++) {
+					if (compare(z, 0, low, i * words) >= 0 
+						&& compare(z, 0, high, i * words) <= 0)
+						pids[n++] = i;
+				}
+				return n;
+			}
 
-			// 0 - R from Outer 1 - S from inner
-			if (src.compareTo("0") == 0)
-				mark = Rmark.get(sidInt);
-			else if (src.compareTo("1") == 0)	
-				mark = Smark.get(sidInt);
-			else {
-				System.out.println(src);
-				System.out.println("Unknown source for input recrod !!!");
-				System.exit(-1);	
+			// first partition with low > z
+			int lo = 0, hi = count;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (compare(low, mid * words, z, 0) <= 0)
+					lo = mid + 1;
+				else
+					hi = mid;
 			}
-			
-			// Partition is ordered from 0
-			int i = 0;
-			for (; i < numOfPartition; i++) {
-				String range = mark.get(i);
-				String[] parts = range.split(" +");
-				String low = parts[0];
-				String high = parts[1];
-
-				// Check z against all partitions, this is a must
-				if (z.compareTo(low) >=0 && z.compareTo(high) <= 0) {
-					ret = Integer.toString(i); 		
-					idList.add(ret);
-					//break;
-				}
+			int end = lo;
+
+			// first partition with high >= z
+			lo = 0;
+			hi = end;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (compare(high, mid * words, z, 0) < 0)
+					lo = mid + 1;
+				else
+					hi = mid;
 			}
 
-			//return ret;
-			return idList;
+			int n = 0;
+			for (int i = lo; i < end; i++)
+				pids[n++] = i;
+			return n;
 		}
 
 		public void configure(JobConf job) {
@@ -176,6 +256,7 @@ public class BPhase2 extends Configured implements Tool {
 			mapTaskId = job.get("mapred.task.id");
 			shift = Integer.valueOf(job.get("shift"));
 			numOfPartition = Integer.valueOf(job.get("numOfPartition"));
+			dimension = Integer.valueOf(job.get("dimension"));
 
 			try {
 				localFiles = DistributedCache.getLocalCacheFiles(job);
@@ -201,15 +282,108 @@ public class BPhase2 extends Configured implements Tool {
 					fillMark(-val - 1, Smark, fname, numOfPartition);
 			}
 
+			words = Zorder.words(dimension);
+			rangeLow = new long[2][shift][];
+			rangeHigh = new long[2][shift][];
+			sorted = new boolean[2][shift];
+			rangeCount = new int[shift];
+			groupBase = new int[shift];
+			int maxCount = 0;
+			for (int i = 0; i < shift; i++) {
+				rangeCount[i] = Rmark.get(i).size();
+				if (Smark.get(i).size() != rangeCount[i]) {
+					System.out.println(i);
+					System.out.println("Rrange and Srange sizes differ");
+					System.exit(-1);
+				}
+				if (i > 0)
+					groupBase[i] = groupBase[i - 1] + rangeCount[i - 1];
+				maxCount = Math.max(maxCount, rangeCount[i]);
+				fillRanges(0, i, Rmark.get(i));
+				fillRanges(1, i, Smark.get(i));
+			}
+			pidList = new int[maxCount];
+
+			shiftInMapper = job.getBoolean("shiftInMapper", false);
+			if (shiftInMapper) {
+				hilbert = job.getBoolean("hilbert", false);
+				if (inputFile.indexOf("outer") != -1)  
+					fileId = 0;
+				else if (inputFile.indexOf("inner") != -1)
+					fileId = 1;
+				else {
+					System.out.println("Input filename error!");
+					System.exit(-1);
+				}
+				try {
+					shiftvectors = BPhase1.readShiftVectors(
+						localFiles[0].toString(), shift, dimension);
+				} catch (IOException e) {
+					System.err.println("Caught exception while reading" + 
+						" distributed cache files: ");
+				}
+				coord = new float[dimension];
+				convertedCoord = new int[dimension];
+			}
+
 			mos = new MultipleOutputs(job);
 		}
 
+		/**
+		 * Map an original record <rid, coord> of R or S: compute the
+		 * z-value of every shift copy as BPhase1 does and send the copy to
+		 * its partitions.
+		 */
+		private void mapOriginal(String line, 
+			OutputCollector<BPhase2Key, BPhase2Value> output) 
+			throws IOException {
+			int pos = line.indexOf(ch);
+			int rid = Integer.parseInt(line.substring(0, pos));
+			String[] parts = line.substring(pos + 1).trim().split(" +");
+			for (int i = 0; i < dimension; i++)
+				coord[i] = Float.valueOf(parts[i]);
+
+			for (int i = 0; i < shift; i++) {
+				BPhase1.shiftCoord(coord, i != 0 ? shiftvectors[i] : null, 
+					convertedCoord);
+				long[] z = hilbert ? Hilbert.encode(dimension, convertedCoord)
+					: Zorder.encode(dimension, convertedCoord);
+				emit(z, Zorder.toDecimal(z, dimension), rid, fileId, i, output);
+			}
+		}
+
+		// Send the record with z-value z of shift copy sid to the
+		// partitions whose range contains z
+		private void emit(long[] z, String zval, int rid, int src, int sid,
+			OutputCollector<BPhase2Key, BPhase2Value> output) 
+			throws IOException {
+			int pids = getPartitionId(z, src, sid, pidList);
+			if (pids == 0) {
+				System.out.println("Cannot get pid");
+				System.exit(-1);
+			}
+
+			for (int i = 0; i < pids; i++) {
+				int intPid = pidList[i];
+				int groupKey = groupBase[sid] + intPid;
+				
+				// ((zvalue, groupid), (zvalue, rid, src))
+				BPhase2Key bp2k = new BPhase2Key(zval, groupKey);
+				BPhase2Value bp2v = new BPhase2Value(z, rid, (byte)src);
+				output.collect(bp2k, bp2v);
+			}
+		}
+
 		
 		public void map(LongWritable key, Text value, 
 			OutputCollector<BPhase2Key, BPhase2Value> output, Reporter reporter) 
 			throws IOException {
 	
 			String line = value.toString().trim();
+			if (shiftInMapper) {
+				mapOriginal(line, output);
+				return;
+			}
 			//int pos = line.indexOf('\t');
 			//line = line.substring(pos + 1, line.length()).trim(); 
 
@@ -236,31 +410,19 @@ public class BPhase2 extends Configured implements Tool {
 			} else {
 */
 
-			// Figure out to which partition range the record belong to.
-			ArrayList<String> pidList = getPartitionId(parts[zOffset], 
-							parts[srcOffset], parts[sidOffset]);
-			if (pidList.size() == 0) {
-				System.out.println("Cannot get pid");
-				System.exit(-1);
+			// 0 - R from Outer 1 - S from inner
+			int src = Integer.parseInt(parts[srcOffset]);
+			if (src != 0 && src != 1) {
+				System.out.println(src);
+				System.out.println("Unknown source for input recrod !!!");
+				System.exit(-1);	
 			}
+			int intSid = Integer.parseInt(parts[sidOffset]); 
 
-			int i = 0;
-			for (; i < pidList.size(); i++) {
-				String pid  = pidList.get(i);
-				int intSid = Integer.valueOf(parts[sidOffset]); 
-				int intPid = Integer.valueOf(pid);
-				int groupKey = intSid * numOfPartition + intPid;
-				
-				// ((zvalue, groupid), (zvalue, rid, src))
-				BPhase2Key bp2k 
-					= new BPhase2Key(parts[zOffset], (byte)groupKey);
-
-				BPhase2Value bp2v = new BPhase2Value(parts[zOffset], 
-					Integer.valueOf(parts[ridOffset]), Byte.valueOf(
-						parts[srcOffset]));
-
-				output.collect(bp2k, bp2v);
-			}
+			// Figure out to which partition range the record belong to.
+			long[] z = Zorder.fromDecimal(parts[zOffset], dimension);
+			emit(z, parts[zOffset], Integer.parseInt(parts[ridOffset]), src, 
+				intSid, output);
 //			} // if numOfPartition = 1
 		} // map
 
@@ -269,6 +431,8 @@ public class BPhase2 extends Configured implements Tool {
 		}
 	} // Mapper
 
+	static enum CoordCacheCounter { HITS, MISSES }
+
 	public static class Reduce extends MapReduceBase
 		implements Reducer<BPhase2Key, BPhase2Value, Text, Text> {
 
@@ -276,9 +440,46 @@ public class BPhase2 extends Configured implements Tool {
 		private String inputFile;
 		private static int knn = 3;
 		private static int knnFactor = 4;
+		// Coordinates of the records of S found by the B+ tree
+		private int coordCacheSize;
+		private CoordCache.Policy coordCachePolicy;
 		private int shift = 3;
 		private int numOfPartition;
 		private int dimension = 3;
+		// The values of BPhase1 are on the Hilbert curve, not the z-order
+		private boolean hilbert = false;
+		// Search the neighbours in a B+ tree of S instead of the merge join
+		private boolean btree = false;
+
+		// Merge join: the last 2 * knn + 1 records of S in a ring, and the
+		// records of R that wait for their knn + 1 successors in S
+		private int[] ringIds;
+		private int[] ringCoords;
+		private int pendingHead, pendingTail;
+		private int[] pendingIds = new int[1024];
+		private int[] pendingArrival = new int[1024];
+		private int[] pendingCoords;
+		private KNNHeap mergeHeap;
+		private int[] mergeIds;
+		private double[] mergeDists;
+		private Text ridText = new Text();
+		private Text knnText = new Text();
+
+		// Parallel merge join (-rt > 1): a batch of the records of the
+		// partition, S in order with global index sBase + i, the records of
+		// R with the number of records of S before them
+		private ReducePool pool;
+		private int batchSize;
+		private int sBase, sCount, sDecoded, rCount;
+		private long[] batchSZ = new long[0];
+		private int[] batchSIds = new int[0];
+		private int[] batchSCoords = new int[0];
+		private long[] batchRZ = new long[0];
+		private int[] batchRIds = new int[0];
+		private int[] batchRArrival = new int[0];
+		private int[] batchFound = new int[0];
+		private int[] batchKnnIds = new int[0];
+		private double[] batchKnnDists = new double[0];
 
 		// Parameters for BPlus tree
 		//private int indexBlockSize = 1024 * 4; // 4k size
@@ -316,6 +517,14 @@ public class BPhase2 extends Configured implements Tool {
 
 		private Configuration jobinfo;
 
+		// Coordinates of a value of BPhase1
+		private int[] toCoord(String zval) {
+			if (hilbert)
+				return Hilbert.decode(Zorder.fromDecimal(zval, dimension), 
+					dimension);
+			return Zorder.toCoord(zval, dimension);
+		}
+
 		public void getRandomShiftVectors(String file, int[][] shiftvectors) {
 			try {
 				FileReader fr = new FileReader(file);
@@ -346,6 +555,22 @@ public class BPhase2 extends Configured implements Tool {
 			knn = Integer.valueOf(job.get("knn"));
 			numOfPartition = Integer.valueOf(job.get("numOfPartition"));
 			dimension = Integer.valueOf(job.get("dimension"));
+			hilbert = job.getBoolean("hilbert", false);
+			btree = job.getBoolean("btree", false);
+			coordCacheSize = job.getInt("coordCache.size", knnFactor * knn);
+			coordCachePolicy = CoordCache.Policy.valueOf(
+				job.get("coordCache.policy", "LRU").toUpperCase());
+
+			int window = 2 * knn + 1;
+			ringIds = new int[window];
+			ringCoords = new int[window * dimension];
+			pendingCoords = new int[pendingIds.length * dimension];
+			mergeHeap = new KNNHeap(knn);
+			mergeIds = new int[knn];
+			mergeDists = new double[knn];
+			pool = new ReducePool(job.getInt("reduceThreads", 1),
+				job.getBoolean("reduceOrdered", true));
+			batchSize = 1024 * pool.getThreads();
 
 			try {
 				localFs = FileSystem.getLocal(job);
@@ -403,13 +628,313 @@ public class BPhase2 extends Configured implements Tool {
 		}
 
 		
+		// Squared distance of two points of the same shift copy. A shifted
+		// coordinate may have wrapped around, the int difference is still
+		// the one of the original points; its square is taken as double.
+		static double distSq(int[] c1, int o1, int[] c2, int o2, 
+			int dimension) {
+			double dist = 0;
+			for (int i = 0; i < dimension; i++) {
+				double d = c1[o1 + i] - c2[o2 + i];
+				dist += d * d;
+			}
+			return dist;
+		}
+
+		/**
+		 * The records of a group arrive sorted on their z-values, R and S
+		 * interleaved. The candidates of a record of R are the knn records 
+		 * of S before it and the knn + 1 after it in this order, or more on 
+		 * one side at the ends of the partition, the same records that the
+		 * range search of the B+ tree returns. They are found in one pass: 
+		 * S is kept in a ring of the last 2 * knn + 1 records, and a record
+		 * of R is joined with the ring as soon as knn + 1 records of S 
+		 * (or 2 * knn + 1 in total) have followed it.
+		 */
 		public void reduce(BPhase2Key key, Iterator<BPhase2Value> values,
 			OutputCollector<Text, Text> output, Reporter reporter) 
 			throws IOException {
 
-			int groupId = (int)key.getSecond().get();
-			int sid = groupId / numOfPartition;  // Shift id
-			int pid = groupId % numOfPartition;  // Partition id
+			if (btree) {
+				reduceBPlusTree(key, values, output, reporter);
+				return;
+			}
+			if (pool.getThreads() > 1) {
+				reduceParallel(values, output, reporter);
+				return;
+			}
+
+			int window = ringIds.length;
+			int sCount = 0;
+			pendingHead = pendingTail = 0;
+			int cnt = 0;
+
+			while (values.hasNext()) {
+				BPhase2Value bp2v = values.next();
+				int srcId = bp2v.getThird();
+				if (srcId == 0) {
+					if (pendingTail == pendingIds.length)
+						growPending();
+					decode(bp2v.getFirst(), pendingCoords, 
+						pendingTail * dimension);
+					pendingIds[pendingTail] = bp2v.getSecond();
+					pendingArrival[pendingTail] = sCount;
+					pendingTail++;
+				} else if (srcId == 1) {
+					int slot = sCount % window;
+					decode(bp2v.getFirst(), ringCoords, slot * dimension);
+					ringIds[slot] = bp2v.getSecond();
+					sCount++;
+					while (pendingHead < pendingTail && sCount >= Math.max(
+						pendingArrival[pendingHead] + knn + 1, window)) {
+						join(pendingHead++, sCount, window, output);
+						if (cnt++ % 10000 == 0)
+							reporter.progress();
+					}
+				} else {
+					System.out.println(srcId);
+					System.out.println("The record has an unknown source!!");
+					System.exit(-1);	
+				}
+			}
+
+			// Records of R near the end of the partition
+			while (pendingHead < pendingTail)
+				join(pendingHead++, sCount, Math.min(sCount, window), output);
+		}
+
+		/**
+		 * The merge join of reduce() on the worker pool. The records are 
+		 * buffered in batches: the new records of S of a batch are decoded
+		 * in parallel, then the records of R whose 2 * knn + 1 candidates 
+		 * are in the batch are joined in parallel. The last 2 * knn + 1 
+		 * records of S and the other records of R are kept for the next 
+		 * batch.
+		 */
+		private void reduceParallel(Iterator<BPhase2Value> values,
+			final OutputCollector<Text, Text> output, Reporter reporter)
+			throws IOException {
+			int words = Zorder.words(dimension);
+			int window = ringIds.length;
+			sBase = sCount = sDecoded = rCount = 0;
+			int rNext = batchSize;
+			int sNext = Math.max(batchSize, window);
+
+			while (values.hasNext()) {
+				BPhase2Value bp2v = values.next();
+				int srcId = bp2v.getThird();
+				if (srcId == 0) {
+					if (rCount == batchRIds.length)
+						growR(words);
+					System.arraycopy(bp2v.getFirst(), 0, batchRZ, 
+						rCount * words, words);
+					batchRIds[rCount] = bp2v.getSecond();
+					batchRArrival[rCount] = sBase + sCount;
+					rCount++;
+				} else if (srcId == 1) {
+					if (sCount == batchSIds.length)
+						growS(words);
+					System.arraycopy(bp2v.getFirst(), 0, batchSZ, 
+						sCount * words, words);
+					batchSIds[sCount] = bp2v.getSecond();
+					sCount++;
+				} else {
+					System.out.println(srcId);
+					System.out.println("The record has an unknown source!!");
+					System.exit(-1);	
+				}
+
+				if (rCount >= rNext || sCount >= sNext) {
+					joinBatch(false, output);
+					reporter.progress();
+					rNext = rCount + batchSize;
+					sNext = sCount + Math.max(batchSize, window);
+				}
+			}
+			joinBatch(true, output);
+		}
+
+		private void joinBatch(final boolean last, 
+			final OutputCollector<Text, Text> output) throws IOException {
+			final int words = Zorder.words(dimension);
+			final int window = ringIds.length;
+			int chunk = Math.max(16, batchSize / (4 * pool.getThreads()));
+
+			// Decode the new records of S
+			final int first = sDecoded;
+			pool.run(sCount - first, chunk, new ReducePool.Task() {
+				public void join(int from, int to) {
+					long[] z = new long[words];
+					int[] coord = new int[dimension];
+					for (int i = first + from; i < first + to; i++) {
+						System.arraycopy(batchSZ, i * words, z, 0, words);
+						decodeTo(z, coord);
+						System.arraycopy(coord, 0, batchSCoords, i * dimension,
+							dimension);
+					}
+				}
+			}, new ReducePool.Writer() {
+				public void write(int from, int to) {
+				}
+			});
+			sDecoded = sCount;
+
+			// The records of R, in the order of their arrival, are ready 
+			// when knn + 1 records of S (or window in total) followed them
+			final int end = sBase + sCount;
+			int ready = 0;
+			while (ready < rCount && (last || Math.max(
+				batchRArrival[ready] + knn + 1, window) <= end))
+				ready++;
+			if (batchFound.length < ready) {
+				batchFound = new int[batchRIds.length];
+				batchKnnIds = new int[batchRIds.length * knn];
+				batchKnnDists = new double[batchRIds.length * knn];
+			}
+
+			pool.run(ready, chunk, new ReducePool.Task() {
+				public void join(int from, int to) {
+					long[] z = new long[words];
+					int[] coord = new int[dimension];
+					KNNHeap heap = new KNNHeap(knn);
+					int[] ids = new int[knn];
+					double[] dists = new double[knn];
+					for (int r = from; r < to; r++) {
+						System.arraycopy(batchRZ, r * words, z, 0, words);
+						decodeTo(z, coord);
+						// window records of S around the record, less at the
+						// end of a partition with less than window records
+						int lo = Math.max(0, Math.min(batchRArrival[r] - knn,
+							end - window));
+						int hi = Math.min(lo + window, end);
+						heap.reset();
+						for (int j = lo - sBase; j < hi - sBase; j++) {
+							double dist = distSq(coord, 0, batchSCoords, 
+								j * dimension, dimension);
+							heap.add(batchSIds[j], (float) Math.sqrt(dist));
+						}
+						int found = heap.drainAscending(ids, dists);
+						batchFound[r] = found;
+						System.arraycopy(ids, 0, batchKnnIds, r * knn, found);
+						System.arraycopy(dists, 0, batchKnnDists, r * knn, found);
+					}
+				}
+			}, new ReducePool.Writer() {
+				public void write(int from, int to) throws IOException {
+					for (int r = from; r < to; r++) {
+						ridText.set(Integer.toString(batchRIds[r]));
+						for (int i = r * knn; i < r * knn + batchFound[r]; i++) {
+							knnText.set(" " + batchKnnIds[i] + " " 
+								+ Float.toString((float) batchKnnDists[i]));
+							output.collect(ridText, knnText);
+						}
+					}
+				}
+			});
+
+			// Keep the records of R that are not ready and the last window
+			// records of S, which are all the candidates of these records
+			int keep = Math.min(sCount, window);
+			int drop = sCount - keep;
+			System.arraycopy(batchSZ, drop * words, batchSZ, 0, keep * words);
+			System.arraycopy(batchSIds, drop, batchSIds, 0, keep);
+			System.arraycopy(batchSCoords, drop * dimension, batchSCoords, 0,
+				keep * dimension);
+			sBase += drop;
+			sCount = sDecoded = keep;
+
+			int rest = rCount - ready;
+			System.arraycopy(batchRZ, ready * words, batchRZ, 0, rest * words);
+			System.arraycopy(batchRIds, ready, batchRIds, 0, rest);
+			System.arraycopy(batchRArrival, ready, batchRArrival, 0, rest);
+			rCount = rest;
+		}
+
+		private void growS(int words) {
+			int len = Math.max(1024, 2 * batchSIds.length);
+			batchSZ = Arrays.copyOf(batchSZ, len * words);
+			batchSIds = Arrays.copyOf(batchSIds, len);
+			batchSCoords = Arrays.copyOf(batchSCoords, len * dimension);
+		}
+
+		private void growR(int words) {
+			int len = Math.max(1024, 2 * batchRIds.length);
+			batchRZ = Arrays.copyOf(batchRZ, len * words);
+			batchRIds = Arrays.copyOf(batchRIds, len);
+			batchRArrival = Arrays.copyOf(batchRArrival, len);
+		}
+
+		// Coordinates of a value of BPhase1 into coord
+		private void decodeTo(long[] z, int[] coord) {
+			if (hilbert)
+				Hilbert.decode(z, dimension, coord);
+			else
+				Zorder.decode(z, dimension, coord);
+		}
+
+		// Coordinates of a value of BPhase1 into coord at offset
+		private void decode(long[] z, int[] coord, int offset) {
+			int[] c = hilbert ? Hilbert.decode(z, dimension) 
+				: Zorder.decode(z, dimension);
+			System.arraycopy(c, 0, coord, offset, dimension);
+		}
+
+		private void growPending() {
+			int n = pendingTail - pendingHead;
+			if (pendingHead > 0 && n < pendingIds.length / 2) {
+				// compact
+				System.arraycopy(pendingIds, pendingHead, pendingIds, 0, n);
+				System.arraycopy(pendingArrival, pendingHead, pendingArrival,
+					0, n);
+				System.arraycopy(pendingCoords, pendingHead * dimension,
+					pendingCoords, 0, n * dimension);
+			} else {
+				int len = 2 * pendingIds.length;
+				int[] ids = new int[len];
+				int[] arrival = new int[len];
+				int[] coords = new int[len * dimension];
+				System.arraycopy(pendingIds, pendingHead, ids, 0, n);
+				System.arraycopy(pendingArrival, pendingHead, arrival, 0, n);
+				System.arraycopy(pendingCoords, pendingHead * dimension, 
+					coords, 0, n * dimension);
+				pendingIds = ids;
+				pendingArrival = arrival;
+				pendingCoords = coords;
+			}
+			pendingHead = 0;
+			pendingTail = n;
+		}
+
+		// Joins the pending record r of R with the last n records of S
+		private void join(int r, int sCount, int n, 
+			OutputCollector<Text, Text> output) throws IOException {
+			int window = ringIds.length;
+			mergeHeap.reset();
+			for (int j = sCount - n; j < sCount; j++) {
+				int slot = j % window;
+				double dist = distSq(pendingCoords, r * dimension, 
+					ringCoords, slot * dimension, dimension);
+				mergeHeap.add(ringIds[slot], (float) Math.sqrt(dist));
+			}
+
+			int found = mergeHeap.drainAscending(mergeIds, mergeDists);
+			ridText.set(Integer.toString(pendingIds[r]));
+			for (int i = 0; i < found; i++) {
+				knnText.set(" " + mergeIds[i] + " " 
+					+ Float.toString((float) mergeDists[i]));
+				output.collect(ridText, knnText);
+			}
+		}
+
+		/**
+		 * Writes R and S of the group to local files, bulk loads a B+ tree
+		 * of S and searches it for the neighbours of every record of R.
+		 */
+		private void reduceBPlusTree(BPhase2Key key, 
+			Iterator<BPhase2Value> values, OutputCollector<Text, Text> output,
+			Reporter reporter) throws IOException {
+
+			int groupId = key.getSecond().get();
 			String prefix_dir = "hzknnj" + "-"  + groupId;
 			
 			// Create seperate local files for different key value
@@ -439,13 +964,11 @@ public class BPhase2 extends Configured implements Tool {
 
 			// value format <zvalue, rid, src>
 			while (values.hasNext()) {
-				String line = values.next().toString();
+				BPhase2Value bp2v = values.next();
 
-				String[] parts = line.split(" +");
-				String zvalue = parts[zOffset];
-				String rid = parts[ridOffset];
-				String src = parts[srcOffset];
-				int srcId = Integer.valueOf(src);
+				String zvalue = Zorder.toDecimal(bp2v.getFirst(), dimension);
+				int rid = bp2v.getSecond();
+				int srcId = bp2v.getThird();
 
 				String tmpRecord = zvalue + " " + rid + "\n";
 				if (srcId == 0)  // from R
@@ -483,22 +1006,15 @@ public class BPhase2 extends Configured implements Tool {
 			FileReader frForR	= new FileReader(outerTable);
 			BufferedReader brForR = new BufferedReader(frForR, bufInLength);
 			
-			float hashTableLoadFactor = 0.75f;
-			knnFactor = 4;
-			Reduce.knnFactor = 4;
-			int hashTableCapacity =  
-				(int) Math.ceil((knnFactor * knn ) / hashTableLoadFactor) + 1;
-
-			LinkedHashMap<String, ArrayList<Integer>> coordLRUCache = 
-			new LinkedHashMap<String, ArrayList<Integer>>(hashTableCapacity,
-													hashTableLoadFactor, true)
-			{
-        		@Override
-        		protected boolean removeEldestEntry(Map.Entry<String, 
-					ArrayList<Integer>> eldest) {
-          			return size() > Reduce.knnFactor * Reduce.knn;
-				}	
-	  		};
+			CoordCache coordCache = new CoordCache(dimension, coordCacheSize,
+				coordCachePolicy);
+			int[] cachedCoords = coordCache.getCoords();
+			long[] z2 = new long[Zorder.words(dimension)];
+			int[] coord2 = new int[dimension];
+
+			KNNHeap heap = new KNNHeap(knn);
+			int[] knnIds = new int[knn];
+			double[] knnDists = new double[knn];
 
 			int cnt = 0;
 			boolean loop = true;
@@ -509,56 +1025,40 @@ public class BPhase2 extends Configured implements Tool {
 				String[] parts = line.split(" +");
 				String zval = parts[0];
 				String rid = parts[1];
-				int[] coord = Zorder.toCoord(zval, dimension);
+				int[] coord = toCoord(zval);
 
 				CBString searchKey = new CBString(zval);
 				ArrayList<ArrayList<KeyValue>> knnList = 
 					bpt.rangeSearch(new CBString(zval), knn);
 
-				ArrayList<KnnRecord> knnListSorted = new ArrayList<KnnRecord>();
-				Comparator<KnnRecord> krc = new KnnRecordComparator();
+				heap.reset();
 				for (ArrayList<KeyValue> l: knnList) {
 					for (KeyValue e :l) {
 					
 						String zval2 = ((CBString) e.getKey()).getString();
 						int rid2 = ((CBInt) e.getValue()).getValue();
-						int[] coord2 = null;
-
-						ArrayList<Integer> cachedCoord2 
-												= coordLRUCache.get(zval2);
-
-						if (cachedCoord2 == null) {
-							coord2 = Zorder.toCoord(zval2, dimension);
-							ArrayList<Integer> ai = 
-								new ArrayList<Integer>(dimension);
-							for (int i = 0; i < dimension; i++) {
-								ai.add(coord2[i]);
-							}
-							coordLRUCache.put(zval2, ai);
-						} else {
-							//int[] coord2 = cacheCoord2.toArray();
-							coord2 = new int[dimension];
-							for (int i = 0; i < dimension; i++) 
-								coord2[i] = cachedCoord2.get(i);
+
+						Zorder.fromDecimal(zval2, dimension, z2);
+						int offset = coordCache.get(z2);
+						if (offset < 0) {
+							if (hilbert)
+								Hilbert.decode(z2, dimension, coord2);
+							else
+								Zorder.decode(z2, dimension, coord2);
+							offset = coordCache.put(z2, coord2);
 						}
 
-						float dist = (float) 0.0;
-						for (int i = 0; i < dimension; i++)	
-							dist += (float) ((coord[i] - coord2[i]) * 
-										(coord[i] - coord2[i]));
+						double dist = distSq(coord, 0, cachedCoords, offset,
+							dimension);
 
-						KnnRecord kr = 
-							new KnnRecord(rid2, (float)Math.sqrt(dist));
-						knnListSorted.add(kr);
+						heap.add(rid2, (float)Math.sqrt(dist));
 					}
 				}
 
-				Collections.sort(knnListSorted, krc); 
-
-				for (int i = 0; i < knn; i++) {
-					KnnRecord kr = knnListSorted.get(i);
-					output.collect(new Text(rid), new Text(" " + kr.getRid() 
-							+ " " + Float.toString(kr.getDist())));
+				int found = heap.drainAscending(knnIds, knnDists);
+				for (int i = 0; i < found; i++) {
+					output.collect(new Text(rid), new Text(" " + knnIds[i] 
+							+ " " + Float.toString((float) knnDists[i])));
 				}
 
 				if (cnt++ % 10000 == 0)
@@ -566,13 +1066,17 @@ public class BPhase2 extends Configured implements Tool {
 
 			}
 //	} // if (1 > 2)
+			reporter.incrCounter(CoordCacheCounter.HITS, coordCache.getHits());
+			reporter.incrCounter(CoordCacheCounter.MISSES, 
+				coordCache.getMisses());
 			lfs.delete(file1, true);
 			lfs.delete(file2, true);
 
-		} // reduce
+		} // reduceBPlusTree
 
 		public void close() throws IOException {
 			mos.close();	
+			pool.shutdown();
 		}
 	} // Reducer
 
@@ -591,7 +1095,26 @@ public class BPhase2 extends Configured implements Tool {
    	
 	public static class KeyComparator extends WritableComparator {
 		protected KeyComparator() {
-			super(BPhase2Key.class, true);	
+			super(BPhase2Key.class);
+		}
+
+		// Compare serialized keys <zval, group id> (Text, int) directly: first
+		// the trailing int, then the fixed length decimal zval bytes.
+		@Override
+		public int compare(byte[] b1, int s1, int l1,
+			byte[] b2, int s2, int l2) {
+			int g1 = readInt(b1, s1 + l1 - 4);
+			int g2 = readInt(b2, s2 + l2 - 4);
+			if (g1 != g2) return (g1 < g2) ? -1 : 1;
+
+			try {
+				int n1 = WritableUtils.decodeVIntSize(b1[s1]);
+				int n2 = WritableUtils.decodeVIntSize(b2[s2]);
+				return compareBytes(b1, s1 + n1, readVInt(b1, s1),
+					b2, s2 + n2, readVInt(b2, s2));
+			} catch (IOException e) {
+				throw new IllegalArgumentException(e);
+			}
 		}
 
 		public int compare(WritableComparable w1, WritableComparable w2) {
@@ -609,7 +1132,16 @@ public class BPhase2 extends Configured implements Tool {
 
 	public static class GroupComparator extends WritableComparator {
 		protected GroupComparator() {
-			super(BPhase2Key.class, true);	
+			super(BPhase2Key.class);
+		}
+
+		// Group id is the last int of a serialized key
+		@Override
+		public int compare(byte[] b1, int s1, int l1,
+			byte[] b2, int s2, int l2) {
+			int g1 = readInt(b1, s1 + l1 - 4);
+			int g2 = readInt(b2, s2 + l2 - 4);
+			return (g1 < g2) ? -1 : ((g1 == g2) ? 0 : 1);
 		}
 
 		public int compare(WritableComparable w1, WritableComparable w2) {
@@ -621,11 +1153,26 @@ public class BPhase2 extends Configured implements Tool {
 		}
 	}
  
+	// The number of nonempty lines of a range file
+	static int countLines(FileSystem fs, Path file) throws IOException {
+		BufferedReader br = new BufferedReader(
+			new InputStreamReader(fs.open(file)));
+		int n = 0;
+		String line;
+		while ((line = br.readLine()) != null) {
+			if (line.trim().length() > 0)
+				n++;
+		}
+		br.close();
+		return n;
+	}
+ 
 	static int printUsage() {
 		System.out.println(
 			"BPhase2 -m <maps> -r <reduces> -s <numberOfShifts> "
 			+ "-p <numberOfPartitions> -d <dimension> " 
-			+ "-k <knn> -c <cluster_config> "
+			+ "-k <knn> -c <cluster_config> [-hilbert] [-btree] " 
+			+ "[-rt <#reduce threads>] [-unordered] [-shiftinmap] "
 			//+ "-sj <self_join> " 
 			+ "-outer <R> -inner <S> " 
 			+ "<input> <output>");
@@ -638,6 +1185,7 @@ public class BPhase2 extends Configured implements Tool {
 		int numOfPartition = 3;
 		int dimension = 2;
 		int knn = 3;
+		int numberOfReducer = 0;
 		String outer = null;
 		String inner = null;	
 		String clusterConfiguration = null;
@@ -663,7 +1211,7 @@ public class BPhase2 extends Configured implements Tool {
 					i++;
 					//conf.setNumMapTasks(Integer.parseInt(args[++i]));
 				} else if ("-r".equals(args[i])) {
-					conf.setNumReduceTasks(Integer.parseInt(args[++i]));
+					numberOfReducer = Integer.parseInt(args[++i]);
 				} else if ("-s".equals(args[i])) {
 					shift = Integer.parseInt(args[++i]);
 					conf.set("shift", Integer.toString(shift));
@@ -680,6 +1228,16 @@ public class BPhase2 extends Configured implements Tool {
 				} else if ("-c".equals(args[i])) {
 					clusterConfiguration = args[++i];
 					conf.set("clusterconfiguration", clusterConfiguration); 
+				} else if ("-hilbert".equals(args[i])) {
+					conf.setBoolean("hilbert", true);
+				} else if ("-btree".equals(args[i])) {
+					conf.setBoolean("btree", true);
+				} else if ("-rt".equals(args[i])) {
+					conf.setInt("reduceThreads", Integer.parseInt(args[++i]));
+				} else if ("-unordered".equals(args[i])) {
+					conf.setBoolean("reduceOrdered", false);
+				} else if ("-shiftinmap".equals(args[i])) {
+					conf.setBoolean("shiftInMapper", true);
 /*				} else if ("-sj".equals(args[i])) {
 					self_join = Boolean.parseBoolean(args[++i]);
 					conf.set("self_join", Boolean.toString(self_join)); 
@@ -692,8 +1250,6 @@ public class BPhase2 extends Configured implements Tool {
 				} else {
 					other_args.add(args[i]);
 				}
-				conf.setNumReduceTasks(numOfPartition * shift);
-				//conf.setNumReduceTasks(0);
 			} catch (NumberFormatException except) {
 				System.out.println("ERROR: Integer expected instead of " + args[i]);
 				return printUsage();
@@ -709,22 +1265,31 @@ public class BPhase2 extends Configured implements Tool {
 				other_args.size() + " instead of 2.");
 			return printUsage();
 		}
+		// With -shiftinmap the input is R and S themselves, "<R>,<S>"
 		FileInputFormat.setInputPaths(conf, other_args.get(0));
 		FileOutputFormat.setOutputPath(conf, new Path(other_args.get(1)));
 
 		String base_dir = "/user/hadoop/" + clusterConfiguration + "/";
 		DistributedCache.addCacheFile(new URI(base_dir + "RandomShiftVectors"), conf);
 
+		// One group per range of every shift, p of them unless BPhase1
+		// -split added sub-ranges
+		String range_dir = base_dir + "range-" + outer + "-" + inner + "-" + knn + "/";
+		FileSystem fs = FileSystem.get(conf);
+		int numOfGroup = 0;
 		for (int i = 0; i < shift; i++) {
 
 			DistributedCache.addCacheFile(
-				new URI(base_dir + "range-" + outer + "-" + inner + "-" + knn
-				   + "/" + "Rrange" + Integer.toString(i)), conf);
+				new URI(range_dir + "Rrange" + Integer.toString(i)), conf);
 			DistributedCache.addCacheFile(
-				new URI(base_dir + "range-" + outer + "-" + inner + "-" + knn
-				   + "/" + "Srange" + Integer.toString(i)), conf);
-
+				new URI(range_dir + "Srange" + Integer.toString(i)), conf);
+			numOfGroup += countLines(fs, new Path(range_dir + "Rrange" + i));
 		}
+
+		if (numberOfReducer <= 0 || numberOfReducer > numOfGroup)
+			numberOfReducer = numOfGroup;
+		conf.setNumReduceTasks(numberOfReducer);
+		System.out.println("The number of reducers is : " + numberOfReducer);
 		//System.out.printf("shift %d partsize %d\n", shift, numOfPartition);
 		
 		JobClient.runJob(conf);
@@ -6,17 +6,17 @@ import org.apache.hadoop.io.*;
 public class BPhase2Key implements WritableComparable<BPhase2Key> {
 
 	private Text first;
-	private ByteWritable second;
+	private IntWritable second;
 
 	public BPhase2Key() {
-		set(new Text(), new ByteWritable());
+		set(new Text(), new IntWritable());
 	}	
 
-	public BPhase2Key(String first, byte second) {
-		set(new Text(first), new ByteWritable(second));
+	public BPhase2Key(String first, int second) {
+		set(new Text(first), new IntWritable(second));
 	}
 
-	public void set(Text first, ByteWritable second) {
+	public void set(Text first, IntWritable second) {
 		this.first = first;
 		this.second = second;
 		//this.second.set(second);
@@ -26,7 +26,7 @@ public class BPhase2Key implements WritableComparable<BPhase2Key> {
 		return first;
 	}
 
-	public ByteWritable getSecond() {
+	public IntWritable getSecond() {
 		return second;
 	}
 	
@@ -1,81 +1,93 @@
 package test;
+
 import java.io.*;
+import java.util.Arrays;
 import org.apache.hadoop.io.*;
 
+/**
+ * Value format <zval, rid, src>. The zval is kept in binary form (see
+ * Zorder.encode) and the record is serialized as 
+ * <src (byte), rid (vint), #words (byte), zval words (long)>.
+ */
 public class BPhase2Value implements WritableComparable<BPhase2Value> {
 
-	private Text first;
-	private IntWritable second;
-	private ByteWritable third;
+	private long[] first;
+	private int second;
+	private byte third;
 
 	public BPhase2Value() {
-		set(new Text(), new IntWritable(), new ByteWritable());
+		set(new long[0], 0, (byte) 0);
 	}	
 
-	public BPhase2Value(String first, int second, byte third) {
-		set(new Text(first), new IntWritable(second), new ByteWritable(third));
+	public BPhase2Value(long[] first, int second, byte third) {
+		set(first, second, third);
 	}
 
-	public void set(Text first, IntWritable second, ByteWritable third) {
+	public void set(long[] first, int second, byte third) {
 		this.first = first;
 		this.second = second;
 		this.third = third;
 	}
 
-	public Text getFirst() {
+	public long[] getFirst() {
 		return first;
 	}
 
-	public IntWritable getSecond() {
+	public int getSecond() {
 		return second;
 	}
 
-	public ByteWritable getThird() {
+	public byte getThird() {
 		return third;
 	}
 	
 	@Override
 	public void write(DataOutput out) throws IOException {
-		first.write(out);
-		second.write(out);
-		third.write(out);
+		out.writeByte(third);
+		WritableUtils.writeVInt(out, second);
+		out.writeByte(first.length);
+		Zorder.write(out, first);
 	}
 
 	@Override
 	public void readFields(DataInput in) throws IOException {
-		first.readFields(in);
-		second.readFields(in);
-		third.readFields(in);
+		third = in.readByte();
+		second = WritableUtils.readVInt(in);
+		int words = in.readByte();
+		if (first.length != words)
+			first = new long[words];
+		Zorder.read(in, first);
 	}
 
 	// Never use this method, so it doesn't matter
 	@Override 
 	public int hashCode() {
-		return first.hashCode() * 163 + third.hashCode();
+		return Arrays.hashCode(first) * 163 + third;
 	}
 
 	@Override
 	public boolean equals(Object o) {
 		if (o instanceof BPhase2Value) {
 			BPhase2Value bp2v = (BPhase2Value) o;
-			return first.equals(bp2v.first) && third.equals(bp2v.third)
-				&& second.equals(bp2v.second);
+			return Arrays.equals(first, bp2v.first) && third == bp2v.third
+				&& second == bp2v.second;
 		}
 		return false;
 	}
 
 	@Override
 	public String toString() {
-		return first + " " + second.toString() + " " + third.toString();	
+		// zval is printed without the leading zeros of Zorder.valueOf
+		return Zorder.toDecimal(first, 0) + " " + second + " " + third;	
 	}
 
 	// Never used
 	@Override
 	public int compareTo(BPhase2Value bp2k) {
-		int cmp = first.compareTo(bp2k.first);
+		int cmp = Zorder.compare(first, bp2k.first);
 		if (cmp != 0) {
 			return cmp;	
 		}
-		return third.compareTo(bp2k.third);	
+		return third - bp2k.third;	
 	}
 }
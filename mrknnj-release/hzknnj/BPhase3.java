@@ -29,6 +29,20 @@ import org.apache.hadoop.mapred.lib.MultipleOutputs;
 public class BPhase3 extends Configured implements Tool {
 	public static class MapClass extends MapReduceBase 
 		implements Mapper<LongWritable, Text, IntWritable, BPhase3Value> {
+		int knn;
+		// Maximum number of rid1 whose candidates are buffered, 0 disables
+		int aggregate;
+
+		// Best knn distinct <rid2, dist> seen in this split for each 
+		// buffered rid1
+		HashMap<Integer, KNNHeap> buffer = new HashMap<Integer, KNNHeap>();
+		ArrayList<KNNHeap> freeHeaps = new ArrayList<KNNHeap>();
+		OutputCollector<IntWritable, BPhase3Value> collector;
+
+		public void configure(JobConf job) {
+			knn = job.getInt("knn", 3);
+			aggregate = job.getInt("aggregate", 10000);
+		}
 
 		public void map(LongWritable key, Text value, 
 				OutputCollector<IntWritable, BPhase3Value> output, 
@@ -46,56 +60,102 @@ public class BPhase3 extends Configured implements Tool {
 			BPhase3Value np2v = new BPhase3Value(Integer.valueOf(parts[1]),
 					Float.valueOf(parts[2]));
 
-			output.collect(mapKey, np2v);
+			if (aggregate <= 0) {
+				output.collect(mapKey, np2v);
+				return;
+			}
+
+			collector = output;
+			KNNHeap heap = buffer.get(mapKey.get());
+			if (heap == null) {
+				if (buffer.size() >= aggregate)
+					flush();
+				heap = freeHeaps.isEmpty() ? new KNNHeap(knn)
+					: freeHeaps.remove(freeHeaps.size() - 1);
+				buffer.put(mapKey.get(), heap);
+			}
+			// The same rid2 is found once per random shift copy
+			int id2 = np2v.getFirst().get();
+			if (!heap.contains(id2))
+				heap.add(id2, np2v.getSecond().get());
 		}
-	}
-  
-	public static class Reduce extends MapReduceBase
-		implements Reducer<IntWritable, BPhase3Value, NullWritable, Text> {
-		int knn;
-		
-		class Record {
-			public int id2;
-			public float dist;
 
-			Record(int id2, float dist) {
-				this.id2 = id2;
-				this.dist = dist;
+		void flush() throws IOException {
+			IntWritable mapKey = new IntWritable();
+			BPhase3Value np2v = new BPhase3Value();
+			for (Map.Entry<Integer, KNNHeap> e : buffer.entrySet()) {
+				mapKey.set(e.getKey());
+				emit(mapKey, e.getValue(), np2v, collector);
+				freeHeaps.add(e.getValue());
 			}
+			buffer.clear();
+		}
 
-			public String toString() {
-				return Integer.toString(id2) + " " + Float.toString(dist);	
-			} 
+		public void close() throws IOException {
+			if (collector != null)
+				flush();
 		}
+	}
 
-		class RecordComparator implements Comparator<Record> {
-			public int compare(Record o1, Record o2) {
-				int ret = 0;
-				float dist = o1.dist - o2.dist;
+	/**
+	 * Writes the pairs of heap as <rid1, <rid2, dist>>, largest distance
+	 * first, and leaves the heap empty.
+	 */
+	static void emit(IntWritable key, KNNHeap heap, BPhase3Value np2v,
+			OutputCollector<IntWritable, BPhase3Value> output) 
+		throws IOException {
+		while (!heap.isEmpty()) {
+			np2v.getFirst().set(heap.peekId());
+			np2v.getSecond().set((float) heap.peekDistance());
+			output.collect(key, np2v);
+			heap.poll();
+		}
+	}
 
-				if (Math.abs(dist) < 1E-6)
-					ret = o1.id2 - o2.id2;
-				else if (dist > 0)
-					ret = 1;
-				else 
-					ret = -1;
+	/**
+	 * Keeps only the knn closest distinct rid2 of a rid1 on the map side.
+	 */
+	public static class Combine extends MapReduceBase
+		implements Reducer<IntWritable, BPhase3Value, IntWritable, BPhase3Value> {
+		KNNHeap heap;
+		BPhase3Value np2v = new BPhase3Value();
 
-				return -ret;
-			}	
+		public void configure(JobConf job) {
+			heap = new KNNHeap(job.getInt("knn", 3));
 		}
 
+		public void reduce(IntWritable key, Iterator<BPhase3Value> values,
+			OutputCollector<IntWritable, BPhase3Value> output,
+			Reporter reporter) throws IOException {
+
+			heap.reset();
+			while (values.hasNext()) {
+				BPhase3Value v = values.next();
+				int id2 = v.getFirst().get();
+				if (!heap.contains(id2))
+					heap.add(id2, v.getSecond().get());
+			}
+			emit(key, heap, np2v, output);
+		}
+	}
+  
+	public static class Reduce extends MapReduceBase
+		implements Reducer<IntWritable, BPhase3Value, NullWritable, Text> {
+		int knn;
+		
+		// Keeps the knn closest <rid2, dist> of the current rid1
+		KNNHeap heap;
+
 		public void configure(JobConf job) {
 			knn = job.getInt("knn", 3);
+			heap = new KNNHeap(knn);
 		}	
 
 		public void reduce(IntWritable key, Iterator<BPhase3Value> values, 
 			OutputCollector<NullWritable, Text> output, 
 			Reporter reporter) throws IOException {
 
-			RecordComparator rc = new RecordComparator();
-			PriorityQueue<Record> pq = new PriorityQueue<Record>(knn + 1, rc);
-
-			TreeSet<Integer> ts = new TreeSet<Integer>();
+			heap.reset();
 
 			// For each record we have a reduce task
 			// value format <rid1, rid2, dist>
@@ -103,20 +163,19 @@ public class BPhase3 extends Configured implements Tool {
 				BPhase3Value np2v = values.next();
 
 				int id2 = np2v.getFirst().get();
-
-               if (!ts.contains(id2)) {
-                   ts.add(id2);
-		       	float dist = np2v.getSecond().get();
-		       	Record record = new Record(id2, dist);
-		       	pq.add(record);
-		       	if (pq.size() > knn)
-		       		pq.poll();
-               }
+				// A rid2 kept by the heap is never worse than its copies
+				if (!heap.contains(id2)) {
+					float dist = np2v.getSecond().get();
+					heap.add(id2, dist);
+				}
 			}
 
-			while(pq.size() > 0) {
+			// Largest distance first
+			while(!heap.isEmpty()) {
 				output.collect(NullWritable.get(),
-				   new Text(key.toString() + " " + pq.poll().toString()));
+				   new Text(key.toString() + " " + heap.peekId() + " " 
+					   + Float.toString((float) heap.peekDistance())));
+				heap.poll();
 				//break; // we only keep the first one
 			}
 
@@ -126,7 +185,7 @@ public class BPhase3 extends Configured implements Tool {
 	static int printUsage() {
 		System.out.println(
 			"NPhase1 [-m <maps>] [-r <reduces>] [-k <knn>] " 
-			+ "<input> <output>");
+			+ "[-agg <bufferedRecords>] [-cs <maxSplitMB>] <input> <output>");
 		ToolRunner.printGenericCommandUsage(System.out);
 		return -1;
 	}
@@ -141,6 +200,7 @@ public class BPhase3 extends Configured implements Tool {
 		conf.setOutputValueClass(Text.class);		
 
 		conf.setMapperClass(MapClass.class);        
+		conf.setCombinerClass(Combine.class);
 		conf.setReducerClass(Reduce.class);
 
 		List<String> other_args = new ArrayList<String>();
@@ -155,6 +215,13 @@ public class BPhase3 extends Configured implements Tool {
 					int knn = Integer.parseInt(args[++i]);
 					conf.setInt("knn", knn);
 					//System.out.println(knn);
+				} else if ("-agg".equals(args[i])) {
+					conf.setInt("aggregate", Integer.parseInt(args[++i]));
+				} else if ("-cs".equals(args[i])) {
+					// pack several phase-2 outputs into one split of <= cs MB
+					conf.setInputFormat(CombinedTextInputFormat.class);
+					conf.setLong("mapred.max.split.size", 
+						Long.parseLong(args[++i]) * 1024 * 1024);
 				} else {
 					other_args.add(args[i]);
 				}
@@ -0,0 +1,606 @@
+/*
+ * THERE IS NO WARRANTY FOR THE PROGRAM, TO THE EXTENT PERMITTED BY APPLICABLE LAW.
+ * EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR OTHER
+ * PARTIES PROVIDE THE PROGRAM "AS IS" WITHOUT WARRANTY OF ANY KIND, EITHER
+ * EXPRESSED OR IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE. THE ENTIRE RISK AS
+ * TO THE QUALITY AND PERFORMANCE OF THE PROGRAM IS WITH YOU. SHOULD THE PROGRAM
+ * PROVE DEFECTIVE, YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR
+ * OR CORRECTION.
+ */
+
+package test;
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.*;
+import org.apache.hadoop.io.*;
+import org.apache.hadoop.mapred.*;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+/**
+ * Optional Round 4 of H-zKNNJ: refines the approximate knn of BPhase3 into
+ * the exact knn. The k-th distance dk of the approximate knn of a record r
+ * of R is an upper bound of its exact k-th distance, so the exact knn of r
+ * lie in the ball of radius dk around r.
+ *
+ * The space is divided into a grid of cells (-side). Every record of S goes
+ * to its cell, a record of R goes to every cell intersecting the bounding
+ * box of its ball: to its own cell and, only if the ball crosses the
+ * boundary of that cell, to the neighbouring cells as well. The reducer of a
+ * cell searches its S for the knn of its R within dk.
+ *
+ * A record of R for which BPhase3 found less than knn candidates has no
+ * bound dk: it goes to every non-empty cell of S and is searched there
+ * without a radius, so that the output is exact for it as well.
+ *
+ * Job 1 joins R with dk on rid, only if some records of R have no bound
+ * the non-empty cells of S are listed, job 2 is the cell join which writes
+ * <rid1 rid2 dist> like BPhase2, and job 3 merges the knn of the cells of
+ * a record of R with the classes of BPhase3.
+ */
+public class BPhase4 extends Configured implements Tool {
+	// Scale of the coordinates, the same as in BPhase1
+	static final int scale = 1000;
+
+	static enum Refine { CROSSING, REPLICAS, UNBOUNDED, MISSING }
+
+	// Scale the coordinates of parts[offset..] like BPhase1 does
+	static void convert(String[] parts, int offset, int dimension,
+		int[] coord) {
+		for (int k = 0; k < dimension; k++) {
+			float c = Float.parseFloat(parts[offset + k]);
+			coord[k] = (int) c;          // Get integer part
+			c -= coord[k];               // Get fractional part
+			coord[k] *= scale;           // Scale integer part
+			coord[k] += (c * scale);
+		}
+	}
+
+	// Cell of a scaled coordinate, rounding down for negative values too
+	static long cell(long v, long side) {
+		return v >= 0 ? v / side : -((-v + side - 1) / side);
+	}
+
+	static String cellName(long[] c, int dimension) {
+		StringBuilder sb = new StringBuilder();
+		for (int k = 0; k < dimension; k++) {
+			if (k > 0) sb.append(' ');
+			sb.append(c[k]);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Reads R ("rid x1 .. xd", its path starts with refine.outer) and the
+	 * output of BPhase3 ("rid1 rid2 dist") and sends both to rid1.
+	 */
+	public static class JoinMap extends MapReduceBase
+		implements Mapper<LongWritable, Text, IntWritable, Text> {
+		private int dimension;
+		private boolean isR;
+		private int[] coord;
+
+		public void configure(JobConf job) {
+			dimension = job.getInt("dimension", 2);
+			isR = job.get("map.input.file").startsWith(job.get("refine.outer"));
+			coord = new int[dimension];
+		}
+
+		public void map(LongWritable key, Text value,
+			OutputCollector<IntWritable, Text> output, Reporter reporter)
+			throws IOException {
+			String[] parts = value.toString().trim().split("\\s+");
+			if (isR) {
+				convert(parts, 1, dimension, coord);
+				StringBuilder sb = new StringBuilder("c");
+				for (int k = 0; k < dimension; k++)
+					sb.append(' ').append(coord[k]);
+				output.collect(new IntWritable(Integer.parseInt(parts[0])),
+					new Text(sb.toString()));
+			} else {
+				output.collect(new IntWritable(Integer.parseInt(parts[0])),
+					new Text("d " + parts[2]));
+			}
+		}
+	}
+
+	/**
+	 * Writes "rid dk x1 .. xd" with the largest distance dk of the knn of
+	 * rid, or -1 if BPhase3 found less than knn candidates.
+	 */
+	public static class JoinReduce extends MapReduceBase
+		implements Reducer<IntWritable, Text, NullWritable, Text> {
+		private int knn;
+
+		public void configure(JobConf job) {
+			knn = job.getInt("knn", 3);
+		}
+
+		public void reduce(IntWritable key, Iterator<Text> values,
+			OutputCollector<NullWritable, Text> output, Reporter reporter)
+			throws IOException {
+			String coord = null;
+			float dk = 0;
+			int found = 0;
+			while (values.hasNext()) {
+				String v = values.next().toString();
+				if (v.charAt(0) == 'c') {
+					coord = v.substring(2);
+				} else {
+					dk = Math.max(dk, Float.parseFloat(v.substring(2)));
+					found++;
+				}
+			}
+			if (coord == null) {
+				// a result without a record of R
+				reporter.incrCounter(Refine.MISSING, 1);
+				return;
+			}
+			if (found < knn) {
+				reporter.incrCounter(Refine.UNBOUNDED, 1);
+				dk = -1;
+			}
+			output.collect(NullWritable.get(),
+				new Text(key.get() + " " + dk + " " + coord));
+		}
+	}
+
+	/**
+	 * Lists the non-empty cells of S, one name per line. Only run when some
+	 * records of R have no bound dk.
+	 */
+	public static class SCellMap extends MapReduceBase
+		implements Mapper<LongWritable, Text, Text, NullWritable> {
+		private int dimension;
+		private long side;
+		private int[] coord;
+		private long[] c;
+		// Cells already emitted by this map task
+		private Set<String> seen = new HashSet<String>();
+
+		public void configure(JobConf job) {
+			dimension = job.getInt("dimension", 2);
+			side = job.getLong("cellSide", 1000L * scale);
+			coord = new int[dimension];
+			c = new long[dimension];
+		}
+
+		public void map(LongWritable key, Text value,
+			OutputCollector<Text, NullWritable> output, Reporter reporter)
+			throws IOException {
+			String[] parts = value.toString().trim().split("\\s+");
+			convert(parts, 1, dimension, coord);
+			for (int k = 0; k < dimension; k++)
+				c[k] = cell(coord[k], side);
+			String name = cellName(c, dimension);
+			if (seen.add(name))
+				output.collect(new Text(name), NullWritable.get());
+		}
+	}
+
+	public static class SCellReduce extends MapReduceBase
+		implements Reducer<Text, NullWritable, Text, NullWritable> {
+
+		public void reduce(Text key, Iterator<NullWritable> values,
+			OutputCollector<Text, NullWritable> output, Reporter reporter)
+			throws IOException {
+			output.collect(key, NullWritable.get());
+		}
+	}
+
+	/**
+	 * Reads S ("id x1 .. xd", its path starts with refine.inner) and the
+	 * output of JoinReduce. The key is <cell, 0> for S and <cell, 1> for R,
+	 * so that a reducer sees the S of a cell before its R. A record of R
+	 * without a bound goes to every cell listed in refine.cells.
+	 */
+	public static class CellMap extends MapReduceBase
+		implements Mapper<LongWritable, Text, TextBytePair, Text> {
+		private int dimension;
+		private long side;
+		private boolean isS;
+		private int[] coord;
+		private long[] lo, hi, c;
+		// Non-empty cells of S, for the records of R without a bound
+		private List<String> sCells = new ArrayList<String>();
+
+		public void configure(JobConf job) {
+			dimension = job.getInt("dimension", 2);
+			side = job.getLong("cellSide", 1000L * scale);
+			isS = job.get("map.input.file").startsWith(job.get("refine.inner"));
+			coord = new int[dimension];
+			lo = new long[dimension];
+			hi = new long[dimension];
+			c = new long[dimension];
+			if (!isS && job.get("refine.cells") != null)
+				readCells(job, new Path(job.get("refine.cells")));
+		}
+
+		private void readCells(JobConf job, Path dir) {
+			try {
+				FileSystem fs = dir.getFileSystem(job);
+				for (FileStatus st : fs.listStatus(dir)) {
+					if (!st.getPath().getName().startsWith("part-"))
+						continue;
+					BufferedReader br = new BufferedReader(
+						new InputStreamReader(fs.open(st.getPath())));
+					String line;
+					while ((line = br.readLine()) != null) {
+						line = line.trim();
+						if (line.length() > 0)
+							sCells.add(line);
+					}
+					br.close();
+				}
+			} catch (IOException ioe) {
+				System.err.println("Caught exception while reading the cells of S: "
+					+ ioe.toString());
+				System.exit(-1);
+			}
+		}
+
+		public void map(LongWritable key, Text value,
+			OutputCollector<TextBytePair, Text> output, Reporter reporter)
+			throws IOException {
+			String[] parts = value.toString().trim().split("\\s+");
+			if (isS) {
+				convert(parts, 1, dimension, coord);
+				StringBuilder sb = new StringBuilder(parts[0]);
+				for (int k = 0; k < dimension; k++) {
+					c[k] = cell(coord[k], side);
+					sb.append(' ').append(coord[k]);
+				}
+				output.collect(new TextBytePair(cellName(c, dimension), (byte) 0),
+					new Text(sb.toString()));
+				return;
+			}
+
+			// <rid, dk, coord>, the ball is grown by the rounding error of dk
+			double dk = Double.parseDouble(parts[1]);
+			Text rec = new Text(value.toString().trim());
+			if (dk < 0) {
+				// No bound, the knn may lie in any non-empty cell
+				for (String name : sCells)
+					output.collect(new TextBytePair(name, (byte) 1), rec);
+				reporter.incrCounter(Refine.REPLICAS, sCells.size());
+				return;
+			}
+			double radius = dk * (1 + 1e-6) + 1;
+			long cells = 1;
+			for (int k = 0; k < dimension; k++) {
+				long x = Long.parseLong(parts[2 + k]);
+				lo[k] = cell((long) Math.floor(x - radius), side);
+				hi[k] = cell((long) Math.ceil(x + radius), side);
+				c[k] = lo[k];
+				cells *= hi[k] - lo[k] + 1;
+			}
+			if (cells > 1)
+				reporter.incrCounter(Refine.CROSSING, 1);
+			reporter.incrCounter(Refine.REPLICAS, cells);
+
+			while (true) {
+				output.collect(new TextBytePair(cellName(c, dimension), (byte) 1),
+					rec);
+				int k = 0;
+				while (k < dimension && c[k] == hi[k]) {
+					c[k] = lo[k];
+					k++;
+				}
+				if (k == dimension)
+					break;
+				c[k]++;
+			}
+		}
+	}
+
+	public static class CellPartitioner
+		implements Partitioner<TextBytePair, Text> {
+
+		@Override
+		public void configure(JobConf job) {}
+
+		@Override
+		public int getPartition(TextBytePair key, Text value,
+			int numPartitions) {
+			return (key.getFirst().hashCode() & Integer.MAX_VALUE)
+				% numPartitions;
+		}
+	}
+
+	// Groups <cell, 0> and <cell, 1> into one reduce call
+	public static class CellGroupComparator extends WritableComparator {
+		protected CellGroupComparator() {
+			super(TextBytePair.class, true);
+		}
+
+		@Override
+		public int compare(WritableComparable w1, WritableComparable w2) {
+			return ((TextBytePair) w1).getFirst().compareTo(
+				((TextBytePair) w2).getFirst());
+		}
+	}
+
+	/**
+	 * Finds the knn within dk of the R of a cell among the S of the cell. S
+	 * is sorted on the first coordinate, a query scans the slab of width
+	 * 2 * dk around it, which shrinks with the k-th distance found so far.
+	 */
+	public static class CellReduce extends MapReduceBase
+		implements Reducer<TextBytePair, Text, NullWritable, Text> {
+		private int dimension;
+		private int knn;
+		private KNNHeap heap;
+		private int[] knnIds;
+		private double[] knnDists;
+
+		// S of the current cell, sorted on the first coordinate
+		private int size;
+		private int[] ids = new int[1024];
+		private int[] coords;
+		private long[] order = new long[1024];
+		private int[] sortedIds = new int[0];
+		private int[] sortedCoords = new int[0];
+		private int[] q;
+
+		public void configure(JobConf job) {
+			dimension = job.getInt("dimension", 2);
+			knn = job.getInt("knn", 3);
+			heap = new KNNHeap(knn);
+			knnIds = new int[knn];
+			knnDists = new double[knn];
+			coords = new int[1024 * dimension];
+			q = new int[dimension];
+		}
+
+		public void reduce(TextBytePair key, Iterator<Text> values,
+			OutputCollector<NullWritable, Text> output, Reporter reporter)
+			throws IOException {
+			size = 0;
+			boolean sorted = false;
+			Text line = new Text();
+			while (values.hasNext()) {
+				String[] parts = values.next().toString().split(" ");
+				if (parts.length == dimension + 1) {
+					// <id, coord> of S
+					if (size == ids.length) {
+						ids = Arrays.copyOf(ids, 2 * size);
+						coords = Arrays.copyOf(coords, 2 * size * dimension);
+						order = Arrays.copyOf(order, 2 * size);
+					}
+					ids[size] = Integer.parseInt(parts[0]);
+					for (int k = 0; k < dimension; k++)
+						coords[size * dimension + k] =
+							Integer.parseInt(parts[1 + k]);
+					size++;
+					continue;
+				}
+
+				// <rid, dk, coord> of R, all S have been read
+				if (!sorted) {
+					sortS();
+					sorted = true;
+				}
+				int rid = Integer.parseInt(parts[0]);
+				double dk = Double.parseDouble(parts[1]);
+				for (int k = 0; k < dimension; k++)
+					q[k] = Integer.parseInt(parts[2 + k]);
+				double radius = dk < 0 ? Double.POSITIVE_INFINITY
+					: dk * (1 + 1e-6) + 1;
+				int found = query(radius);
+				for (int i = 0; i < found; i++) {
+					line.set(rid + " " + knnIds[i] + " " + (float) knnDists[i]);
+					output.collect(NullWritable.get(), line);
+				}
+			}
+			reporter.progress();
+		}
+
+		private void sortS() {
+			// <first coordinate, index> packed into a long
+			for (int i = 0; i < size; i++)
+				order[i] = ((long) coords[i * dimension] << 32) | i;
+			Arrays.sort(order, 0, size);
+			if (sortedIds.length < size) {
+				sortedIds = new int[ids.length];
+				sortedCoords = new int[ids.length * dimension];
+			}
+			for (int i = 0; i < size; i++) {
+				int j = (int) order[i];
+				sortedIds[i] = ids[j];
+				System.arraycopy(coords, j * dimension, sortedCoords,
+					i * dimension, dimension);
+			}
+		}
+
+		// knn of q within radius among the S of the cell
+		private int query(double radius) {
+			heap.reset();
+			double bound = radius;
+			// first S with x >= q[0] - radius
+			double x0 = q[0] - radius;
+			int lo = 0, hi = size;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (sortedCoords[mid * dimension] < x0)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			for (int i = lo; i < size; i++) {
+				int off = i * dimension;
+				if (sortedCoords[off] > q[0] + bound)
+					break;
+				double distSq = 0;
+				for (int k = 0; k < dimension; k++) {
+					double d = (double) sortedCoords[off + k] - q[k];
+					distSq += d * d;
+				}
+				double dist = Math.sqrt(distSq);
+				if (dist <= bound && heap.add(sortedIds[i], dist)
+					&& heap.isFull())
+					bound = Math.min(radius, heap.kthDistance());
+			}
+			return heap.drainAscending(knnIds, knnDists);
+		}
+	}
+
+	static int printUsage() {
+		System.out.println(
+			"BPhase4 [-r <reduces>] -d <dimension> -k <knn> "
+			+ "-side <cell side> -outer <R> -inner <S> "
+			+ "<phase3 output> <output>");
+		ToolRunner.printGenericCommandUsage(System.out);
+		return -1;
+	}
+
+	private static String qualify(JobConf conf, String p) throws IOException {
+		Path path = new Path(p);
+		return path.getFileSystem(conf).makeQualified(path).toString();
+	}
+
+	public int run(String[] args) throws Exception {
+		int reduces = 1;
+		int dimension = 2;
+		int knn = 3;
+		double side = 1000;
+		String outer = null;
+		String inner = null;
+
+		List<String> other_args = new ArrayList<String>();
+		for(int i = 0; i < args.length; ++i) {
+			try {
+				if ("-r".equals(args[i])) {
+					reduces = Integer.parseInt(args[++i]);
+				} else if ("-d".equals(args[i])) {
+					dimension = Integer.parseInt(args[++i]);
+				} else if ("-k".equals(args[i])) {
+					knn = Integer.parseInt(args[++i]);
+				} else if ("-side".equals(args[i])) {
+					side = Double.parseDouble(args[++i]);
+				} else if ("-outer".equals(args[i])) {
+					outer = args[++i];
+				} else if ("-inner".equals(args[i])) {
+					inner = args[++i];
+				} else {
+					other_args.add(args[i]);
+				}
+			} catch (NumberFormatException except) {
+				System.out.println("ERROR: Number expected instead of " + args[i]);
+				return printUsage();
+			} catch (ArrayIndexOutOfBoundsException except) {
+				System.out.println("ERROR: Required parameter missing from " + args[i-1]);
+				return printUsage();
+			}
+		}
+
+		if (other_args.size() != 2 || outer == null || inner == null) {
+			System.out.println("ERROR: R, S, the output of BPhase3 and the "
+				+ "output directory are required.");
+			return printUsage();
+		}
+		String output = other_args.get(1);
+		Path joined = new Path(output + "-join");
+		Path candidates = new Path(output + "-cand");
+		Path cells = new Path(output + "-scells");
+		long cellSide = Math.max(1, (long) (side * scale));
+
+		// Job 1: <rid, dk, coord>
+		JobConf conf = new JobConf(getConf(), BPhase4.class);
+		conf.setJobName("BPhase4Join");
+		conf.setInt("dimension", dimension);
+		conf.setInt("knn", knn);
+		conf.set("refine.outer", qualify(conf, outer));
+		conf.setMapOutputKeyClass(IntWritable.class);
+		conf.setMapOutputValueClass(Text.class);
+		conf.setOutputKeyClass(NullWritable.class);
+		conf.setOutputValueClass(Text.class);
+		conf.setMapperClass(JoinMap.class);
+		conf.setReducerClass(JoinReduce.class);
+		conf.setNumReduceTasks(reduces);
+		FileInputFormat.setInputPaths(conf, outer);
+		FileInputFormat.addInputPaths(conf, other_args.get(0));
+		FileOutputFormat.setOutputPath(conf, joined);
+		RunningJob job = JobClient.runJob(conf);
+		Counters counters = job.getCounters();
+		long unbounded = counters.getCounter(Refine.UNBOUNDED);
+		System.out.println("Records of R without " + knn + " candidates: "
+			+ unbounded);
+
+		// Job 1b: the non-empty cells of S, for the records without a bound
+		if (unbounded > 0) {
+			conf = new JobConf(getConf(), BPhase4.class);
+			conf.setJobName("BPhase4SCells");
+			conf.setInt("dimension", dimension);
+			conf.setLong("cellSide", cellSide);
+			conf.setMapOutputKeyClass(Text.class);
+			conf.setMapOutputValueClass(NullWritable.class);
+			conf.setOutputKeyClass(Text.class);
+			conf.setOutputValueClass(NullWritable.class);
+			conf.setMapperClass(SCellMap.class);
+			conf.setCombinerClass(SCellReduce.class);
+			conf.setReducerClass(SCellReduce.class);
+			conf.setNumReduceTasks(reduces);
+			FileInputFormat.setInputPaths(conf, inner);
+			FileOutputFormat.setOutputPath(conf, cells);
+			JobClient.runJob(conf);
+		}
+
+		// Job 2: knn of the cells
+		conf = new JobConf(getConf(), BPhase4.class);
+		conf.setJobName("BPhase4Cells");
+		conf.setInt("dimension", dimension);
+		conf.setInt("knn", knn);
+		conf.setLong("cellSide", cellSide);
+		conf.set("refine.inner", qualify(conf, inner));
+		if (unbounded > 0)
+			conf.set("refine.cells", cells.toString());
+		conf.setMapOutputKeyClass(TextBytePair.class);
+		conf.setMapOutputValueClass(Text.class);
+		conf.setOutputKeyClass(NullWritable.class);
+		conf.setOutputValueClass(Text.class);
+		conf.setPartitionerClass(CellPartitioner.class);
+		conf.setOutputValueGroupingComparator(CellGroupComparator.class);
+		conf.setMapperClass(CellMap.class);
+		conf.setReducerClass(CellReduce.class);
+		conf.setNumReduceTasks(reduces);
+		FileInputFormat.setInputPaths(conf, inner);
+		FileInputFormat.addInputPath(conf, joined);
+		FileOutputFormat.setOutputPath(conf, candidates);
+		job = JobClient.runJob(conf);
+		counters = job.getCounters();
+		System.out.println("Records of R crossing their cell: "
+			+ counters.getCounter(Refine.CROSSING) + ", cells queried: "
+			+ counters.getCounter(Refine.REPLICAS));
+
+		// Job 3: merge the knn of the cells of a record of R
+		conf = new JobConf(getConf(), BPhase4.class);
+		conf.setJobName("BPhase4Merge");
+		conf.setInt("knn", knn);
+		conf.setMapOutputKeyClass(IntWritable.class);
+		conf.setMapOutputValueClass(BPhase3Value.class);
+		conf.setOutputKeyClass(NullWritable.class);
+		conf.setOutputValueClass(Text.class);
+		conf.setMapperClass(BPhase3.MapClass.class);
+		conf.setCombinerClass(BPhase3.Combine.class);
+		conf.setReducerClass(BPhase3.Reduce.class);
+		conf.setNumReduceTasks(reduces);
+		FileInputFormat.setInputPaths(conf, candidates);
+		FileOutputFormat.setOutputPath(conf, new Path(output));
+		JobClient.runJob(conf);
+
+		FileSystem fs = joined.getFileSystem(conf);
+		fs.delete(joined, true);
+		fs.delete(candidates, true);
+		fs.delete(cells, true);
+		return 0;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int res = ToolRunner.run(new Configuration(), new BPhase4(), args);
+	}
+}
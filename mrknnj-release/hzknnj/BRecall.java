@@ -0,0 +1,204 @@
+/*
+ * THERE IS NO WARRANTY FOR THE PROGRAM, TO THE EXTENT PERMITTED BY APPLICABLE LAW.
+ * EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR OTHER
+ * PARTIES PROVIDE THE PROGRAM "AS IS" WITHOUT WARRANTY OF ANY KIND, EITHER
+ * EXPRESSED OR IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE. THE ENTIRE RISK AS
+ * TO THE QUALITY AND PERFORMANCE OF THE PROGRAM IS WITH YOU. SHOULD THE PROGRAM
+ * PROVE DEFECTIVE, YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR
+ * OR CORRECTION.
+ */
+
+package test;
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.*;
+import org.apache.hadoop.io.*;
+import org.apache.hadoop.mapred.*;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+/**
+ * Recall and error report of an approximate knn join result (BPhase3)
+ * against the exact one, both in the format "rid1 rid2 dist", for a sample
+ * of the records of R. BPhase3 and BPhase4 write Euclidean distances, so
+ * BPhase4 can be compared as it is. H-BNLJ (NPhase2) writes squared
+ * distances; it is only a valid exact result with -exactsquared, which
+ * takes the root of the exact distances.
+ *
+ * For a sampled rid1 the recall is the fraction of the approximate
+ * neighbours that are not farther away than the exact k-th distance (which
+ * is not affected by ties), and the ratio is the approximate k-th distance
+ * over the exact one. A line "rid1 recall ratio" is written per sampled
+ * record, the averages are printed at the end.
+ */
+public class BRecall extends Configured implements Tool {
+	static enum Report { SAMPLED, INCOMPLETE, RECALL_MICROS, RATIO_MICROS, EXACT }
+
+	public static class MapClass extends MapReduceBase
+		implements Mapper<LongWritable, Text, IntWritable, Text> {
+		private boolean isApprox;
+		private boolean exactSquared;
+		private long sample;
+
+		public void configure(JobConf job) {
+			isApprox = job.get("map.input.file").startsWith(
+				job.get("recall.approx"));
+			exactSquared = job.getBoolean("recall.exactSquared", false);
+			sample = (long) (job.getFloat("sampleRate", 0.01f) * 1000000);
+		}
+
+		// The same records of R are sampled in both inputs
+		static boolean sampled(int rid, long sample) {
+			return ((rid * 2654435761L) & 0xFFFFFFFFL) % 1000000 < sample;
+		}
+
+		public void map(LongWritable key, Text value,
+			OutputCollector<IntWritable, Text> output, Reporter reporter)
+			throws IOException {
+			String[] parts = value.toString().trim().split("\\s+");
+			int rid = Integer.parseInt(parts[0]);
+			if (!sampled(rid, sample))
+				return;
+			String dist = parts[2];
+			if (!isApprox && exactSquared)
+				dist = Double.toString(Math.sqrt(Double.parseDouble(dist)));
+			output.collect(new IntWritable(rid),
+				new Text((isApprox ? "a " : "e ") + dist));
+		}
+	}
+
+	public static class Reduce extends MapReduceBase
+		implements Reducer<IntWritable, Text, NullWritable, Text> {
+		private int knn;
+		private double[] approx, exact;
+
+		public void configure(JobConf job) {
+			knn = job.getInt("knn", 3);
+			approx = new double[knn];
+			exact = new double[knn];
+		}
+
+		public void reduce(IntWritable key, Iterator<Text> values,
+			OutputCollector<NullWritable, Text> output, Reporter reporter)
+			throws IOException {
+			int na = 0, ne = 0;
+			while (values.hasNext()) {
+				String v = values.next().toString();
+				double dist = Double.parseDouble(v.substring(2));
+				if (v.charAt(0) == 'a') {
+					if (na < knn) approx[na++] = dist;
+				} else {
+					if (ne < knn) exact[ne++] = dist;
+				}
+			}
+			reporter.incrCounter(Report.SAMPLED, 1);
+			if (na < knn || ne < knn) {
+				reporter.incrCounter(Report.INCOMPLETE, 1);
+				return;
+			}
+
+			double exactK = 0, approxK = 0;
+			for (int i = 0; i < knn; i++) {
+				exactK = Math.max(exactK, exact[i]);
+				approxK = Math.max(approxK, approx[i]);
+			}
+			// the distances are printed as float
+			double tolerance = exactK * 1e-6;
+			int hits = 0;
+			for (int i = 0; i < knn; i++)
+				if (approx[i] <= exactK + tolerance)
+					hits++;
+			double recall = (double) hits / knn;
+			double ratio = exactK > 0 ? approxK / exactK : 1;
+			if (hits == knn)
+				reporter.incrCounter(Report.EXACT, 1);
+			reporter.incrCounter(Report.RECALL_MICROS,
+				Math.round(recall * 1000000));
+			reporter.incrCounter(Report.RATIO_MICROS,
+				Math.round(ratio * 1000000));
+			output.collect(NullWritable.get(),
+				new Text(key.get() + " " + (float) recall + " " + (float) ratio));
+		}
+	}
+
+	static int printUsage() {
+		System.out.println(
+			"BRecall [-r <reduces>] -k <knn> [-sr <sampleRate>] [-exactsquared] "
+			+ "<approximate result> <exact result> <output>");
+		ToolRunner.printGenericCommandUsage(System.out);
+		return -1;
+	}
+
+	public int run(String[] args) throws Exception {
+		JobConf conf = new JobConf(getConf(), BRecall.class);
+		conf.setJobName("BRecall");
+
+		conf.setMapOutputKeyClass(IntWritable.class);
+		conf.setMapOutputValueClass(Text.class);
+		conf.setOutputKeyClass(NullWritable.class);
+		conf.setOutputValueClass(Text.class);
+		conf.setMapperClass(MapClass.class);
+		conf.setReducerClass(Reduce.class);
+
+		List<String> other_args = new ArrayList<String>();
+		for(int i = 0; i < args.length; ++i) {
+			try {
+				if ("-r".equals(args[i])) {
+					conf.setNumReduceTasks(Integer.parseInt(args[++i]));
+				} else if ("-k".equals(args[i])) {
+					conf.setInt("knn", Integer.parseInt(args[++i]));
+				} else if ("-sr".equals(args[i])) {
+					conf.setFloat("sampleRate", Float.parseFloat(args[++i]));
+				} else if ("-exactsquared".equals(args[i])) {
+					conf.setBoolean("recall.exactSquared", true);
+				} else {
+					other_args.add(args[i]);
+				}
+			} catch (NumberFormatException except) {
+				System.out.println("ERROR: Number expected instead of " + args[i]);
+				return printUsage();
+			} catch (ArrayIndexOutOfBoundsException except) {
+				System.out.println("ERROR: Required parameter missing from " + args[i-1]);
+				return printUsage();
+			}
+		}
+
+		if (other_args.size() != 3) {
+			System.out.println("ERROR: Wrong number of parameters: " +
+				other_args.size() + " instead of 3.");
+			return printUsage();
+		}
+
+		Path approx = new Path(other_args.get(0));
+		conf.set("recall.approx",
+			approx.getFileSystem(conf).makeQualified(approx).toString());
+		FileInputFormat.setInputPaths(conf, approx);
+		FileInputFormat.addInputPath(conf, new Path(other_args.get(1)));
+		FileOutputFormat.setOutputPath(conf, new Path(other_args.get(2)));
+
+		RunningJob job = JobClient.runJob(conf);
+		Counters counters = job.getCounters();
+		long sampled = counters.getCounter(Report.SAMPLED);
+		long incomplete = counters.getCounter(Report.INCOMPLETE);
+		long n = sampled - incomplete;
+		System.out.println("Sampled records of R: " + sampled
+			+ " (incomplete: " + incomplete + ")");
+		if (n > 0) {
+			System.out.printf("Average recall: %.4f, exact: %.4f, "
+				+ "average k-th distance ratio: %.4f\n",
+				counters.getCounter(Report.RECALL_MICROS) / 1e6 / n,
+				(double) counters.getCounter(Report.EXACT) / n,
+				counters.getCounter(Report.RATIO_MICROS) / 1e6 / n);
+		}
+		return 0;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int res = ToolRunner.run(new Configuration(), new BRecall(), args);
+	}
+}
@@ -0,0 +1,64 @@
+package test;
+
+import java.io.*;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.*;
+import org.apache.hadoop.mapred.*;
+import org.apache.hadoop.mapred.lib.CombineFileInputFormat;
+import org.apache.hadoop.mapred.lib.CombineFileRecordReader;
+import org.apache.hadoop.mapred.lib.CombineFileSplit;
+
+/**
+ * Text input format that packs several (small) files into one split, up to
+ * mapred.max.split.size bytes. The candidates of a record are spread over
+ * the output files of all buckets it was joined in, reading them in one
+ * map task lets the combiner keep only the best knn before the shuffle.
+ */
+public class CombinedTextInputFormat
+		extends CombineFileInputFormat<LongWritable, Text> {
+	@SuppressWarnings("unchecked")
+	public RecordReader<LongWritable, Text> getRecordReader(InputSplit split,
+		JobConf job, Reporter reporter) throws IOException {
+		return new CombineFileRecordReader<LongWritable, Text>(job, 
+			(CombineFileSplit) split, reporter, (Class) LineReader.class);
+	}
+
+	/**
+	 * Reads the lines of the idx-th file of a combined split.
+	 */
+	public static class LineReader implements RecordReader<LongWritable, Text> {
+		private LineRecordReader reader;
+
+		public LineReader(CombineFileSplit split, Configuration conf, 
+			Reporter reporter, Integer idx) throws IOException {
+			FileSplit fileSplit = new FileSplit(split.getPath(idx), 
+				split.getOffset(idx), split.getLength(idx), split.getLocations());
+			reader = new LineRecordReader(conf, fileSplit);
+		}
+
+		public boolean next(LongWritable key, Text value) throws IOException {
+			return reader.next(key, value);
+		}
+
+		public LongWritable createKey() {
+			return reader.createKey();
+		}
+
+		public Text createValue() {
+			return reader.createValue();
+		}
+
+		public long getPos() throws IOException {
+			return reader.getPos();
+		}
+
+		public float getProgress() throws IOException {
+			return reader.getProgress();
+		}
+
+		public void close() throws IOException {
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,222 @@
+/*
+ * THERE IS NO WARRANTY FOR THE PROGRAM, TO THE EXTENT PERMITTED BY APPLICABLE LAW.
+ * EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR OTHER
+ * PARTIES PROVIDE THE PROGRAM "AS IS" WITHOUT WARRANTY OF ANY KIND, EITHER
+ * EXPRESSED OR IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE. THE ENTIRE RISK AS
+ * TO THE QUALITY AND PERFORMANCE OF THE PROGRAM IS WITH YOU. SHOULD THE PROGRAM
+ * PROVE DEFECTIVE, YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR
+ * OR CORRECTION.
+ */
+
+package test;
+
+/**
+ * Fixed size cache of the coordinates of binary z-values (or Hilbert
+ * values), without objects per entry: the keys (Zorder.words(dimension)
+ * longs each) and the coordinates (dimension ints each) are packed in flat
+ * arrays, indexed by an open addressing table with linear probing.
+ *
+ * The entry to replace when the cache is full is chosen by one of
+ * LRU:   the least recently used entry
+ * FIFO:  the oldest entry
+ * CLOCK: the oldest entry that has not been used since the hand passed it
+ */
+public class CoordCache {
+	public static enum Policy { LRU, FIFO, CLOCK }
+
+	private final int dimension;
+	private final int words;
+	private final int capacity;
+	private final Policy policy;
+
+	private final long[] keys;     // capacity * words
+	private final int[] coords;    // capacity * dimension
+	private final int[] table;     // entry + 1, 0 is free
+	private final int mask;
+	private int size = 0;
+
+	// LRU list (head is the least recently used), CLOCK reference bits
+	private final int[] prev, next;
+	private int head = -1, tail = -1;
+	private final boolean[] referenced;
+	private int hand = 0;
+
+	private long hits = 0, misses = 0;
+
+	public CoordCache(int dimension, int capacity, Policy policy) {
+		this.dimension = dimension;
+		this.words = Zorder.words(dimension);
+		this.capacity = Math.max(1, capacity);
+		this.policy = policy;
+		keys = new long[this.capacity * words];
+		coords = new int[this.capacity * dimension];
+
+		int tableSize = Integer.highestOneBit(this.capacity * 2 - 1) << 1;
+		table = new int[tableSize];
+		mask = tableSize - 1;
+
+		prev = policy == Policy.LRU ? new int[this.capacity] : null;
+		next = policy == Policy.LRU ? new int[this.capacity] : null;
+		referenced = policy == Policy.CLOCK ? new boolean[this.capacity] : null;
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Returns the offset of the coordinates of z in getCoords(), or -1 if
+	 * z is not cached. A hit counts as a use of the entry.
+	 */
+	public int get(long[] z) {
+		int i = find(z);
+		if (i < 0) {
+			misses++;
+			return -1;
+		}
+		hits++;
+		int e = table[i] - 1;
+		if (policy == Policy.LRU) {
+			unlink(e);
+			append(e);
+		} else if (policy == Policy.CLOCK) {
+			referenced[e] = true;
+		}
+		return e * dimension;
+	}
+
+	/**
+	 * Caches the coordinates of z, which is not cached yet, replacing an
+	 * entry if the cache is full. Returns the offset of the coordinates in
+	 * getCoords().
+	 */
+	public int put(long[] z, int[] coord) {
+		int e;
+		if (size < capacity) {
+			e = size++;
+		} else {
+			e = victim();
+			remove(e);
+		}
+
+		System.arraycopy(z, 0, keys, e * words, words);
+		System.arraycopy(coord, 0, coords, e * dimension, dimension);
+		int i = slot(z, 0);
+		while (table[i] != 0)
+			i = (i + 1) & mask;
+		table[i] = e + 1;
+
+		if (policy == Policy.LRU)
+			append(e);
+		else if (policy == Policy.CLOCK)
+			referenced[e] = false;
+		return e * dimension;
+	}
+
+	public int[] getCoords() {
+		return coords;
+	}
+
+	private int victim() {
+		switch (policy) {
+		case LRU:
+			return head;
+		case CLOCK:
+			while (referenced[hand]) {
+				referenced[hand] = false;
+				advance();
+			}
+			return advance();
+		default:
+			return advance();
+		}
+	}
+
+	// Moves the hand to the next entry, returns the entry it was on
+	private int advance() {
+		int e = hand;
+		hand = (hand + 1) % capacity;
+		return e;
+	}
+
+	private int hash(long[] z, int off) {
+		long h = 0;
+		for (int i = 0; i < words; i++)
+			h = (h + z[off + i]) * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	private int slot(long[] z, int off) {
+		int h = hash(z, off);
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	private boolean equals(long[] z, int e) {
+		int off = e * words;
+		for (int i = 0; i < words; i++)
+			if (keys[off + i] != z[i])
+				return false;
+		return true;
+	}
+
+	// Table index of z or -1
+	private int find(long[] z) {
+		int i = slot(z, 0);
+		while (table[i] != 0) {
+			if (equals(z, table[i] - 1))
+				return i;
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	// Removes entry e from the table, shifting back the entries after it
+	private void remove(int e) {
+		int i = slot(keys, e * words);
+		while (table[i] != e + 1)
+			i = (i + 1) & mask;
+		int j = i;
+		while (true) {
+			table[i] = 0;
+			int k;
+			do {
+				j = (j + 1) & mask;
+				if (table[j] == 0) {
+					if (policy == Policy.LRU)
+						unlink(e);
+					return;
+				}
+				k = slot(keys, (table[j] - 1) * words);
+				// the entry at j may move to i if its slot k is not in (i, j]
+			} while (i <= j ? (i < k && k <= j) : (i < k || k <= j));
+			table[i] = table[j];
+			i = j;
+		}
+	}
+
+	private void unlink(int e) {
+		if (prev[e] >= 0)
+			next[prev[e]] = next[e];
+		else
+			head = next[e];
+		if (next[e] >= 0)
+			prev[next[e]] = prev[e];
+		else
+			tail = prev[e];
+	}
+
+	private void append(int e) {
+		prev[e] = tail;
+		next[e] = -1;
+		if (tail >= 0)
+			next[tail] = e;
+		else
+			head = e;
+		tail = e;
+	}
+}
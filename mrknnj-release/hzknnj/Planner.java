@@ -0,0 +1,435 @@
+package test;
+
+import java.io.*;
+import java.lang.reflect.Constructor;
+import java.util.*;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+/**
+ * Chooses the algorithm of a kNN join of R and S, H-BRJ or H-BNLJ (and the
+ * approximate H-zKNNJ with -approx), and its parameters from a cost model,
+ * then runs the first round of the chosen pipeline and prints the commands
+ * of the other rounds.
+ *
+ * R and S are sampled by reading lines at random offsets of their files.
+ * The sample gives the length of a record, and with the file sizes the
+ * number of records. For every algorithm and number of partitions p the
+ * model estimates the shuffled bytes, the largest bucket of a reducer and
+ * the time of the rounds: a round runs its reduce tasks in waves on the
+ * given slots, a task costs its startup, its share of the shuffle and its
+ * join. H-BRJ and H-BNLJ have p * p buckets packed on at most one
+ * reducer per slot, H-zKNNJ s * p reducers.
+ *
+ * The costs per byte, distance and task are rough and can be set with
+ * -D planner.net=<MB/s>, planner.disk=<MB/s>, planner.dist=<ns per distance
+ * per dimension> and planner.task=<s>.
+ *
+ * Every module has a copy of this class; the round that is not in the jar
+ * of the planner is printed instead of run.
+ */
+public class Planner extends Configured implements Tool {
+
+	public static final int BRJ = 0, BNLJ = 1, ZKNNJ = 2;
+	static final String[] NAMES = {"H-BRJ", "H-BNLJ", "H-zKNNJ"};
+	static final String[] FIRST = {"RPhase1", "NPhase1", "BPhase1"};
+
+	// Largest number of partitions tried
+	static final int MAX_P = 64;
+	// Entries of an R-tree node, distances of a query per level
+	static final int FANOUT = 64;
+
+	private double net = 40;      // MB/s of the shuffle per task
+	private double disk = 60;     // MB/s of a local disk
+	private double dist = 2;      // ns per distance per dimension
+	private double task = 3;      // s to start a task
+
+	private int dimension = 2;
+	private int knn = 3;
+	private int slots = 16;
+	private int memory = 512;     // MB per task
+	private int shift = 2;
+
+	/** The estimated cost of an algorithm with its parameters. */
+	static class Plan {
+		int alg, p, shift;
+		double epsilon;
+		double secs;       // all rounds
+		double shuffle;    // bytes of all rounds
+		double bucket;     // records of the largest bucket of S
+		int reducers;
+
+		public String toString() {
+			return String.format("%-8s p=%-3d %s reducers=%-5d "
+				+ "bucket=%-10.0f shuffle=%8.1f MB time=%8.1f s",
+				NAMES[alg], p, alg == ZKNNJ
+					? String.format("s=%d e=%.4f", shift, epsilon) : "",
+				reducers, bucket, shuffle / (1 << 20), secs);
+		}
+	}
+
+	/** Size of the records of a dataset, from a sample of its lines. */
+	static class Sample {
+		long bytes;
+		long lines;        // sampled
+		long lineBytes;    // of the sampled lines
+
+		double records() {
+			return lines == 0 ? 0 : bytes / ((double) lineBytes / lines);
+		}
+
+		double recordBytes() {
+			return lines == 0 ? 0 : (double) lineBytes / lines;
+		}
+	}
+
+	/**
+	 * Reads size lines at random offsets of the files under path, each
+	 * after the end of the line the offset falls into.
+	 */
+	static Sample sample(FileSystem fs, Path path, int size, Random r)
+		throws IOException {
+		List<FileStatus> files = new ArrayList<FileStatus>();
+		FileStatus[] status = fs.listStatus(path);
+		if (status != null) {
+			for (FileStatus f : status) {
+				String name = f.getPath().getName();
+				if (!f.isDir() && !name.startsWith("_") && !name.startsWith("."))
+					files.add(f);
+			}
+		}
+
+		Sample s = new Sample();
+		for (FileStatus f : files)
+			s.bytes += f.getLen();
+		if (s.bytes == 0)
+			return s;
+
+		long[] offsets = new long[size];
+		for (int i = 0; i < size; i++)
+			offsets[i] = (long) (r.nextDouble() * s.bytes);
+		Arrays.sort(offsets);
+
+		int i = 0;
+		long start = 0;
+		for (FileStatus f : files) {
+			long end = start + f.getLen();
+			if (i < size && offsets[i] < end) {
+				FSDataInputStream in = fs.open(f.getPath());
+				for (; i < size && offsets[i] < end; i++) {
+					long pos = offsets[i] - start;
+					in.seek(pos);
+					if (pos > 0)
+						skipLine(in);
+					int len = skipLine(in);
+					if (len > 0) {
+						s.lines++;
+						s.lineBytes += len + 1;
+					}
+				}
+				in.close();
+			}
+			start = end;
+		}
+		return s;
+	}
+
+	// Reads up to the next '\n' and returns the length of the line read
+	private static int skipLine(InputStream in) throws IOException {
+		int len = 0, c;
+		while ((c = in.read()) != -1 && c != '\n')
+			len++;
+		return len;
+	}
+
+	private double waves(int tasks) {
+		return Math.ceil(tasks / (double) slots);
+	}
+
+	// Seconds to shuffle bytes to tasks reducers
+	private double shuffle(double bytes, int tasks) {
+		return bytes / (net * (1 << 20) * Math.min(tasks, slots));
+	}
+
+	// Seconds of distances in dimension d
+	private double distances(double n) {
+		return n * dimension * dist * 1e-9;
+	}
+
+	// The largest of p random buckets of n records, three standard
+	// deviations above the mean
+	private static double maxBucket(double n, int p) {
+		double mean = n / p;
+		return mean + 3 * Math.sqrt(mean);
+	}
+
+	/**
+	 * H-BRJ and H-BNLJ: R and S are split into p random buckets each and
+	 * the p * p buckets of a bucket of R and one of S are joined by at most
+	 * one reducer per slot, several buckets one after the other; round 2
+	 * merges the p candidates of every record of R.
+	 */
+	Plan blockJoin(int alg, int p, Sample R, Sample S) {
+		double nr = R.records(), ns = S.records();
+		double rb = maxBucket(nr, p), sb = maxBucket(ns, p);
+		int buckets = p * p;
+		int tasks = Math.min(buckets, slots);
+		double record = 4 * dimension + 4;   // in memory
+		double mem = memory * (double) (1 << 20);
+
+		double join;
+		if (alg == BRJ) {
+			// bulk load, then per record of R the nodes on the path and
+			// the leaves holding the k nearest
+			double levels = Math.max(1, Math.ceil(Math.log(sb) / Math.log(FANOUT)));
+			join = distances(sb * Math.log(Math.max(2, sb)) / Math.log(2))
+				+ distances(rb * (FANOUT * levels + 4 * knn));
+			if (sb * record * 3 > mem / 2)
+				// R-tree on the local disk
+				join = 2 * join + sb * record / (disk * (1 << 20));
+		} else {
+			join = distances(rb * sb);
+			if (sb * record > mem / 2) {
+				// S spilled, read once per block of R
+				double blocks = Math.ceil(rb * record / (mem / 2));
+				join += blocks * sb * record / (disk * (1 << 20));
+			}
+		}
+
+		Plan plan = new Plan();
+		plan.alg = alg;
+		plan.p = p;
+		plan.reducers = tasks;
+		plan.bucket = sb;
+		double round1 = p * (nr * R.recordBytes() + ns * S.recordBytes());
+		double round2 = nr * p * knn * (R.recordBytes() + 12);
+		plan.shuffle = round1 + round2;
+		plan.secs = shuffle(round1, tasks) + task + waves(buckets) * join
+			+ shuffle(round2, slots) + waves(slots) * task;
+		return plan;
+	}
+
+	/**
+	 * H-zKNNJ: s shifted copies of R and S are each split into p ranges
+	 * of z-values, the reducer of a range merges R with the 2k + 1 nearest
+	 * records of S in z-order. The ranges are estimated from a sample of
+	 * 1 / e^2 records, a range is up to e * n records larger than n / p.
+	 */
+	Plan zJoin(int p, Sample R, Sample S) {
+		double nr = R.records(), ns = S.records();
+		double mem = memory * (double) (1 << 20);
+		// the sample of a shift is held by one reducer of round 1
+		double epsilon = Math.max(1.0 / (4 * p), Math.sqrt(2 * 64 / (mem / 2)));
+		epsilon = Math.max(epsilon, 1 / Math.sqrt(Math.max(1, Math.min(nr, ns))));
+		int tasks = shift * p;
+		double record = 8 * Math.ceil(dimension / 2.0) + 6;  // binary z-value
+
+		double rb = (nr / p + epsilon * nr), sb = (ns / p + epsilon * ns) + 2 * knn;
+		double sort = distances((rb + sb) * Math.log(Math.max(2, rb + sb)) / Math.log(2)) / dimension;
+		double join = distances(rb * (2 * knn + 1)) + sort;
+
+		Plan plan = new Plan();
+		plan.alg = ZKNNJ;
+		plan.p = p;
+		plan.shift = shift;
+		plan.epsilon = epsilon;
+		plan.reducers = tasks;
+		plan.bucket = sb;
+		double round1 = 2 * shift / (epsilon * epsilon) * record;
+		double round2 = shift * (nr + ns) * record;
+		double round3 = nr * shift * knn * (R.recordBytes() + 12);
+		plan.shuffle = round1 + round2 + round3;
+		plan.secs = shuffle(round1, shift) + waves(shift) * task
+			+ shuffle(round2, tasks) + waves(tasks) * (task + join)
+			+ shuffle(round3, slots) + waves(slots) * task;
+		return plan;
+	}
+
+	/**
+	 * The arguments of the first round and the commands of the other rounds
+	 * of a plan.
+	 */
+	String[] firstRound(Plan plan, String r, String s, String out,
+		String cluster, Sample R, Sample S, List<String> next) {
+		String k = Integer.toString(knn), d = Integer.toString(dimension);
+		String p = Integer.toString(plan.p);
+		String round1 = out + "/phase1", round2 = out + "/phase2";
+		switch (plan.alg) {
+		case BRJ:
+			next.add("RPhase2 -r " + slots + " -p " + p + " -k " + k
+				+ " " + round1 + " " + round2);
+			return new String[] {"-r", Integer.toString(plan.reducers),
+				"-p", p, "-d", d, "-k", k,
+				"-mem", Integer.toString(memory / 2), r, s, round1};
+		case BNLJ:
+			int block = (int) Math.min(Integer.MAX_VALUE,
+				memory * (double) (1 << 20) / 4 / (4 * dimension + 4));
+			next.add("NPhase2 -r " + slots + " -p " + p + " -k " + k
+				+ " " + round1 + " " + round2);
+			return new String[] {"-r", Integer.toString(plan.reducers),
+				"-p", p, "-d", d, "-k", k,
+				"-b", Integer.toString(block), "-sb", Integer.toString(block),
+				r, s, round1};
+		default:
+			String sh = Integer.toString(plan.shift);
+			next.add("move " + round1 + "/Rrange<i>* and Srange<i>* to "
+				+ "/user/hadoop/" + cluster + "/range-<outer>-<inner>-" + k
+				+ "/Rrange<i> and Srange<i> (see the readme of H-zKNNJ)");
+			next.add("BPhase2 -s " + sh + " -p " + p + " -d " + d + " -k " + k
+				+ " -c " + cluster + " -shiftinmap -outer <outer> -inner <inner> "
+				+ r + "," + s + " " + round2);
+			next.add("BPhase3 -r " + slots + " -k " + k + " " + round2
+				+ " " + out + "/phase3");
+			return new String[] {"-r", sh, "-s", sh, "-p", p,
+				"-nr", Long.toString((long) R.records()),
+				"-ns", Long.toString((long) S.records()),
+				"-e", Double.toString(plan.epsilon), "-d", d, "-k", k,
+				"-pr", "true", "-c", cluster, "-nocopies",
+				"-outer", r, "-inner", s, "-o", round1};
+		}
+	}
+
+	static int printUsage() {
+		System.out.println(
+			"Planner -d <dimension> -k <knn> -slots <#reduce slots> "
+			+ "-mem <memory(MB) per task> [-sample <#lines>] [-approx] "
+			+ "[-s <numberOfShifts>] [-c <cluster_config>] [-alg <brj|bnlj|zknnj>] "
+			+ "[-dry] <input (R)> <input (S)> <output>");
+		ToolRunner.printGenericCommandUsage(System.out);
+		return -1;
+	}
+
+	public int run(String[] args) throws Exception {
+		int sampleSize = 1000;
+		boolean approx = false;
+		boolean dry = false;
+		int only = -1;
+		String cluster = null;
+
+		Configuration conf = getConf();
+		net = conf.getFloat("planner.net", (float) net);
+		disk = conf.getFloat("planner.disk", (float) disk);
+		dist = conf.getFloat("planner.dist", (float) dist);
+		task = conf.getFloat("planner.task", (float) task);
+
+		List<String> other_args = new ArrayList<String>();
+		for (int i = 0; i < args.length; ++i) {
+			try {
+				if ("-d".equals(args[i])) {
+					dimension = Integer.parseInt(args[++i]);
+				} else if ("-k".equals(args[i])) {
+					knn = Integer.parseInt(args[++i]);
+				} else if ("-slots".equals(args[i])) {
+					slots = Integer.parseInt(args[++i]);
+				} else if ("-mem".equals(args[i])) {
+					memory = Integer.parseInt(args[++i]);
+				} else if ("-sample".equals(args[i])) {
+					sampleSize = Integer.parseInt(args[++i]);
+				} else if ("-approx".equals(args[i])) {
+					approx = true;
+				} else if ("-s".equals(args[i])) {
+					shift = Integer.parseInt(args[++i]);
+				} else if ("-c".equals(args[i])) {
+					cluster = args[++i];
+				} else if ("-alg".equals(args[i])) {
+					String alg = args[++i];
+					only = "brj".equals(alg) ? BRJ : "bnlj".equals(alg) ? BNLJ
+						: "zknnj".equals(alg) ? ZKNNJ : -1;
+					if (only < 0) {
+						System.out.println("ERROR: Unknown algorithm " + alg);
+						return printUsage();
+					}
+				} else if ("-dry".equals(args[i])) {
+					dry = true;
+				} else {
+					other_args.add(args[i]);
+				}
+			} catch (NumberFormatException except) {
+				System.out.println("ERROR: Integer expected instead of " + args[i]);
+				return printUsage();
+			} catch (ArrayIndexOutOfBoundsException except) {
+				System.out.println("ERROR: Required parameter missing from " + args[i-1]);
+				return printUsage();
+			}
+		}
+
+		if (other_args.size() != 3) {
+			System.out.println("ERROR: Wrong number of parameters: " + other_args.size() + " instead of 3.");
+			return printUsage();
+		}
+		String r = other_args.get(0), s = other_args.get(1);
+
+		Random random = new Random();
+		FileSystem fs = FileSystem.get(conf);
+		Sample R = sample(fs, new Path(r), sampleSize, random);
+		Sample S = sample(fs, new Path(s), sampleSize, random);
+		if (R.lines == 0 || S.lines == 0) {
+			System.out.println("ERROR: R or S is empty");
+			return -1;
+		}
+		System.out.printf("R: %d bytes, about %.0f records\n", R.bytes, R.records());
+		System.out.printf("S: %d bytes, about %.0f records\n", S.bytes, S.records());
+
+		boolean zknnj = only == ZKNNJ || (only < 0 && approx);
+		if (zknnj && cluster == null) {
+			System.out.println("ERROR: H-zKNNJ needs -c <cluster_config>");
+			return printUsage();
+		}
+
+		List<Plan> plans = new ArrayList<Plan>();
+		for (int p = 1; p <= MAX_P; p++) {
+			if (only < 0 || only == BRJ)
+				plans.add(blockJoin(BRJ, p, R, S));
+			if (only < 0 || only == BNLJ)
+				plans.add(blockJoin(BNLJ, p, R, S));
+			if (zknnj)
+				plans.add(zJoin(p, R, S));
+		}
+		Collections.sort(plans, new Comparator<Plan>() {
+			public int compare(Plan a, Plan b) {
+				return Double.compare(a.secs, b.secs);
+			}
+		});
+		for (int i = 0; i < Math.min(10, plans.size()); i++)
+			System.out.println(plans.get(i));
+
+		Plan best = plans.get(0);
+		List<String> next = new ArrayList<String>();
+		String[] first = firstRound(best, r, s, other_args.get(2), cluster,
+			R, S, next);
+		StringBuilder cmd = new StringBuilder(FIRST[best.alg]);
+		for (String a : first)
+			cmd.append(' ').append(a);
+		System.out.println("Chosen: " + best);
+		System.out.println("Round 1: " + cmd);
+		for (int i = 0; i < next.size(); i++)
+			System.out.println("Then: " + next.get(i));
+		if (dry)
+			return 0;
+
+		Tool tool;
+		try {
+			Constructor<?> c = Class.forName("test." + FIRST[best.alg])
+				.getDeclaredConstructor();
+			c.setAccessible(true);
+			tool = (Tool) c.newInstance();
+		} catch (ClassNotFoundException e) {
+			System.out.println(FIRST[best.alg] + " is not in this jar, run "
+				+ "round 1 with the jar of " + NAMES[best.alg]);
+			return 0;
+		}
+		return ToolRunner.run(new Configuration(conf), tool, first);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int res = ToolRunner.run(new Configuration(), new Planner(), args);
+		System.exit(res);
+	}
+}
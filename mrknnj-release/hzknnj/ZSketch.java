@@ -0,0 +1,121 @@
+/*
+ * THERE IS NO WARRANTY FOR THE PROGRAM, TO THE EXTENT PERMITTED BY APPLICABLE LAW.
+ * EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR OTHER
+ * PARTIES PROVIDE THE PROGRAM "AS IS" WITHOUT WARRANTY OF ANY KIND, EITHER
+ * EXPRESSED OR IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE. THE ENTIRE RISK AS
+ * TO THE QUALITY AND PERFORMANCE OF THE PROGRAM IS WITH YOU. SHOULD THE PROGRAM
+ * PROVE DEFECTIVE, YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR
+ * OR CORRECTION.
+ */
+
+package test;
+
+import java.util.*;
+
+/**
+ * Mergeable quantile sketch of binary z-values (KLL, Karnin, Lang and
+ * Liberty 2016). The items of level h have the weight 2^h. A full level is
+ * sorted and every other item, starting at a random offset, moves to the
+ * next level, so the total weight stays the number of added values. The
+ * rank of a value among the weighted items is off by about 1.7 / k of the
+ * number of values, with a space of about 3 k items.
+ *
+ * The sketch is merged by adding the weighted items of another sketch; in
+ * particular, the weighted items of the sketches of all mappers, sorted,
+ * give the ranks with the sum of their errors.
+ */
+public class ZSketch {
+	// Items of level h, in the order they were added
+	private ArrayList<ArrayList<long[]>> levels =
+		new ArrayList<ArrayList<long[]>>();
+	private final int k;
+	private final Random r;
+	private long count = 0;
+
+	private static final Comparator<long[]> ORDER = new Comparator<long[]>() {
+		public int compare(long[] z1, long[] z2) {
+			return Zorder.compare(z1, z2);
+		}
+	};
+
+	public ZSketch(int k, Random r) {
+		this.k = Math.max(2, k);
+		this.r = r;
+		levels.add(new ArrayList<long[]>());
+	}
+
+	/**
+	 * Epsilon is the rank error of the sampling of BPhase1, the sketch of
+	 * the same rank error.
+	 */
+	public static int kOf(double epsilon) {
+		return (int) Math.ceil(1.7 / epsilon);
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public void update(long[] z) {
+		add(z, 0);
+		count++;
+	}
+
+	/**
+	 * Adds z with the given weight, e.g. an item of another sketch. The
+	 * weight is split into powers of two, one item per level.
+	 */
+	public void update(long[] z, long weight) {
+		count += weight;
+		for (int h = 0; weight != 0; h++, weight >>>= 1) {
+			if ((weight & 1) != 0)
+				add(z, h);
+		}
+	}
+
+	public int getNumLevels() {
+		return levels.size();
+	}
+
+	// The items of level h, of weight 2^h
+	public List<long[]> getLevel(int h) {
+		return levels.get(h);
+	}
+
+	private void add(long[] z, int h) {
+		while (levels.size() <= h)
+			levels.add(new ArrayList<long[]>());
+		levels.get(h).add(z);
+		compress();
+	}
+
+	// The capacity of level h, k for the top level and 2/3 of it for each
+	// level below
+	private int capacity(int h) {
+		int depth = levels.size() - 1 - h;
+		return Math.max(2, (int) Math.ceil(k * Math.pow(2.0 / 3.0, depth)));
+	}
+
+	private void compress() {
+		for (int h = 0; h < levels.size(); h++) {
+			ArrayList<long[]> level = levels.get(h);
+			if (level.size() < capacity(h))
+				continue;
+			if (h + 1 == levels.size())
+				levels.add(new ArrayList<long[]>());
+			ArrayList<long[]> up = levels.get(h + 1);
+
+			Collections.sort(level, ORDER);
+			// Compact an even number of items, the largest of an odd
+			// number stays
+			int n = level.size() & ~1;
+			for (int i = r.nextInt(2); i < n; i += 2)
+				up.add(level.get(i));
+			ArrayList<long[]> rest = new ArrayList<long[]>();
+			if (n < level.size())
+				rest.add(level.get(n));
+			levels.set(h, rest);
+		}
+	}
+}
@@ -36,12 +36,24 @@ public class Zorder {
 		return rv;
 	}
 
+	// Number of bits of a (scaled and shifted) coordinate
+	public static final int BITS = 32;
+
+	// Cache of maxDecDigits(), indexed by dimension
+	private static int[] decDigits = new int[64];
+
 	public static int maxDecDigits( int dimension ) {
+		if (dimension < decDigits.length && decDigits[dimension] != 0)
+			return decDigits[dimension];
+
 		int max = 32;
 		BigInteger maxDec = new BigInteger( "1" );
 		maxDec = maxDec.shiftLeft( dimension * max );
 		maxDec.subtract( BigInteger.ONE );
-		return maxDec.toString().length();
+		int digits = maxDec.toString().length();
+		if (dimension < decDigits.length)
+			decDigits[dimension] = digits;
+		return digits;
 	}
 
 	public static String maxDecString( int dimension ) {
@@ -51,113 +63,192 @@ public class Zorder {
 		maxDec.subtract( BigInteger.ONE );
 		return maxDec.toString();
 	}
-	
-	// Convert an multi-dimensional coordinate into a zorder
-	// coordinates have already been scaled and shifted
-	public static String valueOf(int dimension, int[] coord) {
-		Vector<String> arrPtr = new Vector<String>(dimension);
-		//System.out.println( "maxDec " + maxDec.toString() );
-        int max = 32;
-		int fix = maxDecDigits(dimension); //global maximum possible zvalue length
-		//System.out.println( fix );
-
-		for (int i = 0; i < dimension; i++) {
-			String p = Integer.toBinaryString((int)coord[i]);
-			//System.out.println( coord[i] + " " + p ); 
-			arrPtr.add(p);
-		}
 
-		for( int i = 0; i < arrPtr.size(); ++i ) {
-			String extra = createExtra( max - arrPtr.elementAt(i).length() ); 
-			arrPtr.set(i, extra + arrPtr.elementAt(i) );
-			//System.out.println( i + " " + arrPtr.elementAt(i) );
+	//==========================================================================
+	// Binary z-values. A z-value of a d-dimensional point is held in
+	// words(d) longs, most significant word first, so that comparing the
+	// words as unsigned numbers gives the same order as comparing the
+	// fixed length decimal Strings returned by valueOf().
+
+	// Number of 64 bit words needed for a z-value of the given dimension
+	public static int words(int dimension) {
+		return (dimension * BITS + 63) >>> 6;
+	}
+
+	// Spread the 32 bits of x over the even bits of a long
+	private static long spread2(int x) {
+		long v = x & 0xFFFFFFFFL;
+		v = (v | (v << 16)) & 0x0000FFFF0000FFFFL;
+		v = (v | (v << 8))  & 0x00FF00FF00FF00FFL;
+		v = (v | (v << 4))  & 0x0F0F0F0F0F0F0F0FL;
+		v = (v | (v << 2))  & 0x3333333333333333L;
+		v = (v | (v << 1))  & 0x5555555555555555L;
+		return v;
+	}
+
+	// Inverse of spread2, collect the even bits of v into an int
+	private static int compact2(long v) {
+		v &= 0x5555555555555555L;
+		v = (v | (v >>> 1))  & 0x3333333333333333L;
+		v = (v | (v >>> 2))  & 0x0F0F0F0F0F0F0F0FL;
+		v = (v | (v >>> 4))  & 0x00FF00FF00FF00FFL;
+		v = (v | (v >>> 8))  & 0x0000FFFF0000FFFFL;
+		v = (v | (v >>> 16)) & 0x00000000FFFFFFFFL;
+		return (int) v;
+	}
+
+	public static long[] encode(int dimension, int[] coord) {
+		return encode(dimension, coord, new long[words(dimension)]);
+	}
+
+	// Interleave the bits of coord into z (of length words(dimension)).
+	// The most significant bit of coord[0] becomes the most significant
+	// bit of the z-value, which is the same layout valueOf() produces.
+	public static long[] encode(int dimension, int[] coord, long[] z) {
+		if (dimension == 2) {
+			z[0] = (spread2(coord[0]) << 1) | spread2(coord[1]);
+			return z;
+		} 
+		if (dimension == 1) {
+			z[0] = coord[0] & 0xFFFFFFFFL;
+			return z;
 		}
-	
-		char[] value = new char[dimension * max];
-		int index = 0;
-
-		// Create Zorder
-		for (int i = 0; i < max; ++i ) {
-			for (String e: arrPtr) {
-				char ch = e.charAt(i);
-				value[index++] = ch;
-			}	
-		}		
-			
-		String order = new String(value);
-		//System.out.println( value );
-		// Covert a binary representation of order into a big integer
-		BigInteger ret = new BigInteger( order, 2 );
-
-		// Return a fixed length decimal String representation of 
-		// the big integer (z-order)
-		order = ret.toString();	
-		//System.out.println( order );
-		if (order.length() < fix) {
-			String extra = createExtra(fix - order.length());
-			order = extra + order;
-		} else if (order.length() > fix) {
-			System.out.println("too big zorder, need to fix Zorder.java");
-			System.exit(-1);
+
+		int w = words(dimension);
+		for (int i = 0; i < w; i++)
+			z[i] = 0;
+
+		// bit b of coord[j] goes to bit (b * dimension + dimension - 1 - j)
+		// of the whole z-value, counted from the least significant end
+		for (int j = 0; j < dimension; j++) {
+			int c = coord[j];
+			while (c != 0) {
+				int b = Integer.numberOfTrailingZeros(c);
+				int pos = b * dimension + dimension - 1 - j;
+				z[w - 1 - (pos >>> 6)] |= 1L << (pos & 63);
+				c &= c - 1;
+			}
 		}
+		return z;
+	}
 
-		//System.out.println(order);
-		
-		return order;
+	public static int[] decode(long[] z, int dimension) {
+		return decode(z, dimension, new int[dimension]);
 	}
 
-	public static int[] toCoord(String z, int dimension) {
-		int DECIMAL_RADIX = 10;
-		int BINARY_RADIX = 2;
+	// Inverse of encode
+	public static int[] decode(long[] z, int dimension, int[] coord) {
+		if (dimension == 2) {
+			coord[0] = compact2(z[0] >>> 1);
+			coord[1] = compact2(z[0]);
+			return coord;
+		} 
+		if (dimension == 1) {
+			coord[0] = (int) z[0];
+			return coord;
+		}
 
-		if (z == null) {
-			System.out.println("Z-order Null pointer!!!@Zorder.toCoord");
-			System.exit(-1);	
+		int w = words(dimension);
+		for (int j = 0; j < dimension; j++)
+			coord[j] = 0;
+
+		for (int i = 0; i < w; i++) {
+			long v = z[w - 1 - i];
+			while (v != 0) {
+				int pos = (i << 6) + Long.numberOfTrailingZeros(v);
+				int j = dimension - 1 - pos % dimension;
+				coord[j] |= 1 << (pos / dimension);
+				v &= v - 1;
+			}
 		}
+		return coord;
+	}
 
-		BigInteger bigZ = new BigInteger(z, DECIMAL_RADIX);
-		String bigZStr = bigZ.toString(BINARY_RADIX);
+	// Compare two z-values as unsigned numbers
+	public static int compare(long[] z1, long[] z2) {
+		for (int i = 0; i < z1.length; i++) {
+			if (z1[i] != z2[i])
+				return (z1[i] ^ Long.MIN_VALUE) < (z2[i] ^ Long.MIN_VALUE) ? -1 : 1;
+		}
+		return 0;
+	}
 
-		// Test
-		//bigZStr = "1110011";
-		//System.out.println(bigZStr);
+	// Fixed width binary form: words(dimension) big-endian longs
+	public static void write(DataOutput out, long[] z) throws IOException {
+		for (int i = 0; i < z.length; i++)
+			out.writeLong(z[i]);
+	}
 
-		int len = bigZStr.length();
-		// System.out.println("leng before is" + len);
-		//int prefixZeros = len % dimension;
-		int prefixZeros = 0;
-		if (len % dimension != 0)
-			prefixZeros = dimension - len % dimension;
+	public static long[] read(DataInput in, long[] z) throws IOException {
+		for (int i = 0; i < z.length; i++)
+			z[i] = in.readLong();
+		return z;
+	}
 
-		//System.out.println("--");
-		//System.out.println(prefixZeros);
+	// Fixed length decimal String of a binary z-value, as valueOf() returns
+	public static String toDecimal(long[] z, int dimension) {
+		String order;
+		if (z.length == 1) {
+			long v = z[0];
+			if (v >= 0) {
+				order = Long.toString(v);
+			} else {
+				// unsigned 64 bit value
+				long q = (v >>> 1) / 5;
+				order = Long.toString(q) + (v - q * 10);
+			}
+		} else {
+			byte[] mag = new byte[z.length * 8];
+			for (int i = 0; i < z.length; i++)
+				for (int k = 0; k < 8; k++)
+					mag[i * 8 + k] = (byte) (z[i] >>> (56 - 8 * k));
+			order = new BigInteger(1, mag).toString();
+		}
 
-		String prefix = Zorder.createExtra(prefixZeros);
-		bigZStr = prefix + bigZStr;
-		
-		len = bigZStr.length();
-		//System.out.println(len);
+		int fix = maxDecDigits(dimension);
+		if (order.length() < fix)
+			order = createExtra(fix - order.length()) + order;
+		return order;
+	}
+
+	public static long[] fromDecimal(String z, int dimension) {
+		return fromDecimal(z, dimension, new long[words(dimension)]);
+	}
 
-		if (len % dimension != 0) {
-			System.out.println("Wrong prefix!!!@Zorder.toCoord");
-			System.exit(-1);
+	// Parse a decimal z-value (as returned by valueOf()) into binary form
+	public static long[] fromDecimal(String z, int dimension, long[] ret) {
+		if (ret.length == 1) {
+			// z < 2^64, so overflowing the signed long simply wraps
+			// around to the unsigned value
+			long v = 0;
+			for (int i = 0; i < z.length(); i++)
+				v = v * 10 + (z.charAt(i) - '0');
+			ret[0] = v;
+			return ret;
 		}
 
-		//The most significant bit is save at starting position of 
-		//the char array.
-		char[] bigZCharArray = bigZStr.toCharArray();
-
-		int[] coord = new int[dimension];
-		for (int i = 0; i < dimension; i++)
-			coord[i] = 0;
-		for( int i = 0; i < bigZCharArray.length; ) {
-   			for( int j = 0; j < dimension; ++j ) {
-				coord[j] <<= 1;
-				coord[j] |= bigZCharArray[i++] - '0';
-			}
+		BigInteger bigZ = new BigInteger(z);
+		for (int i = ret.length - 1; i >= 0; i--) {
+			ret[i] = bigZ.longValue();
+			bigZ = bigZ.shiftRight(64);
+		}
+		return ret;
+	}
+	//==========================================================================
+	
+	// Convert an multi-dimensional coordinate into a zorder
+	// coordinates have already been scaled and shifted
+	public static String valueOf(int dimension, int[] coord) {
+		return toDecimal(encode(dimension, coord), dimension);
+	}
+
+	public static int[] toCoord(String z, int dimension) {
+		if (z == null) {
+			System.out.println("Z-order Null pointer!!!@Zorder.toCoord");
+			System.exit(-1);	
 		}
 
-		return coord;
+		return decode(fromDecimal(z, dimension), dimension);
 	}
 
 	public static void main(String[] args) {
@@ -0,0 +1,157 @@
+package test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * JUnit test to test the {@link CoordCache} class of H-zKNNJ: every policy
+ * is run against a reference cache on a stream of lookups, where a miss
+ * inserts the value. The stream evicts often, so entries are deleted from
+ * the middle of probe chains and the entries behind them shifted back.
+ */
+public class TestCoordCache {
+	/**
+	 * Reference cache: the entries of the cache, in the order of the policy.
+	 */
+	static class Reference {
+		final CoordCache.Policy policy;
+
+		final int capacity;
+
+		// LRU and FIFO: the order of eviction, the oldest first
+		LinkedHashMap<Long, Integer> entries;
+
+		// CLOCK: the entry of every slot, its reference bit and the hand
+		List<Long> slots = new ArrayList<Long>();
+
+		Map<Long, Boolean> referenced = new HashMap<Long, Boolean>();
+
+		int hand = 0;
+
+		Reference(CoordCache.Policy policy, int capacity) {
+			this.policy = policy;
+			this.capacity = capacity;
+			entries = new LinkedHashMap<Long, Integer>(16, 0.75f, policy == CoordCache.Policy.LRU);
+		}
+
+		boolean get(long key) {
+			if (policy != CoordCache.Policy.CLOCK) {
+				return entries.get(key) != null;
+			}
+			if (!referenced.containsKey(key)) {
+				return false;
+			}
+			referenced.put(key, true);
+			return true;
+		}
+
+		void put(long key) {
+			if (policy != CoordCache.Policy.CLOCK) {
+				if (entries.size() == capacity) {
+					Iterator<Long> eldest = entries.keySet().iterator();
+					eldest.next();
+					eldest.remove();
+				}
+				entries.put(key, 0);
+				return;
+			}
+			if (slots.size() < capacity) {
+				slots.add(key);
+			} else {
+				while (referenced.get(slots.get(hand))) {
+					referenced.put(slots.get(hand), false);
+					hand = (hand + 1) % capacity;
+				}
+				referenced.remove(slots.get(hand));
+				slots.set(hand, key);
+				hand = (hand + 1) % capacity;
+			}
+			referenced.put(key, false);
+		}
+	}
+
+	// The z-value of key i, its coordinates are i and -i in every dimension
+	static int[] coordOf(int dimension, long i) {
+		int[] c = new int[dimension];
+		for (int k = 0; k < dimension; k++) {
+			c[k] = (int) ((k % 2 == 0) ? i : -i);
+		}
+		return c;
+	}
+
+	void run(CoordCache.Policy policy, int dimension, int capacity, int keys, int lookups, long seed) {
+		CoordCache cache = new CoordCache(dimension, capacity, policy);
+		Reference ref = new Reference(policy, capacity);
+		Random r = new Random(seed);
+		long hits = 0;
+		for (int n = 0; n < lookups; n++) {
+			// skewed, a few keys are looked up often
+			long key = (long) (keys * Math.pow(r.nextDouble(), 2));
+			int[] coord = coordOf(dimension, key);
+			long[] z = Zorder.encode(dimension, coord);
+			int off = cache.get(z);
+			boolean cached = ref.get(key);
+			String msg = policy + ", " + dimension + " dimensions, lookup " + n + " of " + key;
+			Assert.assertEquals(msg + ": cached", cached, off >= 0);
+			if (off >= 0) {
+				hits++;
+				for (int k = 0; k < dimension; k++) {
+					Assert.assertEquals(msg + ": coordinate " + k, coord[k], cache.getCoords()[off + k]);
+				}
+			} else {
+				off = cache.put(z, coord);
+				ref.put(key);
+				for (int k = 0; k < dimension; k++) {
+					Assert.assertEquals(msg + ": inserted coordinate " + k, coord[k], cache.getCoords()[off + k]);
+				}
+			}
+		}
+		Assert.assertEquals(policy + ": hits", hits, cache.getHits());
+		Assert.assertEquals(policy + ": misses", lookups - hits, cache.getMisses());
+	}
+
+	/**
+	 * Least recently used.
+	 */
+	@Test
+	public void testLRU() {
+		run(CoordCache.Policy.LRU, 2, 64, 200, 50000, 1);
+		run(CoordCache.Policy.LRU, 3, 100, 1000, 50000, 2);
+	}
+
+	/**
+	 * Oldest first.
+	 */
+	@Test
+	public void testFIFO() {
+		run(CoordCache.Policy.FIFO, 2, 64, 200, 50000, 3);
+		run(CoordCache.Policy.FIFO, 3, 100, 1000, 50000, 4);
+	}
+
+	/**
+	 * Second chance.
+	 */
+	@Test
+	public void testCLOCK() {
+		run(CoordCache.Policy.CLOCK, 2, 64, 200, 50000, 5);
+		run(CoordCache.Policy.CLOCK, 3, 100, 1000, 50000, 6);
+	}
+
+	/**
+	 * A cache of one entry replaces it on every miss.
+	 */
+	@Test
+	public void testSingleEntry() {
+		for (CoordCache.Policy policy : CoordCache.Policy.values()) {
+			run(policy, 2, 1, 3, 1000, 7);
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * JUnit test to test the {@link ZSketch} class of H-zKNNJ: the rank of a
+ * value among the weighted items of a sketch, alone or merged with others,
+ * is within the rank error of kOf(epsilon) of its exact rank.
+ */
+public class TestZSketch {
+	static final double EPSILON = 0.01;
+
+	// The rank error of a sketch is about epsilon, a few percentiles of the
+	// fixed seeds below are off by up to twice that
+	static final double BOUND = 2.5 * EPSILON;
+
+	static final int N = 100000;
+
+	static final Comparator<long[]> ORDER = new Comparator<long[]>() {
+		public int compare(long[] z1, long[] z2) {
+			return Zorder.compare(z1, z2);
+		}
+	};
+
+	/**
+	 * The weighted items of sketches, as BPhase1 merges them.
+	 */
+	static class Items {
+		List<long[]> zvals = new ArrayList<long[]>();
+
+		List<Long> weights = new ArrayList<Long>();
+
+		void add(ZSketch sketch) {
+			for (int h = 0; h < sketch.getNumLevels(); h++) {
+				for (long[] z : sketch.getLevel(h)) {
+					zvals.add(z);
+					weights.add(1L << h);
+				}
+			}
+		}
+
+		long total() {
+			long w = 0;
+			for (long x : weights) {
+				w += x;
+			}
+			return w;
+		}
+
+		// The weight of the items less than z
+		long rank(long[] z) {
+			long w = 0;
+			for (int i = 0; i < zvals.size(); i++) {
+				if (Zorder.compare(zvals.get(i), z) < 0) {
+					w += weights.get(i);
+				}
+			}
+			return w;
+		}
+	}
+
+	static long[][] randomValues(Random r, int n) {
+		long[][] vals = new long[n][];
+		for (int i = 0; i < n; i++) {
+			vals[i] = Zorder.encode(2, new int[] { r.nextInt(), r.nextInt() });
+		}
+		return vals;
+	}
+
+	// The largest rank error at the percentiles of vals, relative to n
+	static double maxError(Items items, long[][] vals) {
+		long[][] sorted = vals.clone();
+		Arrays.sort(sorted, ORDER);
+		double max = 0;
+		for (int q = 1; q < 100; q++) {
+			int rank = q * sorted.length / 100;
+			// the first of equal values, its rank is the number of smaller ones
+			while (rank > 0 && Zorder.compare(sorted[rank - 1], sorted[rank]) == 0) {
+				rank--;
+			}
+			max = Math.max(max, Math.abs(items.rank(sorted[rank]) - rank) / (double) sorted.length);
+		}
+		return max;
+	}
+
+	static ZSketch sketch(long[][] vals, int from, int step, long seed) {
+		ZSketch sketch = new ZSketch(ZSketch.kOf(EPSILON), new Random(seed));
+		for (int i = from; i < vals.length; i += step) {
+			sketch.update(vals[i]);
+		}
+		return sketch;
+	}
+
+	/**
+	 * The rank error of random values, and of values added in order.
+	 */
+	@Test
+	public void testRankError() {
+		long[][] vals = randomValues(new Random(1), N);
+		Items items = new Items();
+		items.add(sketch(vals, 0, 1, 1));
+		Assert.assertEquals("Total weight", N, items.total());
+		double err = maxError(items, vals);
+		Assert.assertTrue("Rank error " + err + " of random values", err <= BOUND);
+
+		long[][] sorted = vals.clone();
+		Arrays.sort(sorted, ORDER);
+		items = new Items();
+		items.add(sketch(sorted, 0, 1, 2));
+		err = maxError(items, sorted);
+		Assert.assertTrue("Rank error " + err + " of sorted values", err <= BOUND);
+	}
+
+	/**
+	 * Many equal values, they all have the rank of the first of them.
+	 */
+	@Test
+	public void testDuplicates() {
+		Random r = new Random(3);
+		long[][] vals = new long[N][];
+		for (int i = 0; i < N; i++) {
+			vals[i] = Zorder.encode(2, new int[] { r.nextInt(20), 0 });
+		}
+		Items items = new Items();
+		items.add(sketch(vals, 0, 1, 3));
+		double err = maxError(items, vals);
+		Assert.assertTrue("Rank error " + err + " of duplicates", err <= BOUND);
+	}
+
+	/**
+	 * The sketches of several mappers, merged as their weighted items and
+	 * by adding these items to one sketch.
+	 */
+	@Test
+	public void testMerged() {
+		long[][] vals = randomValues(new Random(4), N);
+		int mappers = 8;
+		Items items = new Items();
+		ZSketch merged = new ZSketch(ZSketch.kOf(EPSILON), new Random(5));
+		for (int m = 0; m < mappers; m++) {
+			ZSketch sketch = sketch(vals, m, mappers, 10 + m);
+			Assert.assertEquals("Count of a mapper", N / mappers, sketch.getCount());
+			items.add(sketch);
+			for (int h = 0; h < sketch.getNumLevels(); h++) {
+				for (long[] z : sketch.getLevel(h)) {
+					merged.update(z, 1L << h);
+				}
+			}
+		}
+		Assert.assertEquals("Total weight of the items", N, items.total());
+		double err = maxError(items, vals);
+		Assert.assertTrue("Rank error " + err + " of the items", err <= BOUND);
+
+		Assert.assertEquals("Count of the merged sketch", N, merged.getCount());
+		Items mergedItems = new Items();
+		mergedItems.add(merged);
+		Assert.assertEquals("Total weight of the merged sketch", N, mergedItems.total());
+		err = maxError(mergedItems, vals);
+		Assert.assertTrue("Rank error " + err + " of the merged sketch", err <= 2 * BOUND);
+	}
+
+	/**
+	 * The sketch keeps about 3 k items, not the values.
+	 */
+	@Test
+	public void testSpace() {
+		int k = ZSketch.kOf(EPSILON);
+		Items items = new Items();
+		items.add(sketch(randomValues(new Random(6), N), 0, 1, 6));
+		Assert.assertTrue("Items " + items.zvals.size() + " for k = " + k, items.zvals.size() <= 3 * k + 64);
+	}
+}
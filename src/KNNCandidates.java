@@ -0,0 +1,87 @@
+package test;
+import java.io.*;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.*;
+
+/**
+ * The <rid2, dist> candidates found for a record of R in one bucket. When
+ * both rounds of H-BRJ are fused, RPhase1 writes them as <rid1, candidates>
+ * records instead of one text line per candidate.
+ */
+public class KNNCandidates implements Writable {
+
+	private int size;
+	private int[] ids = new int[16];
+	private float[] dists = new float[16];
+
+	public void clear() {
+		size = 0;
+	}
+
+	public void add(int id, float dist) {
+		ensureCapacity(size + 1);
+		ids[size] = id;
+		dists[size] = dist;
+		size++;
+	}
+
+	public void addAll(KNNCandidates other) {
+		ensureCapacity(size + other.size);
+		System.arraycopy(other.ids, 0, ids, size, other.size);
+		System.arraycopy(other.dists, 0, dists, size, other.size);
+		size += other.size;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int getId(int i) {
+		return ids[i];
+	}
+
+	public float getDistance(int i) {
+		return dists[i];
+	}
+
+	private void ensureCapacity(int n) {
+		if (n > ids.length) {
+			int len = Math.max(n, 2 * ids.length);
+			ids = Arrays.copyOf(ids, len);
+			dists = Arrays.copyOf(dists, len);
+		}
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		WritableUtils.writeVInt(out, size);
+		for (int i = 0; i < size; i++) {
+			WritableUtils.writeVInt(out, ids[i]);
+			out.writeFloat(dists[i]);
+		}
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		size = 0;
+		int n = WritableUtils.readVInt(in);
+		ensureCapacity(n);
+		for (int i = 0; i < n; i++) {
+			ids[i] = WritableUtils.readVInt(in);
+			dists[i] = in.readFloat();
+		}
+		size = n;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < size; i++) {
+			if (i > 0)
+				sb.append(" ");
+			sb.append(ids[i]).append(" ").append(dists[i]);
+		}
+		return sb.toString();
+	}
+}